@@ -17,16 +17,17 @@
  */
 package pcgen.base.formula;
 
-import java.io.StringReader;
-
 import pcgen.base.formula.base.FormulaDependencyManager;
 import pcgen.base.formula.base.FormulaSemantics;
 import pcgen.base.formula.manager.FormulaManager;
 import pcgen.base.formula.manager.ScopeInformation;
-import pcgen.base.formula.parse.FormulaParser;
+import pcgen.base.formula.parse.FormulaParserPool;
 import pcgen.base.formula.parse.ParseException;
 import pcgen.base.formula.parse.SimpleNode;
 import pcgen.base.formula.variable.ScopedNamespaceDefinition;
+import pcgen.base.formula.variable.VariableScope;
+import pcgen.base.formula.visitor.BatchEvaluateVisitor;
+import pcgen.base.formula.visitor.TextInterningVisitor;
 import pcgen.base.formula.visitor.ReconstructionVisitor;
 
 /**
@@ -63,6 +64,11 @@ public class ComplexNEPFormula<T> implements NEPFormula<T>
 	 * the tree of objects representing the calculation to be performed by the
 	 * ComplexNEPFormula, and loads the root of that tree into the root field.
 	 * 
+	 * The formula is parsed by the FormulaParser held by the current thread
+	 * (see FormulaParserPool), and the text of the nodes of the tree is
+	 * canonicalized in place (see TextInterningVisitor), so that it is shared
+	 * with other formulas.
+	 * 
 	 * @param expression
 	 *            The String representation of the formula used to construct the
 	 *            ComplexNEPFormula.
@@ -80,7 +86,52 @@ public class ComplexNEPFormula<T> implements NEPFormula<T>
 		}
 		try
 		{
-			root = new FormulaParser(new StringReader(expression)).query();
+			root =
+					new TextInterningVisitor().internText(FormulaParserPool
+						.parse(expression));
+		}
+		catch (ParseException e)
+		{
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	/**
+	 * Construct a new ComplexNEPFormula from the given String, sharing the
+	 * subtrees of the formula with the formulas previously loaded for the given
+	 * FormulaManager.
+	 * 
+	 * The tree produced by the parser is replaced by an interned copy (see
+	 * FormulaManager.intern(SimpleNode)), so that structurally identical
+	 * subtrees (e.g. "floor(LEVEL/2)") are held in memory once across all of
+	 * the formulas loaded for the FormulaManager.
+	 * 
+	 * @param expression
+	 *            The String representation of the formula used to construct the
+	 *            ComplexNEPFormula.
+	 * @param fm
+	 *            The FormulaManager for which the formula is loaded
+	 * @throws IllegalArgumentException
+	 *             if either parameter is null, or if the given String does not
+	 *             represent a well-structured Formula. (For example, if
+	 *             parenthesis are not matched, an exception will be thrown)
+	 */
+	public ComplexNEPFormula(String expression, FormulaManager fm)
+	{
+		if (expression == null)
+		{
+			throw new IllegalArgumentException(
+				"Cannot make formula from null String");
+		}
+		if (fm == null)
+		{
+			throw new IllegalArgumentException(
+				"Cannot make formula with null FormulaManager");
+		}
+		try
+		{
+			root =
+					fm.intern(FormulaParserPool.parse(expression));
 		}
 		catch (ParseException e)
 		{
@@ -88,6 +139,20 @@ public class ComplexNEPFormula<T> implements NEPFormula<T>
 		}
 	}
 
+	/**
+	 * Construct a new ComplexNEPFormula with the given root node of a tree
+	 * that has already been produced by a parser (see MappedFormulaReader).
+	 * The tree must not reference the parser that produced it.
+	 * 
+	 * @param root
+	 *            The root node of the tree representing the calculation to be
+	 *            performed by the ComplexNEPFormula
+	 */
+	ComplexNEPFormula(SimpleNode root)
+	{
+		this.root = root;
+	}
+
 	/**
 	 * Resolves the ComplexNEPFormula in the context of the given
 	 * ScopeInformation. The given ScopeInformation must contain information
@@ -125,6 +190,43 @@ public class ComplexNEPFormula<T> implements NEPFormula<T>
 		return (T) si.evaluate(root);
 	}
 
+	/**
+	 * Resolves the ComplexNEPFormula in the context of each of the given
+	 * VariableScope objects, loading the results into the given array (in the
+	 * same order as the VariableScope objects). The given FormulaManager must
+	 * contain information about variable values, available functions, and
+	 * other characteristics required for the formula to produce a value.
+	 * 
+	 * The results are identical to resolving the ComplexNEPFormula with a
+	 * ScopeInformation for each VariableScope, but the formula is processed
+	 * once for all of the VariableScope objects (see BatchEvaluateVisitor),
+	 * which is significantly faster when the same formula is resolved for a
+	 * large number of VariableScope objects (e.g. for each equipment
+	 * instance).
+	 * 
+	 * @param fm
+	 *            The FormulaManager providing the context in which the
+	 *            ComplexNEPFormula is to be resolved
+	 * @param scopes
+	 *            The VariableScope objects in which the ComplexNEPFormula is
+	 *            to be resolved
+	 * @param results
+	 *            The array into which the results are loaded
+	 * @throws IllegalArgumentException
+	 *             if any parameter is null or the results array is shorter
+	 *             than the array of VariableScope objects
+	 */
+	public void resolve(FormulaManager fm, VariableScope<?>[] scopes,
+		Object[] results)
+	{
+		if (fm == null)
+		{
+			throw new IllegalArgumentException(
+				"Cannot resolve formula with null FormulaManager");
+		}
+		new BatchEvaluateVisitor(fm, scopes).evaluate(root, results);
+	}
+
 	/**
 	 * Determines the dependencies for this formula, including the VariableID
 	 * objects representing the variables within the ComplexNEPFormula.
@@ -0,0 +1,441 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A FormulaFactory provides ComplexNEPFormula objects for formula text,
+ * parsing each distinct formula once and returning the same (shared)
+ * ComplexNEPFormula each time the same formula is requested.
+ * 
+ * Formulas are cached by a normalized form of the formula text, which ignores
+ * spaces that the parser ignores (spaces around operators, parenthesis and
+ * commas). Spaces that may be significant (within a variable name or a quoted
+ * String, or adjacent to "=" or "%", which may appear within a variable name)
+ * are never ignored.
+ * 
+ * The cache is bounded: each ComplexNEPFormula has a weight (by default, one,
+ * so that the maximum weight is the maximum number of formulas), and when the
+ * total weight exceeds the maximum weight, formulas are evicted. Eviction uses
+ * the CLOCK algorithm: formulas are evicted in the order they were added,
+ * except that a formula that has been requested since it was last considered
+ * for eviction is given a "second chance". Evicting a formula does not affect
+ * the ComplexNEPFormula objects already returned by the FormulaFactory.
+ * 
+ * The cached ComplexNEPFormula is parsed from the text of the first request
+ * for the formula (not the normalized text), so it reconstructs (see
+ * toString()) as that request would have. A later request with different
+ * spacing receives the same ComplexNEPFormula.
+ * 
+ * Since the same ComplexNEPFormula is returned to every caller, its type is
+ * not known to the FormulaFactory: the caller casts it to the type of
+ * ComplexNEPFormula required, where that type is known.
+ * 
+ * A FormulaFactory is thread-safe, and no lock is held while a formula is
+ * parsed. If two threads request the same formula at the same time, it may be
+ * parsed by both threads, but only one ComplexNEPFormula will be cached.
+ */
+public class FormulaFactory
+{
+
+	/**
+	 * The characters that form a token on their own and never form part of a
+	 * variable name, so that spaces adjacent to them are never significant.
+	 */
+	private static final String SEPARATORS = "+-*/^,()[]";
+
+	/**
+	 * The characters that never form part of a variable name, but may form a
+	 * token together with an adjacent character (e.g. "<="), so that spaces
+	 * adjacent to them are only ignored if removing the spaces cannot join two
+	 * of these characters.
+	 */
+	private static final String JOINERS = "<>!&|";
+
+	/**
+	 * The characters that form a two character operator when followed by "="
+	 * (e.g. "<="), so that spaces following such an operator are ignored.
+	 */
+	private static final String EQUALS_OPERATORS = "<>!=";
+
+	/**
+	 * A Weigher that gives every formula a weight of one.
+	 */
+	private static final Weigher SINGLE_WEIGHT = new Weigher()
+	{
+		@Override
+		public int weigh(String expression, ComplexNEPFormula<?> formula)
+		{
+			return 1;
+		}
+	};
+
+	/**
+	 * The cached formulas, keyed by the normalized formula text.
+	 */
+	private final ConcurrentMap<String, Entry> cache =
+			new ConcurrentHashMap<String, Entry>();
+
+	/**
+	 * The cached formulas in the order they will be considered for eviction.
+	 */
+	private final Queue<Entry> clock = new ConcurrentLinkedQueue<Entry>();
+
+	/**
+	 * The maximum total weight of the cached formulas.
+	 */
+	private final long maximumWeight;
+
+	/**
+	 * The Weigher used to determine the weight of each formula.
+	 */
+	private final Weigher weigher;
+
+	/**
+	 * The total weight of the cached formulas.
+	 */
+	private final AtomicLong weight = new AtomicLong();
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	/**
+	 * Constructs a new FormulaFactory that caches at most the given number of
+	 * formulas.
+	 * 
+	 * @param maximumSize
+	 *            The maximum number of formulas to be cached
+	 * @throws IllegalArgumentException
+	 *             if the maximum size is negative
+	 */
+	public FormulaFactory(long maximumSize)
+	{
+		this(maximumSize, SINGLE_WEIGHT);
+	}
+
+	/**
+	 * Constructs a new FormulaFactory that caches formulas up to the given
+	 * maximum total weight, as determined by the given Weigher.
+	 * 
+	 * @param maximumWeight
+	 *            The maximum total weight of the formulas to be cached
+	 * @param weigher
+	 *            The Weigher used to determine the weight of each formula
+	 * @throws IllegalArgumentException
+	 *             if the maximum weight is negative or the Weigher is null
+	 */
+	public FormulaFactory(long maximumWeight, Weigher weigher)
+	{
+		if (maximumWeight < 0)
+		{
+			throw new IllegalArgumentException(
+				"Maximum weight cannot be negative: " + maximumWeight);
+		}
+		if (weigher == null)
+		{
+			throw new IllegalArgumentException("Weigher cannot be null");
+		}
+		this.maximumWeight = maximumWeight;
+		this.weigher = weigher;
+	}
+
+	/**
+	 * Returns the ComplexNEPFormula for the given formula text. If an
+	 * equivalent formula (one with the same normalized text) is cached, the
+	 * cached ComplexNEPFormula is returned; otherwise the given formula text is
+	 * parsed (and the ComplexNEPFormula cached).
+	 * 
+	 * @param expression
+	 *            The String representation of the formula
+	 * @return The ComplexNEPFormula for the given formula text
+	 * @throws IllegalArgumentException
+	 *             if the given String is null or does not represent a
+	 *             well-structured Formula
+	 */
+	public ComplexNEPFormula<?> getFormula(String expression)
+	{
+		if (expression == null)
+		{
+			throw new IllegalArgumentException(
+				"Cannot make formula from null String");
+		}
+		String key = normalize(expression);
+		Entry entry = cache.get(key);
+		if (entry != null)
+		{
+			hitCount.incrementAndGet();
+			entry.referenced = true;
+			return entry.formula;
+		}
+		missCount.incrementAndGet();
+		ComplexNEPFormula<?> formula = new ComplexNEPFormula<Object>(expression);
+		entry =
+				new Entry(key, formula, Math.max(0,
+					weigher.weigh(expression, formula)));
+		Entry existing = cache.putIfAbsent(key, entry);
+		if (existing != null)
+		{
+			existing.referenced = true;
+			return existing.formula;
+		}
+		clock.offer(entry);
+		weight.addAndGet(entry.weight);
+		evict();
+		return formula;
+	}
+
+	/**
+	 * Evicts formulas until the total weight of the cached formulas does not
+	 * exceed the maximum weight.
+	 */
+	private void evict()
+	{
+		while (weight.get() > maximumWeight)
+		{
+			Entry entry = clock.poll();
+			if (entry == null)
+			{
+				return;
+			}
+			if (entry.referenced)
+			{
+				//Second chance
+				entry.referenced = false;
+				clock.offer(entry);
+			}
+			else if (cache.remove(entry.key, entry))
+			{
+				weight.addAndGet(-entry.weight);
+				evictionCount.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of formulas currently cached by this FormulaFactory.
+	 * 
+	 * @return The number of formulas currently cached by this FormulaFactory
+	 */
+	public int size()
+	{
+		return cache.size();
+	}
+
+	/**
+	 * Returns the total weight of the formulas currently cached by this
+	 * FormulaFactory.
+	 * 
+	 * @return The total weight of the formulas currently cached by this
+	 *         FormulaFactory
+	 */
+	public long getWeight()
+	{
+		return weight.get();
+	}
+
+	/**
+	 * Returns the number of requests that returned a cached formula.
+	 * 
+	 * @return The number of requests that returned a cached formula
+	 */
+	public long getHitCount()
+	{
+		return hitCount.get();
+	}
+
+	/**
+	 * Returns the number of requests that parsed a formula.
+	 * 
+	 * @return The number of requests that parsed a formula
+	 */
+	public long getMissCount()
+	{
+		return missCount.get();
+	}
+
+	/**
+	 * Returns the number of formulas that have been evicted from the cache.
+	 * 
+	 * @return The number of formulas that have been evicted from the cache
+	 */
+	public long getEvictionCount()
+	{
+		return evictionCount.get();
+	}
+
+	/**
+	 * Removes all of the formulas from the cache. The statistics are not
+	 * reset.
+	 */
+	public void clear()
+	{
+		for (Entry entry = clock.poll(); entry != null; entry = clock.poll())
+		{
+			if (cache.remove(entry.key, entry))
+			{
+				weight.addAndGet(-entry.weight);
+			}
+		}
+	}
+
+	/**
+	 * Returns the normalized form of the given formula text, which removes the
+	 * spaces that are ignored by the parser (see the FormulaFactory class
+	 * documentation).
+	 * 
+	 * @param expression
+	 *            The formula text to be normalized
+	 * @return The normalized form of the given formula text
+	 */
+	static String normalize(String expression)
+	{
+		if (expression.indexOf(' ') == -1)
+		{
+			return expression;
+		}
+		int length = expression.length();
+		StringBuilder sb = new StringBuilder(length);
+		boolean inString = false;
+		int i = 0;
+		while (i < length)
+		{
+			char c = expression.charAt(i);
+			if (inString)
+			{
+				sb.append(c);
+				if (c == '\\' && (i + 1 < length))
+				{
+					sb.append(expression.charAt(++i));
+				}
+				else if (c == '"')
+				{
+					inString = false;
+				}
+				i++;
+			}
+			else if (c == ' ')
+			{
+				int end = i;
+				while ((end < length) && (expression.charAt(end) == ' '))
+				{
+					end++;
+				}
+				char before = (i == 0) ? 0 : expression.charAt(i - 1);
+				char after = (end == length) ? 0 : expression.charAt(end);
+				boolean afterOperator =
+						(before == '=') && (i > 1)
+							&& (EQUALS_OPERATORS.indexOf(expression
+								.charAt(i - 2)) != -1);
+				boolean beforeOperator =
+						(after == '=') && (end + 1 < length)
+							&& (expression.charAt(end + 1) == '=');
+				if (!afterOperator && !beforeOperator
+					&& !isIgnorable(before, after))
+				{
+					sb.append(expression, i, end);
+				}
+				i = end;
+			}
+			else
+			{
+				inString = (c == '"');
+				sb.append(c);
+				i++;
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Returns true if a run of spaces between the given characters is ignored
+	 * by the parser (and would not join the given characters into a different
+	 * token). A zero character indicates the start or end of the formula.
+	 */
+	private static boolean isIgnorable(char before, char after)
+	{
+		if (isSeparator(before) || isSeparator(after))
+		{
+			return true;
+		}
+		boolean joinBefore = isJoiner(before);
+		boolean joinAfter = isJoiner(after);
+		if (joinBefore == joinAfter)
+		{
+			return false;
+		}
+		char other = joinBefore ? after : before;
+		return (other != 0) && (other != '=');
+	}
+
+	private static boolean isSeparator(char c)
+	{
+		return (c != 0) && (SEPARATORS.indexOf(c) != -1);
+	}
+
+	private static boolean isJoiner(char c)
+	{
+		return (c != 0) && (JOINERS.indexOf(c) != -1);
+	}
+
+	/**
+	 * A Weigher determines the weight of a formula cached by a FormulaFactory.
+	 */
+	public interface Weigher
+	{
+		/**
+		 * Returns the weight of the given formula (which must not change
+		 * while the formula is cached).
+		 * 
+		 * @param expression
+		 *            The formula text (as requested from the FormulaFactory)
+		 * @param formula
+		 *            The ComplexNEPFormula parsed from the formula text
+		 * @return The weight of the given formula
+		 */
+		public int weigh(String expression, ComplexNEPFormula<?> formula);
+	}
+
+	/**
+	 * An Entry is a formula cached by a FormulaFactory.
+	 */
+	private static final class Entry
+	{
+		private final String key;
+		private final ComplexNEPFormula<?> formula;
+		private final int weight;
+
+		/**
+		 * true if the formula has been requested since it was last considered
+		 * for eviction.
+		 */
+		private volatile boolean referenced;
+
+		private Entry(String key, ComplexNEPFormula<?> formula, int weight)
+		{
+			this.key = key;
+			this.formula = formula;
+			this.weight = weight;
+		}
+	}
+}
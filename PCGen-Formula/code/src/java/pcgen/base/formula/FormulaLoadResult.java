@@ -0,0 +1,260 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import pcgen.base.formula.FormulaLoader.Stage;
+import pcgen.base.formula.base.FormulaSemantics;
+import pcgen.base.formula.variable.VariableID;
+
+/**
+ * A FormulaLoadResult contains the results of loading a batch of formulas with
+ * a FormulaLoader: for each formula (in the order the formulas were provided),
+ * the ComplexNEPFormula, the FormulaSemantics and the dependencies of the
+ * formula, or the Stage at which loading the formula failed along with a
+ * description of the error. It also contains the time spent in each Stage.
+ * 
+ * A FormulaLoadResult is loaded by the FormulaLoader, and is not modified once
+ * it has been returned by the FormulaLoader.
+ */
+public class FormulaLoadResult
+{
+
+	/**
+	 * The formula at each index, or null if the formula could not be parsed.
+	 */
+	private final ComplexNEPFormula<?>[] formulas;
+
+	/**
+	 * The FormulaSemantics of the formula at each index, or null if the
+	 * formula was not validated.
+	 */
+	private final FormulaSemantics[] semantics;
+
+	/**
+	 * The dependencies of the formula at each index, or null if the
+	 * dependencies were not captured.
+	 */
+	private final List<VariableID<?>>[] dependencies;
+
+	/**
+	 * The Stage at which loading the formula at each index failed, or null if
+	 * the formula was loaded.
+	 */
+	private final Stage[] failedStages;
+
+	/**
+	 * A description of the error for the formula at each index, or null if the
+	 * formula was loaded.
+	 */
+	private final String[] errors;
+
+	/**
+	 * The total time (in nanoseconds, across all threads) spent in each Stage,
+	 * indexed by the ordinal of the Stage.
+	 */
+	private final AtomicLongArray stageNanos =
+			new AtomicLongArray(Stage.values().length);
+
+	/**
+	 * The elapsed time (in nanoseconds) taken to load the formulas.
+	 */
+	private long elapsedNanos;
+
+	/**
+	 * Constructs a new (empty) FormulaLoadResult for the given number of
+	 * formulas.
+	 * 
+	 * @param size
+	 *            The number of formulas being loaded
+	 */
+	@SuppressWarnings("unchecked")
+	FormulaLoadResult(int size)
+	{
+		formulas = new ComplexNEPFormula<?>[size];
+		semantics = new FormulaSemantics[size];
+		dependencies = (List<VariableID<?>>[]) new List<?>[size];
+		failedStages = new Stage[size];
+		errors = new String[size];
+	}
+
+	/**
+	 * Returns the number of formulas in this FormulaLoadResult.
+	 * 
+	 * @return The number of formulas in this FormulaLoadResult
+	 */
+	public int size()
+	{
+		return formulas.length;
+	}
+
+	/**
+	 * Returns true if the formula at the given index was loaded (parsed,
+	 * found to be valid and had its dependencies captured).
+	 * 
+	 * @param index
+	 *            The index of the formula
+	 * @return true if the formula at the given index was loaded; false
+	 *         otherwise
+	 */
+	public boolean isLoaded(int index)
+	{
+		return failedStages[index] == null;
+	}
+
+	/**
+	 * Returns the formula at the given index.
+	 * 
+	 * @param index
+	 *            The index of the formula
+	 * @return The formula at the given index, or null if the formula could
+	 *         not be parsed
+	 */
+	public ComplexNEPFormula<?> getFormula(int index)
+	{
+		return formulas[index];
+	}
+
+	/**
+	 * Returns the FormulaSemantics of the formula at the given index.
+	 * 
+	 * @param index
+	 *            The index of the formula
+	 * @return The FormulaSemantics of the formula at the given index, or null
+	 *         if the formula was not validated
+	 */
+	public FormulaSemantics getSemantics(int index)
+	{
+		return semantics[index];
+	}
+
+	/**
+	 * Returns the dependencies of the formula at the given index.
+	 * 
+	 * @param index
+	 *            The index of the formula
+	 * @return The dependencies of the formula at the given index, or null if
+	 *         the dependencies were not captured
+	 */
+	public List<VariableID<?>> getDependencies(int index)
+	{
+		return dependencies[index];
+	}
+
+	/**
+	 * Returns the Stage at which loading the formula at the given index
+	 * failed.
+	 * 
+	 * @param index
+	 *            The index of the formula
+	 * @return The Stage at which loading the formula at the given index
+	 *         failed, or null if the formula was loaded
+	 */
+	public Stage getFailedStage(int index)
+	{
+		return failedStages[index];
+	}
+
+	/**
+	 * Returns a description of the error encountered loading the formula at
+	 * the given index.
+	 * 
+	 * @param index
+	 *            The index of the formula
+	 * @return A description of the error encountered loading the formula at
+	 *         the given index, or null if the formula was loaded
+	 */
+	public String getError(int index)
+	{
+		return errors[index];
+	}
+
+	/**
+	 * Returns the number of formulas that could not be loaded.
+	 * 
+	 * @return The number of formulas that could not be loaded
+	 */
+	public int getErrorCount()
+	{
+		int count = 0;
+		for (Stage stage : failedStages)
+		{
+			if (stage != null)
+			{
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the total time spent in the given Stage, summed across all of
+	 * the threads running the Stage.
+	 * 
+	 * @param stage
+	 *            The Stage for which the time should be returned
+	 * @return The total time (in nanoseconds) spent in the given Stage
+	 */
+	public long getStageNanos(Stage stage)
+	{
+		return stageNanos.get(stage.ordinal());
+	}
+
+	/**
+	 * Returns the elapsed time taken to load the formulas.
+	 * 
+	 * @return The elapsed time (in nanoseconds) taken to load the formulas
+	 */
+	public long getElapsedNanos()
+	{
+		return elapsedNanos;
+	}
+
+	void setFormula(int index, ComplexNEPFormula<?> formula)
+	{
+		formulas[index] = formula;
+	}
+
+	void setSemantics(int index, FormulaSemantics fs)
+	{
+		semantics[index] = fs;
+	}
+
+	void setDependencies(int index, List<VariableID<?>> vars)
+	{
+		dependencies[index] = vars;
+	}
+
+	void setFailed(int index, Stage stage, String error)
+	{
+		failedStages[index] = stage;
+		errors[index] = error;
+	}
+
+	void addStageNanos(Stage stage, long nanos)
+	{
+		stageNanos.addAndGet(stage.ordinal(), nanos);
+	}
+
+	void setElapsedNanos(long nanos)
+	{
+		elapsedNanos = nanos;
+	}
+}
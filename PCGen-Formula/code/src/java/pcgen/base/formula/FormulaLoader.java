@@ -0,0 +1,546 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import pcgen.base.formula.base.FormulaSemantics;
+import pcgen.base.formula.manager.FormulaManager;
+import pcgen.base.formula.manager.ScopeInformation;
+import pcgen.base.formula.manager.SimpleFormulaDependencyManager;
+import pcgen.base.formula.parse.TokenMgrError;
+import pcgen.base.formula.variable.VariableScope;
+
+/**
+ * A FormulaLoader loads a batch of formulas (each to be used in a
+ * VariableScope) using multiple threads.
+ * 
+ * Loading a formula is performed in three Stages: PARSE (constructing the
+ * ComplexNEPFormula, sharing subtrees through the FormulaManager - see
+ * FormulaManager.intern(SimpleNode)), VALIDATE (see
+ * FormulaManager.isValid(SimpleNode, ScopedNamespaceDefinition)) and
+ * DEPENDENCIES (capturing the variables on which the formula depends). The
+ * Stages run as a pipeline: each Stage is run by a number of threads (the
+ * parallelism of the FormulaLoader) which take formulas from a bounded queue
+ * and, once the formula has completed the Stage, place it on the queue for the
+ * next Stage. The bounded queues limit the number of formulas in progress
+ * (and thus the memory used) regardless of the size of the batch. Each of the
+ * Stages is safe to run on multiple threads, since the FormulaManager and
+ * ScopeInformation are thread-safe.
+ * 
+ * An error in loading a formula does not prevent the other formulas from being
+ * loaded: the error (and the Stage at which it occurred) is recorded in the
+ * FormulaLoadResult, and the formula does not proceed to any later Stage. A
+ * formula that is not valid is reported as an error in the VALIDATE Stage.
+ * Only an Error other than a TokenMgrError (e.g. an OutOfMemoryError) causes
+ * the remaining formulas to be discarded, in which case the Error is thrown by
+ * load(String[], VariableScope[]).
+ * 
+ * The functions, operators and variables used by the formulas must be defined
+ * in the FormulaManager before the formulas are loaded.
+ */
+public class FormulaLoader
+{
+
+	/**
+	 * The Stages in which a formula is loaded, in order.
+	 */
+	public enum Stage
+	{
+		/**
+		 * Constructing the ComplexNEPFormula from the String representation of
+		 * the formula.
+		 */
+		PARSE,
+
+		/**
+		 * Determining the FormulaSemantics of the formula.
+		 */
+		VALIDATE,
+
+		/**
+		 * Capturing the variables on which the formula depends.
+		 */
+		DEPENDENCIES
+	}
+
+	/**
+	 * The Job placed on a queue after the last formula, to indicate there are
+	 * no further formulas to be processed.
+	 */
+	private static final Job END = new Job(-1, null, null);
+
+	/**
+	 * The FormulaManager used to load the formulas.
+	 */
+	private final FormulaManager fm;
+
+	/**
+	 * The number of threads that run each Stage.
+	 */
+	private final int parallelism;
+
+	/**
+	 * The capacity of the queue in front of each Stage.
+	 */
+	private final int queueCapacity;
+
+	/**
+	 * The ExecutorService in which the Stages are run.
+	 */
+	private final ExecutorService pool;
+
+	/**
+	 * Constructs a new FormulaLoader which loads formulas with the given
+	 * FormulaManager, running each Stage on the given number of threads.
+	 * 
+	 * The threads are owned by the FormulaLoader, and shutdown() should be
+	 * called when the FormulaLoader is no longer required.
+	 * 
+	 * @param fm
+	 *            The FormulaManager used to load the formulas
+	 * @param parallelism
+	 *            The number of threads that run each Stage
+	 * @param queueCapacity
+	 *            The maximum number of formulas waiting for each Stage
+	 * @throws IllegalArgumentException
+	 *             if the FormulaManager is null or the parallelism or queue
+	 *             capacity is less than one
+	 */
+	public FormulaLoader(FormulaManager fm, int parallelism, int queueCapacity)
+	{
+		if (fm == null)
+		{
+			throw new IllegalArgumentException("FormulaManager cannot be null");
+		}
+		if (parallelism < 1)
+		{
+			throw new IllegalArgumentException(
+				"Parallelism must be at least one: " + parallelism);
+		}
+		if (queueCapacity < 1)
+		{
+			throw new IllegalArgumentException(
+				"Queue capacity must be at least one: " + queueCapacity);
+		}
+		this.fm = fm;
+		this.parallelism = parallelism;
+		this.queueCapacity = queueCapacity;
+		pool =
+				Executors.newFixedThreadPool(parallelism
+					* Stage.values().length);
+	}
+
+	/**
+	 * Loads each of the given formulas, to be used in the VariableScope at the
+	 * same index in the given array of VariableScope objects.
+	 * 
+	 * Batches are loaded one at a time; a call to this method waits for any
+	 * batch being loaded by another thread to complete.
+	 * 
+	 * @param expressions
+	 *            The String representations of the formulas to be loaded
+	 * @param scopes
+	 *            The VariableScope in which the formula at the same index is
+	 *            to be used
+	 * @return A FormulaLoadResult containing the loaded formulas (in the same
+	 *         order as the given formulas) and any errors
+	 * @throws IllegalArgumentException
+	 *             if either array (or any value in either array) is null or
+	 *             the arrays are not the same length
+	 * @throws InterruptedException
+	 *             if the calling thread is interrupted while the formulas are
+	 *             being loaded (in which case any remaining formulas are
+	 *             discarded)
+	 */
+	public synchronized FormulaLoadResult load(String[] expressions,
+		VariableScope<?>[] scopes) throws InterruptedException
+	{
+		if (expressions == null)
+		{
+			throw new IllegalArgumentException("Expressions cannot be null");
+		}
+		if (scopes == null)
+		{
+			throw new IllegalArgumentException("Scopes cannot be null");
+		}
+		if (expressions.length != scopes.length)
+		{
+			throw new IllegalArgumentException("Expressions length ("
+				+ expressions.length + ") must equal the number of scopes ("
+				+ scopes.length + ")");
+		}
+		for (int i = 0; i < expressions.length; i++)
+		{
+			if (expressions[i] == null)
+			{
+				throw new IllegalArgumentException("Expression cannot be null");
+			}
+			if (scopes[i] == null)
+			{
+				throw new IllegalArgumentException("Scope cannot be null");
+			}
+		}
+		long start = System.nanoTime();
+		Load load = new Load(expressions.length);
+		load.start();
+		try
+		{
+			for (int i = 0; (i < expressions.length) && !load.cancelled; i++)
+			{
+				load.parseQueue.put(new Job(i, expressions[i], scopes[i]));
+			}
+			load.parseQueue.put(END);
+			load.finished.await();
+		}
+		catch (InterruptedException e)
+		{
+			load.cancel();
+			throw e;
+		}
+		if (load.failure != null)
+		{
+			throw load.failure;
+		}
+		load.result.setElapsedNanos(System.nanoTime() - start);
+		return load.result;
+	}
+
+	/**
+	 * Shuts down the threads of this FormulaLoader. A batch that is being
+	 * loaded is completed, but no new batches may be loaded.
+	 */
+	public void shutdown()
+	{
+		pool.shutdown();
+	}
+
+	/**
+	 * Validates the given formula in the ScopedNamespaceDefinition of the
+	 * given VariableScope.
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> FormulaSemantics validate(ComplexNEPFormula<?> formula,
+		VariableScope<T> scope)
+	{
+		return ((ComplexNEPFormula<T>) formula).isValid(fm,
+			scope.getScopeDefinition());
+	}
+
+	/**
+	 * A Job is a single formula being loaded.
+	 */
+	private static final class Job
+	{
+		private final int index;
+		private final String expression;
+		private final VariableScope<?> scope;
+		private ComplexNEPFormula<?> formula;
+
+		private Job(int index, String expression, VariableScope<?> scope)
+		{
+			this.index = index;
+			this.expression = expression;
+			this.scope = scope;
+		}
+	}
+
+	/**
+	 * A Load contains the queues and the FormulaLoadResult for a single batch
+	 * of formulas.
+	 */
+	private final class Load
+	{
+		private final FormulaLoadResult result;
+		private final BlockingQueue<Job> parseQueue =
+				new ArrayBlockingQueue<Job>(queueCapacity);
+		private final BlockingQueue<Job> validateQueue =
+				new ArrayBlockingQueue<Job>(queueCapacity);
+		private final BlockingQueue<Job> dependencyQueue =
+				new ArrayBlockingQueue<Job>(queueCapacity);
+
+		/**
+		 * Counted down as each of the threads running the final Stage
+		 * completes.
+		 */
+		private final CountDownLatch finished = new CountDownLatch(parallelism);
+
+		/**
+		 * true if the remaining formulas are to be discarded rather than
+		 * loaded.
+		 */
+		private volatile boolean cancelled;
+
+		/**
+		 * The first Error which prevented a StageWorker from completing, or
+		 * null if all of the StageWorkers completed.
+		 */
+		private volatile Error failure;
+
+		private Load(int size)
+		{
+			result = new FormulaLoadResult(size);
+		}
+
+		private void start()
+		{
+			AtomicInteger parsers = new AtomicInteger(parallelism);
+			AtomicInteger validators = new AtomicInteger(parallelism);
+			AtomicInteger dependents = new AtomicInteger(parallelism);
+			for (int i = 0; i < parallelism; i++)
+			{
+				pool.execute(new ParseWorker(this, parsers));
+				pool.execute(new ValidateWorker(this, validators));
+				pool.execute(new DependencyWorker(this, dependents));
+			}
+		}
+
+		private void cancel()
+		{
+			cancelled = true;
+			//Only the loading thread places Jobs on this queue, so END fits
+			parseQueue.clear();
+			parseQueue.offer(END);
+		}
+
+		private synchronized void fail(Error e)
+		{
+			if (failure == null)
+			{
+				failure = e;
+			}
+			cancelled = true;
+		}
+	}
+
+	/**
+	 * A StageWorker is a thread running a Stage: it takes each Job from the
+	 * queue in front of the Stage, processes it, and (if successful) places it
+	 * on the queue for the next Stage. The last of the StageWorkers for a
+	 * Stage to complete passes END to the next Stage.
+	 */
+	private abstract class StageWorker implements Runnable
+	{
+		protected final Load load;
+		private final Stage stage;
+		private final BlockingQueue<Job> in;
+		private final BlockingQueue<Job> out;
+		private final AtomicInteger running;
+
+		protected StageWorker(Load load, Stage stage, BlockingQueue<Job> in,
+			BlockingQueue<Job> out, AtomicInteger running)
+		{
+			this.load = load;
+			this.stage = stage;
+			this.in = in;
+			this.out = out;
+			this.running = running;
+		}
+
+		@Override
+		public void run()
+		{
+			boolean completed = false;
+			try
+			{
+				Job job = in.take();
+				while (job != END)
+				{
+					if (!load.cancelled && process(job) && (out != null))
+					{
+						out.put(job);
+					}
+					job = in.take();
+				}
+				completed = true;
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			catch (Error e)
+			{
+				load.fail(e);
+				throw e;
+			}
+			finally
+			{
+				complete(completed);
+			}
+		}
+
+		/**
+		 * Passes END to the other StageWorkers for this Stage and (if this is
+		 * the last of them to complete) to the next Stage. This is done even if
+		 * this StageWorker did not complete normally, so that the Load always
+		 * finishes.
+		 */
+		private void complete(boolean completed)
+		{
+			try
+			{
+				if (!completed && !Thread.currentThread().isInterrupted())
+				{
+					/*
+					 * The Load has failed: discard the remaining formulas, so
+					 * the earlier Stages are not left waiting for this Stage
+					 */
+					Job job = in.take();
+					while (job != END)
+					{
+						job = in.take();
+					}
+				}
+				/*
+				 * Leave END for the other StageWorkers for this Stage (nothing
+				 * follows END, so the queue cannot be full unless it already
+				 * contains END)
+				 */
+				in.offer(END);
+				if ((running.decrementAndGet() == 0) && (out != null))
+				{
+					out.put(END);
+				}
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			finally
+			{
+				if (out == null)
+				{
+					load.finished.countDown();
+				}
+			}
+		}
+
+		/**
+		 * Processes the given Job, recording the time taken and any error.
+		 * Returns true if the Job is to proceed to the next Stage.
+		 */
+		private boolean process(Job job)
+		{
+			long start = System.nanoTime();
+			try
+			{
+				String error = perform(job);
+				if (error != null)
+				{
+					load.result.setFailed(job.index, stage, error);
+				}
+				return error == null;
+			}
+			catch (RuntimeException e)
+			{
+				load.result.setFailed(job.index, stage, e.toString());
+				return false;
+			}
+			catch (TokenMgrError e)
+			{
+				//Thrown by the parser for an illegal token, e.g. "f(\"a"
+				load.result.setFailed(job.index, stage, e.toString());
+				return false;
+			}
+			finally
+			{
+				load.result.addStageNanos(stage, System.nanoTime() - start);
+			}
+		}
+
+		/**
+		 * Performs the Stage for the given Job, returning a description of
+		 * the error if the Job cannot proceed to the next Stage (or null if it
+		 * can).
+		 */
+		protected abstract String perform(Job job);
+	}
+
+	private final class ParseWorker extends StageWorker
+	{
+		private ParseWorker(Load load, AtomicInteger running)
+		{
+			super(load, Stage.PARSE, load.parseQueue, load.validateQueue,
+				running);
+		}
+
+		@Override
+		protected String perform(Job job)
+		{
+			job.formula = new ComplexNEPFormula<Object>(job.expression, fm);
+			load.result.setFormula(job.index, job.formula);
+			return null;
+		}
+	}
+
+	private final class ValidateWorker extends StageWorker
+	{
+		private ValidateWorker(Load load, AtomicInteger running)
+		{
+			super(load, Stage.VALIDATE, load.validateQueue,
+				load.dependencyQueue, running);
+		}
+
+		@Override
+		protected String perform(Job job)
+		{
+			FormulaSemantics fs = validate(job.formula, job.scope);
+			load.result.setSemantics(job.index, fs);
+			return fs.isValid() ? null : fs.getReport();
+		}
+	}
+
+	private final class DependencyWorker extends StageWorker
+	{
+		/**
+		 * The ScopeInformation used by this DependencyWorker for each
+		 * VariableScope.
+		 */
+		private final Map<VariableScope<?>, ScopeInformation> scopeInfo =
+				new HashMap<VariableScope<?>, ScopeInformation>();
+
+		private DependencyWorker(Load load, AtomicInteger running)
+		{
+			super(load, Stage.DEPENDENCIES, load.dependencyQueue, null,
+				running);
+		}
+
+		@Override
+		protected String perform(Job job)
+		{
+			ScopeInformation si = scopeInfo.get(job.scope);
+			if (si == null)
+			{
+				si = new ScopeInformation(fm, job.scope);
+				scopeInfo.put(job.scope, si);
+			}
+			SimpleFormulaDependencyManager fdm =
+					new SimpleFormulaDependencyManager();
+			job.formula.getDependencies(si, fdm);
+			load.result.setDependencies(job.index, fdm.getVariables());
+			return null;
+		}
+	}
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+import pcgen.base.formula.manager.FormulaManager;
+import pcgen.base.formula.parse.CharSequenceFormulaParser;
+import pcgen.base.formula.parse.ParseException;
+import pcgen.base.formula.parse.SimpleNode;
+
+/**
+ * A MappedFormulaReader reads the formulas in a UTF-8 formula source file (one
+ * formula per line), in a single pass through the file.
+ * 
+ * The file is memory-mapped (see FileChannel.map) in windows of a fixed size,
+ * rather than being read into the heap, so files larger than the heap can be
+ * read. The end of each line is found by searching the mapped bytes for a line
+ * feed (which never occurs within a multi-byte UTF-8 character), and the bytes
+ * of each line are then decoded into a reused CharBuffer and parsed directly
+ * from that CharBuffer (see CharSequenceFormulaParser). No String is produced
+ * for the file or for a line (other than the text of the nodes of the
+ * formula).
+ * 
+ * Lines may end in a line feed or a carriage return followed by a line feed.
+ * Empty lines are ignored, as is a UTF-8 byte order mark at the start of the
+ * file. Each formula is interned through a FormulaManager (see
+ * FormulaManager.intern(SimpleNode)), so that subtrees are shared across the
+ * formulas that are read.
+ * 
+ * Each formula (or error) is passed to a Handler as soon as the line has been
+ * read. A line that is not valid UTF-8 or is not a well-structured formula is
+ * reported to the Handler with the line number and the column of the error,
+ * and reading continues with the next line.
+ * 
+ * A MappedFormulaReader is not thread-safe.
+ */
+public class MappedFormulaReader
+{
+
+	/**
+	 * A Handler receives the formulas (and errors) read by a
+	 * MappedFormulaReader, in the order they appear in the file.
+	 */
+	public interface Handler
+	{
+		/**
+		 * Receives the formula on the given line.
+		 * 
+		 * @param line
+		 *            The line number (starting at one) of the formula
+		 * @param formula
+		 *            The formula on the given line
+		 */
+		public void formula(long line, ComplexNEPFormula<?> formula);
+
+		/**
+		 * Receives an error encountered reading the given line.
+		 * 
+		 * @param line
+		 *            The line number (starting at one) on which the error was
+		 *            encountered
+		 * @param column
+		 *            The column (in characters, starting at one) at which the
+		 *            error was encountered
+		 * @param message
+		 *            A description of the error
+		 */
+		public void error(long line, int column, String message);
+	}
+
+	/**
+	 * The default size (in bytes) of the window of the file that is mapped at
+	 * one time.
+	 */
+	private static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+	/**
+	 * The UTF-8 byte order mark.
+	 */
+	private static final byte[] BYTE_ORDER_MARK = {(byte) 0xEF, (byte) 0xBB,
+		(byte) 0xBF};
+
+	/**
+	 * The FormulaManager through which the formulas are interned.
+	 */
+	private final FormulaManager fm;
+
+	/**
+	 * The size (in bytes) of the window of the file that is mapped at one
+	 * time. A larger window is mapped if a line is longer than this size.
+	 */
+	private final int windowSize;
+
+	/**
+	 * The decoder used to decode the bytes of each line.
+	 */
+	private final CharsetDecoder decoder = StandardCharsets.UTF_8
+		.newDecoder().onMalformedInput(CodingErrorAction.REPORT)
+		.onUnmappableCharacter(CodingErrorAction.REPORT);
+
+	/**
+	 * The CharBuffer into which each line is decoded.
+	 */
+	private CharBuffer chars = CharBuffer.allocate(256);
+
+	/**
+	 * Constructs a new MappedFormulaReader which interns the formulas it reads
+	 * through the given FormulaManager.
+	 * 
+	 * @param fm
+	 *            The FormulaManager through which the formulas are interned
+	 * @throws IllegalArgumentException
+	 *             if the given FormulaManager is null
+	 */
+	public MappedFormulaReader(FormulaManager fm)
+	{
+		this(fm, DEFAULT_WINDOW_SIZE);
+	}
+
+	/**
+	 * Constructs a new MappedFormulaReader which interns the formulas it reads
+	 * through the given FormulaManager, and maps windows of the given size.
+	 * 
+	 * @param fm
+	 *            The FormulaManager through which the formulas are interned
+	 * @param windowSize
+	 *            The size (in bytes) of the window of the file that is mapped
+	 *            at one time
+	 * @throws IllegalArgumentException
+	 *             if the given FormulaManager is null or the window size is
+	 *             less than one
+	 */
+	public MappedFormulaReader(FormulaManager fm, int windowSize)
+	{
+		if (fm == null)
+		{
+			throw new IllegalArgumentException("FormulaManager cannot be null");
+		}
+		if (windowSize < 1)
+		{
+			throw new IllegalArgumentException(
+				"Window size must be at least one: " + windowSize);
+		}
+		this.fm = fm;
+		this.windowSize = windowSize;
+	}
+
+	/**
+	 * Reads the formulas in the given file, passing each formula (and any
+	 * error) to the given Handler.
+	 * 
+	 * @param file
+	 *            The file containing the formulas
+	 * @param handler
+	 *            The Handler to receive the formulas and errors
+	 * @return The number of formulas read (not including any errors)
+	 * @throws IOException
+	 *             if the file cannot be read
+	 * @throws IllegalArgumentException
+	 *             if either parameter is null
+	 */
+	public long read(File file, Handler handler) throws IOException
+	{
+		if (file == null)
+		{
+			throw new IllegalArgumentException("File cannot be null");
+		}
+		if (handler == null)
+		{
+			throw new IllegalArgumentException("Handler cannot be null");
+		}
+		FileInputStream stream = new FileInputStream(file);
+		try
+		{
+			return read(stream.getChannel(), handler);
+		}
+		finally
+		{
+			stream.close();
+		}
+	}
+
+	private long read(FileChannel channel, Handler handler) throws IOException
+	{
+		long size = channel.size();
+		long position = hasByteOrderMark(channel) ? BYTE_ORDER_MARK.length : 0;
+		long line = 1;
+		long count = 0;
+		int window = windowSize;
+		while (position < size)
+		{
+			int length = (int) Math.min(window, size - position);
+			boolean lastWindow = (position + length) == size;
+			MappedByteBuffer buffer =
+					channel.map(FileChannel.MapMode.READ_ONLY, position,
+						length);
+			int lineStart = 0;
+			while (lineStart < length)
+			{
+				int lineEnd = indexOfLineFeed(buffer, lineStart, length);
+				if (lineEnd == -1)
+				{
+					if (!lastWindow)
+					{
+						//Line continues into the next window
+						break;
+					}
+					lineEnd = length;
+				}
+				if (readLine(buffer, lineStart, lineEnd, line, handler))
+				{
+					count++;
+				}
+				line++;
+				lineStart = lineEnd + 1;
+			}
+			if (lineStart == 0)
+			{
+				//No complete line in the window
+				if (window == Integer.MAX_VALUE)
+				{
+					throw new IOException("Line " + line + " is too long");
+				}
+				window = (int) Math.min(Integer.MAX_VALUE, 2L * window);
+			}
+			position += Math.min(lineStart, length);
+		}
+		return count;
+	}
+
+	/**
+	 * Reads the formula from the given range of the given buffer, passing the
+	 * formula (or error) to the given Handler. Returns true if a formula was
+	 * read.
+	 */
+	private boolean readLine(ByteBuffer buffer, int start, int end, long line,
+		Handler handler)
+	{
+		int lineEnd = end;
+		if ((lineEnd > start) && (buffer.get(lineEnd - 1) == '\r'))
+		{
+			lineEnd--;
+		}
+		if (lineEnd == start)
+		{
+			return false;
+		}
+		ByteBuffer bytes = buffer.duplicate();
+		bytes.limit(lineEnd);
+		bytes.position(start);
+		//A UTF-8 line never has more chars than bytes
+		if (chars.capacity() < lineEnd - start)
+		{
+			chars = CharBuffer.allocate(Math.max(lineEnd - start,
+				2 * chars.capacity()));
+		}
+		chars.clear();
+		decoder.reset();
+		CoderResult result = decoder.decode(bytes, chars, true);
+		if (result.isError())
+		{
+			handler.error(line, chars.position() + 1, "Line is not valid UTF-8");
+			return false;
+		}
+		decoder.flush(chars);
+		chars.flip();
+		CharSequenceFormulaParser parser = new CharSequenceFormulaParser(chars);
+		SimpleNode root;
+		try
+		{
+			root = parser.query();
+		}
+		catch (ParseException e)
+		{
+			handler.error(line, parser.getErrorOffset() + 1, e.getMessage());
+			return false;
+		}
+		handler.formula(line, new ComplexNEPFormula<Object>(fm.intern(root)));
+		return true;
+	}
+
+	private static int indexOfLineFeed(ByteBuffer buffer, int start, int end)
+	{
+		for (int i = start; i < end; i++)
+		{
+			if (buffer.get(i) == '\n')
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean hasByteOrderMark(FileChannel channel)
+		throws IOException
+	{
+		if (channel.size() < BYTE_ORDER_MARK.length)
+		{
+			return false;
+		}
+		ByteBuffer start = ByteBuffer.allocate(BYTE_ORDER_MARK.length);
+		while (start.hasRemaining())
+		{
+			if (channel.read(start, start.position()) < 0)
+			{
+				return false;
+			}
+		}
+		for (int i = 0; i < BYTE_ORDER_MARK.length; i++)
+		{
+			if (start.get(i) != BYTE_ORDER_MARK[i])
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+}
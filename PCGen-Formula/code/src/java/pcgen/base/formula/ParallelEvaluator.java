@@ -0,0 +1,252 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import pcgen.base.formula.manager.FormulaManager;
+import pcgen.base.formula.manager.ScopeInformation;
+import pcgen.base.formula.variable.VariableScope;
+
+/**
+ * A ParallelEvaluator resolves a batch of NEPFormula objects, each in the
+ * context of a VariableScope, using multiple threads.
+ * 
+ * The batch is a set of (formula, scope) pairs, provided as two arrays of the
+ * same length. The batch is recursively split in half (see ForkJoinPool) until
+ * each piece contains no more than the threshold number of pairs, and each
+ * piece is then resolved by a single thread, in order. Each piece creates a
+ * ScopeInformation for the VariableScope of each run of consecutive pairs
+ * that share a VariableScope. (ScopeInformation is thread-safe, so this is
+ * not required for correctness; it simply avoids sharing a ScopeInformation
+ * between pieces that do not otherwise share any state.)
+ * 
+ * The results are loaded into an array in the same order as the pairs,
+ * regardless of the order in which the pairs were resolved, so the results
+ * are deterministic.
+ * 
+ * The FormulaManager is thread-safe (see FormulaManager), and is shared by all
+ * of the threads resolving a batch. The libraries it contains must not be
+ * modified while a batch is being resolved. Neither must the VariableStore it
+ * contains: SimpleVariableStore and ArrayVariableStore are not thread-safe for
+ * writes, but are safe for any number of concurrent reads while they are not
+ * modified. Any other VariableStore used with a ParallelEvaluator must also be
+ * safe for concurrent reads.
+ */
+public class ParallelEvaluator
+{
+
+	/**
+	 * The FormulaManager used to resolve the formulas.
+	 */
+	private final FormulaManager fm;
+
+	/**
+	 * The ForkJoinPool in which the formulas are resolved.
+	 */
+	private final ForkJoinPool pool;
+
+	/**
+	 * The maximum number of (formula, scope) pairs that are resolved by a
+	 * single task without further splitting.
+	 */
+	private final int threshold;
+
+	/**
+	 * Constructs a new ParallelEvaluator which resolves formulas with the given
+	 * FormulaManager in a new ForkJoinPool with the given parallelism.
+	 * 
+	 * The ForkJoinPool is owned by the ParallelEvaluator, and shutdown() should
+	 * be called when the ParallelEvaluator is no longer required.
+	 * 
+	 * @param fm
+	 *            The FormulaManager used to resolve the formulas
+	 * @param parallelism
+	 *            The number of threads used to resolve the formulas
+	 * @param threshold
+	 *            The maximum number of (formula, scope) pairs that are resolved
+	 *            by a single task without further splitting
+	 * @throws IllegalArgumentException
+	 *             if the FormulaManager is null or the parallelism or
+	 *             threshold is less than one
+	 */
+	public ParallelEvaluator(FormulaManager fm, int parallelism, int threshold)
+	{
+		if (fm == null)
+		{
+			throw new IllegalArgumentException("FormulaManager cannot be null");
+		}
+		if (parallelism < 1)
+		{
+			throw new IllegalArgumentException(
+				"Parallelism must be at least one: " + parallelism);
+		}
+		if (threshold < 1)
+		{
+			throw new IllegalArgumentException(
+				"Threshold must be at least one: " + threshold);
+		}
+		this.fm = fm;
+		this.pool = new ForkJoinPool(parallelism);
+		this.threshold = threshold;
+	}
+
+	/**
+	 * Resolves each of the given formulas in the context of the VariableScope
+	 * at the same index in the given array of VariableScope objects, returning
+	 * the results in the same order.
+	 * 
+	 * If resolving any formula throws an exception, the exception is thrown by
+	 * this method (and any remaining results are not calculated).
+	 * 
+	 * @param formulas
+	 *            The formulas to be resolved
+	 * @param scopes
+	 *            The VariableScope in which the formula at the same index is
+	 *            to be resolved
+	 * @return An array containing the result of resolving each formula
+	 * @throws IllegalArgumentException
+	 *             if either array (or any value in either array) is null or
+	 *             the arrays are not the same length
+	 */
+	public Object[] evaluate(NEPFormula<?>[] formulas, VariableScope<?>[] scopes)
+	{
+		if (formulas == null)
+		{
+			throw new IllegalArgumentException("Formulas cannot be null");
+		}
+		if (scopes == null)
+		{
+			throw new IllegalArgumentException("Scopes cannot be null");
+		}
+		if (formulas.length != scopes.length)
+		{
+			throw new IllegalArgumentException("Formulas length ("
+				+ formulas.length + ") must equal the number of scopes ("
+				+ scopes.length + ")");
+		}
+		for (int i = 0; i < formulas.length; i++)
+		{
+			if (formulas[i] == null)
+			{
+				throw new IllegalArgumentException("Formula cannot be null");
+			}
+			if (scopes[i] == null)
+			{
+				throw new IllegalArgumentException("Scope cannot be null");
+			}
+		}
+		Object[] results = new Object[formulas.length];
+		pool.invoke(new EvaluationTask(formulas.clone(), scopes.clone(),
+			results, 0, formulas.length));
+		return results;
+	}
+
+	/**
+	 * Resolves the given formula in the context of each of the given
+	 * VariableScope objects, returning the results in the same order as the
+	 * VariableScope objects.
+	 * 
+	 * @param formula
+	 *            The formula to be resolved
+	 * @param scopes
+	 *            The VariableScope objects in which the formula is to be
+	 *            resolved
+	 * @return An array containing the result of resolving the formula in each
+	 *         VariableScope
+	 * @throws IllegalArgumentException
+	 *             if either parameter (or any of the scopes) is null
+	 */
+	public Object[] evaluate(NEPFormula<?> formula, VariableScope<?>[] scopes)
+	{
+		if (formula == null)
+		{
+			throw new IllegalArgumentException("Formula cannot be null");
+		}
+		if (scopes == null)
+		{
+			throw new IllegalArgumentException("Scopes cannot be null");
+		}
+		NEPFormula<?>[] formulas = new NEPFormula<?>[scopes.length];
+		for (int i = 0; i < formulas.length; i++)
+		{
+			formulas[i] = formula;
+		}
+		return evaluate(formulas, scopes);
+	}
+
+	/**
+	 * Shuts down the ForkJoinPool of this ParallelEvaluator. Batches that are
+	 * being resolved are completed, but no new batches may be resolved.
+	 */
+	public void shutdown()
+	{
+		pool.shutdown();
+	}
+
+	/**
+	 * An EvaluationTask resolves the (formula, scope) pairs between two
+	 * indexes, splitting the work into two EvaluationTasks if the number of
+	 * pairs is larger than the threshold of the ParallelEvaluator.
+	 */
+	private class EvaluationTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final NEPFormula<?>[] formulas;
+		private final VariableScope<?>[] scopes;
+		private final Object[] results;
+		private final int start;
+		private final int end;
+
+		EvaluationTask(NEPFormula<?>[] formulas, VariableScope<?>[] scopes,
+			Object[] results, int start, int end)
+		{
+			this.formulas = formulas;
+			this.scopes = scopes;
+			this.results = results;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (end - start <= threshold)
+			{
+				ScopeInformation si = null;
+				for (int i = start; i < end; i++)
+				{
+					if ((si == null) || (si.getScope() != scopes[i]))
+					{
+						si = new ScopeInformation(fm, scopes[i]);
+					}
+					results[i] = formulas[i].resolve(si);
+				}
+			}
+			else
+			{
+				int mid = (start + end) >>> 1;
+				invokeAll(new EvaluationTask(formulas, scopes, results, start,
+					mid), new EvaluationTask(formulas, scopes, results, mid,
+					end));
+			}
+		}
+	}
+}
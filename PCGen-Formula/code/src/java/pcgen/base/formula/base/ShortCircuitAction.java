@@ -0,0 +1,49 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.base;
+
+/**
+ * A ShortCircuitAction is an OperatorAction for which the result can (in some
+ * cases) be determined from the first argument alone. For example, false AND
+ * anything is false.
+ * 
+ * When the result is determined by the first argument, the second argument
+ * need not be evaluated. This avoids the cost of evaluating the second
+ * argument, which may be large (e.g. it may call an expensive Function).
+ * 
+ * The contract of shortCircuit is tied to evaluate: if shortCircuit returns a
+ * non-null value for a given first argument, then evaluate must return an
+ * equal value for that first argument and ANY legal second argument.
+ */
+public interface ShortCircuitAction extends OperatorAction
+{
+
+	/**
+	 * Returns the result of the operation if it is determined by the given
+	 * first argument alone. Returns null if the second argument is required to
+	 * determine the result (or if this ShortCircuitAction cannot process the
+	 * given argument).
+	 * 
+	 * @param l
+	 *            The first argument to the operation
+	 * @return The result of the operation if it is determined by the given
+	 *         first argument alone; null otherwise
+	 */
+	public Object shortCircuit(Object l);
+
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.compile;
+
+import java.util.Locale;
+
+import pcgen.base.formula.function.AbsFunction;
+import pcgen.base.formula.function.CeilFunction;
+import pcgen.base.formula.function.FloorFunction;
+import pcgen.base.formula.function.Function;
+import pcgen.base.formula.function.IfFunction;
+import pcgen.base.formula.function.MaxFunction;
+import pcgen.base.formula.function.MinFunction;
+import pcgen.base.formula.function.RoundFunction;
+
+/**
+ * BuiltInFunction identifies the Functions provided with the formula library
+ * that a FormulaCompiler can evaluate directly (rather than calling through
+ * the Function interface).
+ * 
+ * A Function is only identified as a BuiltInFunction if it is exactly the
+ * class provided with the formula library (not a subclass, which may have
+ * altered the behavior) and it has a legal number of arguments.
+ */
+enum BuiltInFunction
+{
+	ABS(AbsFunction.class, 1, 1)
+	{
+		@Override
+		Number apply(Number n)
+		{
+			return CompiledFormulaSupport.abs(n);
+		}
+	},
+
+	CEIL(CeilFunction.class, 1, 1)
+	{
+		@Override
+		Number apply(Number n)
+		{
+			return CompiledFormulaSupport.ceil(n);
+		}
+	},
+
+	FLOOR(FloorFunction.class, 1, 1)
+	{
+		@Override
+		Number apply(Number n)
+		{
+			return CompiledFormulaSupport.floor(n);
+		}
+	},
+
+	ROUND(RoundFunction.class, 1, 1)
+	{
+		@Override
+		Number apply(Number n)
+		{
+			return CompiledFormulaSupport.round(n);
+		}
+	},
+
+	MAX(MaxFunction.class, 2, Integer.MAX_VALUE)
+	{
+		@Override
+		Number apply(Number n1, Number n2)
+		{
+			return CompiledFormulaSupport.max(n1, n2);
+		}
+	},
+
+	MIN(MinFunction.class, 2, Integer.MAX_VALUE)
+	{
+		@Override
+		Number apply(Number n1, Number n2)
+		{
+			return CompiledFormulaSupport.min(n1, n2);
+		}
+	},
+
+	IF(IfFunction.class, 3, 3);
+
+	/**
+	 * The Function class provided with the formula library.
+	 */
+	private final Class<? extends Function> ftnClass;
+
+	/**
+	 * The minimum number of arguments to the Function.
+	 */
+	private final int minArgs;
+
+	/**
+	 * The maximum number of arguments to the Function.
+	 */
+	private final int maxArgs;
+
+	private BuiltInFunction(Class<? extends Function> ftnClass, int minArgs,
+		int maxArgs)
+	{
+		this.ftnClass = ftnClass;
+		this.minArgs = minArgs;
+		this.maxArgs = maxArgs;
+	}
+
+	/**
+	 * Returns true if this BuiltInFunction takes a single argument.
+	 * 
+	 * @return true if this BuiltInFunction takes a single argument; false
+	 *         otherwise
+	 */
+	boolean isUnary()
+	{
+		return maxArgs == 1;
+	}
+
+	/**
+	 * Returns true if this BuiltInFunction takes 2 or more arguments, which
+	 * are combined from left to right.
+	 * 
+	 * @return true if this BuiltInFunction takes 2 or more arguments; false
+	 *         otherwise
+	 */
+	boolean isNary()
+	{
+		return maxArgs == Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Returns the name of the method in CompiledFormulaSupport that implements
+	 * this BuiltInFunction.
+	 * 
+	 * @return The name of the method in CompiledFormulaSupport that implements
+	 *         this BuiltInFunction
+	 */
+	String getSupportMethod()
+	{
+		return name().toLowerCase(Locale.ENGLISH);
+	}
+
+	/**
+	 * Applies a BuiltInFunction that takes a single argument.
+	 * 
+	 * @param n
+	 *            The argument to the BuiltInFunction
+	 * @return The result of the BuiltInFunction
+	 */
+	Number apply(Number n)
+	{
+		throw new UnsupportedOperationException(name()
+			+ " does not take one argument");
+	}
+
+	/**
+	 * Applies a BuiltInFunction that takes 2 or more arguments to the result
+	 * so far and the next argument.
+	 * 
+	 * @param n1
+	 *            The result of the BuiltInFunction so far
+	 * @param n2
+	 *            The next argument to the BuiltInFunction
+	 * @return The result of the BuiltInFunction
+	 */
+	Number apply(Number n1, Number n2)
+	{
+		throw new UnsupportedOperationException(name()
+			+ " does not take multiple arguments");
+	}
+
+	/**
+	 * Returns the BuiltInFunction for the given Function, or null if the
+	 * given Function is not a BuiltInFunction (or is called with an illegal
+	 * number of arguments).
+	 * 
+	 * @param function
+	 *            The Function to be identified
+	 * @param argCount
+	 *            The number of arguments in the call to the Function
+	 * @return The BuiltInFunction for the given Function, or null
+	 */
+	static BuiltInFunction identify(Function function, int argCount)
+	{
+		Class<?> cl = function.getClass();
+		for (BuiltInFunction bif : values())
+		{
+			if (bif.ftnClass.equals(cl))
+			{
+				return ((argCount >= bif.minArgs) && (argCount <= bif.maxArgs))
+					? bif : null;
+			}
+		}
+		return null;
+	}
+}
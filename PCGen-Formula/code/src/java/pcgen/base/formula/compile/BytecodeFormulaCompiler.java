@@ -0,0 +1,228 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.compile;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import pcgen.base.formula.manager.FormulaManager;
+import pcgen.base.formula.parse.SimpleNode;
+
+/**
+ * A BytecodeFormulaCompiler is a FormulaCompiler that converts a formula into a
+ * Java class, which can then be compiled by the JIT like any other code.
+ * 
+ * Each formula compiled by a BytecodeFormulaCompiler is converted into a new
+ * class implementing CompiledFormula. Functions are resolved at compile time,
+ * numeric constants are parsed at compile time, and the built-in Functions
+ * (ABS, CEIL, FLOOR, ROUND, MAX, MIN and IF) are generated inline rather than
+ * being called through the Function interface.
+ * 
+ * The classes are defined in a ClassLoader owned by the
+ * BytecodeFormulaCompiler, so they are available for garbage collection once
+ * both the BytecodeFormulaCompiler and all of the CompiledFormula objects it
+ * produced are no longer referenced.
+ */
+public class BytecodeFormulaCompiler implements FormulaCompiler
+{
+
+	/**
+	 * The internal name of the interface implemented by generated classes.
+	 */
+	private static final String COMPILED_FORMULA =
+			"pcgen/base/formula/compile/CompiledFormula";
+
+	/**
+	 * The package (as an internal name prefix) in which generated classes are
+	 * defined.
+	 */
+	private static final String CLASS_PREFIX =
+			"pcgen/base/formula/compile/gen/CompiledFormula";
+
+	/**
+	 * The name of the field in generated classes that contains the constants
+	 * used by the generated class.
+	 */
+	static final String CONSTANTS_FIELD = "constants";
+
+	/**
+	 * The ClassLoader in which the generated classes are defined.
+	 */
+	private final FormulaClassLoader loader = new FormulaClassLoader(
+		BytecodeFormulaCompiler.class.getClassLoader());
+
+	/**
+	 * The number of classes generated by this BytecodeFormulaCompiler (used to
+	 * generate a unique class name).
+	 */
+	private int classCount = 0;
+
+	/**
+	 * Compiles the formula represented by the tree starting with the given
+	 * root node into a new Java class.
+	 * 
+	 * @see pcgen.base.formula.compile.FormulaCompiler#compile(pcgen.base.formula.manager.FormulaManager,
+	 *      pcgen.base.formula.parse.SimpleNode)
+	 */
+	@Override
+	public CompiledFormula compile(FormulaManager fm, SimpleNode root)
+	{
+		if (fm == null)
+		{
+			throw new IllegalArgumentException(
+				"Cannot compile with null FormulaManager");
+		}
+		if (root == null)
+		{
+			throw new IllegalArgumentException("Cannot compile with null root");
+		}
+		String className;
+		synchronized (loader)
+		{
+			className = CLASS_PREFIX + classCount++;
+		}
+		List<Object> constants = new ArrayList<Object>();
+		byte[] bytes = generate(fm, root, className, constants);
+		Class<?> cl;
+		synchronized (loader)
+		{
+			cl = loader.define(className.replace('/', '.'), bytes);
+		}
+		try
+		{
+			return (CompiledFormula) cl.getConstructor(Object[].class)
+				.newInstance(new Object[]{constants.toArray()});
+		}
+		catch (ReflectiveOperationException e)
+		{
+			throw new IllegalStateException("Unable to instantiate "
+				+ "compiled formula for " + root.getText(), e);
+		}
+	}
+
+	/**
+	 * Generates the bytes of a class that evaluates the formula represented
+	 * by the tree starting with the given root node.
+	 * 
+	 * @param fm
+	 *            The FormulaManager used to resolve the Functions and
+	 *            Operators within the formula
+	 * @param root
+	 *            The root node of the tree representing the formula
+	 * @param className
+	 *            The internal name of the class to be generated
+	 * @param constants
+	 *            The List to which constants used by the generated class will
+	 *            be added
+	 * @return The bytes of the generated class
+	 */
+	private byte[] generate(FormulaManager fm, SimpleNode root,
+		String className, List<Object> constants)
+	{
+		ClassWriter cw =
+				new ClassWriter(ClassWriter.COMPUTE_FRAMES
+					| ClassWriter.COMPUTE_MAXS)
+				{
+					@Override
+					protected String getCommonSuperClass(String type1,
+						String type2)
+					{
+						/*
+						 * Values are always cast to the required type before
+						 * use, so Object is sufficient (and avoids loading
+						 * classes during generation)
+						 */
+						return "java/lang/Object";
+					}
+				};
+		cw.visit(Opcodes.V1_7, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL
+			| Opcodes.ACC_SUPER, className, null, "java/lang/Object",
+			new String[]{COMPILED_FORMULA});
+		cw.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_FINAL,
+			CONSTANTS_FIELD, "[Ljava/lang/Object;", null, null).visitEnd();
+
+		MethodVisitor init =
+				cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>",
+					"([Ljava/lang/Object;)V", null, null);
+		init.visitCode();
+		init.visitVarInsn(Opcodes.ALOAD, 0);
+		init.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object",
+			"<init>", "()V", false);
+		init.visitVarInsn(Opcodes.ALOAD, 0);
+		init.visitVarInsn(Opcodes.ALOAD, 1);
+		init.visitFieldInsn(Opcodes.PUTFIELD, className, CONSTANTS_FIELD,
+			"[Ljava/lang/Object;");
+		init.visitInsn(Opcodes.RETURN);
+		init.visitMaxs(0, 0);
+		init.visitEnd();
+
+		MethodVisitor mv =
+				cw.visitMethod(Opcodes.ACC_PUBLIC, "evaluate",
+					"(Lpcgen/base/formula/manager/ScopeInformation;)"
+						+ "Ljava/lang/Object;", null, null);
+		mv.visitCode();
+		BytecodeGenerationVisitor visitor =
+				new BytecodeGenerationVisitor(fm, mv, className, constants);
+		visitor.visit(root, null);
+		mv.visitInsn(Opcodes.ARETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+
+	/**
+	 * The ClassLoader used to define classes generated by a
+	 * BytecodeFormulaCompiler.
+	 */
+	private static class FormulaClassLoader extends ClassLoader
+	{
+
+		/**
+		 * Constructs a new FormulaClassLoader with the given parent
+		 * ClassLoader.
+		 * 
+		 * @param parent
+		 *            The parent ClassLoader, which must be able to load the
+		 *            classes in the formula library
+		 */
+		FormulaClassLoader(ClassLoader parent)
+		{
+			super(parent);
+		}
+
+		/**
+		 * Defines a new class with the given name from the given bytes.
+		 * 
+		 * @param name
+		 *            The binary name of the class to be defined
+		 * @param bytes
+		 *            The bytes of the class to be defined
+		 * @return The newly defined Class
+		 */
+		Class<?> define(String name, byte[] bytes)
+		{
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+}
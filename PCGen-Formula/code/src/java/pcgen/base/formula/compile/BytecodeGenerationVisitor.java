@@ -0,0 +1,538 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.compile;
+
+import java.util.List;
+
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import pcgen.base.formula.function.Function;
+import pcgen.base.formula.manager.FormulaManager;
+import pcgen.base.formula.manager.OperatorBinding;
+import pcgen.base.formula.manager.VariableBinding;
+import pcgen.base.formula.parse.ASTArithmetic;
+import pcgen.base.formula.parse.ASTEquality;
+import pcgen.base.formula.parse.ASTExpon;
+import pcgen.base.formula.parse.ASTFParen;
+import pcgen.base.formula.parse.ASTGeometric;
+import pcgen.base.formula.parse.ASTLogical;
+import pcgen.base.formula.parse.ASTNum;
+import pcgen.base.formula.parse.ASTPCGenBracket;
+import pcgen.base.formula.parse.ASTPCGenLookup;
+import pcgen.base.formula.parse.ASTPCGenSingleWord;
+import pcgen.base.formula.parse.ASTParen;
+import pcgen.base.formula.parse.ASTQuotString;
+import pcgen.base.formula.parse.ASTRelational;
+import pcgen.base.formula.parse.ASTRoot;
+import pcgen.base.formula.parse.ASTUnary;
+import pcgen.base.formula.parse.FormulaParserVisitor;
+import pcgen.base.formula.parse.Node;
+import pcgen.base.formula.parse.Operator;
+import pcgen.base.formula.parse.SimpleNode;
+import pcgen.base.formula.visitor.VisitorUtilities;
+
+/**
+ * BytecodeGenerationVisitor visits a tree of objects representing a formula
+ * and writes the bytecode for the evaluate method of a CompiledFormula.
+ * 
+ * The generated method has the following local variables: 0 is the
+ * CompiledFormula, 1 is the ScopeInformation and 2 is the array of constants
+ * for the CompiledFormula. Each Operator is evaluated through an
+ * OperatorBinding held in the constants. Each node leaves exactly one value
+ * (an Object) on the operand stack.
+ */
+@SuppressWarnings("PMD.TooManyMethods")
+class BytecodeGenerationVisitor implements FormulaParserVisitor
+{
+
+	private static final String SUPPORT =
+			"pcgen/base/formula/compile/CompiledFormulaSupport";
+	private static final String NUMBER = "java/lang/Number";
+	private static final String NUMBER_DESC = "Ljava/lang/Number;";
+	private static final String UNARY_DESC = "(" + NUMBER_DESC + ")"
+		+ NUMBER_DESC;
+	private static final String BINARY_DESC = "(" + NUMBER_DESC
+		+ NUMBER_DESC + ")" + NUMBER_DESC;
+	private static final String OPERATOR_BINDING =
+			"pcgen/base/formula/manager/OperatorBinding";
+	private static final String VARIABLE_BINDING =
+			"pcgen/base/formula/manager/VariableBinding";
+	private static final String EVALUATE_DESC =
+			"(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;";
+
+	/**
+	 * The local variable index of the ScopeInformation.
+	 */
+	private static final int SCOPE_INFO = 1;
+
+	/**
+	 * The local variable index of the array of constants.
+	 */
+	private static final int CONSTANTS = 2;
+
+	/**
+	 * The FormulaManager used to resolve Functions.
+	 */
+	private final FormulaManager fm;
+
+	/**
+	 * The MethodVisitor to which the bytecode is written.
+	 */
+	private final MethodVisitor mv;
+
+	/**
+	 * The constants used by the generated class.
+	 */
+	private final List<Object> constants;
+
+	/**
+	 * Constructs a new BytecodeGenerationVisitor and writes the bytecode that
+	 * initializes the local variables of the generated method.
+	 * 
+	 * @param fm
+	 *            The FormulaManager used to resolve Functions and Operators
+	 * @param mv
+	 *            The MethodVisitor to which the bytecode is written
+	 * @param className
+	 *            The internal name of the class being generated
+	 * @param constants
+	 *            The (empty) List to which constants used by the generated
+	 *            class will be added
+	 */
+	BytecodeGenerationVisitor(FormulaManager fm, MethodVisitor mv,
+		String className, List<Object> constants)
+	{
+		this.fm = fm;
+		this.mv = mv;
+		this.constants = constants;
+		mv.visitVarInsn(Opcodes.ALOAD, 0);
+		mv.visitFieldInsn(Opcodes.GETFIELD, className,
+			BytecodeFormulaCompiler.CONSTANTS_FIELD, "[Ljava/lang/Object;");
+		mv.visitVarInsn(Opcodes.ASTORE, CONSTANTS);
+	}
+
+	@Override
+	public Object visit(SimpleNode node, Object data)
+	{
+		//Delegate to the appropriate class
+		return node.jjtAccept(this, data);
+	}
+
+	@Override
+	public Object visit(ASTRoot node, Object data)
+	{
+		return generateSingleChild(node);
+	}
+
+	@Override
+	public Object visit(ASTLogical node, Object data)
+	{
+		Operator op = node.getOperator();
+		if (op == null)
+		{
+			throw new IllegalStateException(node.getClass().getSimpleName()
+				+ " must have an operator");
+		}
+		int childCount = node.jjtGetNumChildren();
+		if (childCount != 2)
+		{
+			throw new IllegalStateException(node.getClass().getSimpleName()
+				+ " must only have 2 children, was: " + childCount);
+		}
+		generateShortCircuit(op, node.jjtGetChild(0), node.jjtGetChild(1));
+		return null;
+	}
+
+	@Override
+	public Object visit(ASTEquality node, Object data)
+	{
+		return generateOperatorNode(node);
+	}
+
+	@Override
+	public Object visit(ASTRelational node, Object data)
+	{
+		return generateOperatorNode(node);
+	}
+
+	@Override
+	public Object visit(ASTArithmetic node, Object data)
+	{
+		return generateOperatorNode(node);
+	}
+
+	@Override
+	public Object visit(ASTGeometric node, Object data)
+	{
+		return generateOperatorNode(node);
+	}
+
+	@Override
+	public Object visit(ASTUnary node, Object data)
+	{
+		generateSingleChild(node);
+		mv.visitTypeInsn(Opcodes.CHECKCAST, NUMBER);
+		mv.visitMethodInsn(Opcodes.INVOKESTATIC, SUPPORT, "negate",
+			UNARY_DESC, false);
+		return null;
+	}
+
+	@Override
+	public Object visit(ASTExpon node, Object data)
+	{
+		int childCount = node.jjtGetNumChildren();
+		generateNumber(node.jjtGetChild(0));
+		generateNumber(node.jjtGetChild(1));
+		for (int i = 2; i < childCount; i++)
+		{
+			generateNumber(node.jjtGetChild(i));
+			mv.visitMethodInsn(Opcodes.INVOKESTATIC, SUPPORT,
+				"multiplyExponent", BINARY_DESC, false);
+		}
+		mv.visitMethodInsn(Opcodes.INVOKESTATIC, SUPPORT, "power", "("
+			+ NUMBER_DESC + NUMBER_DESC + ")Ljava/lang/Double;", false);
+		return null;
+	}
+
+	@Override
+	public Object visit(ASTParen node, Object data)
+	{
+		return generateSingleChild(node);
+	}
+
+	/**
+	 * Numbers (parsed when the node was built) are stored as a constant.
+	 */
+	@Override
+	public Object visit(ASTNum node, Object data)
+	{
+		Number n = node.getValue();
+		generateConstant(n);
+		return null;
+	}
+
+	/**
+	 * The Function is resolved at compile time. Built-in Functions are
+	 * generated inline; other Functions are called through the Function
+	 * interface, with an EvaluateVisitor from the ScopeInformation.
+	 */
+	@Override
+	public Object visit(ASTPCGenLookup node, Object data)
+	{
+		Function function = VisitorUtilities.getFunction(fm.getLibrary(), node);
+		if (function == null)
+		{
+			throw new IllegalStateException(
+				"Compile called on invalid Formula (function "
+					+ ((SimpleNode) node.jjtGetChild(0)).getText()
+					+ " not found)");
+		}
+		Node[] args = VisitorUtilities.accumulateArguments(node.jjtGetChild(1));
+		BuiltInFunction bif = BuiltInFunction.identify(function, args.length);
+		if (bif == BuiltInFunction.IF)
+		{
+			generateIf(args);
+		}
+		else if ((bif != null) && bif.isUnary())
+		{
+			generateUnaryFunction(bif.getSupportMethod(), args[0]);
+		}
+		else if (bif != null)
+		{
+			generateNaryFunction(bif.getSupportMethod(), args);
+		}
+		else
+		{
+			generateConstant(function);
+			mv.visitTypeInsn(Opcodes.CHECKCAST,
+				"pcgen/base/formula/function/Function");
+			mv.visitVarInsn(Opcodes.ALOAD, SCOPE_INFO);
+			generateConstant(args);
+			mv.visitTypeInsn(Opcodes.CHECKCAST,
+				"[Lpcgen/base/formula/parse/Node;");
+			mv.visitMethodInsn(Opcodes.INVOKESTATIC, SUPPORT,
+				"evaluateFunction",
+				"(Lpcgen/base/formula/function/Function;"
+					+ "Lpcgen/base/formula/manager/ScopeInformation;"
+					+ "[Lpcgen/base/formula/parse/Node;)Ljava/lang/Object;",
+				false);
+		}
+		return null;
+	}
+
+	/**
+	 * Variables are resolved at evaluation time, since the VariableID depends
+	 * on the ScopeInformation (resolved once per ScopedNamespaceDefinition, see
+	 * VariableBinding).
+	 */
+	@Override
+	public Object visit(ASTPCGenSingleWord node, Object data)
+	{
+		mv.visitVarInsn(Opcodes.ALOAD, SCOPE_INFO);
+		loadConstant(addConstant(new VariableBinding(node.getText())));
+		mv.visitTypeInsn(Opcodes.CHECKCAST, VARIABLE_BINDING);
+		mv.visitMethodInsn(Opcodes.INVOKESTATIC, SUPPORT, "getVariable",
+			"(Lpcgen/base/formula/manager/ScopeInformation;"
+				+ "Lpcgen/base/formula/manager/VariableBinding;)"
+				+ "Ljava/lang/Object;", false);
+		return null;
+	}
+
+	@Override
+	public Object visit(ASTPCGenBracket node, Object data)
+	{
+		//Should be stripped by the function
+		throw new IllegalStateException(
+			"Compile called on invalid Formula (reached Function Brackets)");
+	}
+
+	@Override
+	public Object visit(ASTFParen node, Object data)
+	{
+		//Should be stripped by the function
+		throw new IllegalStateException(
+			"Compile called on invalid Formula (reached Function Parenthesis)");
+	}
+
+	@Override
+	public Object visit(ASTQuotString node, Object data)
+	{
+		//Should be stripped by the function
+		throw new IllegalStateException(
+			"Compile called on invalid Formula (reached Quoted String)");
+	}
+
+	/**
+	 * Generates the bytecode for an operator node. Must have 2 children and a
+	 * node that contains an Operator.
+	 * 
+	 * @param node
+	 *            The node that contains an Operator and has exactly 2 children
+	 * @return null
+	 */
+	private Object generateOperatorNode(SimpleNode node)
+	{
+		Operator op = node.getOperator();
+		if (op == null)
+		{
+			throw new IllegalStateException(node.getClass().getSimpleName()
+				+ " must have an operator");
+		}
+		int childCount = node.jjtGetNumChildren();
+		if (childCount != 2)
+		{
+			throw new IllegalStateException(node.getClass().getSimpleName()
+				+ " must only have 2 children, was: " + childCount);
+		}
+		int binding =
+				addConstant(new OperatorBinding(fm.getOperatorLibrary(), op));
+		loadBinding(binding);
+		node.jjtGetChild(0).jjtAccept(this, null);
+		node.jjtGetChild(1).jjtAccept(this, null);
+		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, OPERATOR_BINDING,
+			"evaluate", EVALUATE_DESC, false);
+		return null;
+	}
+
+	/**
+	 * Generates the bytecode for an Operator where the right argument is not
+	 * evaluated if the left argument determines the result (see
+	 * OperatorLibrary.shortCircuit).
+	 * 
+	 * @param op
+	 *            The Operator
+	 * @param left
+	 *            The left argument to the Operator
+	 * @param right
+	 *            The right argument to the Operator
+	 */
+	private void generateShortCircuit(Operator op, Node left, Node right)
+	{
+		int binding =
+				addConstant(new OperatorBinding(fm.getOperatorLibrary(), op));
+		Label evaluateLabel = new Label();
+		Label endLabel = new Label();
+		left.jjtAccept(this, null);
+		//Stack: left
+		mv.visitInsn(Opcodes.DUP);
+		loadBinding(binding);
+		mv.visitInsn(Opcodes.SWAP);
+		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, OPERATOR_BINDING,
+			"shortCircuit", "(Ljava/lang/Object;)Ljava/lang/Object;", false);
+		//Stack: left, shortCircuit result
+		mv.visitInsn(Opcodes.DUP);
+		mv.visitJumpInsn(Opcodes.IFNULL, evaluateLabel);
+		mv.visitInsn(Opcodes.SWAP);
+		mv.visitInsn(Opcodes.POP);
+		mv.visitJumpInsn(Opcodes.GOTO, endLabel);
+		mv.visitLabel(evaluateLabel);
+		//Stack: left, null
+		mv.visitInsn(Opcodes.POP);
+		loadBinding(binding);
+		mv.visitInsn(Opcodes.SWAP);
+		//Stack: binding, left
+		right.jjtAccept(this, null);
+		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, OPERATOR_BINDING,
+			"evaluate", EVALUATE_DESC, false);
+		mv.visitLabel(endLabel);
+	}
+
+	/**
+	 * Generates the bytecode to load the OperatorBinding at the given index
+	 * in the constants.
+	 * 
+	 * @param index
+	 *            The index of the OperatorBinding in the constants
+	 */
+	private void loadBinding(int index)
+	{
+		loadConstant(index);
+		mv.visitTypeInsn(Opcodes.CHECKCAST, OPERATOR_BINDING);
+	}
+
+	/**
+	 * Generates the bytecode for the single child of the given node.
+	 * 
+	 * @param node
+	 *            The node for which the (single) child will be generated
+	 * @return null
+	 */
+	private Object generateSingleChild(Node node)
+	{
+		int childCount = node.jjtGetNumChildren();
+		if (childCount != 1)
+		{
+			throw new IllegalStateException(node.getClass().getSimpleName()
+				+ " must only have 1 child, was: " + childCount);
+		}
+		return node.jjtGetChild(0).jjtAccept(this, null);
+	}
+
+	/**
+	 * Generates the bytecode for the given node, and casts the result to a
+	 * Number.
+	 * 
+	 * @param node
+	 *            The node for which the bytecode will be generated
+	 */
+	private void generateNumber(Node node)
+	{
+		node.jjtAccept(this, null);
+		mv.visitTypeInsn(Opcodes.CHECKCAST, NUMBER);
+	}
+
+	/**
+	 * Generates the bytecode for a built-in Function with a single argument.
+	 * 
+	 * @param method
+	 *            The name of the method in CompiledFormulaSupport that
+	 *            implements the Function
+	 * @param arg
+	 *            The argument to the Function
+	 */
+	private void generateUnaryFunction(String method, Node arg)
+	{
+		generateNumber(arg);
+		mv.visitMethodInsn(Opcodes.INVOKESTATIC, SUPPORT, method, UNARY_DESC,
+			false);
+	}
+
+	/**
+	 * Generates the bytecode for a built-in Function with 2 or more
+	 * arguments, which are processed from left to right.
+	 * 
+	 * @param method
+	 *            The name of the method in CompiledFormulaSupport that
+	 *            implements the Function for 2 arguments
+	 * @param args
+	 *            The arguments to the Function
+	 */
+	private void generateNaryFunction(String method, Node[] args)
+	{
+		generateNumber(args[0]);
+		for (int i = 1; i < args.length; i++)
+		{
+			generateNumber(args[i]);
+			mv.visitMethodInsn(Opcodes.INVOKESTATIC, SUPPORT, method,
+				BINARY_DESC, false);
+		}
+	}
+
+	/**
+	 * Generates the bytecode for the IF Function. Only the branch selected by
+	 * the condition is evaluated.
+	 * 
+	 * @param args
+	 *            The arguments to the IF Function
+	 */
+	private void generateIf(Node[] args)
+	{
+		Label falseLabel = new Label();
+		Label endLabel = new Label();
+		args[0].jjtAccept(this, null);
+		mv.visitTypeInsn(Opcodes.CHECKCAST, "java/lang/Boolean");
+		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/Boolean",
+			"booleanValue", "()Z", false);
+		mv.visitJumpInsn(Opcodes.IFEQ, falseLabel);
+		args[1].jjtAccept(this, null);
+		mv.visitJumpInsn(Opcodes.GOTO, endLabel);
+		mv.visitLabel(falseLabel);
+		args[2].jjtAccept(this, null);
+		mv.visitLabel(endLabel);
+	}
+
+	/**
+	 * Generates the bytecode to load the given constant (as an Object) from
+	 * the array of constants.
+	 * 
+	 * @param value
+	 *            The constant to be loaded
+	 */
+	private void generateConstant(Object value)
+	{
+		loadConstant(addConstant(value));
+	}
+
+	/**
+	 * Adds the given value to the constants used by the generated class.
+	 * 
+	 * @param value
+	 *            The value to be added to the constants
+	 * @return The index of the value in the constants
+	 */
+	private int addConstant(Object value)
+	{
+		constants.add(value);
+		return constants.size() - 1;
+	}
+
+	/**
+	 * Generates the bytecode to load the constant at the given index.
+	 * 
+	 * @param index
+	 *            The index of the constant to be loaded
+	 */
+	private void loadConstant(int index)
+	{
+		mv.visitVarInsn(Opcodes.ALOAD, CONSTANTS);
+		mv.visitLdcInsn(Integer.valueOf(index));
+		mv.visitInsn(Opcodes.AALOAD);
+	}
+}
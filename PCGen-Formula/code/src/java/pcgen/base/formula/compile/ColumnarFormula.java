@@ -0,0 +1,223 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.compile;
+
+import pcgen.base.formula.compile.ColumnarGenerationVisitor.Batch;
+import pcgen.base.formula.compile.ColumnarGenerationVisitor.BooleanKernel;
+import pcgen.base.formula.compile.ColumnarGenerationVisitor.NumericKernel;
+import pcgen.base.formula.manager.FormulaManager;
+import pcgen.base.formula.parse.SimpleNode;
+import pcgen.base.formula.variable.VariableScope;
+import pcgen.base.formula.visitor.BatchEvaluateVisitor;
+
+/**
+ * A ColumnarFormula evaluates a formula for a batch of VariableScope objects
+ * (e.g. for each NPC in an encounter) using columns of int and double
+ * primitives. It is an alternative to BatchEvaluateVisitor for formulas that
+ * are purely numeric, and produces identical results (including the Integer or
+ * Double class of each result).
+ * 
+ * Each node of the formula is processed once for the entire batch, producing a
+ * column of primitive values (one per VariableScope). Where every value of the
+ * arguments to a node is an int (or every value is a double), the node is
+ * processed in a single loop over primitive arrays, which the JIT compiler is
+ * able to unroll and compile to SIMD instructions.
+ * 
+ * As with PrimitiveFormulaCompiler, Operators are only evaluated with
+ * primitives if the OperatorLibrary uses the OperatorActions provided with the
+ * formula library (e.g. NumberAdd) for Integer and Double arguments, and only
+ * the built-in Functions (other than IF) are evaluated with primitives. Any
+ * other node (including IF and any custom Function) is evaluated with a
+ * BatchEvaluateVisitor and the results unboxed. If a value that is not an
+ * Integer, Double or Boolean is encountered for a VariableScope (e.g. a
+ * variable containing a Long), the formula is evaluated again for that
+ * VariableScope with a BatchEvaluateVisitor, to ensure the result has the
+ * correct class.
+ * 
+ * A ColumnarFormula is built once for a given FormulaManager and formula, and
+ * may then be evaluated for any number of batches. A ColumnarFormula may be
+ * evaluated by multiple threads at the same time.
+ */
+public final class ColumnarFormula
+{
+
+	/**
+	 * The FormulaManager used to evaluate the formula.
+	 */
+	private final FormulaManager fm;
+
+	/**
+	 * The root node of the formula.
+	 */
+	private final SimpleNode root;
+
+	/**
+	 * The NumericKernel for the formula, if the formula produces a Number.
+	 */
+	private final NumericKernel numeric;
+
+	/**
+	 * The BooleanKernel for the formula, if the formula produces a Boolean.
+	 */
+	private final BooleanKernel bool;
+
+	/**
+	 * Constructs a new ColumnarFormula for the formula with the given root
+	 * node, to be evaluated with the given FormulaManager.
+	 * 
+	 * @param fm
+	 *            The FormulaManager used to evaluate the formula
+	 * @param root
+	 *            The root node of the formula
+	 * @throws IllegalArgumentException
+	 *             if either parameter is null
+	 */
+	public ColumnarFormula(FormulaManager fm, SimpleNode root)
+	{
+		if (fm == null)
+		{
+			throw new IllegalArgumentException(
+				"Cannot compile with null FormulaManager");
+		}
+		if (root == null)
+		{
+			throw new IllegalArgumentException("Cannot compile with null root");
+		}
+		this.fm = fm;
+		this.root = root;
+		ColumnarGenerationVisitor visitor = new ColumnarGenerationVisitor(fm);
+		Class<?> kind = visitor.getKind(root);
+		if (Number.class.equals(kind))
+		{
+			numeric = (NumericKernel) root.jjtAccept(visitor, Number.class);
+			bool = null;
+		}
+		else if (Boolean.class.equals(kind))
+		{
+			numeric = null;
+			bool = (BooleanKernel) root.jjtAccept(visitor, Boolean.class);
+		}
+		else
+		{
+			//Type unknown until evaluated; always use BatchEvaluateVisitor
+			numeric = null;
+			bool = null;
+		}
+	}
+
+	/**
+	 * Evaluates the formula for each of the given VariableScope objects,
+	 * loading the results into the given array (in the same order as the
+	 * VariableScope objects).
+	 * 
+	 * @param scopes
+	 *            The VariableScope objects in which the formula is evaluated
+	 * @param results
+	 *            The array into which the results are loaded
+	 * @throws IllegalArgumentException
+	 *             if either parameter (or any of the scopes) is null or the
+	 *             results array is shorter than the array of VariableScope
+	 *             objects
+	 */
+	public void evaluate(VariableScope<?>[] scopes, Object[] results)
+	{
+		if (scopes == null)
+		{
+			throw new IllegalArgumentException("Scopes cannot be null");
+		}
+		for (VariableScope<?> scope : scopes)
+		{
+			if (scope == null)
+			{
+				throw new IllegalArgumentException("Scope cannot be null");
+			}
+		}
+		if (results == null)
+		{
+			throw new IllegalArgumentException("Results cannot be null");
+		}
+		if (results.length < scopes.length)
+		{
+			throw new IllegalArgumentException("Results length ("
+				+ results.length + ") must be at least the number of scopes ("
+				+ scopes.length + ")");
+		}
+		Batch batch = new Batch(fm, scopes.clone());
+		if (numeric != null)
+		{
+			NumericColumn column = numeric.evaluate(batch);
+			for (int row = 0; row < scopes.length; row++)
+			{
+				results[row] = column.toNumber(row);
+			}
+		}
+		else if (bool != null)
+		{
+			boolean[] column = bool.test(batch);
+			for (int row = 0; row < scopes.length; row++)
+			{
+				results[row] = Boolean.valueOf(column[row]);
+			}
+		}
+		else
+		{
+			new BatchEvaluateVisitor(fm, scopes).evaluate(root, results);
+			return;
+		}
+		if (batch.anyRequiresBoxed())
+		{
+			evaluateBoxed(batch, scopes, results);
+		}
+	}
+
+	/**
+	 * Evaluates the formula with a BatchEvaluateVisitor for the rows of the
+	 * given Batch that encountered a value that cannot be represented as an
+	 * int, double or boolean.
+	 */
+	private void evaluateBoxed(Batch batch, VariableScope<?>[] scopes,
+		Object[] results)
+	{
+		int count = 0;
+		for (int row = 0; row < scopes.length; row++)
+		{
+			if (batch.requiresBoxed(row))
+			{
+				count++;
+			}
+		}
+		VariableScope<?>[] boxedScopes = new VariableScope<?>[count];
+		int[] boxedRows = new int[count];
+		int next = 0;
+		for (int row = 0; row < scopes.length; row++)
+		{
+			if (batch.requiresBoxed(row))
+			{
+				boxedScopes[next] = scopes[row];
+				boxedRows[next] = row;
+				next++;
+			}
+		}
+		Object[] boxedResults = new Object[count];
+		new BatchEvaluateVisitor(fm, boxedScopes).evaluate(root, boxedResults);
+		for (int i = 0; i < count; i++)
+		{
+			results[boxedRows[i]] = boxedResults[i];
+		}
+	}
+}
@@ -0,0 +1,1369 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.compile;
+
+import java.util.Arrays;
+
+import pcgen.base.formula.function.Function;
+import pcgen.base.formula.manager.FormulaManager;
+import pcgen.base.formula.parse.ASTArithmetic;
+import pcgen.base.formula.parse.ASTEquality;
+import pcgen.base.formula.parse.ASTExpon;
+import pcgen.base.formula.parse.ASTFParen;
+import pcgen.base.formula.parse.ASTGeometric;
+import pcgen.base.formula.parse.ASTLogical;
+import pcgen.base.formula.parse.ASTNum;
+import pcgen.base.formula.parse.ASTPCGenBracket;
+import pcgen.base.formula.parse.ASTPCGenLookup;
+import pcgen.base.formula.parse.ASTPCGenSingleWord;
+import pcgen.base.formula.parse.ASTParen;
+import pcgen.base.formula.parse.ASTQuotString;
+import pcgen.base.formula.parse.ASTRelational;
+import pcgen.base.formula.parse.ASTRoot;
+import pcgen.base.formula.parse.ASTUnary;
+import pcgen.base.formula.parse.FormulaParserVisitor;
+import pcgen.base.formula.parse.Node;
+import pcgen.base.formula.parse.Operator;
+import pcgen.base.formula.parse.SimpleNode;
+import pcgen.base.formula.variable.ScopedNamespaceDefinition;
+import pcgen.base.formula.variable.VariableLibrary;
+import pcgen.base.formula.variable.VariableScope;
+import pcgen.base.formula.variable.VariableStore;
+import pcgen.base.formula.visitor.BatchEvaluateVisitor;
+import pcgen.base.formula.visitor.VisitorUtilities;
+
+/**
+ * ColumnarGenerationVisitor visits a tree of objects representing a formula
+ * and builds the objects that evaluate the formula for a batch of
+ * VariableScope objects using columns of primitives (see NumericColumn).
+ * 
+ * The data passed to each visit method is the type of value required by the
+ * parent node: Number.class (in which case a NumericKernel is returned) or
+ * Boolean.class (in which case a BooleanKernel is returned). The nodes
+ * supported are the same as PrimitiveGenerationVisitor, with the exception of
+ * the IF Function. A node that cannot be evaluated using columns of primitives
+ * (including IF and any Function other than the built-in Functions) is
+ * evaluated with a BatchEvaluateVisitor and the results unboxed.
+ */
+@SuppressWarnings("PMD.TooManyMethods")
+class ColumnarGenerationVisitor implements FormulaParserVisitor
+{
+
+	private static final Class<Number> NUMBER_CLASS = Number.class;
+	private static final Class<Boolean> BOOLEAN_CLASS = Boolean.class;
+
+	/**
+	 * The FormulaManager used to resolve Functions and Operators.
+	 */
+	private final FormulaManager fm;
+
+	/**
+	 * The PrimitiveGenerationVisitor used to determine the type of value
+	 * produced by a node and whether an Operator uses the OperatorActions
+	 * provided with the formula library.
+	 */
+	private final PrimitiveGenerationVisitor primitive;
+
+	/**
+	 * The number of nodes compiled so far that may throw an exception (or
+	 * have other effects) when evaluated for a row where EvaluateVisitor
+	 * would not evaluate the node. Used to determine whether the second
+	 * argument of a short-circuiting Operator can be evaluated for every row.
+	 */
+	private int unsafeCount = 0;
+
+	/**
+	 * Constructs a new ColumnarGenerationVisitor with the given
+	 * FormulaManager.
+	 * 
+	 * @param fm
+	 *            The FormulaManager used to resolve Functions and Operators
+	 */
+	ColumnarGenerationVisitor(FormulaManager fm)
+	{
+		this.fm = fm;
+		primitive = new PrimitiveGenerationVisitor(fm);
+	}
+
+	/**
+	 * Returns the type of value (Number.class or Boolean.class) that the given
+	 * node is known to produce, or null if the type is not known until the
+	 * formula is evaluated.
+	 * 
+	 * @param node
+	 *            The node for which the type of value should be returned
+	 * @return The type of value that the given node is known to produce, or
+	 *         null
+	 */
+	Class<?> getKind(Node node)
+	{
+		return primitive.getKind(node);
+	}
+
+	@Override
+	public Object visit(SimpleNode node, Object data)
+	{
+		//Delegate to the appropriate class
+		return node.jjtAccept(this, data);
+	}
+
+	@Override
+	public Object visit(ASTRoot node, Object data)
+	{
+		return compileSingleChild(node, data);
+	}
+
+	@Override
+	public Object visit(ASTLogical node, Object data)
+	{
+		return compileOperatorNode(node, data);
+	}
+
+	@Override
+	public Object visit(ASTEquality node, Object data)
+	{
+		return compileOperatorNode(node, data);
+	}
+
+	@Override
+	public Object visit(ASTRelational node, Object data)
+	{
+		return compileOperatorNode(node, data);
+	}
+
+	@Override
+	public Object visit(ASTArithmetic node, Object data)
+	{
+		return compileOperatorNode(node, data);
+	}
+
+	@Override
+	public Object visit(ASTGeometric node, Object data)
+	{
+		return compileOperatorNode(node, data);
+	}
+
+	@Override
+	public Object visit(ASTUnary node, Object data)
+	{
+		if ((data != NUMBER_CLASS) || (node.jjtGetNumChildren() != 1))
+		{
+			return boxed(node, data);
+		}
+		return new Negate((NumericKernel) compileSingleChild(node, data));
+	}
+
+	@Override
+	public Object visit(ASTExpon node, Object data)
+	{
+		if (data != NUMBER_CLASS)
+		{
+			return boxed(node, data);
+		}
+		int childCount = node.jjtGetNumChildren();
+		NumericKernel[] children = new NumericKernel[childCount];
+		for (int i = 0; i < childCount; i++)
+		{
+			children[i] =
+					(NumericKernel) node.jjtGetChild(i).jjtAccept(this, data);
+		}
+		return new Exponent(children);
+	}
+
+	@Override
+	public Object visit(ASTParen node, Object data)
+	{
+		return compileSingleChild(node, data);
+	}
+
+	@Override
+	public Object visit(ASTNum node, Object data)
+	{
+		Number n = node.getValue();
+		if ((data != NUMBER_CLASS) || (n == null))
+		{
+			return boxed(node, data);
+		}
+		return new Constant(n);
+	}
+
+	@Override
+	public Object visit(ASTPCGenLookup node, Object data)
+	{
+		Function function = VisitorUtilities.getFunction(fm.getLibrary(), node);
+		if ((function == null) || (data != NUMBER_CLASS))
+		{
+			return boxed(node, data);
+		}
+		Node[] args = VisitorUtilities.accumulateArguments(node.jjtGetChild(1));
+		BuiltInFunction bif = BuiltInFunction.identify(function, args.length);
+		if ((bif == null) || (bif == BuiltInFunction.IF))
+		{
+			//IF only evaluates one of the arguments for each row
+			return boxed(node, data);
+		}
+		NumericKernel[] compiledArgs = new NumericKernel[args.length];
+		for (int i = 0; i < args.length; i++)
+		{
+			compiledArgs[i] = (NumericKernel) args[i].jjtAccept(this, data);
+		}
+		switch (bif)
+		{
+			case ABS:
+				return new Abs(compiledArgs[0]);
+			case CEIL:
+				return new Ceil(compiledArgs[0]);
+			case FLOOR:
+				return new Floor(compiledArgs[0]);
+			case ROUND:
+				return new Round(compiledArgs[0]);
+			case MAX:
+				return new Extreme(compiledArgs, true);
+			case MIN:
+				return new Extreme(compiledArgs, false);
+			default:
+				return boxed(node, data);
+		}
+	}
+
+	@Override
+	public Object visit(ASTPCGenSingleWord node, Object data)
+	{
+		if (data == NUMBER_CLASS)
+		{
+			return new NumericVariable(node.getText());
+		}
+		return new BooleanVariable(node.getText());
+	}
+
+	@Override
+	public Object visit(ASTPCGenBracket node, Object data)
+	{
+		//Should be stripped by the function
+		throw new IllegalStateException(
+			"Compile called on invalid Formula (reached Function Brackets)");
+	}
+
+	@Override
+	public Object visit(ASTFParen node, Object data)
+	{
+		//Should be stripped by the function
+		throw new IllegalStateException(
+			"Compile called on invalid Formula (reached Function Parenthesis)");
+	}
+
+	@Override
+	public Object visit(ASTQuotString node, Object data)
+	{
+		//Should be stripped by the function
+		throw new IllegalStateException(
+			"Compile called on invalid Formula (reached Quoted String)");
+	}
+
+	/**
+	 * Compiles an operator node, using columns of primitives if the
+	 * OperatorActions in the OperatorLibrary for the Operator are those
+	 * provided with the formula library.
+	 * 
+	 * @param node
+	 *            The node that contains an Operator and has exactly 2 children
+	 * @param data
+	 *            The type of value required by the parent node
+	 * @return The NumericKernel or BooleanKernel for the given node
+	 */
+	private Object compileOperatorNode(SimpleNode node, Object data)
+	{
+		Operator op = node.getOperator();
+		if ((op == null) || (node.jjtGetNumChildren() != 2))
+		{
+			return boxed(node, data);
+		}
+		Node left = node.jjtGetChild(0);
+		Node right = node.jjtGetChild(1);
+		if (data == NUMBER_CLASS)
+		{
+			if (primitive.isNumericAction(op,
+				PrimitiveGenerationVisitor.getNumericAction(op)))
+			{
+				NumericKernel l = (NumericKernel) left.jjtAccept(this, data);
+				NumericKernel r = (NumericKernel) right.jjtAccept(this, data);
+				switch (op)
+				{
+					case ADD:
+						return new Add(l, r);
+					case SUB:
+						return new Subtract(l, r);
+					case MUL:
+						return new Multiply(l, r);
+					case DIV:
+						//Integer division by zero throws an exception
+						unsafeCount++;
+						return new Divide(l, r);
+					case REM:
+						unsafeCount++;
+						return new Remainder(l, r);
+					default:
+						break;
+				}
+			}
+			return boxed(node, data);
+		}
+		boolean booleanArgs =
+				BOOLEAN_CLASS.equals(getKind(left))
+					|| BOOLEAN_CLASS.equals(getKind(right));
+		if (!booleanArgs
+			&& primitive.isNumericAction(op,
+				PrimitiveGenerationVisitor.getComparisonAction(op)))
+		{
+			return new Comparison(op,
+				(NumericKernel) left.jjtAccept(this, NUMBER_CLASS),
+				(NumericKernel) right.jjtAccept(this, NUMBER_CLASS));
+		}
+		if (isLogical(op))
+		{
+			boolean lazy =
+					(node instanceof ASTLogical) && primitive.isShortCircuit(op);
+			BooleanKernel l = (BooleanKernel) left.jjtAccept(this, data);
+			int unsafeBefore = unsafeCount;
+			BooleanKernel r = (BooleanKernel) right.jjtAccept(this, data);
+			/*
+			 * Every row is evaluated, so a short circuit can only be ignored
+			 * if the second argument cannot fail or have any other effect
+			 */
+			if (!lazy || (unsafeCount == unsafeBefore))
+			{
+				return new Logical(op, l, r);
+			}
+		}
+		return boxed(node, data);
+	}
+
+	private boolean isLogical(Operator op)
+	{
+		return primitive.isAction(op,
+			PrimitiveGenerationVisitor.getBooleanAction(op), BOOLEAN_CLASS,
+			BOOLEAN_CLASS);
+	}
+
+	/**
+	 * Compiles the single child of the given node.
+	 * 
+	 * @param node
+	 *            The node for which the (single) child will be compiled
+	 * @param data
+	 *            The type of value required by the parent node
+	 * @return The NumericKernel or BooleanKernel for the child of the given
+	 *         node
+	 */
+	private Object compileSingleChild(Node node, Object data)
+	{
+		if (node.jjtGetNumChildren() != 1)
+		{
+			return boxed(node, data);
+		}
+		return node.jjtGetChild(0).jjtAccept(this, data);
+	}
+
+	/**
+	 * Compiles the given node for evaluation with a BatchEvaluateVisitor, with
+	 * the results unboxed.
+	 * 
+	 * @param node
+	 *            The node to be compiled
+	 * @param data
+	 *            The type of value required by the parent node
+	 * @return The NumericKernel or BooleanKernel for the given node
+	 */
+	private Object boxed(Node node, Object data)
+	{
+		unsafeCount++;
+		if (data == NUMBER_CLASS)
+		{
+			return new BoxedNumber(node);
+		}
+		return new BoxedBoolean(node);
+	}
+
+	/**
+	 * A Batch contains the information about a single evaluation of a
+	 * ColumnarFormula: the VariableScope of each row, and which rows
+	 * encountered a value that cannot be represented as an int, double or
+	 * boolean (and thus must be evaluated again using boxed values).
+	 */
+	static final class Batch
+	{
+		private final FormulaManager fm;
+		private final VariableScope<?>[] scopes;
+		private final boolean[] requiresBoxed;
+		private boolean anyRequiresBoxed;
+		private BatchEvaluateVisitor boxedVisitor;
+
+		Batch(FormulaManager fm, VariableScope<?>[] scopes)
+		{
+			this.fm = fm;
+			this.scopes = scopes;
+			requiresBoxed = new boolean[scopes.length];
+		}
+
+		int size()
+		{
+			return scopes.length;
+		}
+
+		boolean requiresBoxed(int row)
+		{
+			return requiresBoxed[row];
+		}
+
+		boolean anyRequiresBoxed()
+		{
+			return anyRequiresBoxed;
+		}
+
+		void setRequiresBoxed(int row)
+		{
+			requiresBoxed[row] = true;
+			anyRequiresBoxed = true;
+		}
+
+		Object[] evaluateBoxed(Node node)
+		{
+			if (boxedVisitor == null)
+			{
+				boxedVisitor = new BatchEvaluateVisitor(fm, scopes);
+			}
+			Object[] column = new Object[scopes.length];
+			boxedVisitor.evaluate(node, column);
+			return column;
+		}
+
+		/**
+		 * Returns the value of the given variable for each row (as with
+		 * EvaluateVisitor). The legality of the variable is determined once
+		 * for each ScopedNamespaceDefinition (rather than for each row).
+		 */
+		Object[] getValues(String varName)
+		{
+			VariableLibrary varLib = fm.getFactory();
+			VariableStore resolver = fm.getResolver();
+			Object[] values = new Object[scopes.length];
+			ScopedNamespaceDefinition<?> checkedDef = null;
+			boolean isLegal = false;
+			for (int row = 0; row < scopes.length; row++)
+			{
+				VariableScope<?> scope = scopes[row];
+				ScopedNamespaceDefinition<?> snDef = scope.getScopeDefinition();
+				if (snDef != checkedDef)
+				{
+					isLegal = varLib.isLegalVariableID(snDef, varName);
+					checkedDef = snDef;
+				}
+				Object value =
+						isLegal ? resolver.get(varLib.getVariableID(scope,
+							varName)) : null;
+				if (value == null)
+				{
+					value = VisitorUtilities.getInvalidVariableValue(varName);
+				}
+				values[row] = value;
+			}
+			return values;
+		}
+
+		/**
+		 * Loads the given (boxed) values into a NumericColumn (as with
+		 * NumericRegister.load).
+		 */
+		NumericColumn loadNumbers(Object[] values)
+		{
+			NumericColumn column = NumericColumn.mixed(values.length);
+			for (int row = 0; row < values.length; row++)
+			{
+				Object o = values[row];
+				if (o instanceof Integer)
+				{
+					column.setInteger(row, ((Integer) o).intValue());
+				}
+				else if (o instanceof Double)
+				{
+					column.setDouble(row, ((Double) o).doubleValue());
+				}
+				else
+				{
+					setRequiresBoxed(row);
+					//Continue with a value that can't throw an exception
+					column.setDouble(row,
+						(o instanceof Number) ? ((Number) o).doubleValue()
+							: Double.NaN);
+				}
+			}
+			return column.finish();
+		}
+
+		/**
+		 * Loads the given (boxed) values into a boolean column (as with
+		 * NumericRegister.loadBoolean).
+		 */
+		boolean[] loadBooleans(Object[] values)
+		{
+			boolean[] column = new boolean[values.length];
+			for (int row = 0; row < values.length; row++)
+			{
+				Object o = values[row];
+				if (o instanceof Boolean)
+				{
+					column[row] = ((Boolean) o).booleanValue();
+				}
+				else
+				{
+					setRequiresBoxed(row);
+				}
+			}
+			return column;
+		}
+	}
+
+	/**
+	 * Evaluates a node that produces a Number for every row of a Batch.
+	 */
+	abstract static class NumericKernel
+	{
+		abstract NumericColumn evaluate(Batch batch);
+	}
+
+	/**
+	 * Evaluates a node that produces a Boolean for every row of a Batch.
+	 */
+	abstract static class BooleanKernel
+	{
+		abstract boolean[] test(Batch batch);
+	}
+
+	private static class Constant extends NumericKernel
+	{
+		private final Number value;
+
+		Constant(Number value)
+		{
+			this.value = value;
+		}
+
+		@Override
+		NumericColumn evaluate(Batch batch)
+		{
+			if (value instanceof Integer)
+			{
+				int[] ints = new int[batch.size()];
+				Arrays.fill(ints, value.intValue());
+				return NumericColumn.ofIntegers(ints);
+			}
+			double[] doubles = new double[batch.size()];
+			Arrays.fill(doubles, value.doubleValue());
+			return NumericColumn.ofDoubles(doubles);
+		}
+	}
+
+	private static class NumericVariable extends NumericKernel
+	{
+		private final String varName;
+
+		NumericVariable(String varName)
+		{
+			this.varName = varName;
+		}
+
+		@Override
+		NumericColumn evaluate(Batch batch)
+		{
+			return batch.loadNumbers(batch.getValues(varName));
+		}
+	}
+
+	private static class BoxedNumber extends NumericKernel
+	{
+		private final Node node;
+
+		BoxedNumber(Node node)
+		{
+			this.node = node;
+		}
+
+		@Override
+		NumericColumn evaluate(Batch batch)
+		{
+			return batch.loadNumbers(batch.evaluateBoxed(node));
+		}
+	}
+
+	/**
+	 * Base class for the arithmetic Operators, which (as with the
+	 * OperatorActions provided with the formula library) produce an int if
+	 * both arguments are ints and otherwise operate on doubles. If every row of
+	 * both arguments is an int (or if every row of either argument is a
+	 * double), the rows are processed in a single loop over the primitive
+	 * arrays.
+	 */
+	private abstract static class Arithmetic extends NumericKernel
+	{
+		private final NumericKernel left;
+		private final NumericKernel right;
+
+		Arithmetic(NumericKernel left, NumericKernel right)
+		{
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		final NumericColumn evaluate(Batch batch)
+		{
+			NumericColumn l = left.evaluate(batch);
+			NumericColumn r = right.evaluate(batch);
+			if ((l.kind == NumericColumn.INTEGER)
+				&& (r.kind == NumericColumn.INTEGER))
+			{
+				return evaluate(l.ints, r.ints);
+			}
+			if ((l.kind == NumericColumn.DOUBLE)
+				|| (r.kind == NumericColumn.DOUBLE))
+			{
+				return evaluate(l.doubles, r.doubles);
+			}
+			int size = batch.size();
+			NumericColumn result = NumericColumn.mixed(size);
+			for (int row = 0; row < size; row++)
+			{
+				if (l.isInteger(row) && r.isInteger(row))
+				{
+					evaluate(l.ints[row], r.ints[row], result, row);
+				}
+				else
+				{
+					evaluate(l.doubles[row], r.doubles[row], result, row);
+				}
+			}
+			return result.finish();
+		}
+
+		/**
+		 * Processes every row where both arguments are ints.
+		 */
+		NumericColumn evaluate(int[] l, int[] r)
+		{
+			NumericColumn result = NumericColumn.mixed(l.length);
+			for (int row = 0; row < l.length; row++)
+			{
+				evaluate(l[row], r[row], result, row);
+			}
+			return result.finish();
+		}
+
+		/**
+		 * Processes every row where either argument is a double.
+		 */
+		NumericColumn evaluate(double[] l, double[] r)
+		{
+			NumericColumn result = NumericColumn.mixed(l.length);
+			for (int row = 0; row < l.length; row++)
+			{
+				evaluate(l[row], r[row], result, row);
+			}
+			return result.finish();
+		}
+
+		abstract void evaluate(int l, int r, NumericColumn result, int row);
+
+		abstract void evaluate(double l, double r, NumericColumn result,
+			int row);
+	}
+
+	/**
+	 * Equivalent to NumberAdd.
+	 */
+	private static class Add extends Arithmetic
+	{
+		Add(NumericKernel left, NumericKernel right)
+		{
+			super(left, right);
+		}
+
+		@Override
+		NumericColumn evaluate(int[] l, int[] r)
+		{
+			int[] result = new int[l.length];
+			for (int row = 0; row < result.length; row++)
+			{
+				result[row] = l[row] + r[row];
+			}
+			return NumericColumn.ofIntegers(result);
+		}
+
+		@Override
+		NumericColumn evaluate(double[] l, double[] r)
+		{
+			double[] result = new double[l.length];
+			for (int row = 0; row < result.length; row++)
+			{
+				result[row] = l[row] + r[row];
+			}
+			return NumericColumn.ofDoubles(result);
+		}
+
+		@Override
+		void evaluate(int l, int r, NumericColumn result, int row)
+		{
+			result.setInteger(row, l + r);
+		}
+
+		@Override
+		void evaluate(double l, double r, NumericColumn result, int row)
+		{
+			result.setDouble(row, l + r);
+		}
+	}
+
+	/**
+	 * Equivalent to NumberSubtract.
+	 */
+	private static class Subtract extends Arithmetic
+	{
+		Subtract(NumericKernel left, NumericKernel right)
+		{
+			super(left, right);
+		}
+
+		@Override
+		NumericColumn evaluate(int[] l, int[] r)
+		{
+			int[] result = new int[l.length];
+			for (int row = 0; row < result.length; row++)
+			{
+				result[row] = l[row] - r[row];
+			}
+			return NumericColumn.ofIntegers(result);
+		}
+
+		@Override
+		NumericColumn evaluate(double[] l, double[] r)
+		{
+			double[] result = new double[l.length];
+			for (int row = 0; row < result.length; row++)
+			{
+				result[row] = l[row] - r[row];
+			}
+			return NumericColumn.ofDoubles(result);
+		}
+
+		@Override
+		void evaluate(int l, int r, NumericColumn result, int row)
+		{
+			result.setInteger(row, l - r);
+		}
+
+		@Override
+		void evaluate(double l, double r, NumericColumn result, int row)
+		{
+			result.setDouble(row, l - r);
+		}
+	}
+
+	/**
+	 * Equivalent to NumberMultiply (including producing an Integer zero if
+	 * either argument is zero).
+	 */
+	private static class Multiply extends Arithmetic
+	{
+		Multiply(NumericKernel left, NumericKernel right)
+		{
+			super(left, right);
+		}
+
+		@Override
+		NumericColumn evaluate(int[] l, int[] r)
+		{
+			int[] result = new int[l.length];
+			for (int row = 0; row < result.length; row++)
+			{
+				result[row] = l[row] * r[row];
+			}
+			return NumericColumn.ofIntegers(result);
+		}
+
+		@Override
+		NumericColumn evaluate(double[] l, double[] r)
+		{
+			double[] result = new double[l.length];
+			boolean hasZero = false;
+			for (int row = 0; row < result.length; row++)
+			{
+				result[row] = l[row] * r[row];
+				hasZero |= (l[row] == 0.0d) | (r[row] == 0.0d);
+			}
+			if (hasZero)
+			{
+				//Rare: fall back to processing each row
+				return super.evaluate(l, r);
+			}
+			return NumericColumn.ofDoubles(result);
+		}
+
+		@Override
+		void evaluate(int l, int r, NumericColumn result, int row)
+		{
+			result.setInteger(row, l * r);
+		}
+
+		@Override
+		void evaluate(double l, double r, NumericColumn result, int row)
+		{
+			//Special case
+			if ((l == 0.0d) || (r == 0.0d))
+			{
+				result.setInteger(row, 0);
+			}
+			else
+			{
+				result.setDouble(row, l * r);
+			}
+		}
+	}
+
+	/**
+	 * Equivalent to NumberDivide (including producing an Integer only if the
+	 * division of two ints is exact).
+	 */
+	private static class Divide extends Arithmetic
+	{
+		Divide(NumericKernel left, NumericKernel right)
+		{
+			super(left, right);
+		}
+
+		@Override
+		NumericColumn evaluate(double[] l, double[] r)
+		{
+			double[] result = new double[l.length];
+			for (int row = 0; row < result.length; row++)
+			{
+				result[row] = l[row] / r[row];
+			}
+			return NumericColumn.ofDoubles(result);
+		}
+
+		@Override
+		void evaluate(int l, int r, NumericColumn result, int row)
+		{
+			if ((l % r) == 0)
+			{
+				result.setInteger(row, l / r);
+			}
+			else
+			{
+				result.setDouble(row, ((double) l) / r);
+			}
+		}
+
+		@Override
+		void evaluate(double l, double r, NumericColumn result, int row)
+		{
+			result.setDouble(row, l / r);
+		}
+	}
+
+	/**
+	 * Equivalent to NumberRemainder.
+	 */
+	private static class Remainder extends Arithmetic
+	{
+		Remainder(NumericKernel left, NumericKernel right)
+		{
+			super(left, right);
+		}
+
+		@Override
+		NumericColumn evaluate(int[] l, int[] r)
+		{
+			int[] result = new int[l.length];
+			for (int row = 0; row < result.length; row++)
+			{
+				result[row] = l[row] % r[row];
+			}
+			return NumericColumn.ofIntegers(result);
+		}
+
+		@Override
+		NumericColumn evaluate(double[] l, double[] r)
+		{
+			double[] result = new double[l.length];
+			for (int row = 0; row < result.length; row++)
+			{
+				result[row] = l[row] % r[row];
+			}
+			return NumericColumn.ofDoubles(result);
+		}
+
+		@Override
+		void evaluate(int l, int r, NumericColumn result, int row)
+		{
+			result.setInteger(row, l % r);
+		}
+
+		@Override
+		void evaluate(double l, double r, NumericColumn result, int row)
+		{
+			result.setDouble(row, l % r);
+		}
+	}
+
+	/**
+	 * Base class for the single argument nodes that produce an int from an int
+	 * and a double from a double.
+	 */
+	private abstract static class Unary extends NumericKernel
+	{
+		private final NumericKernel arg;
+
+		Unary(NumericKernel arg)
+		{
+			this.arg = arg;
+		}
+
+		@Override
+		final NumericColumn evaluate(Batch batch)
+		{
+			NumericColumn column = arg.evaluate(batch);
+			int size = batch.size();
+			if (column.kind == NumericColumn.INTEGER)
+			{
+				int[] result = new int[size];
+				for (int row = 0; row < size; row++)
+				{
+					result[row] = evaluate(column.ints[row]);
+				}
+				return NumericColumn.ofIntegers(result);
+			}
+			if (column.kind == NumericColumn.DOUBLE)
+			{
+				double[] result = new double[size];
+				for (int row = 0; row < size; row++)
+				{
+					result[row] = evaluate(column.doubles[row]);
+				}
+				return NumericColumn.ofDoubles(result);
+			}
+			NumericColumn result = NumericColumn.mixed(size);
+			for (int row = 0; row < size; row++)
+			{
+				if (column.isInteger[row])
+				{
+					result.setInteger(row, evaluate(column.ints[row]));
+				}
+				else
+				{
+					result.setDouble(row, evaluate(column.doubles[row]));
+				}
+			}
+			return result.finish();
+		}
+
+		abstract int evaluate(int i);
+
+		abstract double evaluate(double d);
+	}
+
+	private static class Negate extends Unary
+	{
+		Negate(NumericKernel arg)
+		{
+			super(arg);
+		}
+
+		@Override
+		int evaluate(int i)
+		{
+			return -i;
+		}
+
+		@Override
+		double evaluate(double d)
+		{
+			return -d;
+		}
+	}
+
+	/**
+	 * Equivalent to AbsFunction.
+	 */
+	private static class Abs extends Unary
+	{
+		Abs(NumericKernel arg)
+		{
+			super(arg);
+		}
+
+		@Override
+		int evaluate(int i)
+		{
+			return Math.abs(i);
+		}
+
+		@Override
+		double evaluate(double d)
+		{
+			return Math.abs(d);
+		}
+	}
+
+	/**
+	 * Base class for the Functions that produce an int from a double (and
+	 * leave an int unchanged).
+	 */
+	private abstract static class Rounding extends NumericKernel
+	{
+		private final NumericKernel arg;
+
+		Rounding(NumericKernel arg)
+		{
+			this.arg = arg;
+		}
+
+		@Override
+		final NumericColumn evaluate(Batch batch)
+		{
+			NumericColumn column = arg.evaluate(batch);
+			if (column.kind == NumericColumn.INTEGER)
+			{
+				return column;
+			}
+			int size = batch.size();
+			int[] result = new int[size];
+			for (int row = 0; row < size; row++)
+			{
+				result[row] =
+						column.isInteger(row) ? column.ints[row]
+							: evaluate(column.doubles[row]);
+			}
+			return NumericColumn.ofIntegers(result);
+		}
+
+		abstract int evaluate(double d);
+	}
+
+	/**
+	 * Equivalent to CeilFunction.
+	 */
+	private static class Ceil extends Rounding
+	{
+		Ceil(NumericKernel arg)
+		{
+			super(arg);
+		}
+
+		@Override
+		int evaluate(double d)
+		{
+			return (int) Math.ceil(d);
+		}
+	}
+
+	/**
+	 * Equivalent to FloorFunction.
+	 */
+	private static class Floor extends Rounding
+	{
+		Floor(NumericKernel arg)
+		{
+			super(arg);
+		}
+
+		@Override
+		int evaluate(double d)
+		{
+			return (int) Math.floor(d);
+		}
+	}
+
+	/**
+	 * Equivalent to RoundFunction.
+	 */
+	private static class Round extends Rounding
+	{
+		Round(NumericKernel arg)
+		{
+			super(arg);
+		}
+
+		@Override
+		int evaluate(double d)
+		{
+			return (int) Math.round(d);
+		}
+	}
+
+	/**
+	 * Equivalent to ASTExpon in EvaluateVisitor (X^Y^Z == X^(Y*Z)).
+	 */
+	private static class Exponent extends NumericKernel
+	{
+		private final NumericKernel[] children;
+
+		Exponent(NumericKernel[] children)
+		{
+			this.children = children;
+		}
+
+		@Override
+		NumericColumn evaluate(Batch batch)
+		{
+			double[] base = children[0].evaluate(batch).doubles;
+			double[] exponent = children[1].evaluate(batch).doubles.clone();
+			int size = batch.size();
+			for (int i = 2; i < children.length; i++)
+			{
+				double[] next = children[i].evaluate(batch).doubles;
+				for (int row = 0; row < size; row++)
+				{
+					exponent[row] *= next[row];
+				}
+			}
+			double[] result = new double[size];
+			for (int row = 0; row < size; row++)
+			{
+				result[row] = VisitorUtilities.power(base[row], exponent[row]);
+			}
+			return NumericColumn.ofDoubles(result);
+		}
+	}
+
+	/**
+	 * Equivalent to MaxFunction (if max is true) or MinFunction. As with
+	 * those Functions, MAX keeps the later argument if two arguments are
+	 * equal, while MIN keeps the earlier argument.
+	 */
+	private static class Extreme extends NumericKernel
+	{
+		private final NumericKernel[] args;
+		private final boolean max;
+
+		Extreme(NumericKernel[] args, boolean max)
+		{
+			this.args = args;
+			this.max = max;
+		}
+
+		@Override
+		NumericColumn evaluate(Batch batch)
+		{
+			int size = batch.size();
+			NumericColumn result = NumericColumn.mixed(size);
+			load(result, args[0].evaluate(batch), null);
+			for (int i = 1; i < args.length; i++)
+			{
+				NumericColumn column = args[i].evaluate(batch);
+				boolean[] replace = new boolean[size];
+				for (int row = 0; row < size; row++)
+				{
+					double current = result.doubles[row];
+					double next = column.doubles[row];
+					replace[row] = max ? !(current > next) : (current > next);
+				}
+				load(result, column, replace);
+			}
+			return result.finish();
+		}
+
+		private static void load(NumericColumn result, NumericColumn column,
+			boolean[] replace)
+		{
+			for (int row = 0; row < result.doubles.length; row++)
+			{
+				if ((replace == null) || replace[row])
+				{
+					if (column.isInteger(row))
+					{
+						result.setInteger(row, column.ints[row]);
+					}
+					else
+					{
+						result.setDouble(row, column.doubles[row]);
+					}
+				}
+			}
+		}
+	}
+
+	private static class BooleanVariable extends BooleanKernel
+	{
+		private final String varName;
+
+		BooleanVariable(String varName)
+		{
+			this.varName = varName;
+		}
+
+		@Override
+		boolean[] test(Batch batch)
+		{
+			return batch.loadBooleans(batch.getValues(varName));
+		}
+	}
+
+	private static class BoxedBoolean extends BooleanKernel
+	{
+		private final Node node;
+
+		BoxedBoolean(Node node)
+		{
+			this.node = node;
+		}
+
+		@Override
+		boolean[] test(Batch batch)
+		{
+			return batch.loadBooleans(batch.evaluateBoxed(node));
+		}
+	}
+
+	/**
+	 * Equivalent to the numeric comparison OperatorActions (e.g.
+	 * NumberLessThan), which compare the values as doubles. Each Operator has
+	 * its own loop, so that no decision is made for each row.
+	 */
+	private static class Comparison extends BooleanKernel
+	{
+		private final Operator op;
+		private final NumericKernel left;
+		private final NumericKernel right;
+
+		Comparison(Operator op, NumericKernel left, NumericKernel right)
+		{
+			this.op = op;
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		boolean[] test(Batch batch)
+		{
+			double[] l = left.evaluate(batch).doubles;
+			double[] r = right.evaluate(batch).doubles;
+			boolean[] result = new boolean[batch.size()];
+			switch (op)
+			{
+				case EQ:
+					for (int row = 0; row < result.length; row++)
+					{
+						result[row] = l[row] == r[row];
+					}
+					break;
+				case NEQ:
+					for (int row = 0; row < result.length; row++)
+					{
+						result[row] = l[row] != r[row];
+					}
+					break;
+				case LT:
+					for (int row = 0; row < result.length; row++)
+					{
+						result[row] = l[row] < r[row];
+					}
+					break;
+				case LE:
+					for (int row = 0; row < result.length; row++)
+					{
+						result[row] = l[row] <= r[row];
+					}
+					break;
+				case GT:
+					for (int row = 0; row < result.length; row++)
+					{
+						result[row] = l[row] > r[row];
+					}
+					break;
+				case GE:
+					for (int row = 0; row < result.length; row++)
+					{
+						result[row] = l[row] >= r[row];
+					}
+					break;
+				default:
+					throw new IllegalStateException(op
+						+ " is not a comparison");
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Equivalent to the Boolean OperatorActions (e.g. BooleanAnd). Both
+	 * arguments are evaluated for every row, so this is only used for a
+	 * short-circuiting Operator if evaluating the second argument cannot fail.
+	 */
+	private static class Logical extends BooleanKernel
+	{
+		private final Operator op;
+		private final BooleanKernel left;
+		private final BooleanKernel right;
+
+		Logical(Operator op, BooleanKernel left, BooleanKernel right)
+		{
+			this.op = op;
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		boolean[] test(Batch batch)
+		{
+			boolean[] l = left.test(batch);
+			boolean[] r = right.test(batch);
+			boolean[] result = new boolean[batch.size()];
+			switch (op)
+			{
+				case AND:
+					for (int row = 0; row < result.length; row++)
+					{
+						result[row] = l[row] & r[row];
+					}
+					break;
+				case OR:
+					for (int row = 0; row < result.length; row++)
+					{
+						result[row] = l[row] | r[row];
+					}
+					break;
+				case EQ:
+					for (int row = 0; row < result.length; row++)
+					{
+						result[row] = l[row] == r[row];
+					}
+					break;
+				case NEQ:
+					for (int row = 0; row < result.length; row++)
+					{
+						result[row] = l[row] != r[row];
+					}
+					break;
+				default:
+					throw new IllegalStateException(op
+						+ " is not a logical operator");
+			}
+			return result;
+		}
+	}
+}
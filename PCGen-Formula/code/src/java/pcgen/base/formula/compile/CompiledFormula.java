@@ -0,0 +1,50 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.compile;
+
+import pcgen.base.formula.manager.ScopeInformation;
+
+/**
+ * A CompiledFormula is a formula that has been converted from the tree of
+ * objects produced by the parser into a form that can be directly evaluated.
+ * 
+ * Any information that can be resolved once (such as the Function to be called
+ * for a given function name, or the value of a numeric constant) has been
+ * resolved when the CompiledFormula was built. Information that depends on the
+ * context of the evaluation (such as the value of a variable) is resolved from
+ * the ScopeInformation provided to the evaluate method.
+ */
+public interface CompiledFormula
+{
+
+	/**
+	 * Evaluates the CompiledFormula in the context of the given
+	 * ScopeInformation.
+	 * 
+	 * The result will be identical to the result of EvaluateVisitor when
+	 * processing the tree from which this CompiledFormula was built, with the
+	 * same ScopeInformation.
+	 * 
+	 * @param si
+	 *            The ScopeInformation providing the context in which the
+	 *            CompiledFormula is to be evaluated
+	 * @return The result of evaluating the CompiledFormula
+	 */
+	public Object evaluate(ScopeInformation si);
+
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.compile;
+
+import pcgen.base.formula.function.Function;
+import pcgen.base.formula.manager.FunctionBinding;
+import pcgen.base.formula.manager.ScopeInformation;
+import pcgen.base.formula.manager.VariableBinding;
+import pcgen.base.formula.parse.Node;
+import pcgen.base.formula.visitor.VisitorUtilities;
+
+/**
+ * CompiledFormulaSupport contains the runtime behavior called by compiled
+ * formulas.
+ * 
+ * Each method in this class mirrors the behavior of EvaluateVisitor (or of one
+ * of the built-in Functions) for a single type of node, so that a compiled
+ * formula produces results identical to those of EvaluateVisitor. If the
+ * behavior of EvaluateVisitor or of a built-in Function is changed, the
+ * matching method in this class must also be changed.
+ * 
+ * This class is public only because it must be accessible to classes generated
+ * by BytecodeFormulaCompiler. It is not intended for use outside of compiled
+ * formulas.
+ */
+public final class CompiledFormulaSupport
+{
+
+	private CompiledFormulaSupport()
+	{
+		//Do not instantiate Utility class
+	}
+
+	/**
+	 * Returns the negation of the given Number (as with ASTUnary in
+	 * EvaluateVisitor).
+	 * 
+	 * @param n
+	 *            The Number to be negated
+	 * @return The negation of the given Number
+	 */
+	public static Number negate(Number n)
+	{
+		if (n instanceof Integer)
+		{
+			return Integer.valueOf(-((Integer) n).intValue());
+		}
+		return Double.valueOf(-n.doubleValue());
+	}
+
+	/**
+	 * Returns the combined exponent for an exponent with more than 2 children
+	 * (as with ASTExpon in EvaluateVisitor, X^Y^Z == X^(Y*Z)).
+	 * 
+	 * @param exponent
+	 *            The exponent calculated so far
+	 * @param n
+	 *            The next exponent in the ASTExpon node
+	 * @return The combined exponent
+	 */
+	public static Number multiplyExponent(Number exponent, Number n)
+	{
+		return Double.valueOf(exponent.doubleValue() * n.doubleValue());
+	}
+
+	/**
+	 * Returns the base raised to the power of the exponent (as with ASTExpon
+	 * in EvaluateVisitor).
+	 * 
+	 * @param base
+	 *            The base of the exponential
+	 * @param exponent
+	 *            The exponent of the exponential
+	 * @return The base raised to the power of the exponent
+	 */
+	public static Double power(Number base, Number exponent)
+	{
+		return VisitorUtilities.power(base.doubleValue(),
+			exponent.doubleValue());
+	}
+
+	/**
+	 * Returns the absolute value of the given Number (as with AbsFunction).
+	 * 
+	 * @param n
+	 *            The Number for which the absolute value should be returned
+	 * @return The absolute value of the given Number
+	 */
+	public static Number abs(Number n)
+	{
+		if (n instanceof Integer)
+		{
+			return Integer.valueOf(Math.abs(((Integer) n).intValue()));
+		}
+		return Double.valueOf(Math.abs(n.doubleValue()));
+	}
+
+	/**
+	 * Returns the ceiling of the given Number (as with CeilFunction).
+	 * 
+	 * @param n
+	 *            The Number for which the ceiling should be returned
+	 * @return The ceiling of the given Number
+	 */
+	public static Number ceil(Number n)
+	{
+		if (n instanceof Integer)
+		{
+			return n;
+		}
+		return Integer.valueOf((int) Math.ceil(n.doubleValue()));
+	}
+
+	/**
+	 * Returns the floor of the given Number (as with FloorFunction).
+	 * 
+	 * @param n
+	 *            The Number for which the floor should be returned
+	 * @return The floor of the given Number
+	 */
+	public static Number floor(Number n)
+	{
+		if (n instanceof Integer)
+		{
+			return n;
+		}
+		return Integer.valueOf((int) Math.floor(n.doubleValue()));
+	}
+
+	/**
+	 * Returns the rounded value of the given Number (as with RoundFunction).
+	 * 
+	 * @param n
+	 *            The Number to be rounded
+	 * @return The rounded value of the given Number
+	 */
+	public static Number round(Number n)
+	{
+		if (n instanceof Integer)
+		{
+			return n;
+		}
+		return Integer.valueOf((int) Math.round(n.doubleValue()));
+	}
+
+	/**
+	 * Returns the larger of the two given Numbers (as with MaxFunction).
+	 * 
+	 * @param n1
+	 *            The first Number to be compared
+	 * @param n2
+	 *            The second Number to be compared
+	 * @return The larger of the two given Numbers
+	 */
+	public static Number max(Number n1, Number n2)
+	{
+		return (n1.doubleValue() > n2.doubleValue()) ? n1 : n2;
+	}
+
+	/**
+	 * Returns the smaller of the two given Numbers (as with MinFunction).
+	 * 
+	 * @param n1
+	 *            The first Number to be compared
+	 * @param n2
+	 *            The second Number to be compared
+	 * @return The smaller of the two given Numbers
+	 */
+	public static Number min(Number n1, Number n2)
+	{
+		return (n1.doubleValue() > n2.doubleValue()) ? n2 : n1;
+	}
+
+	/**
+	 * Returns the value of the variable for the given VariableBinding, in the
+	 * context of the given ScopeInformation (as with ASTPCGenSingleWord in
+	 * EvaluateVisitor).
+	 * 
+	 * @param si
+	 *            The ScopeInformation providing the context in which the
+	 *            variable is to be resolved
+	 * @param binding
+	 *            The VariableBinding for the variable to be resolved
+	 * @return The value of the variable for the given VariableBinding
+	 */
+	public static Object getVariable(ScopeInformation si,
+		VariableBinding binding)
+	{
+		Object value = binding.getValue(si.getFormulaManager(), si.getScope());
+		if (value != null)
+		{
+			return value;
+		}
+		return VisitorUtilities.getInvalidVariableValue(binding
+			.getVariableName());
+	}
+
+	/**
+	 * Evaluates the given Function with the given arguments, in the context of
+	 * the given ScopeInformation (as with ASTPCGenLookup in EvaluateVisitor).
+	 * 
+	 * The given arguments are held by the compiled formula, so the Function is
+	 * given a copy of them unless it is a ReadOnlyArgumentsFunction (see
+	 * FunctionBinding.getArguments(Function, Node[])).
+	 * 
+	 * @param function
+	 *            The Function to be evaluated
+	 * @param si
+	 *            The ScopeInformation providing the context in which the
+	 *            Function is to be evaluated
+	 * @param args
+	 *            The arguments to the Function
+	 * @return The result of evaluating the Function
+	 */
+	public static Object evaluateFunction(Function function,
+		ScopeInformation si, Node[] args)
+	{
+		return function.evaluate(si.getEvaluateVisitor(),
+			FunctionBinding.getArguments(function, args));
+	}
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.compile;
+
+import pcgen.base.formula.manager.FormulaManager;
+import pcgen.base.formula.parse.SimpleNode;
+
+/**
+ * A FormulaCompiler converts the tree of objects representing a formula into a
+ * CompiledFormula.
+ * 
+ * The CompiledFormula returned by a FormulaCompiler is bound to the
+ * FormulaManager provided at compile time (specifically to the Functions and
+ * Operators available in that FormulaManager). It should only be evaluated
+ * with a ScopeInformation that uses the same FormulaManager.
+ */
+public interface FormulaCompiler
+{
+
+	/**
+	 * Compiles the formula represented by the tree starting with the given
+	 * root node, using the given FormulaManager to resolve the Functions and
+	 * Operators within the formula.
+	 * 
+	 * The given tree is not modified by the FormulaCompiler.
+	 * 
+	 * @param fm
+	 *            The FormulaManager used to resolve the Functions and
+	 *            Operators within the formula
+	 * @param root
+	 *            The root node of the tree representing the formula
+	 * @return A CompiledFormula that will produce the same result as
+	 *         EvaluateVisitor for the given tree
+	 * @throws IllegalArgumentException
+	 *             if any parameter is null
+	 */
+	public CompiledFormula compile(FormulaManager fm, SimpleNode root);
+
+}
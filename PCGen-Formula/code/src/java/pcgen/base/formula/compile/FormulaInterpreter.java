@@ -0,0 +1,340 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.compile;
+
+import java.util.Arrays;
+
+import pcgen.base.formula.function.Function;
+import pcgen.base.formula.manager.OperatorBinding;
+import pcgen.base.formula.manager.VariableBinding;
+import pcgen.base.formula.manager.ScopeInformation;
+import pcgen.base.formula.parse.Node;
+
+/**
+ * FormulaInterpreter evaluates a StackProgram.
+ * 
+ * This class also defines the opcodes used in a StackProgram. Opcodes marked
+ * as having an operand are followed in the instruction array by a single int.
+ * 
+ * The operand stack is reused for each evaluation on a given thread. Each
+ * evaluation uses the portion of the operand stack above that used by any
+ * evaluation already in progress on the same thread (for example, when a
+ * Function evaluates another formula), so evaluations may be nested.
+ */
+final class FormulaInterpreter
+{
+
+	/**
+	 * Pushes a constant. Operand: the index of the constant.
+	 */
+	static final int CONSTANT = 0;
+
+	/**
+	 * Pushes the value of a variable. Operand: the index of the constant
+	 * containing the VariableBinding.
+	 */
+	static final int VARIABLE = 1;
+
+	/**
+	 * Replaces the top of the stack with its negation.
+	 */
+	static final int NEGATE = 2;
+
+	/**
+	 * Replaces the top two values with the combined exponent (X^Y^Z ==
+	 * X^(Y*Z)).
+	 */
+	static final int EXPONENT_MULTIPLY = 3;
+
+	/**
+	 * Replaces the top two values (base, exponent) with the base raised to the
+	 * power of the exponent.
+	 */
+	static final int POWER = 4;
+
+	/**
+	 * Replaces the top of the stack with its absolute value.
+	 */
+	static final int ABS = 5;
+
+	/**
+	 * Replaces the top of the stack with its ceiling.
+	 */
+	static final int CEIL = 6;
+
+	/**
+	 * Replaces the top of the stack with its floor.
+	 */
+	static final int FLOOR = 7;
+
+	/**
+	 * Replaces the top of the stack with its rounded value.
+	 */
+	static final int ROUND = 8;
+
+	/**
+	 * Replaces the top two values with the larger value.
+	 */
+	static final int MAX = 9;
+
+	/**
+	 * Replaces the top two values with the smaller value.
+	 */
+	static final int MIN = 10;
+
+	/**
+	 * Pops a Boolean, and jumps if it is false. Operand: the jump target.
+	 */
+	static final int JUMP_IF_FALSE = 11;
+
+	/**
+	 * Jumps unconditionally. Operand: the jump target.
+	 */
+	static final int JUMP = 12;
+
+	/**
+	 * Pushes the result of a Function called through the Function interface.
+	 * Operand: the index of the constant containing the Function; the
+	 * following constant contains the arguments (Node[]).
+	 */
+	static final int CALL = 13;
+
+	/**
+	 * Replaces the top of the stack (the left argument of an Operator) with
+	 * the result of the Operator and jumps, if the left argument determines
+	 * the result (see OperatorLibrary.shortCircuit). Operands: the index of
+	 * the constant containing the OperatorBinding, and the jump target.
+	 */
+	static final int SHORT_CIRCUIT = 14;
+
+	/**
+	 * Replaces the top two values with the result of an Operator. Operand:
+	 * the index of the constant containing the OperatorBinding.
+	 */
+	static final int OPERATOR = 15;
+
+	/**
+	 * The operand stack for each thread.
+	 */
+	private static final ThreadLocal<OperandStack> STACK =
+			new ThreadLocal<OperandStack>()
+			{
+				@Override
+				protected OperandStack initialValue()
+				{
+					return new OperandStack();
+				}
+			};
+
+	private FormulaInterpreter()
+	{
+		//Do not instantiate Utility class
+	}
+
+	/**
+	 * Evaluates the given StackProgram in the context of the given
+	 * ScopeInformation.
+	 * 
+	 * @param program
+	 *            The StackProgram to be evaluated
+	 * @param si
+	 *            The ScopeInformation providing the context in which the
+	 *            StackProgram is to be evaluated
+	 * @return The result of evaluating the StackProgram
+	 */
+	static Object execute(StackProgram program, ScopeInformation si)
+	{
+		OperandStack operandStack = STACK.get();
+		int base = operandStack.top;
+		Object[] stack = operandStack.reserve(base + program.getMaxStack());
+		int[] code = program.getCode();
+		Object[] constants = program.getConstants();
+		int sp = base;
+		int pc = 0;
+		try
+		{
+			while (pc < code.length)
+			{
+				int opcode = code[pc++];
+				switch (opcode)
+				{
+					case CONSTANT:
+						stack[sp++] = constants[code[pc++]];
+						break;
+					case VARIABLE:
+						stack[sp++] =
+								CompiledFormulaSupport.getVariable(si,
+									(VariableBinding) constants[code[pc++]]);
+						break;
+					case NEGATE:
+						stack[sp - 1] =
+								CompiledFormulaSupport
+									.negate((Number) stack[sp - 1]);
+						break;
+					case EXPONENT_MULTIPLY:
+						sp--;
+						stack[sp - 1] =
+								CompiledFormulaSupport.multiplyExponent(
+									(Number) stack[sp - 1], (Number) stack[sp]);
+						break;
+					case POWER:
+						sp--;
+						stack[sp - 1] =
+								CompiledFormulaSupport.power(
+									(Number) stack[sp - 1], (Number) stack[sp]);
+						break;
+					case ABS:
+						stack[sp - 1] =
+								CompiledFormulaSupport.abs((Number) stack[sp - 1]);
+						break;
+					case CEIL:
+						stack[sp - 1] =
+								CompiledFormulaSupport
+									.ceil((Number) stack[sp - 1]);
+						break;
+					case FLOOR:
+						stack[sp - 1] =
+								CompiledFormulaSupport
+									.floor((Number) stack[sp - 1]);
+						break;
+					case ROUND:
+						stack[sp - 1] =
+								CompiledFormulaSupport
+									.round((Number) stack[sp - 1]);
+						break;
+					case MAX:
+						sp--;
+						stack[sp - 1] =
+								CompiledFormulaSupport.max(
+									(Number) stack[sp - 1], (Number) stack[sp]);
+						break;
+					case MIN:
+						sp--;
+						stack[sp - 1] =
+								CompiledFormulaSupport.min(
+									(Number) stack[sp - 1], (Number) stack[sp]);
+						break;
+					case JUMP_IF_FALSE:
+						sp--;
+						if (((Boolean) stack[sp]).booleanValue())
+						{
+							pc++;
+						}
+						else
+						{
+							pc = code[pc];
+						}
+						break;
+					case JUMP:
+						pc = code[pc];
+						break;
+					case CALL:
+						int index = code[pc++];
+						//Allow the Function to evaluate other formulas
+						operandStack.top = sp;
+						Object result =
+								CompiledFormulaSupport.evaluateFunction(
+									(Function) constants[index], si,
+									(Node[]) constants[index + 1]);
+						operandStack.top = base;
+						//Nested evaluation may have replaced the array
+						stack = operandStack.values;
+						stack[sp++] = result;
+						break;
+					case SHORT_CIRCUIT:
+						Object shortCircuit =
+								((OperatorBinding) constants[code[pc]])
+									.shortCircuit(stack[sp - 1]);
+						if (shortCircuit == null)
+						{
+							pc += 2;
+						}
+						else
+						{
+							stack[sp - 1] = shortCircuit;
+							pc = code[pc + 1];
+						}
+						break;
+					case OPERATOR:
+						sp--;
+						stack[sp - 1] =
+								((OperatorBinding) constants[code[pc++]])
+									.evaluate(stack[sp - 1], stack[sp]);
+						break;
+					default:
+						throw new IllegalStateException("Invalid opcode: "
+							+ opcode);
+				}
+			}
+			return stack[base];
+		}
+		finally
+		{
+			operandStack.release(base, base + program.getMaxStack());
+		}
+	}
+
+	/**
+	 * The operand stack for a single thread.
+	 */
+	private static final class OperandStack
+	{
+		/**
+		 * The values on the operand stack.
+		 */
+		private Object[] values = new Object[16];
+
+		/**
+		 * The first unused location on the operand stack.
+		 */
+		private int top = 0;
+
+		/**
+		 * Ensures the operand stack has at least the given size, and returns
+		 * the array of values.
+		 * 
+		 * @param size
+		 *            The required size of the operand stack
+		 * @return The array of values on the operand stack
+		 */
+		private Object[] reserve(int size)
+		{
+			if (values.length < size)
+			{
+				values = Arrays.copyOf(values, Math.max(size, values.length * 2));
+			}
+			return values;
+		}
+
+		/**
+		 * Releases the operand stack above the given location, clearing the
+		 * released values so they can be garbage collected.
+		 * 
+		 * @param base
+		 *            The first location of the operand stack to be released
+		 * @param limit
+		 *            The location after the last location of the operand stack
+		 *            that was used
+		 */
+		private void release(int base, int limit)
+		{
+			Arrays.fill(values, base, limit, null);
+			top = base;
+		}
+	}
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.compile;
+
+/**
+ * A NumericColumn holds the values of a numeric node for each row of a batch
+ * while a ColumnarFormula is evaluated. It is the columnar equivalent of a
+ * NumericRegister: each value is either an int (equivalent to an Integer in
+ * EvaluateVisitor) or a double (equivalent to a Double), and the double value
+ * of every row is always valid, even when the value is an int.
+ * 
+ * The kind of a NumericColumn records whether every row is an int (INTEGER),
+ * every row is a double (DOUBLE), or the rows must be checked individually
+ * (MIXED). When the kind is INTEGER or DOUBLE, operations on the column can be
+ * performed in simple loops over the primitive arrays, which the JIT compiler
+ * is able to unroll and vectorize.
+ * 
+ * A NumericColumn is not modified once it has been produced by a node.
+ */
+final class NumericColumn
+{
+
+	/**
+	 * The kind of a NumericColumn where every row is an int.
+	 */
+	static final int INTEGER = 0;
+
+	/**
+	 * The kind of a NumericColumn where every row is a double.
+	 */
+	static final int DOUBLE = 1;
+
+	/**
+	 * The kind of a NumericColumn where each row may be an int or a double.
+	 */
+	static final int MIXED = 2;
+
+	/**
+	 * The kind of this NumericColumn (INTEGER, DOUBLE or MIXED).
+	 */
+	int kind;
+
+	/**
+	 * The int value of each row (null if the kind is DOUBLE; only valid for
+	 * the rows that are ints if the kind is MIXED).
+	 */
+	final int[] ints;
+
+	/**
+	 * The value of each row (as a double, for the rows that are ints).
+	 */
+	final double[] doubles;
+
+	/**
+	 * true for each row that is an int (null unless the kind is MIXED).
+	 */
+	final boolean[] isInteger;
+
+	private NumericColumn(int kind, int[] ints, double[] doubles,
+		boolean[] isInteger)
+	{
+		this.kind = kind;
+		this.ints = ints;
+		this.doubles = doubles;
+		this.isInteger = isInteger;
+	}
+
+	/**
+	 * Returns a NumericColumn where every row is an int. Ownership of the
+	 * given array is transferred to the NumericColumn.
+	 * 
+	 * @param ints
+	 *            The int value of each row
+	 * @return A NumericColumn containing the given int values
+	 */
+	static NumericColumn ofIntegers(int[] ints)
+	{
+		int size = ints.length;
+		double[] doubles = new double[size];
+		for (int i = 0; i < size; i++)
+		{
+			doubles[i] = ints[i];
+		}
+		return new NumericColumn(INTEGER, ints, doubles, null);
+	}
+
+	/**
+	 * Returns a NumericColumn where every row is a double. Ownership of the
+	 * given array is transferred to the NumericColumn.
+	 * 
+	 * @param doubles
+	 *            The double value of each row
+	 * @return A NumericColumn containing the given double values
+	 */
+	static NumericColumn ofDoubles(double[] doubles)
+	{
+		return new NumericColumn(DOUBLE, null, doubles, null);
+	}
+
+	/**
+	 * Returns a MIXED NumericColumn of the given size, to be loaded using
+	 * setInteger and setDouble and then completed with finish().
+	 * 
+	 * @param size
+	 *            The number of rows in the NumericColumn
+	 * @return A MIXED NumericColumn of the given size
+	 */
+	static NumericColumn mixed(int size)
+	{
+		return new NumericColumn(MIXED, new int[size], new double[size],
+			new boolean[size]);
+	}
+
+	/**
+	 * Sets the value of the given row of a MIXED NumericColumn to the given
+	 * int.
+	 * 
+	 * @param row
+	 *            The row to be set
+	 * @param i
+	 *            The new value
+	 */
+	void setInteger(int row, int i)
+	{
+		isInteger[row] = true;
+		ints[row] = i;
+		doubles[row] = i;
+	}
+
+	/**
+	 * Sets the value of the given row of a MIXED NumericColumn to the given
+	 * double.
+	 * 
+	 * @param row
+	 *            The row to be set
+	 * @param d
+	 *            The new value
+	 */
+	void setDouble(int row, double d)
+	{
+		isInteger[row] = false;
+		doubles[row] = d;
+	}
+
+	/**
+	 * Completes the loading of a MIXED NumericColumn, changing the kind to
+	 * INTEGER or DOUBLE if every row has the same type.
+	 * 
+	 * @return This NumericColumn
+	 */
+	NumericColumn finish()
+	{
+		if (kind == MIXED)
+		{
+			int integerCount = 0;
+			for (boolean b : isInteger)
+			{
+				if (b)
+				{
+					integerCount++;
+				}
+			}
+			if (integerCount == isInteger.length)
+			{
+				kind = INTEGER;
+			}
+			else if (integerCount == 0)
+			{
+				kind = DOUBLE;
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Returns true if the given row is an int.
+	 * 
+	 * @param row
+	 *            The row to be checked
+	 * @return true if the given row is an int; false otherwise
+	 */
+	boolean isInteger(int row)
+	{
+		return (kind == INTEGER) || ((kind == MIXED) && isInteger[row]);
+	}
+
+	/**
+	 * Returns the value of the given row as a boxed Number, as it would have
+	 * been produced by EvaluateVisitor.
+	 * 
+	 * @param row
+	 *            The row for which the value should be returned
+	 * @return The value of the given row as a boxed Number
+	 */
+	Number toNumber(int row)
+	{
+		if (isInteger(row))
+		{
+			return Integer.valueOf(ints[row]);
+		}
+		return Double.valueOf(doubles[row]);
+	}
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.compile;
+
+/**
+ * A NumericRegister holds the value of a numeric (or boolean) node while a
+ * formula compiled by PrimitiveFormulaCompiler is evaluated, so that values
+ * passed between nodes are primitives rather than boxed objects.
+ * 
+ * The value of a NumericRegister is an int (equivalent to an Integer in
+ * EvaluateVisitor), a double (equivalent to a Double) or, if the value cannot
+ * be represented as either, a boxed object. doubleValue is always valid when
+ * the value is an int or a double.
+ */
+final class NumericRegister
+{
+
+	/**
+	 * true if the value is an int (equivalent to an Integer in
+	 * EvaluateVisitor).
+	 */
+	boolean isInteger;
+
+	/**
+	 * The value, if isInteger is true.
+	 */
+	int intValue;
+
+	/**
+	 * The value (as a double, if isInteger is true).
+	 */
+	double doubleValue;
+
+	/**
+	 * The value, if it cannot be represented exactly as an int or double (such
+	 * as a Long variable, or a variable of the wrong type); otherwise null. A
+	 * node that receives such a value from a child produces its own value as
+	 * EvaluateVisitor would, using the boxed value.
+	 */
+	Object boxed;
+
+	/**
+	 * Sets the value to the given int.
+	 * 
+	 * @param i
+	 *            The new value
+	 */
+	void setInteger(int i)
+	{
+		isInteger = true;
+		intValue = i;
+		doubleValue = i;
+		boxed = null;
+	}
+
+	/**
+	 * Sets the value to the given double.
+	 * 
+	 * @param d
+	 *            The new value
+	 */
+	void setDouble(double d)
+	{
+		isInteger = false;
+		doubleValue = d;
+		boxed = null;
+	}
+
+	/**
+	 * Sets the value from the given (boxed) object, as produced by a variable
+	 * or a Function.
+	 * 
+	 * @param o
+	 *            The object containing the new value
+	 */
+	void load(Object o)
+	{
+		if (o instanceof Integer)
+		{
+			setInteger(((Integer) o).intValue());
+		}
+		else if (o instanceof Double)
+		{
+			setDouble(((Double) o).doubleValue());
+		}
+		else
+		{
+			isInteger = false;
+			boxed = o;
+		}
+	}
+
+	/**
+	 * Returns the boolean value of the given (boxed) object, as produced by a
+	 * variable or a Function.
+	 * 
+	 * @param o
+	 *            The object containing the boolean value
+	 * @return The boolean value of the given object
+	 */
+	boolean loadBoolean(Object o)
+	{
+		if (o instanceof Boolean)
+		{
+			boxed = null;
+			return ((Boolean) o).booleanValue();
+		}
+		boxed = o;
+		return false;
+	}
+
+	/**
+	 * Returns the value as a double. If the value is boxed, it must be a
+	 * Number (as when EvaluateVisitor or a built-in Function casts the value
+	 * to Number).
+	 * 
+	 * @return The value as a double
+	 * @throws ClassCastException
+	 *             if the value is boxed and is not a Number
+	 */
+	double toDouble()
+	{
+		if (boxed == null)
+		{
+			return doubleValue;
+		}
+		return ((Number) boxed).doubleValue();
+	}
+
+	/**
+	 * Returns the given result of testing a boolean node, which must be a
+	 * Boolean (as when IfFunction casts the value of its condition to
+	 * Boolean).
+	 * 
+	 * @param result
+	 *            The result returned by the boolean node
+	 * @return The given result
+	 * @throws ClassCastException
+	 *             if the value is boxed and is not a Boolean
+	 */
+	boolean toCondition(boolean result)
+	{
+		if (boxed == null)
+		{
+			return result;
+		}
+		return ((Boolean) boxed).booleanValue();
+	}
+
+	/**
+	 * Returns the value of a boolean node as it would have been produced by
+	 * EvaluateVisitor.
+	 * 
+	 * @param result
+	 *            The result returned by the boolean node
+	 * @return The value of the boolean node as a boxed object
+	 */
+	Object toBoolean(boolean result)
+	{
+		if (boxed == null)
+		{
+			return Boolean.valueOf(result);
+		}
+		return boxed;
+	}
+
+	/**
+	 * Returns the value as a boxed object, as it would have been produced by
+	 * EvaluateVisitor.
+	 * 
+	 * @return The value as a boxed object
+	 */
+	Object toNumber()
+	{
+		if (boxed != null)
+		{
+			return boxed;
+		}
+		return box(isInteger, intValue, doubleValue);
+	}
+
+	/**
+	 * Returns the given primitive value as a boxed Number, as it would have
+	 * been produced by EvaluateVisitor.
+	 * 
+	 * @param isInteger
+	 *            true if the value is an int
+	 * @param intValue
+	 *            The value, if isInteger is true
+	 * @param doubleValue
+	 *            The value, if isInteger is false
+	 * @return The value as a boxed Number
+	 */
+	static Number box(boolean isInteger, int intValue, double doubleValue)
+	{
+		if (isInteger)
+		{
+			return Integer.valueOf(intValue);
+		}
+		return Double.valueOf(doubleValue);
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.compile;
+
+import pcgen.base.formula.manager.FormulaManager;
+import pcgen.base.formula.parse.SimpleNode;
+
+/**
+ * A PrimitiveFormulaCompiler is a FormulaCompiler that evaluates numeric
+ * formulas using int and double primitives, boxing only the final result.
+ * 
+ * EvaluateVisitor (and the other FormulaCompilers) pass each intermediate
+ * value as an Integer or Double object. A formula compiled by
+ * PrimitiveFormulaCompiler instead passes values between nodes in a
+ * NumericRegister, which records whether each value is an int or a double so
+ * that the results (including the Integer or Double class of the result) are
+ * identical to EvaluateVisitor.
+ * 
+ * Operators are only evaluated with primitives if the OperatorLibrary uses the
+ * OperatorActions provided with the formula library (e.g. NumberAdd) for
+ * Integer and Double arguments; otherwise (and for Functions other than the
+ * built-in Functions) the value is calculated as with TreeFormulaCompiler and
+ * then unboxed. If a value that is not an Integer, Double or Boolean is
+ * encountered during evaluation (e.g. a variable containing a Long), it is
+ * passed to the parent node boxed, and each node from there to the root
+ * produces its value as EvaluateVisitor would, so the result has the correct
+ * class and no part of the formula is evaluated twice.
+ * 
+ * Formulas that are not known to produce a Number or Boolean (e.g. a formula
+ * that is only a variable) are compiled as with TreeFormulaCompiler.
+ */
+public class PrimitiveFormulaCompiler implements FormulaCompiler
+{
+
+	/**
+	 * Compiles the formula represented by the tree starting with the given
+	 * root node for evaluation with primitives.
+	 * 
+	 * @see pcgen.base.formula.compile.FormulaCompiler#compile(pcgen.base.formula.manager.FormulaManager,
+	 *      pcgen.base.formula.parse.SimpleNode)
+	 */
+	@Override
+	public CompiledFormula compile(FormulaManager fm, SimpleNode root)
+	{
+		if (fm == null)
+		{
+			throw new IllegalArgumentException(
+				"Cannot compile with null FormulaManager");
+		}
+		if (root == null)
+		{
+			throw new IllegalArgumentException("Cannot compile with null root");
+		}
+		CompiledFormula boxed =
+				(CompiledFormula) new TreeGenerationVisitor(fm).visit(root, null);
+		return new PrimitiveGenerationVisitor(fm).compileRoot(root, boxed);
+	}
+
+}
@@ -0,0 +1,1364 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.compile;
+
+import pcgen.base.formula.base.OperatorAction;
+import pcgen.base.formula.function.Function;
+import pcgen.base.formula.manager.FormulaManager;
+import pcgen.base.formula.manager.OperatorBinding;
+import pcgen.base.formula.manager.OperatorActionLibrary;
+import pcgen.base.formula.manager.OperatorLibrary;
+import pcgen.base.formula.manager.ScopeInformation;
+import pcgen.base.formula.manager.VariableBinding;
+import pcgen.base.formula.operator.bool.BooleanAnd;
+import pcgen.base.formula.operator.bool.BooleanEquals;
+import pcgen.base.formula.operator.bool.BooleanNotEqual;
+import pcgen.base.formula.operator.bool.BooleanOr;
+import pcgen.base.formula.operator.number.NumberAdd;
+import pcgen.base.formula.operator.number.NumberDivide;
+import pcgen.base.formula.operator.number.NumberEquals;
+import pcgen.base.formula.operator.number.NumberGreaterThan;
+import pcgen.base.formula.operator.number.NumberGreaterThanOrEqualTo;
+import pcgen.base.formula.operator.number.NumberLessThan;
+import pcgen.base.formula.operator.number.NumberLessThanOrEqualTo;
+import pcgen.base.formula.operator.number.NumberMultiply;
+import pcgen.base.formula.operator.number.NumberNotEqual;
+import pcgen.base.formula.operator.number.NumberRemainder;
+import pcgen.base.formula.operator.number.NumberSubtract;
+import pcgen.base.formula.parse.ASTArithmetic;
+import pcgen.base.formula.parse.ASTEquality;
+import pcgen.base.formula.parse.ASTExpon;
+import pcgen.base.formula.parse.ASTFParen;
+import pcgen.base.formula.parse.ASTGeometric;
+import pcgen.base.formula.parse.ASTLogical;
+import pcgen.base.formula.parse.ASTNum;
+import pcgen.base.formula.parse.ASTPCGenBracket;
+import pcgen.base.formula.parse.ASTPCGenLookup;
+import pcgen.base.formula.parse.ASTPCGenSingleWord;
+import pcgen.base.formula.parse.ASTParen;
+import pcgen.base.formula.parse.ASTQuotString;
+import pcgen.base.formula.parse.ASTRelational;
+import pcgen.base.formula.parse.ASTRoot;
+import pcgen.base.formula.parse.ASTUnary;
+import pcgen.base.formula.parse.FormulaParserVisitor;
+import pcgen.base.formula.parse.Node;
+import pcgen.base.formula.parse.Operator;
+import pcgen.base.formula.parse.SimpleNode;
+import pcgen.base.formula.visitor.VisitorUtilities;
+
+/**
+ * PrimitiveGenerationVisitor visits a tree of objects representing a formula
+ * and builds the objects that evaluate the formula using primitives.
+ * 
+ * The data passed to each visit method is the type of value required by the
+ * parent node: Number.class (in which case a NumericFormula is returned) or
+ * Boolean.class (in which case a BooleanFormula is returned). A node that
+ * cannot be evaluated using primitives in the required context is evaluated as
+ * with TreeFormulaCompiler and the result unboxed.
+ * 
+ * A value that cannot be represented as an int, double or boolean (e.g. a Long
+ * variable) is passed to the parent node boxed (see NumericRegister.boxed),
+ * and the parent node then produces its value as EvaluateVisitor would.
+ */
+@SuppressWarnings("PMD.TooManyMethods")
+class PrimitiveGenerationVisitor implements FormulaParserVisitor
+{
+
+	private static final Class<Number> NUMBER_CLASS = Number.class;
+	private static final Class<Boolean> BOOLEAN_CLASS = Boolean.class;
+
+	/**
+	 * The FormulaManager used to resolve Functions and Operators.
+	 */
+	private final FormulaManager fm;
+
+	/**
+	 * Constructs a new PrimitiveGenerationVisitor with the given
+	 * FormulaManager.
+	 * 
+	 * @param fm
+	 *            The FormulaManager used to resolve Functions and Operators
+	 */
+	PrimitiveGenerationVisitor(FormulaManager fm)
+	{
+		this.fm = fm;
+	}
+
+	/**
+	 * Compiles the formula starting with the given root node.
+	 * 
+	 * @param root
+	 *            The root node of the tree representing the formula
+	 * @param boxed
+	 *            The CompiledFormula for the given root node that evaluates
+	 *            with boxed values, used if the formula is not known to
+	 *            produce a Number or Boolean
+	 * @return The CompiledFormula for the given root node
+	 */
+	CompiledFormula compileRoot(SimpleNode root, CompiledFormula boxed)
+	{
+		Class<?> kind = getKind(root);
+		if (NUMBER_CLASS.equals(kind))
+		{
+			return new NumericRoot(
+				(NumericFormula) root.jjtAccept(this, NUMBER_CLASS));
+		}
+		else if (BOOLEAN_CLASS.equals(kind))
+		{
+			return new BooleanRoot(
+				(BooleanFormula) root.jjtAccept(this, BOOLEAN_CLASS));
+		}
+		return boxed;
+	}
+
+	@Override
+	public Object visit(SimpleNode node, Object data)
+	{
+		//Delegate to the appropriate class
+		return node.jjtAccept(this, data);
+	}
+
+	@Override
+	public Object visit(ASTRoot node, Object data)
+	{
+		return compileSingleChild(node, data);
+	}
+
+	@Override
+	public Object visit(ASTLogical node, Object data)
+	{
+		return compileOperatorNode(node, data);
+	}
+
+	@Override
+	public Object visit(ASTEquality node, Object data)
+	{
+		return compileOperatorNode(node, data);
+	}
+
+	@Override
+	public Object visit(ASTRelational node, Object data)
+	{
+		return compileOperatorNode(node, data);
+	}
+
+	@Override
+	public Object visit(ASTArithmetic node, Object data)
+	{
+		return compileOperatorNode(node, data);
+	}
+
+	@Override
+	public Object visit(ASTGeometric node, Object data)
+	{
+		return compileOperatorNode(node, data);
+	}
+
+	@Override
+	public Object visit(ASTUnary node, Object data)
+	{
+		if (data != NUMBER_CLASS)
+		{
+			return boxed(node, data);
+		}
+		return new Negate((NumericFormula) compileSingleChild(node, data));
+	}
+
+	@Override
+	public Object visit(ASTExpon node, Object data)
+	{
+		if (data != NUMBER_CLASS)
+		{
+			return boxed(node, data);
+		}
+		int childCount = node.jjtGetNumChildren();
+		NumericFormula[] children = new NumericFormula[childCount];
+		for (int i = 0; i < childCount; i++)
+		{
+			children[i] =
+					(NumericFormula) node.jjtGetChild(i).jjtAccept(this, data);
+		}
+		return new Exponent(children);
+	}
+
+	@Override
+	public Object visit(ASTParen node, Object data)
+	{
+		return compileSingleChild(node, data);
+	}
+
+	@Override
+	public Object visit(ASTNum node, Object data)
+	{
+		if (data != NUMBER_CLASS)
+		{
+			return boxed(node, data);
+		}
+		Number n = node.getValue();
+		if (n instanceof Integer)
+		{
+			return new IntegerConstant(n.intValue());
+		}
+		return new DoubleConstant(n.doubleValue());
+	}
+
+	@Override
+	public Object visit(ASTPCGenLookup node, Object data)
+	{
+		Function function = VisitorUtilities.getFunction(fm.getLibrary(), node);
+		if (function == null)
+		{
+			return boxed(node, data);
+		}
+		Node[] args = VisitorUtilities.accumulateArguments(node.jjtGetChild(1));
+		BuiltInFunction bif = BuiltInFunction.identify(function, args.length);
+		if (bif == BuiltInFunction.IF)
+		{
+			BooleanFormula condition =
+					(BooleanFormula) args[0].jjtAccept(this, BOOLEAN_CLASS);
+			if (data == NUMBER_CLASS)
+			{
+				return new NumericIf(condition,
+					(NumericFormula) args[1].jjtAccept(this, data),
+					(NumericFormula) args[2].jjtAccept(this, data));
+			}
+			return new BooleanIf(condition,
+				(BooleanFormula) args[1].jjtAccept(this, data),
+				(BooleanFormula) args[2].jjtAccept(this, data));
+		}
+		if ((bif == null) || (data != NUMBER_CLASS))
+		{
+			return boxed(node, data);
+		}
+		NumericFormula[] compiledArgs = new NumericFormula[args.length];
+		for (int i = 0; i < args.length; i++)
+		{
+			compiledArgs[i] = (NumericFormula) args[i].jjtAccept(this, data);
+		}
+		switch (bif)
+		{
+			case ABS:
+				return new Abs(compiledArgs[0]);
+			case CEIL:
+				return new Ceil(compiledArgs[0]);
+			case FLOOR:
+				return new Floor(compiledArgs[0]);
+			case ROUND:
+				return new Round(compiledArgs[0]);
+			case MAX:
+				return new Max(compiledArgs);
+			case MIN:
+				return new Min(compiledArgs);
+			default:
+				return boxed(node, data);
+		}
+	}
+
+	@Override
+	public Object visit(ASTPCGenSingleWord node, Object data)
+	{
+		if (data == NUMBER_CLASS)
+		{
+			return new NumericVariable(node.getText());
+		}
+		return new BooleanVariable(node.getText());
+	}
+
+	@Override
+	public Object visit(ASTPCGenBracket node, Object data)
+	{
+		//Should be stripped by the function
+		throw new IllegalStateException(
+			"Compile called on invalid Formula (reached Function Brackets)");
+	}
+
+	@Override
+	public Object visit(ASTFParen node, Object data)
+	{
+		//Should be stripped by the function
+		throw new IllegalStateException(
+			"Compile called on invalid Formula (reached Function Parenthesis)");
+	}
+
+	@Override
+	public Object visit(ASTQuotString node, Object data)
+	{
+		//Should be stripped by the function
+		throw new IllegalStateException(
+			"Compile called on invalid Formula (reached Quoted String)");
+	}
+
+	/**
+	 * Compiles an operator node, using primitives if the OperatorActions in
+	 * the OperatorLibrary for the Operator are those provided with the formula
+	 * library.
+	 * 
+	 * @param node
+	 *            The node that contains an Operator and has exactly 2 children
+	 * @param data
+	 *            The type of value required by the parent node
+	 * @return The NumericFormula or BooleanFormula for the given node
+	 */
+	private Object compileOperatorNode(SimpleNode node, Object data)
+	{
+		Operator op = node.getOperator();
+		if ((op == null) || (node.jjtGetNumChildren() != 2))
+		{
+			//Let TreeGenerationVisitor report the error
+			return boxed(node, data);
+		}
+		Node left = node.jjtGetChild(0);
+		Node right = node.jjtGetChild(1);
+		OperatorBinding binding =
+				VisitorUtilities.getOperatorBinding(fm.getOperatorLibrary(),
+					node, op);
+		if (data == NUMBER_CLASS)
+		{
+			if (isNumericAction(op, getNumericAction(op)))
+			{
+				NumericFormula l = (NumericFormula) left.jjtAccept(this, data);
+				NumericFormula r = (NumericFormula) right.jjtAccept(this, data);
+				switch (op)
+				{
+					case ADD:
+						return new Add(binding, l, r);
+					case SUB:
+						return new Subtract(binding, l, r);
+					case MUL:
+						return new Multiply(binding, l, r);
+					case DIV:
+						return new Divide(binding, l, r);
+					case REM:
+						return new Remainder(binding, l, r);
+					default:
+						break;
+				}
+			}
+			return boxed(node, data);
+		}
+		boolean booleanArgs =
+				BOOLEAN_CLASS.equals(getKind(left))
+					|| BOOLEAN_CLASS.equals(getKind(right));
+		if (!booleanArgs && isNumericAction(op, getComparisonAction(op)))
+		{
+			return new Comparison(op, binding,
+				(NumericFormula) left.jjtAccept(this, NUMBER_CLASS),
+				(NumericFormula) right.jjtAccept(this, NUMBER_CLASS));
+		}
+		Class<? extends OperatorAction> expected = getBooleanAction(op);
+		if ((expected != null)
+			&& isAction(op, expected, BOOLEAN_CLASS, BOOLEAN_CLASS))
+		{
+			//Short circuit only where EvaluateVisitor would
+			return new Logical(op, binding, node instanceof ASTLogical,
+				(BooleanFormula) left.jjtAccept(this, data),
+				(BooleanFormula) right.jjtAccept(this, data));
+		}
+		return boxed(node, data);
+	}
+
+	/**
+	 * Compiles the single child of the given node.
+	 * 
+	 * @param node
+	 *            The node for which the (single) child will be compiled
+	 * @param data
+	 *            The type of value required by the parent node
+	 * @return The NumericFormula or BooleanFormula for the child of the given
+	 *         node
+	 */
+	private Object compileSingleChild(Node node, Object data)
+	{
+		if (node.jjtGetNumChildren() != 1)
+		{
+			//Let TreeGenerationVisitor report the error
+			return boxed(node, data);
+		}
+		return node.jjtGetChild(0).jjtAccept(this, data);
+	}
+
+	/**
+	 * Compiles the given node as with TreeFormulaCompiler, with the result
+	 * unboxed.
+	 * 
+	 * @param node
+	 *            The node to be compiled
+	 * @param data
+	 *            The type of value required by the parent node
+	 * @return The NumericFormula or BooleanFormula for the given node
+	 */
+	private Object boxed(Node node, Object data)
+	{
+		CompiledFormula cf =
+				(CompiledFormula) node.jjtAccept(new TreeGenerationVisitor(fm),
+					null);
+		if (data == NUMBER_CLASS)
+		{
+			return new BoxedNumber(cf);
+		}
+		return new BoxedBoolean(cf);
+	}
+
+	/**
+	 * Returns the type of value (Number.class or Boolean.class) that the given
+	 * node is known to produce, or null if the type is not known until the
+	 * formula is evaluated (e.g. a variable).
+	 * 
+	 * @param node
+	 *            The node for which the type of value should be returned
+	 * @return The type of value that the given node is known to produce, or
+	 *         null
+	 */
+	Class<?> getKind(Node node)
+	{
+		if ((node instanceof ASTRoot) || (node instanceof ASTParen))
+		{
+			return (node.jjtGetNumChildren() == 1) ? getKind(node
+				.jjtGetChild(0)) : null;
+		}
+		if ((node instanceof ASTNum) || (node instanceof ASTUnary)
+			|| (node instanceof ASTExpon))
+		{
+			return NUMBER_CLASS;
+		}
+		if ((node instanceof ASTLogical) || (node instanceof ASTEquality)
+			|| (node instanceof ASTRelational))
+		{
+			return BOOLEAN_CLASS;
+		}
+		if ((node instanceof ASTArithmetic) || (node instanceof ASTGeometric))
+		{
+			Operator op = ((SimpleNode) node).getOperator();
+			return ((op != null) && isNumericAction(op, getNumericAction(op)))
+				? NUMBER_CLASS : null;
+		}
+		if (node instanceof ASTPCGenLookup)
+		{
+			Function function =
+					VisitorUtilities.getFunction(fm.getLibrary(),
+						(ASTPCGenLookup) node);
+			if (function == null)
+			{
+				return null;
+			}
+			Node argNode = node.jjtGetChild(1);
+			BuiltInFunction bif =
+					BuiltInFunction.identify(function,
+						argNode.jjtGetNumChildren());
+			if (bif == BuiltInFunction.IF)
+			{
+				return getKind(argNode.jjtGetChild(1));
+			}
+			return (bif == null) ? null : NUMBER_CLASS;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns true if the OperatorLibrary uses an OperatorAction of exactly
+	 * the given class for the given Operator on all combinations of Integer
+	 * and Double arguments.
+	 * 
+	 * @param op
+	 *            The Operator to be checked
+	 * @param expected
+	 *            The class of OperatorAction provided with the formula library
+	 *            for the given Operator (may be null)
+	 * @return true if the OperatorLibrary uses the given class of
+	 *         OperatorAction for Integer and Double arguments; false otherwise
+	 */
+	boolean isNumericAction(Operator op,
+		Class<? extends OperatorAction> expected)
+	{
+		return (expected != null)
+			&& isAction(op, expected, Integer.class, Integer.class)
+			&& isAction(op, expected, Integer.class, Double.class)
+			&& isAction(op, expected, Double.class, Integer.class)
+			&& isAction(op, expected, Double.class, Double.class);
+	}
+
+	/**
+	 * Returns true if EvaluateVisitor would short circuit the given logical
+	 * Operator (see OperatorBinding.shortCircuit).
+	 * 
+	 * @param op
+	 *            The Operator to be checked
+	 * @return true if EvaluateVisitor would short circuit the given Operator;
+	 *         false otherwise
+	 */
+	boolean isShortCircuit(Operator op)
+	{
+		OperatorBinding binding =
+				new OperatorBinding(fm.getOperatorLibrary(), op);
+		return binding.shortCircuit(Boolean.valueOf(op == Operator.OR)) != null;
+	}
+
+	boolean isAction(Operator op,
+		Class<? extends OperatorAction> expected, Class<?> format1,
+		Class<?> format2)
+	{
+		OperatorLibrary opLibrary = fm.getOperatorLibrary();
+		if (!(opLibrary instanceof OperatorActionLibrary))
+		{
+			//The OperatorAction is not known in advance
+			return false;
+		}
+		OperatorAction action =
+				((OperatorActionLibrary) opLibrary).getAction(op, format1,
+					format2);
+		return (action != null) && action.getClass().equals(expected);
+	}
+
+	static Class<? extends OperatorAction> getNumericAction(Operator op)
+	{
+		switch (op)
+		{
+			case ADD:
+				return NumberAdd.class;
+			case SUB:
+				return NumberSubtract.class;
+			case MUL:
+				return NumberMultiply.class;
+			case DIV:
+				return NumberDivide.class;
+			case REM:
+				return NumberRemainder.class;
+			default:
+				return null;
+		}
+	}
+
+	static Class<? extends OperatorAction> getComparisonAction(
+		Operator op)
+	{
+		switch (op)
+		{
+			case EQ:
+				return NumberEquals.class;
+			case NEQ:
+				return NumberNotEqual.class;
+			case LT:
+				return NumberLessThan.class;
+			case LE:
+				return NumberLessThanOrEqualTo.class;
+			case GT:
+				return NumberGreaterThan.class;
+			case GE:
+				return NumberGreaterThanOrEqualTo.class;
+			default:
+				return null;
+		}
+	}
+
+	static Class<? extends OperatorAction> getBooleanAction(Operator op)
+	{
+		switch (op)
+		{
+			case AND:
+				return BooleanAnd.class;
+			case OR:
+				return BooleanOr.class;
+			case EQ:
+				return BooleanEquals.class;
+			case NEQ:
+				return BooleanNotEqual.class;
+			default:
+				return null;
+		}
+	}
+
+	/**
+	 * Evaluates a node that produces a Number, placing the result in the
+	 * given NumericRegister.
+	 */
+	abstract static class NumericFormula
+	{
+		abstract void evaluate(ScopeInformation si, NumericRegister reg);
+	}
+
+	/**
+	 * Evaluates a node that produces a Boolean.
+	 */
+	abstract static class BooleanFormula
+	{
+		abstract boolean test(ScopeInformation si, NumericRegister reg);
+	}
+
+	/**
+	 * The CompiledFormula for a formula that produces a Number.
+	 */
+	private static class NumericRoot implements CompiledFormula
+	{
+		private final NumericFormula root;
+
+		NumericRoot(NumericFormula root)
+		{
+			this.root = root;
+		}
+
+		@Override
+		public Object evaluate(ScopeInformation si)
+		{
+			NumericRegister reg = new NumericRegister();
+			root.evaluate(si, reg);
+			return reg.toNumber();
+		}
+	}
+
+	/**
+	 * The CompiledFormula for a formula that produces a Boolean.
+	 */
+	private static class BooleanRoot implements CompiledFormula
+	{
+		private final BooleanFormula root;
+
+		BooleanRoot(BooleanFormula root)
+		{
+			this.root = root;
+		}
+
+		@Override
+		public Object evaluate(ScopeInformation si)
+		{
+			NumericRegister reg = new NumericRegister();
+			return reg.toBoolean(root.test(si, reg));
+		}
+	}
+
+	private static class IntegerConstant extends NumericFormula
+	{
+		private final int value;
+
+		IntegerConstant(int value)
+		{
+			this.value = value;
+		}
+
+		@Override
+		void evaluate(ScopeInformation si, NumericRegister reg)
+		{
+			reg.setInteger(value);
+		}
+	}
+
+	private static class DoubleConstant extends NumericFormula
+	{
+		private final double value;
+
+		DoubleConstant(double value)
+		{
+			this.value = value;
+		}
+
+		@Override
+		void evaluate(ScopeInformation si, NumericRegister reg)
+		{
+			reg.setDouble(value);
+		}
+	}
+
+	private static class NumericVariable extends NumericFormula
+	{
+		private final VariableBinding binding;
+
+		NumericVariable(String varName)
+		{
+			binding = new VariableBinding(varName);
+		}
+
+		@Override
+		void evaluate(ScopeInformation si, NumericRegister reg)
+		{
+			reg.load(CompiledFormulaSupport.getVariable(si, binding));
+		}
+	}
+
+	private static class BoxedNumber extends NumericFormula
+	{
+		private final CompiledFormula formula;
+
+		BoxedNumber(CompiledFormula formula)
+		{
+			this.formula = formula;
+		}
+
+		@Override
+		void evaluate(ScopeInformation si, NumericRegister reg)
+		{
+			reg.load(formula.evaluate(si));
+		}
+	}
+
+	/**
+	 * Base class for the arithmetic Operators, which (as with the
+	 * OperatorActions provided with the formula library) produce an int if
+	 * both arguments are ints and otherwise operate on doubles. If either
+	 * argument is boxed, the OperatorBinding is used (as with
+	 * EvaluateVisitor).
+	 */
+	private abstract static class Arithmetic extends NumericFormula
+	{
+		private final OperatorBinding binding;
+		private final NumericFormula left;
+		private final NumericFormula right;
+
+		Arithmetic(OperatorBinding binding, NumericFormula left,
+			NumericFormula right)
+		{
+			this.binding = binding;
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		final void evaluate(ScopeInformation si, NumericRegister reg)
+		{
+			left.evaluate(si, reg);
+			Object leftBoxed = reg.boxed;
+			boolean leftInteger = reg.isInteger;
+			int leftInt = reg.intValue;
+			double leftDouble = reg.doubleValue;
+			right.evaluate(si, reg);
+			if ((leftBoxed != null) || (reg.boxed != null))
+			{
+				Object l =
+						(leftBoxed == null) ? NumericRegister.box(leftInteger,
+							leftInt, leftDouble) : leftBoxed;
+				reg.load(binding.evaluate(l, reg.toNumber()));
+			}
+			else if (leftInteger && reg.isInteger)
+			{
+				evaluate(leftInt, reg.intValue, reg);
+			}
+			else
+			{
+				evaluate(leftDouble, reg.doubleValue, reg);
+			}
+		}
+
+		abstract void evaluate(int l, int r, NumericRegister reg);
+
+		abstract void evaluate(double l, double r, NumericRegister reg);
+	}
+
+	/**
+	 * Equivalent to NumberAdd.
+	 */
+	private static class Add extends Arithmetic
+	{
+		Add(OperatorBinding binding, NumericFormula left,
+			NumericFormula right)
+		{
+			super(binding, left, right);
+		}
+
+		@Override
+		void evaluate(int l, int r, NumericRegister reg)
+		{
+			reg.setInteger(l + r);
+		}
+
+		@Override
+		void evaluate(double l, double r, NumericRegister reg)
+		{
+			reg.setDouble(l + r);
+		}
+	}
+
+	/**
+	 * Equivalent to NumberSubtract.
+	 */
+	private static class Subtract extends Arithmetic
+	{
+		Subtract(OperatorBinding binding, NumericFormula left,
+			NumericFormula right)
+		{
+			super(binding, left, right);
+		}
+
+		@Override
+		void evaluate(int l, int r, NumericRegister reg)
+		{
+			reg.setInteger(l - r);
+		}
+
+		@Override
+		void evaluate(double l, double r, NumericRegister reg)
+		{
+			reg.setDouble(l - r);
+		}
+	}
+
+	/**
+	 * Equivalent to NumberMultiply (including producing an Integer zero if
+	 * either argument is zero).
+	 */
+	private static class Multiply extends Arithmetic
+	{
+		Multiply(OperatorBinding binding, NumericFormula left,
+			NumericFormula right)
+		{
+			super(binding, left, right);
+		}
+
+		@Override
+		void evaluate(int l, int r, NumericRegister reg)
+		{
+			reg.setInteger(l * r);
+		}
+
+		@Override
+		void evaluate(double l, double r, NumericRegister reg)
+		{
+			//Special case
+			if ((l == 0.0d) || (r == 0.0d))
+			{
+				reg.setInteger(0);
+			}
+			else
+			{
+				reg.setDouble(l * r);
+			}
+		}
+	}
+
+	/**
+	 * Equivalent to NumberDivide (including producing an Integer only if the
+	 * division of two ints is exact).
+	 */
+	private static class Divide extends Arithmetic
+	{
+		Divide(OperatorBinding binding, NumericFormula left,
+			NumericFormula right)
+		{
+			super(binding, left, right);
+		}
+
+		@Override
+		void evaluate(int l, int r, NumericRegister reg)
+		{
+			if ((l % r) == 0)
+			{
+				reg.setInteger(l / r);
+			}
+			else
+			{
+				reg.setDouble(((double) l) / r);
+			}
+		}
+
+		@Override
+		void evaluate(double l, double r, NumericRegister reg)
+		{
+			reg.setDouble(l / r);
+		}
+	}
+
+	/**
+	 * Equivalent to NumberRemainder.
+	 */
+	private static class Remainder extends Arithmetic
+	{
+		Remainder(OperatorBinding binding, NumericFormula left,
+			NumericFormula right)
+		{
+			super(binding, left, right);
+		}
+
+		@Override
+		void evaluate(int l, int r, NumericRegister reg)
+		{
+			reg.setInteger(l % r);
+		}
+
+		@Override
+		void evaluate(double l, double r, NumericRegister reg)
+		{
+			reg.setDouble(l % r);
+		}
+	}
+
+	private static class Negate extends NumericFormula
+	{
+		private final NumericFormula child;
+
+		Negate(NumericFormula child)
+		{
+			this.child = child;
+		}
+
+		@Override
+		void evaluate(ScopeInformation si, NumericRegister reg)
+		{
+			child.evaluate(si, reg);
+			if (reg.isInteger)
+			{
+				reg.setInteger(-reg.intValue);
+			}
+			else
+			{
+				reg.setDouble(-reg.toDouble());
+			}
+		}
+	}
+
+	/**
+	 * Equivalent to ASTExpon in EvaluateVisitor (X^Y^Z == X^(Y*Z)).
+	 */
+	private static class Exponent extends NumericFormula
+	{
+		private final NumericFormula[] children;
+
+		Exponent(NumericFormula[] children)
+		{
+			this.children = children;
+		}
+
+		@Override
+		void evaluate(ScopeInformation si, NumericRegister reg)
+		{
+			children[0].evaluate(si, reg);
+			double base = reg.toDouble();
+			children[1].evaluate(si, reg);
+			double exponent = reg.toDouble();
+			for (int i = 2; i < children.length; i++)
+			{
+				children[i].evaluate(si, reg);
+				exponent *= reg.toDouble();
+			}
+			reg.setDouble(VisitorUtilities.power(base, exponent));
+		}
+	}
+
+	/**
+	 * Equivalent to AbsFunction.
+	 */
+	private static class Abs extends NumericFormula
+	{
+		private final NumericFormula arg;
+
+		Abs(NumericFormula arg)
+		{
+			this.arg = arg;
+		}
+
+		@Override
+		void evaluate(ScopeInformation si, NumericRegister reg)
+		{
+			arg.evaluate(si, reg);
+			if (reg.isInteger)
+			{
+				reg.setInteger(Math.abs(reg.intValue));
+			}
+			else
+			{
+				reg.setDouble(Math.abs(reg.toDouble()));
+			}
+		}
+	}
+
+	/**
+	 * Equivalent to CeilFunction.
+	 */
+	private static class Ceil extends NumericFormula
+	{
+		private final NumericFormula arg;
+
+		Ceil(NumericFormula arg)
+		{
+			this.arg = arg;
+		}
+
+		@Override
+		void evaluate(ScopeInformation si, NumericRegister reg)
+		{
+			arg.evaluate(si, reg);
+			if (!reg.isInteger)
+			{
+				reg.setInteger((int) Math.ceil(reg.toDouble()));
+			}
+		}
+	}
+
+	/**
+	 * Equivalent to FloorFunction.
+	 */
+	private static class Floor extends NumericFormula
+	{
+		private final NumericFormula arg;
+
+		Floor(NumericFormula arg)
+		{
+			this.arg = arg;
+		}
+
+		@Override
+		void evaluate(ScopeInformation si, NumericRegister reg)
+		{
+			arg.evaluate(si, reg);
+			if (!reg.isInteger)
+			{
+				reg.setInteger((int) Math.floor(reg.toDouble()));
+			}
+		}
+	}
+
+	/**
+	 * Equivalent to RoundFunction.
+	 */
+	private static class Round extends NumericFormula
+	{
+		private final NumericFormula arg;
+
+		Round(NumericFormula arg)
+		{
+			this.arg = arg;
+		}
+
+		@Override
+		void evaluate(ScopeInformation si, NumericRegister reg)
+		{
+			arg.evaluate(si, reg);
+			if (!reg.isInteger)
+			{
+				reg.setInteger((int) Math.round(reg.toDouble()));
+			}
+		}
+	}
+
+	/**
+	 * Equivalent to MaxFunction.
+	 */
+	private static class Max extends NumericFormula
+	{
+		private final NumericFormula[] args;
+
+		Max(NumericFormula[] args)
+		{
+			this.args = args;
+		}
+
+		@Override
+		void evaluate(ScopeInformation si, NumericRegister reg)
+		{
+			args[0].evaluate(si, reg);
+			boolean isInteger = reg.isInteger;
+			int intValue = reg.intValue;
+			double doubleValue = reg.toDouble();
+			Object boxed = reg.boxed;
+			for (int i = 1; i < args.length; i++)
+			{
+				args[i].evaluate(si, reg);
+				double next = reg.toDouble();
+				if (!(doubleValue > next))
+				{
+					isInteger = reg.isInteger;
+					intValue = reg.intValue;
+					doubleValue = next;
+					boxed = reg.boxed;
+				}
+			}
+			if (boxed != null)
+			{
+				reg.load(boxed);
+			}
+			else if (isInteger)
+			{
+				reg.setInteger(intValue);
+			}
+			else
+			{
+				reg.setDouble(doubleValue);
+			}
+		}
+	}
+
+	/**
+	 * Equivalent to MinFunction.
+	 */
+	private static class Min extends NumericFormula
+	{
+		private final NumericFormula[] args;
+
+		Min(NumericFormula[] args)
+		{
+			this.args = args;
+		}
+
+		@Override
+		void evaluate(ScopeInformation si, NumericRegister reg)
+		{
+			args[0].evaluate(si, reg);
+			boolean isInteger = reg.isInteger;
+			int intValue = reg.intValue;
+			double doubleValue = reg.toDouble();
+			Object boxed = reg.boxed;
+			for (int i = 1; i < args.length; i++)
+			{
+				args[i].evaluate(si, reg);
+				double next = reg.toDouble();
+				if (doubleValue > next)
+				{
+					isInteger = reg.isInteger;
+					intValue = reg.intValue;
+					doubleValue = next;
+					boxed = reg.boxed;
+				}
+			}
+			if (boxed != null)
+			{
+				reg.load(boxed);
+			}
+			else if (isInteger)
+			{
+				reg.setInteger(intValue);
+			}
+			else
+			{
+				reg.setDouble(doubleValue);
+			}
+		}
+	}
+
+	private static class NumericIf extends NumericFormula
+	{
+		private final BooleanFormula condition;
+		private final NumericFormula ifTrue;
+		private final NumericFormula ifFalse;
+
+		NumericIf(BooleanFormula condition, NumericFormula ifTrue,
+			NumericFormula ifFalse)
+		{
+			this.condition = condition;
+			this.ifTrue = ifTrue;
+			this.ifFalse = ifFalse;
+		}
+
+		@Override
+		void evaluate(ScopeInformation si, NumericRegister reg)
+		{
+			if (reg.toCondition(condition.test(si, reg)))
+			{
+				ifTrue.evaluate(si, reg);
+			}
+			else
+			{
+				ifFalse.evaluate(si, reg);
+			}
+		}
+	}
+
+	private static class BooleanVariable extends BooleanFormula
+	{
+		private final VariableBinding binding;
+
+		BooleanVariable(String varName)
+		{
+			binding = new VariableBinding(varName);
+		}
+
+		@Override
+		boolean test(ScopeInformation si, NumericRegister reg)
+		{
+			return reg.loadBoolean(CompiledFormulaSupport.getVariable(si,
+				binding));
+		}
+	}
+
+	private static class BoxedBoolean extends BooleanFormula
+	{
+		private final CompiledFormula formula;
+
+		BoxedBoolean(CompiledFormula formula)
+		{
+			this.formula = formula;
+		}
+
+		@Override
+		boolean test(ScopeInformation si, NumericRegister reg)
+		{
+			return reg.loadBoolean(formula.evaluate(si));
+		}
+	}
+
+	/**
+	 * Equivalent to the numeric comparison OperatorActions (e.g.
+	 * NumberLessThan), which compare the values as doubles. If either argument
+	 * is boxed, the OperatorBinding is used (as with EvaluateVisitor).
+	 */
+	private static class Comparison extends BooleanFormula
+	{
+		private final Operator op;
+		private final OperatorBinding binding;
+		private final NumericFormula left;
+		private final NumericFormula right;
+
+		Comparison(Operator op, OperatorBinding binding, NumericFormula left,
+			NumericFormula right)
+		{
+			this.op = op;
+			this.binding = binding;
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		boolean test(ScopeInformation si, NumericRegister reg)
+		{
+			left.evaluate(si, reg);
+			Object leftBoxed = reg.boxed;
+			boolean leftInteger = reg.isInteger;
+			int leftInt = reg.intValue;
+			double l = reg.doubleValue;
+			right.evaluate(si, reg);
+			if ((leftBoxed != null) || (reg.boxed != null))
+			{
+				Object lo =
+						(leftBoxed == null) ? NumericRegister.box(leftInteger,
+							leftInt, l) : leftBoxed;
+				return reg.loadBoolean(binding.evaluate(lo, reg.toNumber()));
+			}
+			double r = reg.doubleValue;
+			switch (op)
+			{
+				case EQ:
+					return l == r;
+				case NEQ:
+					return l != r;
+				case LT:
+					return l < r;
+				case LE:
+					return l <= r;
+				case GT:
+					return l > r;
+				case GE:
+					return l >= r;
+				default:
+					throw new IllegalStateException(op
+						+ " is not a comparison");
+			}
+		}
+	}
+
+	/**
+	 * Equivalent to the Boolean OperatorActions (e.g. BooleanAnd). If short
+	 * circuiting is allowed, the right argument is not evaluated when the left
+	 * argument determines the result (as with EvaluateVisitor). If either
+	 * argument is boxed, the OperatorBinding is used (as with
+	 * EvaluateVisitor).
+	 */
+	private static class Logical extends BooleanFormula
+	{
+		private final Operator op;
+		private final OperatorBinding binding;
+		private final boolean allowShortCircuit;
+		private final boolean lazy;
+		private final BooleanFormula left;
+		private final BooleanFormula right;
+
+		Logical(Operator op, OperatorBinding binding,
+			boolean allowShortCircuit, BooleanFormula left,
+			BooleanFormula right)
+		{
+			this.op = op;
+			this.binding = binding;
+			this.allowShortCircuit = allowShortCircuit;
+			lazy =
+					allowShortCircuit
+						&& (binding.shortCircuit(Boolean
+							.valueOf(op == Operator.OR)) != null);
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		boolean test(ScopeInformation si, NumericRegister reg)
+		{
+			boolean l = left.test(si, reg);
+			if (reg.boxed != null)
+			{
+				return testBoxed(si, reg, reg.boxed);
+			}
+			//false AND x is false; true OR x is true
+			if (lazy && (l == (op == Operator.OR)))
+			{
+				return l;
+			}
+			boolean r = right.test(si, reg);
+			if (reg.boxed != null)
+			{
+				return reg.loadBoolean(binding.evaluate(Boolean.valueOf(l),
+					reg.boxed));
+			}
+			switch (op)
+			{
+				case AND:
+					return l && r;
+				case OR:
+					return l || r;
+				case EQ:
+					return l == r;
+				case NEQ:
+					return l != r;
+				default:
+					throw new IllegalStateException(op
+						+ " is not a logical operator");
+			}
+		}
+
+		private boolean testBoxed(ScopeInformation si, NumericRegister reg,
+			Object l)
+		{
+			if (allowShortCircuit)
+			{
+				Object result = binding.shortCircuit(l);
+				if (result != null)
+				{
+					return reg.loadBoolean(result);
+				}
+			}
+			boolean r = right.test(si, reg);
+			return reg.loadBoolean(binding.evaluate(l, reg.toBoolean(r)));
+		}
+	}
+
+	private static class BooleanIf extends BooleanFormula
+	{
+		private final BooleanFormula condition;
+		private final BooleanFormula ifTrue;
+		private final BooleanFormula ifFalse;
+
+		BooleanIf(BooleanFormula condition, BooleanFormula ifTrue,
+			BooleanFormula ifFalse)
+		{
+			this.condition = condition;
+			this.ifTrue = ifTrue;
+			this.ifFalse = ifFalse;
+		}
+
+		@Override
+		boolean test(ScopeInformation si, NumericRegister reg)
+		{
+			if (reg.toCondition(condition.test(si, reg)))
+			{
+				return ifTrue.test(si, reg);
+			}
+			return ifFalse.test(si, reg);
+		}
+	}
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.compile;
+
+import pcgen.base.formula.manager.FormulaManager;
+import pcgen.base.formula.parse.SimpleNode;
+
+/**
+ * A StackFormulaCompiler is a FormulaCompiler that lowers a formula into a
+ * StackProgram: a flat array of instructions evaluated by FormulaInterpreter
+ * over an operand stack.
+ * 
+ * A StackProgram is far more compact than the parsed tree (which holds child
+ * arrays, parent links and a reference to the parser for each node), and the
+ * instructions are evaluated in a single loop rather than by recursion through
+ * a visitor.
+ */
+public class StackFormulaCompiler implements FormulaCompiler
+{
+
+	/**
+	 * Compiles the formula represented by the tree starting with the given
+	 * root node into a StackProgram.
+	 * 
+	 * @see pcgen.base.formula.compile.FormulaCompiler#compile(pcgen.base.formula.manager.FormulaManager,
+	 *      pcgen.base.formula.parse.SimpleNode)
+	 */
+	@Override
+	public StackProgram compile(FormulaManager fm, SimpleNode root)
+	{
+		if (fm == null)
+		{
+			throw new IllegalArgumentException(
+				"Cannot compile with null FormulaManager");
+		}
+		if (root == null)
+		{
+			throw new IllegalArgumentException("Cannot compile with null root");
+		}
+		StackGenerationVisitor visitor = new StackGenerationVisitor(fm);
+		visitor.visit(root, null);
+		return visitor.getProgram();
+	}
+
+}
@@ -0,0 +1,440 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.compile;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import pcgen.base.formula.function.Function;
+import pcgen.base.formula.manager.FormulaManager;
+import pcgen.base.formula.manager.OperatorBinding;
+import pcgen.base.formula.manager.VariableBinding;
+import pcgen.base.formula.parse.ASTArithmetic;
+import pcgen.base.formula.parse.ASTEquality;
+import pcgen.base.formula.parse.ASTExpon;
+import pcgen.base.formula.parse.ASTFParen;
+import pcgen.base.formula.parse.ASTGeometric;
+import pcgen.base.formula.parse.ASTLogical;
+import pcgen.base.formula.parse.ASTNum;
+import pcgen.base.formula.parse.ASTPCGenBracket;
+import pcgen.base.formula.parse.ASTPCGenLookup;
+import pcgen.base.formula.parse.ASTPCGenSingleWord;
+import pcgen.base.formula.parse.ASTParen;
+import pcgen.base.formula.parse.ASTQuotString;
+import pcgen.base.formula.parse.ASTRelational;
+import pcgen.base.formula.parse.ASTRoot;
+import pcgen.base.formula.parse.ASTUnary;
+import pcgen.base.formula.parse.FormulaParserVisitor;
+import pcgen.base.formula.parse.Node;
+import pcgen.base.formula.parse.Operator;
+import pcgen.base.formula.parse.SimpleNode;
+import pcgen.base.formula.visitor.VisitorUtilities;
+
+/**
+ * StackGenerationVisitor visits a tree of objects representing a formula and
+ * writes the instructions of a StackProgram. Each node writes instructions
+ * that leave exactly one value on the operand stack.
+ */
+@SuppressWarnings("PMD.TooManyMethods")
+class StackGenerationVisitor implements FormulaParserVisitor
+{
+
+	/**
+	 * The FormulaManager used to resolve Functions and Operators.
+	 */
+	private final FormulaManager fm;
+
+	/**
+	 * The constants referred to by the instructions.
+	 */
+	private final List<Object> constants = new ArrayList<Object>();
+
+	/**
+	 * The instructions written so far.
+	 */
+	private int[] code = new int[16];
+
+	/**
+	 * The number of used locations in the code array.
+	 */
+	private int length = 0;
+
+	/**
+	 * The depth of the operand stack after the instructions written so far.
+	 */
+	private int depth = 0;
+
+	/**
+	 * The maximum depth of the operand stack.
+	 */
+	private int maxDepth = 0;
+
+	/**
+	 * Constructs a new StackGenerationVisitor with the given FormulaManager.
+	 * 
+	 * @param fm
+	 *            The FormulaManager used to resolve Functions and Operators
+	 */
+	StackGenerationVisitor(FormulaManager fm)
+	{
+		this.fm = fm;
+	}
+
+	/**
+	 * Returns a StackProgram containing the instructions written by this
+	 * StackGenerationVisitor.
+	 * 
+	 * @return A StackProgram containing the instructions written by this
+	 *         StackGenerationVisitor
+	 */
+	StackProgram getProgram()
+	{
+		return new StackProgram(Arrays.copyOf(code, length),
+			constants.toArray(), maxDepth);
+	}
+
+	@Override
+	public Object visit(SimpleNode node, Object data)
+	{
+		//Delegate to the appropriate class
+		return node.jjtAccept(this, data);
+	}
+
+	@Override
+	public Object visit(ASTRoot node, Object data)
+	{
+		return generateSingleChild(node);
+	}
+
+	@Override
+	public Object visit(ASTLogical node, Object data)
+	{
+		return generateOperatorNode(node, true);
+	}
+
+	@Override
+	public Object visit(ASTEquality node, Object data)
+	{
+		return generateOperatorNode(node, false);
+	}
+
+	@Override
+	public Object visit(ASTRelational node, Object data)
+	{
+		return generateOperatorNode(node, false);
+	}
+
+	@Override
+	public Object visit(ASTArithmetic node, Object data)
+	{
+		return generateOperatorNode(node, false);
+	}
+
+	@Override
+	public Object visit(ASTGeometric node, Object data)
+	{
+		return generateOperatorNode(node, false);
+	}
+
+	@Override
+	public Object visit(ASTUnary node, Object data)
+	{
+		generateSingleChild(node);
+		write(FormulaInterpreter.NEGATE, 0);
+		return null;
+	}
+
+	@Override
+	public Object visit(ASTExpon node, Object data)
+	{
+		int childCount = node.jjtGetNumChildren();
+		node.jjtGetChild(0).jjtAccept(this, null);
+		node.jjtGetChild(1).jjtAccept(this, null);
+		for (int i = 2; i < childCount; i++)
+		{
+			node.jjtGetChild(i).jjtAccept(this, null);
+			write(FormulaInterpreter.EXPONENT_MULTIPLY, -1);
+		}
+		write(FormulaInterpreter.POWER, -1);
+		return null;
+	}
+
+	@Override
+	public Object visit(ASTParen node, Object data)
+	{
+		return generateSingleChild(node);
+	}
+
+	/**
+	 * Numbers (parsed when the node was built) are stored as a constant.
+	 */
+	@Override
+	public Object visit(ASTNum node, Object data)
+	{
+		Number n = node.getValue();
+		write(FormulaInterpreter.CONSTANT, 1);
+		write(addConstant(n));
+		return null;
+	}
+
+	/**
+	 * The Function is resolved at compile time. Built-in Functions have their
+	 * own instructions; other Functions are called through the Function
+	 * interface, with an EvaluateVisitor from the ScopeInformation.
+	 */
+	@Override
+	public Object visit(ASTPCGenLookup node, Object data)
+	{
+		Function function = VisitorUtilities.getFunction(fm.getLibrary(), node);
+		if (function == null)
+		{
+			throw new IllegalStateException(
+				"Compile called on invalid Formula (function "
+					+ ((SimpleNode) node.jjtGetChild(0)).getText()
+					+ " not found)");
+		}
+		Node[] args = VisitorUtilities.accumulateArguments(node.jjtGetChild(1));
+		BuiltInFunction bif = BuiltInFunction.identify(function, args.length);
+		if (bif == null)
+		{
+			write(FormulaInterpreter.CALL, 1);
+			int index = addConstant(function);
+			addConstant(args);
+			write(index);
+		}
+		else if (bif == BuiltInFunction.IF)
+		{
+			generateIf(args);
+		}
+		else
+		{
+			int opcode = getOpcode(bif);
+			args[0].jjtAccept(this, null);
+			for (int i = 1; i < args.length; i++)
+			{
+				args[i].jjtAccept(this, null);
+				write(opcode, -1);
+			}
+			if (args.length == 1)
+			{
+				write(opcode, 0);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Variables are resolved at evaluation time, since the VariableID depends
+	 * on the ScopeInformation (resolved once per ScopedNamespaceDefinition, see
+	 * VariableBinding).
+	 */
+	@Override
+	public Object visit(ASTPCGenSingleWord node, Object data)
+	{
+		write(FormulaInterpreter.VARIABLE, 1);
+		write(addConstant(new VariableBinding(node.getText())));
+		return null;
+	}
+
+	@Override
+	public Object visit(ASTPCGenBracket node, Object data)
+	{
+		//Should be stripped by the function
+		throw new IllegalStateException(
+			"Compile called on invalid Formula (reached Function Brackets)");
+	}
+
+	@Override
+	public Object visit(ASTFParen node, Object data)
+	{
+		//Should be stripped by the function
+		throw new IllegalStateException(
+			"Compile called on invalid Formula (reached Function Parenthesis)");
+	}
+
+	@Override
+	public Object visit(ASTQuotString node, Object data)
+	{
+		//Should be stripped by the function
+		throw new IllegalStateException(
+			"Compile called on invalid Formula (reached Quoted String)");
+	}
+
+	/**
+	 * Writes the instructions for an operator node. Must have 2 children and
+	 * a node that contains an Operator.
+	 * 
+	 * @param node
+	 *            The node that contains an Operator and has exactly 2 children
+	 * @param allowShortCircuit
+	 *            true if the second child should not be evaluated when the
+	 *            first child determines the result; false otherwise
+	 * @return null
+	 */
+	private Object generateOperatorNode(SimpleNode node,
+		boolean allowShortCircuit)
+	{
+		Operator op = node.getOperator();
+		if (op == null)
+		{
+			throw new IllegalStateException(node.getClass().getSimpleName()
+				+ " must have an operator");
+		}
+		int childCount = node.jjtGetNumChildren();
+		if (childCount != 2)
+		{
+			throw new IllegalStateException(node.getClass().getSimpleName()
+				+ " must only have 2 children, was: " + childCount);
+		}
+		int binding =
+				addConstant(new OperatorBinding(fm.getOperatorLibrary(), op));
+		node.jjtGetChild(0).jjtAccept(this, null);
+		int endJump = -1;
+		if (allowShortCircuit)
+		{
+			write(FormulaInterpreter.SHORT_CIRCUIT, 0);
+			write(binding);
+			endJump = length;
+			write(0);
+		}
+		node.jjtGetChild(1).jjtAccept(this, null);
+		write(FormulaInterpreter.OPERATOR, -1);
+		write(binding);
+		if (allowShortCircuit)
+		{
+			code[endJump] = length;
+		}
+		return null;
+	}
+
+	/**
+	 * Writes the instructions for the single child of the given node.
+	 * 
+	 * @param node
+	 *            The node for which the (single) child will be written
+	 * @return null
+	 */
+	private Object generateSingleChild(Node node)
+	{
+		int childCount = node.jjtGetNumChildren();
+		if (childCount != 1)
+		{
+			throw new IllegalStateException(node.getClass().getSimpleName()
+				+ " must only have 1 child, was: " + childCount);
+		}
+		return node.jjtGetChild(0).jjtAccept(this, null);
+	}
+
+	/**
+	 * Writes the instructions for the IF Function. Only the branch selected by
+	 * the condition is evaluated.
+	 * 
+	 * @param args
+	 *            The arguments to the IF Function
+	 */
+	private void generateIf(Node[] args)
+	{
+		args[0].jjtAccept(this, null);
+		write(FormulaInterpreter.JUMP_IF_FALSE, -1);
+		int falseJump = length;
+		write(0);
+		int branchDepth = depth;
+		args[1].jjtAccept(this, null);
+		write(FormulaInterpreter.JUMP, 0);
+		int endJump = length;
+		write(0);
+		code[falseJump] = length;
+		//Only one branch is executed, so the false branch starts at the same depth
+		depth = branchDepth;
+		args[2].jjtAccept(this, null);
+		code[endJump] = length;
+	}
+
+	/**
+	 * Returns the opcode for the given BuiltInFunction (other than IF).
+	 * 
+	 * @param bif
+	 *            The BuiltInFunction for which the opcode should be returned
+	 * @return The opcode for the given BuiltInFunction
+	 */
+	private static int getOpcode(BuiltInFunction bif)
+	{
+		switch (bif)
+		{
+			case ABS:
+				return FormulaInterpreter.ABS;
+			case CEIL:
+				return FormulaInterpreter.CEIL;
+			case FLOOR:
+				return FormulaInterpreter.FLOOR;
+			case ROUND:
+				return FormulaInterpreter.ROUND;
+			case MAX:
+				return FormulaInterpreter.MAX;
+			case MIN:
+				return FormulaInterpreter.MIN;
+			default:
+				throw new IllegalStateException("No opcode for " + bif);
+		}
+	}
+
+	/**
+	 * Adds the given constant to the constant pool.
+	 * 
+	 * @param value
+	 *            The constant to be added
+	 * @return The index of the constant in the constant pool
+	 */
+	private int addConstant(Object value)
+	{
+		constants.add(value);
+		return constants.size() - 1;
+	}
+
+	/**
+	 * Writes an opcode, and records the change in depth of the operand stack
+	 * caused by the instruction.
+	 * 
+	 * @param opcode
+	 *            The opcode to be written
+	 * @param stackChange
+	 *            The change in depth of the operand stack
+	 */
+	private void write(int opcode, int stackChange)
+	{
+		write(opcode);
+		depth += stackChange;
+		maxDepth = Math.max(maxDepth, depth);
+	}
+
+	/**
+	 * Writes a value (opcode or operand) into the instructions.
+	 * 
+	 * @param value
+	 *            The value to be written
+	 */
+	private void write(int value)
+	{
+		if (length == code.length)
+		{
+			code = Arrays.copyOf(code, length * 2);
+		}
+		code[length++] = value;
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.compile;
+
+import pcgen.base.formula.manager.ScopeInformation;
+
+/**
+ * A StackProgram is a CompiledFormula represented as a flat array of
+ * instructions for a stack machine, along with a pool of constants referred to
+ * by those instructions.
+ * 
+ * Each instruction is an opcode (see FormulaInterpreter) which may be followed
+ * by operands (an index into the constant pool or a jump target in the
+ * instruction array). A StackProgram is immutable once built and is evaluated
+ * by FormulaInterpreter.
+ */
+public final class StackProgram implements CompiledFormula
+{
+
+	/**
+	 * The instructions of this StackProgram.
+	 */
+	private final int[] code;
+
+	/**
+	 * The constants referred to by the instructions of this StackProgram.
+	 */
+	private final Object[] constants;
+
+	/**
+	 * The maximum depth of the operand stack during evaluation of this
+	 * StackProgram.
+	 */
+	private final int maxStack;
+
+	/**
+	 * Constructs a new StackProgram with the given instructions, constants and
+	 * maximum operand stack depth.
+	 * 
+	 * The arrays are not copied; ownership is transferred to the new
+	 * StackProgram.
+	 * 
+	 * @param code
+	 *            The instructions of the StackProgram
+	 * @param constants
+	 *            The constants referred to by the instructions
+	 * @param maxStack
+	 *            The maximum depth of the operand stack during evaluation
+	 */
+	StackProgram(int[] code, Object[] constants, int maxStack)
+	{
+		this.code = code;
+		this.constants = constants;
+		this.maxStack = maxStack;
+	}
+
+	/**
+	 * Evaluates this StackProgram using FormulaInterpreter.
+	 * 
+	 * @see pcgen.base.formula.compile.CompiledFormula#evaluate(pcgen.base.formula.manager.ScopeInformation)
+	 */
+	@Override
+	public Object evaluate(ScopeInformation si)
+	{
+		return FormulaInterpreter.execute(this, si);
+	}
+
+	/**
+	 * Returns the instructions of this StackProgram. The array is not copied,
+	 * and must not be modified.
+	 * 
+	 * @return The instructions of this StackProgram
+	 */
+	int[] getCode()
+	{
+		return code;
+	}
+
+	/**
+	 * Returns the constants referred to by the instructions of this
+	 * StackProgram. The array is not copied, and must not be modified.
+	 * 
+	 * @return The constants referred to by the instructions of this
+	 *         StackProgram
+	 */
+	Object[] getConstants()
+	{
+		return constants;
+	}
+
+	/**
+	 * Returns the maximum depth of the operand stack during evaluation of this
+	 * StackProgram.
+	 * 
+	 * @return The maximum depth of the operand stack during evaluation of this
+	 *         StackProgram
+	 */
+	int getMaxStack()
+	{
+		return maxStack;
+	}
+
+	/**
+	 * Returns the number of instructions and operands in this StackProgram.
+	 * 
+	 * @return The number of instructions and operands in this StackProgram
+	 */
+	public int getCodeLength()
+	{
+		return code.length;
+	}
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.compile;
+
+import pcgen.base.formula.manager.FormulaManager;
+import pcgen.base.formula.parse.SimpleNode;
+
+/**
+ * A TreeFormulaCompiler is a FormulaCompiler that converts a formula into a
+ * tree of CompiledFormula objects, one for each node in the formula, without
+ * generating any classes at runtime.
+ * 
+ * Functions, Operators and numeric constants are resolved when the formula is
+ * compiled, so evaluating the result is a series of direct calls from each
+ * CompiledFormula to its children (rather than the double dispatch and
+ * Function lookup performed by EvaluateVisitor on each evaluation).
+ * 
+ * This is intended for environments where BytecodeFormulaCompiler cannot be
+ * used because defining classes at runtime is not permitted.
+ */
+public class TreeFormulaCompiler implements FormulaCompiler
+{
+
+	/**
+	 * Compiles the formula represented by the tree starting with the given
+	 * root node into a tree of CompiledFormula objects.
+	 * 
+	 * @see pcgen.base.formula.compile.FormulaCompiler#compile(pcgen.base.formula.manager.FormulaManager,
+	 *      pcgen.base.formula.parse.SimpleNode)
+	 */
+	@Override
+	public CompiledFormula compile(FormulaManager fm, SimpleNode root)
+	{
+		if (fm == null)
+		{
+			throw new IllegalArgumentException(
+				"Cannot compile with null FormulaManager");
+		}
+		if (root == null)
+		{
+			throw new IllegalArgumentException("Cannot compile with null root");
+		}
+		return (CompiledFormula) new TreeGenerationVisitor(fm).visit(root,
+			null);
+	}
+
+}
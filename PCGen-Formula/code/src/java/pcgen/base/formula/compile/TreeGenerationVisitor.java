@@ -0,0 +1,531 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.compile;
+
+import pcgen.base.formula.function.Function;
+import pcgen.base.formula.manager.FormulaManager;
+import pcgen.base.formula.manager.OperatorBinding;
+import pcgen.base.formula.manager.VariableBinding;
+import pcgen.base.formula.manager.OperatorLibrary;
+import pcgen.base.formula.manager.ScopeInformation;
+import pcgen.base.formula.parse.ASTArithmetic;
+import pcgen.base.formula.parse.ASTEquality;
+import pcgen.base.formula.parse.ASTExpon;
+import pcgen.base.formula.parse.ASTFParen;
+import pcgen.base.formula.parse.ASTGeometric;
+import pcgen.base.formula.parse.ASTLogical;
+import pcgen.base.formula.parse.ASTNum;
+import pcgen.base.formula.parse.ASTPCGenBracket;
+import pcgen.base.formula.parse.ASTPCGenLookup;
+import pcgen.base.formula.parse.ASTPCGenSingleWord;
+import pcgen.base.formula.parse.ASTParen;
+import pcgen.base.formula.parse.ASTQuotString;
+import pcgen.base.formula.parse.ASTRelational;
+import pcgen.base.formula.parse.ASTRoot;
+import pcgen.base.formula.parse.ASTUnary;
+import pcgen.base.formula.parse.FormulaParserVisitor;
+import pcgen.base.formula.parse.Node;
+import pcgen.base.formula.parse.Operator;
+import pcgen.base.formula.parse.SimpleNode;
+import pcgen.base.formula.visitor.VisitorUtilities;
+
+/**
+ * TreeGenerationVisitor visits a tree of objects representing a formula and
+ * returns a CompiledFormula for each node. The CompiledFormula for a node
+ * holds the CompiledFormula objects for its children, so the CompiledFormula
+ * returned for the root of the tree evaluates the entire formula.
+ * 
+ * Nodes that are only structural (ASTRoot and ASTParen) do not produce their
+ * own CompiledFormula; the CompiledFormula of their child is returned.
+ */
+@SuppressWarnings("PMD.TooManyMethods")
+class TreeGenerationVisitor implements FormulaParserVisitor
+{
+
+	/**
+	 * The FormulaManager used to resolve Functions and Operators.
+	 */
+	private final FormulaManager fm;
+
+	/**
+	 * Constructs a new TreeGenerationVisitor with the given FormulaManager.
+	 * 
+	 * @param fm
+	 *            The FormulaManager used to resolve Functions and Operators
+	 */
+	TreeGenerationVisitor(FormulaManager fm)
+	{
+		this.fm = fm;
+	}
+
+	@Override
+	public Object visit(SimpleNode node, Object data)
+	{
+		//Delegate to the appropriate class
+		return node.jjtAccept(this, data);
+	}
+
+	@Override
+	public Object visit(ASTRoot node, Object data)
+	{
+		return compileSingleChild(node);
+	}
+
+	@Override
+	public Object visit(ASTLogical node, Object data)
+	{
+		return compileOperatorNode(node, true);
+	}
+
+	@Override
+	public Object visit(ASTEquality node, Object data)
+	{
+		return compileOperatorNode(node, false);
+	}
+
+	@Override
+	public Object visit(ASTRelational node, Object data)
+	{
+		return compileOperatorNode(node, false);
+	}
+
+	@Override
+	public Object visit(ASTArithmetic node, Object data)
+	{
+		return compileOperatorNode(node, false);
+	}
+
+	@Override
+	public Object visit(ASTGeometric node, Object data)
+	{
+		return compileOperatorNode(node, false);
+	}
+
+	@Override
+	public Object visit(ASTUnary node, Object data)
+	{
+		return new NegateFormula(compileSingleChild(node));
+	}
+
+	@Override
+	public Object visit(ASTExpon node, Object data)
+	{
+		int childCount = node.jjtGetNumChildren();
+		CompiledFormula[] children = new CompiledFormula[childCount];
+		for (int i = 0; i < childCount; i++)
+		{
+			children[i] = compile(node.jjtGetChild(i));
+		}
+		return new ExponentFormula(children);
+	}
+
+	@Override
+	public Object visit(ASTParen node, Object data)
+	{
+		return compileSingleChild(node);
+	}
+
+	/**
+	 * Numbers are parsed when the node is built (see ASTNum).
+	 */
+	@Override
+	public Object visit(ASTNum node, Object data)
+	{
+		Number n = node.getValue();
+		return new ConstantFormula(n);
+	}
+
+	/**
+	 * The Function is resolved at compile time. Built-in Functions are
+	 * evaluated directly from the compiled arguments; other Functions are
+	 * called through the Function interface, with an EvaluateVisitor from the
+	 * ScopeInformation.
+	 */
+	@Override
+	public Object visit(ASTPCGenLookup node, Object data)
+	{
+		Function function = VisitorUtilities.getFunction(fm.getLibrary(), node);
+		if (function == null)
+		{
+			throw new IllegalStateException(
+				"Compile called on invalid Formula (function "
+					+ ((SimpleNode) node.jjtGetChild(0)).getText()
+					+ " not found)");
+		}
+		Node[] args = VisitorUtilities.accumulateArguments(node.jjtGetChild(1));
+		BuiltInFunction bif = BuiltInFunction.identify(function, args.length);
+		if (bif == null)
+		{
+			return new FunctionFormula(function, args);
+		}
+		CompiledFormula[] compiledArgs = new CompiledFormula[args.length];
+		for (int i = 0; i < args.length; i++)
+		{
+			compiledArgs[i] = compile(args[i]);
+		}
+		if (bif == BuiltInFunction.IF)
+		{
+			return new IfFormula(compiledArgs[0], compiledArgs[1],
+				compiledArgs[2]);
+		}
+		else if (bif.isUnary())
+		{
+			return new UnaryFunctionFormula(bif, compiledArgs[0]);
+		}
+		return new NaryFunctionFormula(bif, compiledArgs);
+	}
+
+	/**
+	 * Variables are resolved at evaluation time, since the VariableID depends
+	 * on the ScopeInformation (resolved once per ScopedNamespaceDefinition, see
+	 * VariableBinding).
+	 */
+	@Override
+	public Object visit(ASTPCGenSingleWord node, Object data)
+	{
+		return new VariableFormula(node.getText());
+	}
+
+	@Override
+	public Object visit(ASTPCGenBracket node, Object data)
+	{
+		//Should be stripped by the function
+		throw new IllegalStateException(
+			"Compile called on invalid Formula (reached Function Brackets)");
+	}
+
+	@Override
+	public Object visit(ASTFParen node, Object data)
+	{
+		//Should be stripped by the function
+		throw new IllegalStateException(
+			"Compile called on invalid Formula (reached Function Parenthesis)");
+	}
+
+	@Override
+	public Object visit(ASTQuotString node, Object data)
+	{
+		//Should be stripped by the function
+		throw new IllegalStateException(
+			"Compile called on invalid Formula (reached Quoted String)");
+	}
+
+	/**
+	 * Compiles an operator node. Must have 2 children and a node that
+	 * contains an Operator.
+	 * 
+	 * @param node
+	 *            The node that contains an Operator and has exactly 2 children
+	 * @param allowShortCircuit
+	 *            true if the second child should not be evaluated when the
+	 *            first child determines the result; false otherwise
+	 * @return The CompiledFormula for the given node
+	 */
+	private CompiledFormula compileOperatorNode(SimpleNode node,
+		boolean allowShortCircuit)
+	{
+		Operator op = node.getOperator();
+		if (op == null)
+		{
+			throw new IllegalStateException(node.getClass().getSimpleName()
+				+ " must have an operator");
+		}
+		int childCount = node.jjtGetNumChildren();
+		if (childCount != 2)
+		{
+			throw new IllegalStateException(node.getClass().getSimpleName()
+				+ " must only have 2 children, was: " + childCount);
+		}
+		if (allowShortCircuit)
+		{
+			return new ShortCircuitFormula(fm.getOperatorLibrary(), op,
+				compile(node.jjtGetChild(0)), compile(node.jjtGetChild(1)));
+		}
+		return new OperatorFormula(fm.getOperatorLibrary(), op,
+			compile(node.jjtGetChild(0)), compile(node.jjtGetChild(1)));
+	}
+
+	/**
+	 * Compiles the single child of the given node.
+	 * 
+	 * @param node
+	 *            The node for which the (single) child will be compiled
+	 * @return The CompiledFormula for the child of the given node
+	 */
+	private CompiledFormula compileSingleChild(Node node)
+	{
+		int childCount = node.jjtGetNumChildren();
+		if (childCount != 1)
+		{
+			throw new IllegalStateException(node.getClass().getSimpleName()
+				+ " must only have 1 child, was: " + childCount);
+		}
+		return compile(node.jjtGetChild(0));
+	}
+
+	/**
+	 * Compiles the given node.
+	 * 
+	 * @param node
+	 *            The node to be compiled
+	 * @return The CompiledFormula for the given node
+	 */
+	private CompiledFormula compile(Node node)
+	{
+		return (CompiledFormula) node.jjtAccept(this, null);
+	}
+
+	/**
+	 * A CompiledFormula for a numeric constant.
+	 */
+	private static class ConstantFormula implements CompiledFormula
+	{
+		private final Object value;
+
+		ConstantFormula(Object value)
+		{
+			this.value = value;
+		}
+
+		@Override
+		public Object evaluate(ScopeInformation si)
+		{
+			return value;
+		}
+	}
+
+	/**
+	 * A CompiledFormula for a variable.
+	 */
+	private static class VariableFormula implements CompiledFormula
+	{
+		private final VariableBinding binding;
+
+		VariableFormula(String varName)
+		{
+			binding = new VariableBinding(varName);
+		}
+
+		@Override
+		public Object evaluate(ScopeInformation si)
+		{
+			return CompiledFormulaSupport.getVariable(si, binding);
+		}
+	}
+
+	/**
+	 * A CompiledFormula for an Operator, with the OperatorAction bound on
+	 * first evaluation (see OperatorBinding).
+	 */
+	private static class OperatorFormula implements CompiledFormula
+	{
+		private final OperatorBinding binding;
+		private final CompiledFormula left;
+		private final CompiledFormula right;
+
+		OperatorFormula(OperatorLibrary opLibrary, Operator op,
+			CompiledFormula left, CompiledFormula right)
+		{
+			this.binding = new OperatorBinding(opLibrary, op);
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		public Object evaluate(ScopeInformation si)
+		{
+			return binding.evaluate(left.evaluate(si), right.evaluate(si));
+		}
+	}
+
+	/**
+	 * A CompiledFormula for an Operator where the right argument is not
+	 * evaluated if the left argument determines the result.
+	 */
+	private static class ShortCircuitFormula implements CompiledFormula
+	{
+		private final OperatorBinding binding;
+		private final CompiledFormula left;
+		private final CompiledFormula right;
+
+		ShortCircuitFormula(OperatorLibrary opLibrary, Operator op,
+			CompiledFormula left, CompiledFormula right)
+		{
+			this.binding = new OperatorBinding(opLibrary, op);
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		public Object evaluate(ScopeInformation si)
+		{
+			Object l = left.evaluate(si);
+			Object result = binding.shortCircuit(l);
+			if (result != null)
+			{
+				return result;
+			}
+			return binding.evaluate(l, right.evaluate(si));
+		}
+	}
+
+	/**
+	 * A CompiledFormula for a unary minus.
+	 */
+	private static class NegateFormula implements CompiledFormula
+	{
+		private final CompiledFormula child;
+
+		NegateFormula(CompiledFormula child)
+		{
+			this.child = child;
+		}
+
+		@Override
+		public Object evaluate(ScopeInformation si)
+		{
+			return CompiledFormulaSupport.negate((Number) child.evaluate(si));
+		}
+	}
+
+	/**
+	 * A CompiledFormula for an exponent (X^Y^Z is evaluated as X^(Y*Z)).
+	 */
+	private static class ExponentFormula implements CompiledFormula
+	{
+		private final CompiledFormula[] children;
+
+		ExponentFormula(CompiledFormula[] children)
+		{
+			this.children = children;
+		}
+
+		@Override
+		public Object evaluate(ScopeInformation si)
+		{
+			Number base = (Number) children[0].evaluate(si);
+			Number exponent = (Number) children[1].evaluate(si);
+			for (int i = 2; i < children.length; i++)
+			{
+				exponent =
+						CompiledFormulaSupport.multiplyExponent(exponent,
+							(Number) children[i].evaluate(si));
+			}
+			return CompiledFormulaSupport.power(base, exponent);
+		}
+	}
+
+	/**
+	 * A CompiledFormula for a built-in Function with a single argument.
+	 */
+	private static class UnaryFunctionFormula implements CompiledFormula
+	{
+		private final BuiltInFunction function;
+		private final CompiledFormula arg;
+
+		UnaryFunctionFormula(BuiltInFunction function, CompiledFormula arg)
+		{
+			this.function = function;
+			this.arg = arg;
+		}
+
+		@Override
+		public Object evaluate(ScopeInformation si)
+		{
+			return function.apply((Number) arg.evaluate(si));
+		}
+	}
+
+	/**
+	 * A CompiledFormula for a built-in Function with 2 or more arguments.
+	 */
+	private static class NaryFunctionFormula implements CompiledFormula
+	{
+		private final BuiltInFunction function;
+		private final CompiledFormula[] args;
+
+		NaryFunctionFormula(BuiltInFunction function, CompiledFormula[] args)
+		{
+			this.function = function;
+			this.args = args;
+		}
+
+		@Override
+		public Object evaluate(ScopeInformation si)
+		{
+			Number solution = (Number) args[0].evaluate(si);
+			for (int i = 1; i < args.length; i++)
+			{
+				solution =
+						function.apply(solution, (Number) args[i].evaluate(si));
+			}
+			return solution;
+		}
+	}
+
+	/**
+	 * A CompiledFormula for the IF Function. Only the branch selected by the
+	 * condition is evaluated.
+	 */
+	private static class IfFormula implements CompiledFormula
+	{
+		private final CompiledFormula condition;
+		private final CompiledFormula ifTrue;
+		private final CompiledFormula ifFalse;
+
+		IfFormula(CompiledFormula condition, CompiledFormula ifTrue,
+			CompiledFormula ifFalse)
+		{
+			this.condition = condition;
+			this.ifTrue = ifTrue;
+			this.ifFalse = ifFalse;
+		}
+
+		@Override
+		public Object evaluate(ScopeInformation si)
+		{
+			if (((Boolean) condition.evaluate(si)).booleanValue())
+			{
+				return ifTrue.evaluate(si);
+			}
+			return ifFalse.evaluate(si);
+		}
+	}
+
+	/**
+	 * A CompiledFormula for a Function that is not built-in, and thus must be
+	 * called through the Function interface.
+	 */
+	private static class FunctionFormula implements CompiledFormula
+	{
+		private final Function function;
+		private final Node[] args;
+
+		FunctionFormula(Function function, Node[] args)
+		{
+			this.function = function;
+			this.args = args;
+		}
+
+		@Override
+		public Object evaluate(ScopeInformation si)
+		{
+			return CompiledFormulaSupport.evaluateFunction(function, si, args);
+		}
+	}
+}
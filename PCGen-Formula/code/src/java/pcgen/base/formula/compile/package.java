@@ -0,0 +1,35 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.compile;
+
+/**
+ * pcgen.base.formula.compile is a package of "compilers" that convert the tree
+ * of objects produced by the parser into a form that can be evaluated directly,
+ * without visiting the tree each time the formula is resolved.
+ * 
+ * The visitors in pcgen.base.formula.visitor remain the reference behavior for
+ * a formula. A CompiledFormula is required to produce the same result as
+ * EvaluateVisitor for the tree from which it was compiled; it simply trades
+ * some work at compile time (e.g. looking up Functions, parsing numbers) for
+ * less work each time the formula is evaluated.
+ * 
+ * Compilation is intended to take place only on a formula that has been
+ * validated (see ValidVisitor). The behavior of compiling an invalid formula is
+ * not defined, but will generally result in an exception being thrown either
+ * during compilation or during evaluation.
+ */
@@ -21,7 +21,8 @@ package pcgen.base.formula.function;
  * AbsFunction returns the absolute value of the given argument. The same
  * conditions/rules apply as those in Java.lang.Math.abs(double)
  */
-public class AbsFunction extends AbstractUnaryFunction
+public class AbsFunction extends AbstractUnaryFunction implements
+		ReadOnlyArgumentsFunction
 {
 
 	/**
@@ -21,7 +21,8 @@ package pcgen.base.formula.function;
  * FloorFunction rounds the value of a Number to the next lowest integer value.
  * The same situations/rules apply as those in java.lang.Math.ceil(double)
  */
-public class CeilFunction extends AbstractUnaryFunction
+public class CeilFunction extends AbstractUnaryFunction implements
+		ReadOnlyArgumentsFunction
 {
 
 	/**
@@ -37,7 +37,7 @@ import pcgen.base.formula.visitor.ValidVisitor;
  * (return_if_true) being returned.
  * 
  */
-public class IfFunction implements Function
+public class IfFunction implements ReadOnlyArgumentsFunction
 {
 
 	/**
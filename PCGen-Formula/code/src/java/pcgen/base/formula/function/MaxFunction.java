@@ -22,7 +22,8 @@ package pcgen.base.formula.function;
  * situations/boundary condition rules apply as those in
  * java.lang.Math.max(double, double)
  */
-public class MaxFunction extends AbstractNaryFunction
+public class MaxFunction extends AbstractNaryFunction implements
+		ReadOnlyArgumentsFunction
 {
 
 	/**
@@ -22,7 +22,8 @@ package pcgen.base.formula.function;
  * situations/boundary condition rules apply as those in
  * java.lang.Math.min(double, double)
  */
-public class MinFunction extends AbstractNaryFunction
+public class MinFunction extends AbstractNaryFunction implements
+		ReadOnlyArgumentsFunction
 {
 
 	/**
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.function;
+
+/**
+ * A ReadOnlyArgumentsFunction is a Function which never modifies the args
+ * array provided to any of its methods.
+ * 
+ * The contract of the Function interface transfers ownership of the args
+ * array to the Function, so the caller must provide a new array for each
+ * call. A ReadOnlyArgumentsFunction relaxes that contract: the caller may
+ * provide the same array each time (e.g. the arguments held by a
+ * FunctionBinding) without copying it.
+ * 
+ * The built-in functions in this package are ReadOnlyArgumentsFunctions. A
+ * subclass of one of these functions must also not modify the args array.
+ */
+public interface ReadOnlyArgumentsFunction extends Function
+{
+	//Marker interface
+}
@@ -22,7 +22,8 @@ package pcgen.base.formula.function;
  * any value that is equally distant between two integers, the same rules apply
  * as those in java.lang.Math.round(double)
  */
-public class RoundFunction extends AbstractUnaryFunction
+public class RoundFunction extends AbstractUnaryFunction implements
+		ReadOnlyArgumentsFunction
 {
 
 	/**
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.manager;
+
+import pcgen.base.formula.base.FormulaSemantics;
+import pcgen.base.formula.compile.CompiledFormula;
+import pcgen.base.formula.parse.SimpleNode;
+import pcgen.base.formula.variable.ScopedNamespaceDefinition;
+
+/**
+ * A FormulaBinding holds what a FormulaManager has derived from the parsed tree
+ * of a formula (the CompiledFormula, and the FormulaSemantics of the formula in
+ * each ScopedNamespaceDefinition in which it is valid), so that it is derived
+ * once.
+ * 
+ * A FormulaBinding applies to a single FormulaManager. The FormulaBinding for
+ * each FormulaManager through which a parsed tree has been used is bound to the
+ * root node of the parsed tree (see SimpleNode.setBinding; the root node is
+ * normally an ASTRoot, which has no other binding), so a parsed tree shared by
+ * several FormulaManager objects (e.g. through a FormulaFactory) is compiled
+ * and validated once for each FormulaManager. The FormulaBinding objects (and
+ * thus the FormulaManager objects) are released along with the parsed tree
+ * (e.g. when a formula is evicted from a FormulaFactory), rather than the
+ * FormulaManager holding each parsed tree for as long as the FormulaManager
+ * is in use.
+ * 
+ * FormulaBinding is thread-safe. A FormulaBinding, CompiledFormula or
+ * FormulaSemantics lost by a concurrent replacement is simply derived again.
+ */
+final class FormulaBinding
+{
+
+	/**
+	 * The empty array of FormulaBinding objects.
+	 */
+	private static final FormulaBinding[] NO_BINDINGS = new FormulaBinding[0];
+
+	/**
+	 * The empty array of Validity objects.
+	 */
+	private static final Validity[] NONE = new Validity[0];
+
+	/**
+	 * The FormulaManager for which this FormulaBinding holds information.
+	 */
+	private final FormulaManager fm;
+
+	/**
+	 * The CompiledFormula for the parsed tree, or null if it has not yet been
+	 * compiled.
+	 */
+	private volatile CompiledFormula compiled;
+
+	/**
+	 * The FormulaSemantics for each ScopedNamespaceDefinition in which the
+	 * formula has been found to be valid. Replaced (never modified), so it is
+	 * safely published to other threads.
+	 */
+	private volatile Validity[] validities = NONE;
+
+	private FormulaBinding(FormulaManager fm)
+	{
+		this.fm = fm;
+	}
+
+	/**
+	 * Returns the FormulaBinding for the given FormulaManager bound to the
+	 * given root node, binding a new FormulaBinding to the root node if it
+	 * does not have one for the given FormulaManager.
+	 * 
+	 * @param fm
+	 *            The FormulaManager for which the FormulaBinding holds
+	 *            information
+	 * @param root
+	 *            The root node of a parsed tree of a formula
+	 * @return The FormulaBinding for the given FormulaManager bound to the
+	 *         given root node
+	 */
+	static FormulaBinding get(FormulaManager fm, SimpleNode root)
+	{
+		Object bound = root.getBinding();
+		RootBinding rootBinding;
+		if (bound instanceof RootBinding)
+		{
+			rootBinding = (RootBinding) bound;
+		}
+		else
+		{
+			rootBinding = new RootBinding();
+			root.setBinding(rootBinding);
+		}
+		return rootBinding.get(fm);
+	}
+
+	/**
+	 * Returns the CompiledFormula for the parsed tree, or null if it has not
+	 * yet been compiled.
+	 * 
+	 * @return The CompiledFormula for the parsed tree, or null
+	 */
+	CompiledFormula getCompiledFormula()
+	{
+		return compiled;
+	}
+
+	/**
+	 * Sets the CompiledFormula for the parsed tree.
+	 * 
+	 * @param cf
+	 *            The CompiledFormula for the parsed tree
+	 */
+	void setCompiledFormula(CompiledFormula cf)
+	{
+		compiled = cf;
+	}
+
+	/**
+	 * Returns the FormulaSemantics of the formula in the given
+	 * ScopedNamespaceDefinition, if the formula has been found to be valid in
+	 * that ScopedNamespaceDefinition; otherwise null.
+	 * 
+	 * @param snDef
+	 *            The ScopedNamespaceDefinition in which the formula was
+	 *            validated
+	 * @return The FormulaSemantics of the formula in the given
+	 *         ScopedNamespaceDefinition, or null
+	 */
+	FormulaSemantics getValidSemantics(ScopedNamespaceDefinition<?> snDef)
+	{
+		for (Validity validity : validities)
+		{
+			if (validity.snDef == snDef)
+			{
+				return validity.semantics;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Adds the FormulaSemantics of the formula in the given
+	 * ScopedNamespaceDefinition, in which the formula has been found to be
+	 * valid.
+	 * 
+	 * @param snDef
+	 *            The ScopedNamespaceDefinition in which the formula was
+	 *            validated
+	 * @param fs
+	 *            The FormulaSemantics (indicating the formula is valid) of the
+	 *            formula in the given ScopedNamespaceDefinition
+	 */
+	void addValidSemantics(ScopedNamespaceDefinition<?> snDef,
+		FormulaSemantics fs)
+	{
+		Validity[] current = validities;
+		Validity[] replacement = new Validity[current.length + 1];
+		System.arraycopy(current, 0, replacement, 0, current.length);
+		replacement[current.length] = new Validity(snDef, fs);
+		validities = replacement;
+	}
+
+	/**
+	 * The FormulaBinding objects bound to the root node of a parsed tree, one
+	 * for each FormulaManager through which the parsed tree has been used.
+	 */
+	private static final class RootBinding
+	{
+		/**
+		 * The FormulaBinding for each FormulaManager. Replaced (never
+		 * modified), so it is safely published to other threads.
+		 */
+		private volatile FormulaBinding[] bindings = NO_BINDINGS;
+
+		private FormulaBinding get(FormulaManager fm)
+		{
+			FormulaBinding[] current = bindings;
+			for (FormulaBinding binding : current)
+			{
+				if (binding.fm == fm)
+				{
+					return binding;
+				}
+			}
+			FormulaBinding binding = new FormulaBinding(fm);
+			FormulaBinding[] replacement =
+					new FormulaBinding[current.length + 1];
+			System.arraycopy(current, 0, replacement, 0, current.length);
+			replacement[current.length] = binding;
+			bindings = replacement;
+			return binding;
+		}
+	}
+
+	/**
+	 * The FormulaSemantics of the formula in a ScopedNamespaceDefinition in
+	 * which it is valid.
+	 */
+	private static final class Validity
+	{
+		private final ScopedNamespaceDefinition<?> snDef;
+		private final FormulaSemantics semantics;
+
+		private Validity(ScopedNamespaceDefinition<?> snDef,
+			FormulaSemantics semantics)
+		{
+			this.snDef = snDef;
+			this.semantics = semantics;
+		}
+	}
+}
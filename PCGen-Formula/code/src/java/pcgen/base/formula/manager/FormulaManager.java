@@ -17,12 +17,18 @@
  */
 package pcgen.base.formula.manager;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import pcgen.base.formula.base.FormulaSemantics;
+import pcgen.base.formula.compile.CompiledFormula;
+import pcgen.base.formula.compile.FormulaCompiler;
 import pcgen.base.formula.error.InvalidSemantics;
 import pcgen.base.formula.parse.SimpleNode;
 import pcgen.base.formula.variable.ScopedNamespaceDefinition;
 import pcgen.base.formula.variable.VariableLibrary;
 import pcgen.base.formula.variable.VariableStore;
+import pcgen.base.formula.visitor.SubtreeInterner;
 import pcgen.base.formula.visitor.ValidVisitor;
 
 /**
@@ -32,20 +38,40 @@ import pcgen.base.formula.visitor.ValidVisitor;
  * keeps the number of parameters that have to be passed around to a reasonable
  * level)
  * 
- * This is also an object used to "cache" the valid visitor (since the visitor
+ * This is also an object used to "cache" the valid visitors (since a visitor
  * needs to know some of the contents in the FormulaManager, it can be lazily
  * instantiated but then effectively cached as long as that FormulaManager is
  * reused - especially valuable for things like the global context which in the
- * future we can create once for the PC and never have to recreate...)
+ * future we can create once for the PC and never have to recreate...). A
+ * ValidVisitor is cached for each ScopedNamespaceDefinition. The
+ * FormulaSemantics of a formula found to be valid in a
+ * ScopedNamespaceDefinition is held by the parsed tree of the formula (see
+ * FormulaBinding).
+ * 
+ * A FormulaManager also holds a SubtreeInterner, so that structurally
+ * identical subtrees of the formulas loaded for the FormulaManager (see
+ * intern(SimpleNode)) are held in memory once.
+ * 
+ * FormulaManager is thread-safe: a single FormulaManager may be shared by all
+ * of the threads that validate and evaluate formulas, without any global lock.
+ * The ValidVisitor objects are held in a concurrent map, the FormulaSemantics
+ * and CompiledFormula objects are held by the parsed trees (see
+ * FormulaBinding, which is thread-safe), and the visitors and compiled
+ * formulas are immutable. This relies on the contents of the FunctionLibrary,
+ * OperatorLibrary and VariableLibrary (function, operator and variable
+ * definitions) being loaded before the FormulaManager is shared, and on the
+ * VariableStore either being thread-safe or not being modified while formulas
+ * are evaluated.
  */
 public class FormulaManager
 {
 
 	/**
-	 * The ValidVisitor for this FormulaManager. Can return the FormulaSemantics
-	 * for a parsed tree. Lazily Instantiated.
+	 * The ValidVisitor for each ScopedNamespaceDefinition in which formulas
+	 * have been validated through this FormulaManager. Lazily Instantiated.
 	 */
-	private ValidVisitor validVisitor;
+	private final ConcurrentMap<ScopedNamespaceDefinition<?>, ValidVisitor> validators =
+			new ConcurrentHashMap<ScopedNamespaceDefinition<?>, ValidVisitor>();
 
 	/**
 	 * The FunctionLibrary used to store valid functions in this FormulaManager.
@@ -70,6 +96,19 @@ public class FormulaManager
 	 */
 	private final VariableStore results;
 
+	/**
+	 * The FormulaCompiler used to compile formulas evaluated through this
+	 * FormulaManager. May be null, in which case formulas are evaluated by
+	 * visiting the parsed tree.
+	 */
+	private final FormulaCompiler compiler;
+
+	/**
+	 * The SubtreeInterner used to share structurally identical subtrees across
+	 * the formulas loaded for this FormulaManager.
+	 */
+	private final SubtreeInterner interner = new SubtreeInterner();
+
 	/**
 	 * Constructs a new FormulaManager from the provided FunctionLibrary,
 	 * VariableLibrary, VariableScope, and VariableStore.
@@ -91,6 +130,35 @@ public class FormulaManager
 	 */
 	public FormulaManager(FunctionLibrary fl, OperatorLibrary ol,
 		VariableLibrary sl, VariableStore resultStore)
+	{
+		this(fl, ol, sl, resultStore, null);
+	}
+
+	/**
+	 * Constructs a new FormulaManager from the provided FunctionLibrary,
+	 * VariableLibrary, VariableScope, and VariableStore, which will compile
+	 * formulas using the given FormulaCompiler before they are evaluated.
+	 * 
+	 * @param fl
+	 *            The FunctionLibrary used to store valid functions in this
+	 *            FormulaManager
+	 * @param ol
+	 *            The OperatorLibrary used to store valid operators in this
+	 *            FormulaManager
+	 * @param sl
+	 *            The VariableLibrary used to get ScopedNamespaceDefinitions,
+	 *            VariableScopes, and VariableIDs
+	 * @param resultStore
+	 *            The VariableStore used to hold variables values for items
+	 *            processed through this FormulaManager
+	 * @param compiler
+	 *            The FormulaCompiler used to compile formulas before they are
+	 *            evaluated (may be null to evaluate the parsed tree directly)
+	 * @throws IllegalArgumentException
+	 *             if any parameter other than the FormulaCompiler is null
+	 */
+	public FormulaManager(FunctionLibrary fl, OperatorLibrary ol,
+		VariableLibrary sl, VariableStore resultStore, FormulaCompiler compiler)
 	{
 		if (fl == null)
 		{
@@ -116,6 +184,7 @@ public class FormulaManager
 		this.opLibrary = ol;
 		this.varLibrary = sl;
 		this.results = resultStore;
+		this.compiler = compiler;
 	}
 
 	/**
@@ -166,10 +235,94 @@ public class FormulaManager
 		return opLibrary;
 	}
 
+	/**
+	 * Returns a copy of the parsed tree starting with the given root node, in
+	 * which each subtree that is structurally identical to a subtree of a
+	 * formula previously interned through this FormulaManager is replaced by
+	 * that existing subtree. The given tree is not modified.
+	 * 
+	 * Since the returned tree shares nodes with other formulas, it must not be
+	 * modified. A node-level cache (such as a binding held by a node, or a
+	 * CompiledFormula) is therefore also shared by those formulas.
+	 * 
+	 * @param root
+	 *            The starting node in a parsed tree of a formula
+	 * @return The root node of the interned copy of the given tree
+	 * @throws IllegalArgumentException
+	 *             if the given root is null
+	 */
+	public SimpleNode intern(SimpleNode root)
+	{
+		return interner.intern(root);
+	}
+
+	/**
+	 * Returns the number of nodes that have been saved by sharing structurally
+	 * identical subtrees of the formulas interned through this FormulaManager
+	 * (see intern(SimpleNode)).
+	 * 
+	 * @return The number of nodes saved by interning formulas through this
+	 *         FormulaManager
+	 */
+	public long getSavedNodeCount()
+	{
+		return interner.getSavedNodeCount();
+	}
+
+	/**
+	 * Returns the CompiledFormula for the parsed tree starting with the given
+	 * root node. The formula is compiled the first time it is requested and
+	 * the CompiledFormula is reused for subsequent requests. The
+	 * CompiledFormula is held by the root node (see FormulaBinding), so it is
+	 * released along with the parsed tree.
+	 * 
+	 * Returns null if this FormulaManager was not constructed with a
+	 * FormulaCompiler.
+	 * 
+	 * @param root
+	 *            The starting node in a parsed tree of a formula
+	 * @return The CompiledFormula for the given parsed tree, or null if this
+	 *         FormulaManager does not compile formulas
+	 * @throws IllegalArgumentException
+	 *             if the given root is null
+	 */
+	public CompiledFormula getCompiledFormula(SimpleNode root)
+	{
+		if (root == null)
+		{
+			throw new IllegalArgumentException(
+				"Cannot get compiled formula with null root");
+		}
+		if (compiler == null)
+		{
+			return null;
+		}
+		FormulaBinding binding = FormulaBinding.get(this, root);
+		CompiledFormula cf = binding.getCompiledFormula();
+		if (cf == null)
+		{
+			cf = compiler.compile(this, root);
+			binding.setCompiledFormula(cf);
+		}
+		return cf;
+	}
+
 	/**
 	 * Returns the FormulaSemantics for the formula starting with with the given
 	 * SimpleNode as the root of the parsed tree of the formula.
 	 * 
+	 * A FormulaSemantics indicating the formula is valid is cached, and
+	 * returned for any later request for the same parsed tree and
+	 * ScopedNamespaceDefinition. (A valid formula remains valid, since
+	 * functions, operators and variables can be added to the libraries of a
+	 * FormulaManager but not removed.) A FormulaSemantics indicating the
+	 * formula is not valid is not cached, as the formula may become valid once
+	 * further functions, operators or variables are defined. The cached
+	 * FormulaSemantics is held by the root node for this FormulaManager (see
+	 * FormulaBinding), so it is kept while the parsed tree is also validated
+	 * through other FormulaManager objects, and released along with the
+	 * parsed tree.
+	 * 
 	 * @param root
 	 *            The starting node in a parsed tree of a formula, to be used
 	 *            for the semantics evaluation
@@ -194,11 +347,38 @@ public class FormulaManager
 			throw new IllegalArgumentException(
 				"Cannot determine validity with null ScopedNamespaceDefinition");
 		}
-		if (validVisitor == null)
+		FormulaBinding binding = FormulaBinding.get(this, root);
+		FormulaSemantics fs = binding.getValidSemantics(snDef);
+		if (fs == null)
 		{
-			validVisitor = new ValidVisitor(this, snDef);
+			fs = validate(getValidVisitor(snDef), root, snDef);
+			if (fs.isValid())
+			{
+				binding.addValidSemantics(snDef, fs);
+			}
 		}
-		FormulaSemantics fs = (FormulaSemantics) validVisitor.visit(root, null);
+		return fs;
+	}
+
+	private ValidVisitor getValidVisitor(ScopedNamespaceDefinition<?> snDef)
+	{
+		ValidVisitor visitor = validators.get(snDef);
+		if (visitor == null)
+		{
+			visitor = new ValidVisitor(this, snDef);
+			ValidVisitor existing = validators.putIfAbsent(snDef, visitor);
+			if (existing != null)
+			{
+				visitor = existing;
+			}
+		}
+		return visitor;
+	}
+
+	private static FormulaSemantics validate(ValidVisitor visitor,
+		SimpleNode root, ScopedNamespaceDefinition<?> snDef)
+	{
+		FormulaSemantics fs = (FormulaSemantics) visitor.visit(root, null);
 		if (!fs.isValid())
 		{
 			return fs;
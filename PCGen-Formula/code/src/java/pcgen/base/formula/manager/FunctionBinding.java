@@ -0,0 +1,153 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.manager;
+
+import pcgen.base.formula.function.Function;
+import pcgen.base.formula.function.ReadOnlyArgumentsFunction;
+import pcgen.base.formula.parse.Node;
+
+/**
+ * A FunctionBinding is the Function and arguments for a single function call
+ * at a single location in a formula.
+ * 
+ * Identifying the Function (by name, from the FunctionLibrary) and gathering
+ * the arguments into an array only depend on the structure of the formula, so
+ * they are performed once (when the formula is linked to a FunctionLibrary)
+ * rather than each time the formula is processed. The contract of the
+ * Function interface transfers ownership of the args array to the Function,
+ * so getArguments provides a copy of the arguments for each call, unless the
+ * Function is a ReadOnlyArgumentsFunction (such as the built-in functions),
+ * in which case the same array is provided each time.
+ * 
+ * Like the FunctionLibrary, this assumes that Functions are not added to (or
+ * replaced in) the FunctionLibrary once formulas are being processed.
+ * 
+ * FunctionBinding is immutable and thus thread-safe.
+ */
+public final class FunctionBinding
+{
+
+	/**
+	 * The FunctionLibrary from which the Function was identified.
+	 */
+	private final FunctionLibrary library;
+
+	/**
+	 * The Function to be called.
+	 */
+	private final Function function;
+
+	/**
+	 * The arguments to the Function.
+	 */
+	private final Node[] args;
+
+	/**
+	 * Constructs a new FunctionBinding for the given Function (identified from
+	 * the given FunctionLibrary) and arguments.
+	 * 
+	 * Ownership of the arguments array is transferred to the FunctionBinding;
+	 * the calling object should not modify the array after construction.
+	 * 
+	 * @param library
+	 *            The FunctionLibrary from which the Function was identified
+	 * @param function
+	 *            The Function to be called
+	 * @param args
+	 *            The arguments to the Function
+	 * @throws IllegalArgumentException
+	 *             if any parameter is null
+	 */
+	public FunctionBinding(FunctionLibrary library, Function function,
+		Node[] args)
+	{
+		if (library == null)
+		{
+			throw new IllegalArgumentException(
+				"FunctionLibrary cannot be null");
+		}
+		if (function == null)
+		{
+			throw new IllegalArgumentException("Function cannot be null");
+		}
+		if (args == null)
+		{
+			throw new IllegalArgumentException("Arguments cannot be null");
+		}
+		this.library = library;
+		this.function = function;
+		this.args = args;
+	}
+
+	/**
+	 * Returns true if the Function in this FunctionBinding was identified from
+	 * the given FunctionLibrary.
+	 * 
+	 * @param functionLibrary
+	 *            The FunctionLibrary to be checked
+	 * @return true if the Function in this FunctionBinding was identified from
+	 *         the given FunctionLibrary; false otherwise
+	 */
+	public boolean isBoundTo(FunctionLibrary functionLibrary)
+	{
+		return library == functionLibrary;
+	}
+
+	/**
+	 * Returns the Function to be called.
+	 * 
+	 * @return The Function to be called
+	 */
+	public Function getFunction()
+	{
+		return function;
+	}
+
+	/**
+	 * Returns the arguments to be provided to the Function.
+	 * 
+	 * Ownership of the returned array is transferred to the calling object
+	 * (which in turn transfers it to the Function), unless the Function is a
+	 * ReadOnlyArgumentsFunction, in which case the returned array is shared
+	 * by every caller and must not be modified.
+	 * 
+	 * @return The arguments to be provided to the Function
+	 */
+	public Node[] getArguments()
+	{
+		return getArguments(function, args);
+	}
+
+	/**
+	 * Returns the arguments to be provided to the given Function from the
+	 * given array of arguments held by the calling object: the given array if
+	 * the Function is a ReadOnlyArgumentsFunction, otherwise a copy of the
+	 * given array (as ownership of the array is transferred to the Function).
+	 * 
+	 * @param function
+	 *            The Function to which the arguments are to be provided
+	 * @param args
+	 *            The arguments held by the calling object
+	 * @return The arguments to be provided to the given Function
+	 */
+	public static Node[] getArguments(Function function, Node[] args)
+	{
+		return (function instanceof ReadOnlyArgumentsFunction) ? args : args
+			.clone();
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2014 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.manager;
+
+import pcgen.base.formula.base.OperatorAction;
+import pcgen.base.formula.parse.Operator;
+
+/**
+ * An OperatorActionLibrary is an OperatorLibrary which can also provide the
+ * OperatorAction it selects for an Operator, so that the selection can be made
+ * once rather than on each evaluation, and can report when the result of an
+ * Operator is determined by the first argument alone.
+ * 
+ * This is separate from OperatorLibrary so that existing implementations of
+ * OperatorLibrary continue to compile unchanged. Formula evaluation checks
+ * whether the OperatorLibrary is an OperatorActionLibrary, and otherwise calls
+ * OperatorLibrary.evaluate for each operation (with both arguments
+ * evaluated).
+ */
+public interface OperatorActionLibrary extends OperatorLibrary
+{
+
+	/**
+	 * Returns the OperatorAction that would be used to evaluate the given
+	 * Operator on arguments of the two given classes.
+	 * 
+	 * This allows the caller to resolve the OperatorAction once (for example,
+	 * when a formula is compiled) rather than on each evaluation. The returned
+	 * OperatorAction is the same one that evaluate would use for arguments of
+	 * the given classes.
+	 * 
+	 * @param op
+	 *            The Operator to be evaluated
+	 * @param format1
+	 *            The class of the first argument to the operation
+	 * @param format2
+	 *            The class of the second argument to the operation
+	 * @return The OperatorAction that would be used to evaluate the given
+	 *         Operator on arguments of the given classes; null if this
+	 *         OperatorLibrary has no such OperatorAction
+	 */
+	public OperatorAction getAction(Operator op, Class<?> format1,
+		Class<?> format2);
+
+	/**
+	 * Returns the result of the given Operator if it is determined by the
+	 * given first argument alone (regardless of the second argument). Returns
+	 * null if the second argument is required to determine the result.
+	 * 
+	 * Since the OperatorAction used to perform an operation depends on both
+	 * arguments, a non-null value is returned only if every OperatorAction
+	 * for the given Operator is a ShortCircuitAction that returns the same
+	 * result for the given first argument.
+	 * 
+	 * Formula evaluation uses this to avoid evaluating the second argument of
+	 * a logical operator (AND, OR) when it would not change the result.
+	 * 
+	 * @param op
+	 *            The Operator to be evaluated
+	 * @param o1
+	 *            The first argument to the operation
+	 * @return The result of the operation if it is determined by the given
+	 *         first argument alone; null otherwise
+	 */
+	public Object shortCircuit(Operator op, Object o1);
+
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.manager;
+
+import pcgen.base.formula.base.OperatorAction;
+import pcgen.base.formula.parse.Operator;
+
+/**
+ * An OperatorBinding evaluates a single Operator at a single location in a
+ * formula, remembering the OperatorAction selected by the OperatorLibrary.
+ * 
+ * Selecting the OperatorAction (see OperatorLibrary.evaluate) requires a
+ * search of the available OperatorActions. At a given location in a formula,
+ * the classes of the arguments rarely change, so the OperatorAction selected
+ * for the most recent classes of arguments is remembered and called directly
+ * when the arguments have the same classes. If the classes differ, the
+ * OperatorAction is selected again.
+ * 
+ * The formats produced by ValidVisitor (e.g. Number) are not used to select
+ * the OperatorAction in advance, as they are more generic than the actual
+ * arguments, and the OperatorLibrary may select a different OperatorAction
+ * for the actual arguments.
+ * 
+ * The OperatorAction can only be remembered if the OperatorLibrary is an
+ * OperatorActionLibrary. For any other OperatorLibrary, each evaluation is
+ * performed by OperatorLibrary.evaluate.
+ * 
+ * Like the OperatorLibrary, this assumes that OperatorActions are not added to
+ * the OperatorLibrary once formulas are being evaluated.
+ * 
+ * OperatorBinding is thread-safe.
+ */
+public final class OperatorBinding
+{
+
+	/**
+	 * The OperatorLibrary used to select the OperatorAction.
+	 */
+	private final OperatorLibrary library;
+
+	/**
+	 * The OperatorLibrary used to select the OperatorAction, if it is an
+	 * OperatorActionLibrary; null otherwise.
+	 */
+	private final OperatorActionLibrary actionLibrary;
+
+	/**
+	 * The Operator to be evaluated.
+	 */
+	private final Operator op;
+
+	/**
+	 * The OperatorAction selected for the most recent classes of arguments.
+	 * Replaced (never modified), so it is safely published to other threads.
+	 */
+	private volatile Selection selection;
+
+	/**
+	 * Constructs a new OperatorBinding for the given Operator, selecting
+	 * OperatorActions from the given OperatorLibrary.
+	 * 
+	 * @param library
+	 *            The OperatorLibrary used to select the OperatorAction
+	 * @param op
+	 *            The Operator to be evaluated
+	 * @throws IllegalArgumentException
+	 *             if either parameter is null
+	 */
+	public OperatorBinding(OperatorLibrary library, Operator op)
+	{
+		if (library == null)
+		{
+			throw new IllegalArgumentException(
+				"OperatorLibrary cannot be null");
+		}
+		if (op == null)
+		{
+			throw new IllegalArgumentException("Operator cannot be null");
+		}
+		this.library = library;
+		this.op = op;
+		actionLibrary =
+				(library instanceof OperatorActionLibrary)
+					? (OperatorActionLibrary) library : null;
+	}
+
+	/**
+	 * Returns true if this OperatorBinding evaluates the given Operator using
+	 * the given OperatorLibrary.
+	 * 
+	 * @param operatorLibrary
+	 *            The OperatorLibrary to be checked
+	 * @param operator
+	 *            The Operator to be checked
+	 * @return true if this OperatorBinding evaluates the given Operator using
+	 *         the given OperatorLibrary; false otherwise
+	 */
+	public boolean isBoundTo(OperatorLibrary operatorLibrary, Operator operator)
+	{
+		return (library == operatorLibrary) && (op == operator);
+	}
+
+	/**
+	 * Evaluates the Operator with the two given objects as arguments. The
+	 * result is identical to OperatorLibrary.evaluate.
+	 * 
+	 * @param o1
+	 *            The first argument to the operation
+	 * @param o2
+	 *            The second argument to the operation
+	 * @return The result of the operation
+	 * @throws IllegalStateException
+	 *             if the OperatorLibrary did not have an OperatorAction for
+	 *             the Operator and arguments
+	 */
+	public Object evaluate(Object o1, Object o2)
+	{
+		if (actionLibrary == null)
+		{
+			return library.evaluate(op, o1, o2);
+		}
+		Class<?> format1 = o1.getClass();
+		Class<?> format2 = o2.getClass();
+		Selection s = selection;
+		if ((s == null) || (s.format1 != format1) || (s.format2 != format2))
+		{
+			OperatorAction action =
+					actionLibrary.getAction(op, format1, format2);
+			if (action == null)
+			{
+				//Let the OperatorLibrary report the problem
+				return library.evaluate(op, o1, o2);
+			}
+			s = new Selection(format1, format2, action);
+			selection = s;
+		}
+		return s.action.evaluate(o1, o2);
+	}
+
+	/**
+	 * Returns the result of the Operator if it is determined by the given
+	 * first argument alone (see OperatorActionLibrary.shortCircuit). Always
+	 * returns null if the OperatorLibrary is not an OperatorActionLibrary.
+	 * 
+	 * @param o1
+	 *            The first argument to the operation
+	 * @return The result of the operation if it is determined by the given
+	 *         first argument alone; null otherwise
+	 */
+	public Object shortCircuit(Object o1)
+	{
+		return (actionLibrary == null) ? null : actionLibrary.shortCircuit(op,
+			o1);
+	}
+
+	/**
+	 * The OperatorAction selected for a specific pair of argument classes.
+	 */
+	private static final class Selection
+	{
+		private final Class<?> format1;
+		private final Class<?> format2;
+		private final OperatorAction action;
+
+		private Selection(Class<?> format1, Class<?> format2,
+			OperatorAction action)
+		{
+			this.format1 = format1;
+			this.format2 = format2;
+			this.action = action;
+		}
+	}
+}
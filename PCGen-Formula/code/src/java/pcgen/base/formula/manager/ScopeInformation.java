@@ -18,6 +18,7 @@
 package pcgen.base.formula.manager;
 
 import pcgen.base.formula.base.FormulaDependencyManager;
+import pcgen.base.formula.compile.CompiledFormula;
 import pcgen.base.formula.parse.SimpleNode;
 import pcgen.base.formula.variable.VariableScope;
 import pcgen.base.formula.visitor.DependencyCaptureVisitor;
@@ -36,6 +37,12 @@ import pcgen.base.formula.visitor.StaticVisitor;
  * instantiated but then effectively cached as long as that ScopeInformation is
  * reused - especially valuable for things like the global context which in the
  * future we can create once for the PC and never have to recreate...)
+ * 
+ * ScopeInformation is thread-safe: it may be shared by multiple threads
+ * evaluating formulas in the same VariableScope. The visitors are immutable,
+ * so no lock is required to instantiate them; if two threads instantiate the
+ * same visitor at the same time, one of the (equivalent) visitors is simply
+ * discarded.
  */
 public class ScopeInformation
 {
@@ -45,19 +52,19 @@ public class ScopeInformation
 	 * indicate whether a parsed tree has a static value or depends on the wider
 	 * context (e.g. a variable is not static). Lazily Instantiated.
 	 */
-	private StaticVisitor staticVisitor;
+	private volatile StaticVisitor staticVisitor;
 
 	/**
 	 * The EvaluateVisitor for this ScopeInformation. Calculates the result of a
 	 * parsed tree. Lazily Instantiated.
 	 */
-	private EvaluateVisitor evaluateVisitor;
+	private volatile EvaluateVisitor evaluateVisitor;
 
 	/**
 	 * The DependencyCaptureVisitor for this ScopeInformation. Captures the
 	 * dependencies for a parsed tree. Lazily Instantiated.
 	 */
-	private DependencyCaptureVisitor variableVisitor;
+	private volatile DependencyCaptureVisitor variableVisitor;
 
 	/**
 	 * The FormulaManager for this ScopeInformation, which stores things like
@@ -119,11 +126,13 @@ public class ScopeInformation
 			throw new IllegalArgumentException(
 				"Cannot check for static value with null root");
 		}
-		if (staticVisitor == null)
+		StaticVisitor visitor = staticVisitor;
+		if (visitor == null)
 		{
-			staticVisitor = new StaticVisitor(fm.getLibrary());
+			visitor = new StaticVisitor(fm.getLibrary());
+			staticVisitor = visitor;
 		}
-		return ((Boolean) staticVisitor.visit(root, null)).booleanValue();
+		return ((Boolean) visitor.visit(root, null)).booleanValue();
 	}
 
 	/**
@@ -131,6 +140,10 @@ public class ScopeInformation
 	 * starting with with the given SimpleNode as the root of the parsed tree of
 	 * the formula.
 	 * 
+	 * If the FormulaManager for this ScopeInformation has a FormulaCompiler,
+	 * the compiled form of the formula is evaluated; otherwise the parsed tree
+	 * is evaluated directly.
+	 * 
 	 * @param root
 	 *            The starting node in a parsed tree of a formula, to be used
 	 *            for the evaluation
@@ -144,11 +157,32 @@ public class ScopeInformation
 		{
 			throw new IllegalArgumentException("Cannot evaluate with null root");
 		}
-		if (evaluateVisitor == null)
+		CompiledFormula compiled = fm.getCompiledFormula(root);
+		if (compiled != null)
+		{
+			return compiled.evaluate(this);
+		}
+		return getEvaluateVisitor().visit(root, null);
+	}
+
+	/**
+	 * Returns the EvaluateVisitor for this ScopeInformation.
+	 * 
+	 * This is provided for items (such as compiled formulas) that must call a
+	 * Function directly rather than visiting a parsed tree through the
+	 * evaluate method of this ScopeInformation.
+	 * 
+	 * @return The EvaluateVisitor for this ScopeInformation
+	 */
+	public EvaluateVisitor getEvaluateVisitor()
+	{
+		EvaluateVisitor visitor = evaluateVisitor;
+		if (visitor == null)
 		{
-			evaluateVisitor = new EvaluateVisitor(fm, scope);
+			visitor = new EvaluateVisitor(fm, scope);
+			evaluateVisitor = visitor;
 		}
-		return evaluateVisitor.visit(root, null);
+		return visitor;
 	}
 
 	/**
@@ -180,11 +214,13 @@ public class ScopeInformation
 			throw new IllegalArgumentException(
 				"Cannot get dependencies with null FormulaDependencyManager");
 		}
-		if (variableVisitor == null)
+		DependencyCaptureVisitor visitor = variableVisitor;
+		if (visitor == null)
 		{
-			variableVisitor = new DependencyCaptureVisitor(fm, scope);
+			visitor = new DependencyCaptureVisitor(fm, scope);
+			variableVisitor = visitor;
 		}
-		variableVisitor.visit(root, fdm);
+		visitor.visit(root, fdm);
 	}
 
 	/**
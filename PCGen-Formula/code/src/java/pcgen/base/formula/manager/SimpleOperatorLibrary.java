@@ -17,17 +17,23 @@
  */
 package pcgen.base.formula.manager;
 
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import pcgen.base.formula.base.OperatorAction;
+import pcgen.base.formula.base.ShortCircuitAction;
 import pcgen.base.formula.parse.Operator;
 import pcgen.base.util.HashMapToList;
 
 /**
- * SimpleOperatorLibrary is a simple implementation of the OperatorLibrary
- * interface.
+ * SimpleOperatorLibrary is a simple implementation of the
+ * OperatorActionLibrary interface.
  */
-public class SimpleOperatorLibrary implements OperatorLibrary
+public class SimpleOperatorLibrary implements OperatorActionLibrary
 {
 
 	/**
@@ -37,6 +43,20 @@ public class SimpleOperatorLibrary implements OperatorLibrary
 	private final HashMapToList<Operator, OperatorAction> actionMTL =
 			new HashMapToList<Operator, OperatorAction>();
 
+	/**
+	 * The Operators for which at least one OperatorAction is not a
+	 * ShortCircuitAction (and thus can never short circuit).
+	 */
+	private final Set<Operator> eagerOperators = EnumSet.noneOf(Operator.class);
+
+	/**
+	 * The OperatorActions for each Operator for which every OperatorAction is
+	 * a ShortCircuitAction. Held as an array (rather than read from actionMTL,
+	 * which copies the list) so that shortCircuit does not allocate.
+	 */
+	private final Map<Operator, ShortCircuitAction[]> shortCircuitActions =
+			new EnumMap<Operator, ShortCircuitAction[]>(Operator.class);
+
 	/**
 	 * Add a new OperatorAction to this SimpleOperatorLibrary.
 	 * 
@@ -45,7 +65,30 @@ public class SimpleOperatorLibrary implements OperatorLibrary
 	@Override
 	public void addAction(OperatorAction oa)
 	{
-		actionMTL.addToListFor(oa.getOperator(), oa);
+		Operator op = oa.getOperator();
+		actionMTL.addToListFor(op, oa);
+		if (oa instanceof ShortCircuitAction)
+		{
+			if (!eagerOperators.contains(op))
+			{
+				ShortCircuitAction[] actions = shortCircuitActions.get(op);
+				if (actions == null)
+				{
+					actions = new ShortCircuitAction[]{(ShortCircuitAction) oa};
+				}
+				else
+				{
+					actions = Arrays.copyOf(actions, actions.length + 1);
+					actions[actions.length - 1] = (ShortCircuitAction) oa;
+				}
+				shortCircuitActions.put(op, actions);
+			}
+		}
+		else
+		{
+			eagerOperators.add(op);
+			shortCircuitActions.remove(op);
+		}
 	}
 
 	/**
@@ -104,4 +147,53 @@ public class SimpleOperatorLibrary implements OperatorLibrary
 		return null;
 	}
 
+	/**
+	 * @see pcgen.base.formula.manager.OperatorActionLibrary#getAction(pcgen.base.formula.parse.Operator,
+	 *      java.lang.Class, java.lang.Class)
+	 */
+	@Override
+	public OperatorAction getAction(Operator op, Class<?> format1,
+		Class<?> format2)
+	{
+		List<OperatorAction> list = actionMTL.getListFor(op);
+		if (list != null)
+		{
+			for (OperatorAction action : list)
+			{
+				//null indicates the OperatorAction can't evaluate these
+				if (action.abstractEvaluate(format1, format2) != null)
+				{
+					return action;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @see pcgen.base.formula.manager.OperatorActionLibrary#shortCircuit(pcgen.base.formula.parse.Operator,
+	 *      java.lang.Object)
+	 */
+	@Override
+	public Object shortCircuit(Operator op, Object o1)
+	{
+		ShortCircuitAction[] actions = shortCircuitActions.get(op);
+		if (actions == null)
+		{
+			return null;
+		}
+		Object result = null;
+		for (ShortCircuitAction action : actions)
+		{
+			Object r = action.shortCircuit(o1);
+			//All must agree, since the second argument selects the action
+			if ((r == null) || ((result != null) && !result.equals(r)))
+			{
+				return null;
+			}
+			result = r;
+		}
+		return result;
+	}
+
 }
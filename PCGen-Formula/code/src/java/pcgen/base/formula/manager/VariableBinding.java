@@ -0,0 +1,247 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.manager;
+
+import pcgen.base.formula.variable.ArrayVariableStore;
+import pcgen.base.formula.variable.ScopedNamespaceDefinition;
+import pcgen.base.formula.variable.VariableID;
+import pcgen.base.formula.variable.VariableLibrary;
+import pcgen.base.formula.variable.VariableScope;
+import pcgen.base.formula.variable.VariableStore;
+
+/**
+ * A VariableBinding resolves a single variable name at a single location in a
+ * formula, remembering where the variable is defined.
+ * 
+ * Resolving a variable name (see VariableLibrary.isLegalVariableID and
+ * VariableLibrary.getVariableID) requires a search of the
+ * ScopedNamespaceDefinition of the VariableScope and its parents. The result
+ * depends only on the VariableLibrary and the ScopedNamespaceDefinition (not
+ * the VariableScope itself), so it is remembered for each VariableLibrary and
+ * ScopedNamespaceDefinition: the number of parents between the VariableScope
+ * and the VariableScope in which the variable is defined, and the index of the
+ * variable (see VariableLibrary.getVariableIndex). A formula evaluated in many
+ * VariableScope objects of the same ScopedNamespaceDefinition therefore
+ * resolves each variable name once, and no VariableScope is retained.
+ * 
+ * If the VariableStore is an ArrayVariableStore of the same VariableLibrary,
+ * the value is read directly using the index of the variable (see
+ * ArrayVariableStore.get(VariableScope, int)). Otherwise the VariableID is
+ * provided by the VariableLibrary and the value is read from the
+ * VariableStore.
+ * 
+ * Only successful resolutions are remembered. A variable name that is legal
+ * for a ScopedNamespaceDefinition remains legal
+ * (VariableLibrary.assertVariableScope does not permit a conflicting
+ * definition to be added), but a variable name that is not (yet) legal may
+ * become legal.
+ * 
+ * VariableBinding is thread-safe.
+ */
+public final class VariableBinding
+{
+
+	/**
+	 * The empty array of Resolution objects.
+	 */
+	private static final Resolution[] NONE = new Resolution[0];
+
+	/**
+	 * The name of the variable to be resolved.
+	 */
+	private final String varName;
+
+	/**
+	 * The Resolution for each VariableLibrary and ScopedNamespaceDefinition
+	 * for which the variable name has been resolved. Replaced (never
+	 * modified), so it is safely published to other threads. A Resolution
+	 * lost by a concurrent replacement is simply resolved again.
+	 */
+	private volatile Resolution[] resolutions = NONE;
+
+	/**
+	 * Constructs a new VariableBinding for the variable with the given name.
+	 * 
+	 * @param varName
+	 *            The name of the variable to be resolved
+	 * @throws IllegalArgumentException
+	 *             if the given variable name is null
+	 */
+	public VariableBinding(String varName)
+	{
+		if (varName == null)
+		{
+			throw new IllegalArgumentException("Variable Name cannot be null");
+		}
+		this.varName = varName;
+	}
+
+	/**
+	 * Returns the name of the variable resolved by this VariableBinding.
+	 * 
+	 * @return The name of the variable resolved by this VariableBinding
+	 */
+	public String getVariableName()
+	{
+		return varName;
+	}
+
+	/**
+	 * Returns the VariableID for the variable name of this VariableBinding in
+	 * the given VariableScope, using the given VariableLibrary.
+	 * 
+	 * @param varLib
+	 *            The VariableLibrary used to resolve the variable name
+	 * @param scope
+	 *            The VariableScope in which the variable name is resolved
+	 * @return The VariableID for the variable name of this VariableBinding in
+	 *         the given VariableScope; null if the variable name is not legal
+	 *         in the given VariableScope
+	 */
+	public VariableID<?> getVariableID(VariableLibrary varLib,
+		VariableScope<?> scope)
+	{
+		Resolution resolution = resolve(varLib, scope.getScopeDefinition());
+		if (resolution == null)
+		{
+			return null;
+		}
+		VariableScope<?> definingScope = resolution.getDefiningScope(scope);
+		return (definingScope == null) ? null : varLib.getVariableID(
+			definingScope, varName);
+	}
+
+	/**
+	 * Returns the value of the variable for this VariableBinding in the given
+	 * VariableScope, from the VariableStore of the given FormulaManager.
+	 * 
+	 * @param fm
+	 *            The FormulaManager used to resolve the variable name and
+	 *            provide the value of the variable
+	 * @param scope
+	 *            The VariableScope in which the variable name is resolved
+	 * @return The value of the variable for this VariableBinding in the given
+	 *         VariableScope; null if the variable name is not legal in the
+	 *         given VariableScope or the variable has no value
+	 */
+	public Object getValue(FormulaManager fm, VariableScope<?> scope)
+	{
+		VariableLibrary varLib = fm.getFactory();
+		Resolution resolution = resolve(varLib, scope.getScopeDefinition());
+		if (resolution == null)
+		{
+			return null;
+		}
+		VariableScope<?> definingScope = resolution.getDefiningScope(scope);
+		if (definingScope == null)
+		{
+			return null;
+		}
+		VariableStore store = fm.getResolver();
+		if ((store instanceof ArrayVariableStore)
+			&& (((ArrayVariableStore) store).getVariableLibrary() == varLib))
+		{
+			return ((ArrayVariableStore) store).get(definingScope,
+				resolution.index);
+		}
+		return store.get(varLib.getVariableID(definingScope, varName));
+	}
+
+	/**
+	 * Returns the Resolution of the variable name of this VariableBinding for
+	 * the given VariableLibrary and ScopedNamespaceDefinition; null if the
+	 * variable name is not legal in the ScopedNamespaceDefinition.
+	 */
+	private Resolution resolve(VariableLibrary varLib,
+		ScopedNamespaceDefinition<?> snDef)
+	{
+		Resolution[] current = resolutions;
+		for (Resolution resolution : current)
+		{
+			if ((resolution.snDef == snDef) && (resolution.varLib == varLib))
+			{
+				return resolution;
+			}
+		}
+		int depth = 0;
+		for (ScopedNamespaceDefinition<?> def = snDef; def != null; def =
+				def.getParent())
+		{
+			int index = varLib.getVariableIndex(def, varName);
+			if (index >= 0)
+			{
+				Resolution resolution =
+						new Resolution(varLib, snDef, depth, index);
+				Resolution[] replacement =
+						new Resolution[current.length + 1];
+				System.arraycopy(current, 0, replacement, 0, current.length);
+				replacement[current.length] = resolution;
+				resolutions = replacement;
+				return resolution;
+			}
+			depth++;
+		}
+		return null;
+	}
+
+	/**
+	 * The location of the variable, as resolved for a VariableLibrary and
+	 * ScopedNamespaceDefinition.
+	 */
+	private static final class Resolution
+	{
+		private final VariableLibrary varLib;
+		private final ScopedNamespaceDefinition<?> snDef;
+
+		/**
+		 * The number of parents between a VariableScope of the
+		 * ScopedNamespaceDefinition and the VariableScope in which the
+		 * variable is defined.
+		 */
+		private final int depth;
+
+		/**
+		 * The index of the variable within the ScopedNamespaceDefinition in
+		 * which it is defined.
+		 */
+		private final int index;
+
+		private Resolution(VariableLibrary varLib,
+			ScopedNamespaceDefinition<?> snDef, int depth, int index)
+		{
+			this.varLib = varLib;
+			this.snDef = snDef;
+			this.depth = depth;
+			this.index = index;
+		}
+
+		/**
+		 * Returns the VariableScope (the given VariableScope or one of its
+		 * parents) in which the variable is defined.
+		 */
+		private VariableScope<?> getDefiningScope(VariableScope<?> scope)
+		{
+			VariableScope<?> definingScope = scope;
+			for (int i = 0; (i < depth) && (definingScope != null); i++)
+			{
+				definingScope = definingScope.getParentScope();
+			}
+			return definingScope;
+		}
+	}
+}
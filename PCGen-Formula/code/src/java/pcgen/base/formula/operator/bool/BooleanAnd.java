@@ -17,13 +17,13 @@
  */
 package pcgen.base.formula.operator.bool;
 
-import pcgen.base.formula.base.OperatorAction;
+import pcgen.base.formula.base.ShortCircuitAction;
 import pcgen.base.formula.parse.Operator;
 
 /**
  * BooleanAnd performs the AND operation on two Boolean values.
  */
-public class BooleanAnd implements OperatorAction
+public class BooleanAnd implements ShortCircuitAction
 {
 
 	private static final Class<Boolean> BOOLEAN_CLASS = Boolean.class;
@@ -74,4 +74,20 @@ public class BooleanAnd implements OperatorAction
 		return Boolean.valueOf(left && right);
 	}
 
+	/**
+	 * Returns FALSE if the first argument is false (the second argument cannot
+	 * change the result of a logical AND); null otherwise.
+	 * 
+	 * @see pcgen.base.formula.base.ShortCircuitAction#shortCircuit(java.lang.Object)
+	 */
+	@Override
+	public Object shortCircuit(Object l)
+	{
+		if (Boolean.FALSE.equals(l))
+		{
+			return Boolean.FALSE;
+		}
+		return null;
+	}
+
 }
@@ -17,13 +17,13 @@
  */
 package pcgen.base.formula.operator.bool;
 
-import pcgen.base.formula.base.OperatorAction;
+import pcgen.base.formula.base.ShortCircuitAction;
 import pcgen.base.formula.parse.Operator;
 
 /**
  * BooleanOr performs the OR operation on two Boolean values.
  */
-public class BooleanOr implements OperatorAction
+public class BooleanOr implements ShortCircuitAction
 {
 
 	private static final Class<Boolean> BOOLEAN_CLASS = Boolean.class;
@@ -74,4 +74,20 @@ public class BooleanOr implements OperatorAction
 		return Boolean.valueOf(left || right);
 	}
 
+	/**
+	 * Returns TRUE if the first argument is true (the second argument cannot
+	 * change the result of a logical OR); null otherwise.
+	 * 
+	 * @see pcgen.base.formula.base.ShortCircuitAction#shortCircuit(java.lang.Object)
+	 */
+	@Override
+	public Object shortCircuit(Object l)
+	{
+		if (Boolean.TRUE.equals(l))
+		{
+			return Boolean.TRUE;
+		}
+		return null;
+	}
+
 }
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.optimize;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import pcgen.base.formula.manager.FormulaManager;
+import pcgen.base.formula.parse.ASTArithmetic;
+import pcgen.base.formula.parse.ASTEquality;
+import pcgen.base.formula.parse.ASTExpon;
+import pcgen.base.formula.parse.ASTGeometric;
+import pcgen.base.formula.parse.ASTLogical;
+import pcgen.base.formula.parse.ASTPCGenLookup;
+import pcgen.base.formula.parse.ASTParen;
+import pcgen.base.formula.parse.ASTRelational;
+import pcgen.base.formula.parse.ASTRoot;
+import pcgen.base.formula.parse.ASTUnary;
+import pcgen.base.formula.parse.Node;
+import pcgen.base.formula.parse.Operator;
+import pcgen.base.formula.parse.SimpleNode;
+
+/**
+ * A CommonSubexpressionAnalyzer finds the subtrees that are structurally
+ * identical and pure (see PurityVisitor), within a single formula or across
+ * all of the formulas added to the CommonSubexpressionAnalyzer.
+ * 
+ * As an example, in "max(STR-10,0)/2+max(STR-10,0)%2", both "max(STR-10,0)"
+ * subtrees (and both "STR-10" subtrees) are identified as shared.
+ * 
+ * Structure is identified by hash-consing: each distinct subtree (ignoring
+ * grouping parenthesis) is assigned an identifier, built from the type,
+ * operator and text of the node and the identifiers of its children. Two
+ * subtrees are therefore identical if and only if they have the same
+ * identifier, which is determined in a single pass over each formula.
+ * 
+ * Since a variable is identified by name, the result is valid only when all of
+ * the formulas are evaluated in the same VariableScope (see
+ * MemoizingEvaluateVisitor).
+ * 
+ * CommonSubexpressionAnalyzer is not thread-safe. This is intended to be used
+ * only on formulas that have been validated (see ValidVisitor).
+ */
+public class CommonSubexpressionAnalyzer
+{
+
+	/**
+	 * The PurityVisitor used to ensure only pure subtrees are shared.
+	 */
+	private final PurityVisitor purityVisitor;
+
+	/**
+	 * The identifier for each distinct subtree (identifiers are sequential,
+	 * starting at zero).
+	 */
+	private final Map<Shape, Integer> shapeIDs = new HashMap<Shape, Integer>();
+
+	/**
+	 * The nodes that could be shared, indexed by the identifier of the
+	 * subtree.
+	 */
+	private final List<List<Node>> candidates = new ArrayList<List<Node>>();
+
+	/**
+	 * Constructs a new CommonSubexpressionAnalyzer which will use the given
+	 * FormulaManager to determine if a Function is pure.
+	 * 
+	 * @param fm
+	 *            The FormulaManager used to get information about functions
+	 * @throws IllegalArgumentException
+	 *             if the given FormulaManager is null
+	 */
+	public CommonSubexpressionAnalyzer(FormulaManager fm)
+	{
+		if (fm == null)
+		{
+			throw new IllegalArgumentException(
+				"Cannot build CommonSubexpressionAnalyzer with null FormulaManager");
+		}
+		purityVisitor = new PurityVisitor(fm.getLibrary());
+	}
+
+	/**
+	 * Adds the formula represented by the tree starting with the given root
+	 * node to this CommonSubexpressionAnalyzer.
+	 * 
+	 * @param root
+	 *            The root node of the tree representing the formula
+	 * @throws IllegalArgumentException
+	 *             if the given root node is null
+	 */
+	public void addFormula(SimpleNode root)
+	{
+		if (root == null)
+		{
+			throw new IllegalArgumentException("Cannot add null formula");
+		}
+		intern(root);
+	}
+
+	/**
+	 * Returns the SharedSubexpressions for the formulas added to this
+	 * CommonSubexpressionAnalyzer. The returned object will not reflect any
+	 * formulas added after this method returns.
+	 * 
+	 * @return The SharedSubexpressions for the formulas added to this
+	 *         CommonSubexpressionAnalyzer
+	 */
+	public SharedSubexpressions getSharedSubexpressions()
+	{
+		IdentityHashMap<Node, Integer> slots =
+				new IdentityHashMap<Node, Integer>();
+		int slotCount = 0;
+		for (List<Node> nodes : candidates)
+		{
+			/*
+			 * Since purity is determined by structure, checking one node is
+			 * sufficient
+			 */
+			if ((nodes.size() > 1)
+				&& Boolean.TRUE.equals(nodes.get(0).jjtAccept(purityVisitor,
+					null)))
+			{
+				Integer slot = Integer.valueOf(slotCount++);
+				for (Node node : nodes)
+				{
+					slots.put(node, slot);
+				}
+			}
+		}
+		return new SharedSubexpressions(slots, slotCount);
+	}
+
+	/**
+	 * Returns the identifier for the subtree starting with the given node,
+	 * recording the node as a candidate for sharing where appropriate.
+	 * 
+	 * @param node
+	 *            The node for which the identifier should be returned
+	 * @return The identifier for the subtree starting with the given node
+	 */
+	private int intern(Node node)
+	{
+		int childCount = node.jjtGetNumChildren();
+		if (((node instanceof ASTRoot) || (node instanceof ASTParen))
+			&& (childCount == 1))
+		{
+			//Structural only, so "(a+b)" is the same as "a+b"
+			return intern(node.jjtGetChild(0));
+		}
+		int[] children = new int[childCount];
+		for (int i = 0; i < childCount; i++)
+		{
+			children[i] = intern(node.jjtGetChild(i));
+		}
+		SimpleNode sn = (SimpleNode) node;
+		Shape shape =
+				new Shape(sn.getId(), sn.getOperator(), sn.getText(), children);
+		Integer id = shapeIDs.get(shape);
+		if (id == null)
+		{
+			id = Integer.valueOf(candidates.size());
+			shapeIDs.put(shape, id);
+			candidates.add(new ArrayList<Node>(2));
+		}
+		if (isCandidate(node))
+		{
+			candidates.get(id.intValue()).add(node);
+		}
+		return id.intValue();
+	}
+
+	/**
+	 * Returns true if the given node performs a calculation that is worth
+	 * sharing. Literals and variables are not shared, since they are no more
+	 * expensive than retrieving a shared value.
+	 * 
+	 * @param node
+	 *            The node to be checked
+	 * @return true if the given node is worth sharing; false otherwise
+	 */
+	private static boolean isCandidate(Node node)
+	{
+		return (node instanceof ASTArithmetic)
+			|| (node instanceof ASTGeometric) || (node instanceof ASTExpon)
+			|| (node instanceof ASTUnary) || (node instanceof ASTRelational)
+			|| (node instanceof ASTEquality) || (node instanceof ASTLogical)
+			|| (node instanceof ASTPCGenLookup);
+	}
+
+	/**
+	 * The structure of a single node, with the structure of the children
+	 * represented by their identifiers.
+	 */
+	private static final class Shape
+	{
+		private final int type;
+		private final Operator operator;
+		private final String text;
+		private final int[] children;
+		private final int hash;
+
+		private Shape(int type, Operator operator, String text, int[] children)
+		{
+			this.type = type;
+			this.operator = operator;
+			this.text = text;
+			this.children = children;
+			int h = 31 * type + Arrays.hashCode(children);
+			h = 31 * h + ((operator == null) ? 0 : operator.hashCode());
+			hash = 31 * h + ((text == null) ? 0 : text.hashCode());
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (o == this)
+			{
+				return true;
+			}
+			if (o instanceof Shape)
+			{
+				Shape other = (Shape) o;
+				return (type == other.type) && (operator == other.operator)
+					&& ((text == null) ? (other.text == null) : text
+						.equals(other.text))
+					&& Arrays.equals(children, other.children);
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.optimize;
+
+import pcgen.base.formula.function.Function;
+import pcgen.base.formula.function.IfFunction;
+import pcgen.base.formula.manager.FormulaManager;
+import pcgen.base.formula.parse.ASTFParen;
+import pcgen.base.formula.parse.ASTNum;
+import pcgen.base.formula.parse.ASTPCGenBracket;
+import pcgen.base.formula.parse.ASTPCGenLookup;
+import pcgen.base.formula.parse.ASTPCGenSingleWord;
+import pcgen.base.formula.parse.ASTParen;
+import pcgen.base.formula.parse.ASTQuotString;
+import pcgen.base.formula.parse.FormulaParserTreeConstants;
+import pcgen.base.formula.parse.Node;
+import pcgen.base.formula.parse.SimpleNode;
+import pcgen.base.formula.variable.VariableScope;
+import pcgen.base.formula.visitor.EvaluateVisitor;
+import pcgen.base.formula.visitor.StaticVisitor;
+import pcgen.base.formula.visitor.TreeCopyVisitor;
+import pcgen.base.formula.visitor.VisitorUtilities;
+
+/**
+ * ConstantFoldingVisitor produces a copy of a formula in which each static
+ * subtree (as determined by StaticVisitor, and thus by Function.isStatic for
+ * any Function) that evaluates to an Integer or Double has been replaced by a
+ * numeric literal.
+ * 
+ * In addition, a call to IF whose condition is static is replaced by the
+ * branch that will be taken (the branch itself is also folded).
+ * 
+ * Subtrees that produce a Boolean are not replaced (there is no literal for a
+ * Boolean in a formula), nor are subtrees that throw an exception when
+ * evaluated (so the exception will still occur when the formula is
+ * evaluated).
+ * 
+ * The visited tree is not modified. This is intended to be used only on a
+ * formula that has been validated (see ValidVisitor).
+ */
+public class ConstantFoldingVisitor extends TreeCopyVisitor
+{
+
+	/**
+	 * The FormulaManager used to get information about functions and other key
+	 * parameters of a Formula.
+	 */
+	private final FormulaManager fm;
+
+	/**
+	 * The StaticVisitor used to identify static subtrees.
+	 */
+	private final StaticVisitor staticVisitor;
+
+	/**
+	 * The EvaluateVisitor used to evaluate static subtrees.
+	 */
+	private final EvaluateVisitor evaluateVisitor;
+
+	/**
+	 * Constructs a new ConstantFoldingVisitor with the given items used to
+	 * evaluate static subtrees.
+	 * 
+	 * Note that the result of folding does not depend on the VariableScope
+	 * (static subtrees do not contain variables); it is required only to
+	 * construct the EvaluateVisitor used to evaluate static subtrees.
+	 * 
+	 * @param fm
+	 *            The FormulaManager used to get information about functions and
+	 *            other key parameters of a Formula
+	 * @param scope
+	 *            The scope in which the formula resides
+	 * @throws IllegalArgumentException
+	 *             if any of the parameters are null
+	 */
+	public ConstantFoldingVisitor(FormulaManager fm, VariableScope<?> scope)
+	{
+		if (fm == null)
+		{
+			throw new IllegalArgumentException("FormulaManager cannot be null");
+		}
+		this.fm = fm;
+		staticVisitor = new StaticVisitor(fm.getLibrary());
+		evaluateVisitor = new EvaluateVisitor(fm, scope);
+	}
+
+	/**
+	 * Folds a call to IF with a static condition into the branch that will be
+	 * taken.
+	 */
+	@Override
+	public Object visit(ASTPCGenLookup node, Object data)
+	{
+		Function function = VisitorUtilities.getFunction(fm.getLibrary(), node);
+		Node argNode = node.jjtGetChild(1);
+		if ((function != null) && function.getClass().equals(IfFunction.class)
+			&& (argNode instanceof ASTFParen)
+			&& (argNode.jjtGetNumChildren() == 3))
+		{
+			Node condition = argNode.jjtGetChild(0);
+			Object result = evaluateStatic(condition);
+			if (result instanceof Boolean)
+			{
+				Node branch =
+						argNode.jjtGetChild(((Boolean) result).booleanValue()
+							? 1 : 2);
+				return group(processChild(branch, data));
+			}
+		}
+		return super.visit(node, data);
+	}
+
+	/**
+	 * The arguments of a function that uses brackets are not necessarily
+	 * formulas, so they are copied without being folded.
+	 */
+	@Override
+	public Object visit(ASTPCGenBracket node, Object data)
+	{
+		return new TreeCopyVisitor().visit(node, data);
+	}
+
+	/**
+	 * Replaces the given child with a numeric literal if it is a static
+	 * subtree that produces an Integer or Double.
+	 */
+	@Override
+	protected Node processChild(Node child, Object data)
+	{
+		if (!(child instanceof ASTNum) && !(child instanceof ASTFParen)
+			&& !(child instanceof ASTPCGenBracket)
+			&& !(child instanceof ASTQuotString))
+		{
+			Object result = evaluateStatic(child);
+			if ((result instanceof Integer) || (result instanceof Double))
+			{
+				ASTNum num = new ASTNum(FormulaParserTreeConstants.JJTNUM);
+				num.setToken(result.toString());
+				return num;
+			}
+		}
+		return super.processChild(child, data);
+	}
+
+	/**
+	 * Returns the result of evaluating the given node if it is static, or null
+	 * if the node is not static or throws an exception when evaluated.
+	 * 
+	 * @param node
+	 *            The node to be evaluated
+	 * @return The result of evaluating the given node, or null
+	 */
+	private Object evaluateStatic(Node node)
+	{
+		try
+		{
+			if (((Boolean) node.jjtAccept(staticVisitor, null)).booleanValue())
+			{
+				return node.jjtAccept(evaluateVisitor, null);
+			}
+		}
+		catch (RuntimeException e)
+		{
+			//Leave it to be thrown when the formula is evaluated
+		}
+		return null;
+	}
+
+	/**
+	 * Wraps the given node in parenthesis (if necessary) so that it can
+	 * replace a function call in the tree while preserving the order of
+	 * operations if the tree is reconstructed.
+	 * 
+	 * @param node
+	 *            The node to be wrapped
+	 * @return The given node in parenthesis, or the given node if it does not
+	 *         require parenthesis
+	 */
+	private static Node group(Node node)
+	{
+		if ((node instanceof ASTNum) || (node instanceof ASTParen)
+			|| (node instanceof ASTPCGenSingleWord)
+			|| (node instanceof ASTPCGenLookup))
+		{
+			return node;
+		}
+		SimpleNode paren = new ASTParen(FormulaParserTreeConstants.JJTPAREN);
+		node.jjtSetParent(paren);
+		paren.jjtAddChild(node, 0);
+		return paren;
+	}
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.optimize;
+
+import java.util.Arrays;
+
+import pcgen.base.formula.manager.FormulaManager;
+import pcgen.base.formula.parse.ASTArithmetic;
+import pcgen.base.formula.parse.ASTEquality;
+import pcgen.base.formula.parse.ASTExpon;
+import pcgen.base.formula.parse.ASTGeometric;
+import pcgen.base.formula.parse.ASTLogical;
+import pcgen.base.formula.parse.ASTPCGenLookup;
+import pcgen.base.formula.parse.ASTRelational;
+import pcgen.base.formula.parse.ASTUnary;
+import pcgen.base.formula.parse.SimpleNode;
+import pcgen.base.formula.variable.VariableScope;
+import pcgen.base.formula.visitor.EvaluateVisitor;
+
+/**
+ * A MemoizingEvaluateVisitor is an EvaluateVisitor that evaluates each shared
+ * subexpression (as identified by a CommonSubexpressionAnalyzer) only once
+ * per recalculation, reusing the value for every other occurrence of that
+ * subexpression, whether in the same formula or in another formula.
+ * 
+ * A recalculation begins when the MemoizingEvaluateVisitor is constructed or
+ * when reset() is called. reset() must be called whenever the value of any
+ * variable may have changed.
+ * 
+ * A MemoizingEvaluateVisitor holds the values for the current recalculation,
+ * and thus must not be shared across threads.
+ */
+@SuppressWarnings("PMD.TooManyMethods")
+public class MemoizingEvaluateVisitor extends EvaluateVisitor
+{
+
+	/**
+	 * The SharedSubexpressions identifying the nodes that are shared.
+	 */
+	private final SharedSubexpressions shared;
+
+	/**
+	 * The value of each shared subexpression in the current recalculation,
+	 * indexed by slot (null if not yet evaluated).
+	 */
+	private final Object[] values;
+
+	/**
+	 * Constructs a new MemoizingEvaluateVisitor with the given items used to
+	 * evaluate formulas.
+	 * 
+	 * @param fm
+	 *            The FormulaManager used to get information about functions
+	 *            and other key parameters of a Formula
+	 * @param scope
+	 *            The VariableScope in which all formulas are evaluated
+	 * @param shared
+	 *            The SharedSubexpressions identifying the nodes that are
+	 *            shared
+	 * @throws IllegalArgumentException
+	 *             if any of the parameters is null
+	 */
+	public MemoizingEvaluateVisitor(FormulaManager fm, VariableScope<?> scope,
+		SharedSubexpressions shared)
+	{
+		super(fm, scope);
+		if (shared == null)
+		{
+			throw new IllegalArgumentException(
+				"SharedSubexpressions cannot be null");
+		}
+		this.shared = shared;
+		values = new Object[shared.getSlotCount()];
+	}
+
+	/**
+	 * Begins a new recalculation, discarding the values of all shared
+	 * subexpressions.
+	 */
+	public void reset()
+	{
+		Arrays.fill(values, null);
+	}
+
+	/**
+	 * Evaluates the node through memoize(SimpleNode, Object).
+	 */
+	@Override
+	public Object visit(ASTLogical node, Object data)
+	{
+		return memoize(node, data);
+	}
+
+	/**
+	 * Evaluates the node through memoize(SimpleNode, Object).
+	 */
+	@Override
+	public Object visit(ASTEquality node, Object data)
+	{
+		return memoize(node, data);
+	}
+
+	/**
+	 * Evaluates the node through memoize(SimpleNode, Object).
+	 */
+	@Override
+	public Object visit(ASTRelational node, Object data)
+	{
+		return memoize(node, data);
+	}
+
+	/**
+	 * Evaluates the node through memoize(SimpleNode, Object).
+	 */
+	@Override
+	public Object visit(ASTArithmetic node, Object data)
+	{
+		return memoize(node, data);
+	}
+
+	/**
+	 * Evaluates the node through memoize(SimpleNode, Object).
+	 */
+	@Override
+	public Object visit(ASTGeometric node, Object data)
+	{
+		return memoize(node, data);
+	}
+
+	/**
+	 * Evaluates the node through memoize(SimpleNode, Object).
+	 */
+	@Override
+	public Object visit(ASTUnary node, Object data)
+	{
+		return memoize(node, data);
+	}
+
+	/**
+	 * Evaluates the node through memoize(SimpleNode, Object).
+	 */
+	@Override
+	public Object visit(ASTExpon node, Object data)
+	{
+		return memoize(node, data);
+	}
+
+	/**
+	 * Evaluates the node through memoize(SimpleNode, Object).
+	 */
+	@Override
+	public Object visit(ASTPCGenLookup node, Object data)
+	{
+		return memoize(node, data);
+	}
+
+	/**
+	 * Returns the value of the given node, evaluating it only if the node is
+	 * not a shared subexpression or has not yet been evaluated in the current
+	 * recalculation.
+	 * 
+	 * @param node
+	 *            The node to be evaluated
+	 * @param data
+	 *            The data passed to the visit method of the node
+	 * @return The value of the given node
+	 */
+	private Object memoize(SimpleNode node, Object data)
+	{
+		int slot = shared.getSlot(node);
+		if (slot == -1)
+		{
+			return evaluate(node, data);
+		}
+		Object result = values[slot];
+		if (result == null)
+		{
+			result = evaluate(node, data);
+			values[slot] = result;
+		}
+		return result;
+	}
+
+	/**
+	 * Evaluates the given node using the visit method of EvaluateVisitor for
+	 * the type of the node.
+	 * 
+	 * @param node
+	 *            The node to be evaluated
+	 * @param data
+	 *            The data passed to the visit method of the node
+	 * @return The value of the given node
+	 */
+	private Object evaluate(SimpleNode node, Object data)
+	{
+		if (node instanceof ASTLogical)
+		{
+			return super.visit((ASTLogical) node, data);
+		}
+		else if (node instanceof ASTEquality)
+		{
+			return super.visit((ASTEquality) node, data);
+		}
+		else if (node instanceof ASTRelational)
+		{
+			return super.visit((ASTRelational) node, data);
+		}
+		else if (node instanceof ASTArithmetic)
+		{
+			return super.visit((ASTArithmetic) node, data);
+		}
+		else if (node instanceof ASTGeometric)
+		{
+			return super.visit((ASTGeometric) node, data);
+		}
+		else if (node instanceof ASTUnary)
+		{
+			return super.visit((ASTUnary) node, data);
+		}
+		else if (node instanceof ASTExpon)
+		{
+			return super.visit((ASTExpon) node, data);
+		}
+		return super.visit((ASTPCGenLookup) node, data);
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.optimize;
+
+import pcgen.base.formula.compile.CompiledFormula;
+import pcgen.base.formula.compile.FormulaCompiler;
+import pcgen.base.formula.manager.FormulaManager;
+import pcgen.base.formula.manager.ScopeInformation;
+import pcgen.base.formula.parse.SimpleNode;
+
+/**
+ * An OptimizingFormulaCompiler is a FormulaCompiler that optimizes a formula
+ * (see ConstantFoldingVisitor) before compiling it with another
+ * FormulaCompiler.
+ * 
+ * The optimization requires a VariableScope, which is not available until the
+ * formula is evaluated. Therefore, the formula is optimized and compiled the
+ * first time the returned CompiledFormula is evaluated. The result of the
+ * optimization does not depend on the VariableScope, so the result is reused
+ * for all subsequent evaluations.
+ */
+public class OptimizingFormulaCompiler implements FormulaCompiler
+{
+
+	/**
+	 * The FormulaCompiler used to compile the optimized formula.
+	 */
+	private final FormulaCompiler compiler;
+
+	/**
+	 * Constructs a new OptimizingFormulaCompiler that will compile optimized
+	 * formulas with the given FormulaCompiler.
+	 * 
+	 * @param compiler
+	 *            The FormulaCompiler used to compile the optimized formula
+	 * @throws IllegalArgumentException
+	 *             if the given FormulaCompiler is null
+	 */
+	public OptimizingFormulaCompiler(FormulaCompiler compiler)
+	{
+		if (compiler == null)
+		{
+			throw new IllegalArgumentException(
+				"Cannot build OptimizingFormulaCompiler with null FormulaCompiler");
+		}
+		this.compiler = compiler;
+	}
+
+	@Override
+	public CompiledFormula compile(FormulaManager fm, SimpleNode root)
+	{
+		if (fm == null)
+		{
+			throw new IllegalArgumentException(
+				"Cannot compile with null FormulaManager");
+		}
+		if (root == null)
+		{
+			throw new IllegalArgumentException("Cannot compile with null root");
+		}
+		return new OptimizedFormula(fm, root, compiler);
+	}
+
+	/**
+	 * Returns the optimized copy of the formula represented by the tree
+	 * starting with the given root node. The given tree is not modified.
+	 * 
+	 * @param fm
+	 *            The FormulaManager used to resolve the Functions and
+	 *            Operators within the formula
+	 * @param si
+	 *            The ScopeInformation in which the formula is being evaluated
+	 * @param root
+	 *            The root node of the tree representing the formula
+	 * @return The root node of the optimized copy of the formula
+	 */
+	static SimpleNode optimize(FormulaManager fm, ScopeInformation si,
+		SimpleNode root)
+	{
+		return (SimpleNode) new ConstantFoldingVisitor(fm, si.getScope())
+			.visit(root, null);
+	}
+
+	/**
+	 * A CompiledFormula that optimizes and compiles the formula the first time
+	 * it is evaluated.
+	 */
+	private static class OptimizedFormula implements CompiledFormula
+	{
+		private final FormulaManager fm;
+		private final SimpleNode root;
+		private final FormulaCompiler compiler;
+
+		/**
+		 * The compiled form of the optimized formula. Lazily Instantiated
+		 * (if two threads race, each compiles an equivalent CompiledFormula,
+		 * and either may be kept).
+		 */
+		private volatile CompiledFormula compiled;
+
+		OptimizedFormula(FormulaManager fm, SimpleNode root,
+			FormulaCompiler compiler)
+		{
+			this.fm = fm;
+			this.root = root;
+			this.compiler = compiler;
+		}
+
+		@Override
+		public Object evaluate(ScopeInformation si)
+		{
+			CompiledFormula cf = compiled;
+			if (cf == null)
+			{
+				cf = compiler.compile(fm, optimize(fm, si, root));
+				compiled = cf;
+			}
+			return cf.evaluate(si);
+		}
+	}
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.optimize;
+
+import pcgen.base.formula.manager.FunctionLibrary;
+import pcgen.base.formula.parse.ASTPCGenSingleWord;
+import pcgen.base.formula.visitor.StaticVisitor;
+
+/**
+ * PurityVisitor visits a formula in tree form to determine if the formula is
+ * pure. A pure formula always produces the same result for the same values of
+ * the variables it uses.
+ * 
+ * This is the same analysis as StaticVisitor, except that variables are
+ * treated as pure (their value is fixed for the duration of a single
+ * recalculation). Any Function is pure only if Function.isStatic returns TRUE
+ * (when given this visitor), so a Function that depends on the context in
+ * which it is called will never be considered pure.
+ * 
+ * Like StaticVisitor, the contract of PurityVisitor is conservative: TRUE
+ * guarantees the formula is pure, FALSE means it MAY or MAY NOT be pure.
+ */
+class PurityVisitor extends StaticVisitor
+{
+
+	/**
+	 * Constructs a new PurityVisitor that will use the given FunctionLibrary.
+	 * 
+	 * @param fl
+	 *            The FunctionLibrary to be used to get functions when they are
+	 *            encountered in a formula
+	 * @throws IllegalArgumentException
+	 *             if the given FunctionLibrary is null
+	 */
+	PurityVisitor(FunctionLibrary fl)
+	{
+		super(fl);
+	}
+
+	/**
+	 * Variables are pure, since they cannot change during a recalculation.
+	 */
+	@Override
+	public Object visit(ASTPCGenSingleWord node, Object data)
+	{
+		return Boolean.TRUE;
+	}
+}
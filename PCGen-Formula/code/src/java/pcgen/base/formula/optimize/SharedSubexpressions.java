@@ -0,0 +1,97 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.optimize;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import pcgen.base.formula.parse.Node;
+
+/**
+ * SharedSubexpressions is the result of a CommonSubexpressionAnalyzer. It
+ * identifies the nodes (of one or more formulas) that are structurally
+ * identical, pure subtrees, and assigns each group of identical subtrees a
+ * slot. All nodes in the same slot will evaluate to the same value during a
+ * single recalculation.
+ * 
+ * SharedSubexpressions is immutable, and may be shared across threads.
+ */
+public final class SharedSubexpressions
+{
+
+	/**
+	 * The slot for each shared node, by identity of the node.
+	 */
+	private final Map<Node, Integer> slots;
+
+	/**
+	 * The number of slots.
+	 */
+	private final int slotCount;
+
+	/**
+	 * Constructs a new SharedSubexpressions with the given slot assignment.
+	 * 
+	 * @param slots
+	 *            The slot for each shared node (must be an identity map, and
+	 *            is owned by this SharedSubexpressions once passed in)
+	 * @param slotCount
+	 *            The number of slots
+	 */
+	SharedSubexpressions(IdentityHashMap<Node, Integer> slots, int slotCount)
+	{
+		this.slots = Collections.unmodifiableMap(slots);
+		this.slotCount = slotCount;
+	}
+
+	/**
+	 * Returns the slot for the given node, or -1 if the given node is not a
+	 * shared subexpression.
+	 * 
+	 * @param node
+	 *            The node for which the slot should be returned
+	 * @return The slot for the given node, or -1 if the given node is not a
+	 *         shared subexpression
+	 */
+	public int getSlot(Node node)
+	{
+		Integer slot = slots.get(node);
+		return (slot == null) ? -1 : slot.intValue();
+	}
+
+	/**
+	 * Returns the number of slots (distinct shared subexpressions).
+	 * 
+	 * @return The number of slots
+	 */
+	public int getSlotCount()
+	{
+		return slotCount;
+	}
+
+	/**
+	 * Returns the number of nodes that are shared subexpressions.
+	 * 
+	 * @return The number of nodes that are shared subexpressions
+	 */
+	public int getNodeCount()
+	{
+		return slots.size();
+	}
+}
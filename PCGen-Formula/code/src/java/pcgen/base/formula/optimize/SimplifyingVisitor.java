@@ -0,0 +1,237 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.optimize;
+
+import pcgen.base.formula.base.OperatorAction;
+import pcgen.base.formula.manager.FormulaManager;
+import pcgen.base.formula.manager.OperatorActionLibrary;
+import pcgen.base.formula.manager.OperatorLibrary;
+import pcgen.base.formula.operator.number.NumberAdd;
+import pcgen.base.formula.operator.number.NumberDivide;
+import pcgen.base.formula.operator.number.NumberMultiply;
+import pcgen.base.formula.operator.number.NumberRemainder;
+import pcgen.base.formula.operator.number.NumberSubtract;
+import pcgen.base.formula.parse.ASTArithmetic;
+import pcgen.base.formula.parse.ASTExpon;
+import pcgen.base.formula.parse.ASTGeometric;
+import pcgen.base.formula.parse.ASTNum;
+import pcgen.base.formula.parse.ASTParen;
+import pcgen.base.formula.parse.ASTUnary;
+import pcgen.base.formula.parse.Node;
+import pcgen.base.formula.parse.Operator;
+import pcgen.base.formula.parse.SimpleNode;
+import pcgen.base.formula.visitor.TreeCopyVisitor;
+
+/**
+ * SimplifyingVisitor produces a copy of a formula with algebraic identities
+ * and grouping parenthesis removed.
+ * 
+ * The identities must preserve the exact result of the formula, including the
+ * class of the result (Integer vs. Double). Therefore:
+ * 
+ * (1) Grouping parenthesis are always removed (the order of operations is
+ * already implicit in the tree structure). Note this means
+ * ReconstructionVisitor will not produce a meaningful formula from the copy;
+ * the original tree should be used for that purpose.
+ * 
+ * (2) "x-0", "x/1" and "-(-x)" are reduced to "x", but only where x is known
+ * to produce an Integer or Double (a literal, a negation, an exponential, or
+ * an arithmetic operator on such values using the operator actions provided
+ * with this library). A variable may hold other Numbers (e.g. a Long), for
+ * which the operation would change the class of the result.
+ * 
+ * (3) "x*1" and "x+0" are NOT reduced: "0.0*1" produces the Integer 0 and
+ * "-0.0+0" produces 0.0, so neither is an identity.
+ * 
+ * Strength reduction of "x^2" to "x*x" is performed
+ * during evaluation (see VisitorUtilities.power), since an exponential always
+ * produces a Double and thus cannot be rewritten as a multiplication in the
+ * tree.
+ * 
+ * The visited tree is not modified. This is intended to be used only on a
+ * formula that has been validated (see ValidVisitor).
+ */
+public class SimplifyingVisitor extends TreeCopyVisitor
+{
+
+	/**
+	 * The FormulaManager used to get the OperatorLibrary.
+	 */
+	private final FormulaManager fm;
+
+	/**
+	 * Constructs a new SimplifyingVisitor which will use the given
+	 * FormulaManager to identify the operator actions in use.
+	 * 
+	 * @param fm
+	 *            The FormulaManager used to get the OperatorLibrary
+	 * @throws IllegalArgumentException
+	 *             if the given FormulaManager is null
+	 */
+	public SimplifyingVisitor(FormulaManager fm)
+	{
+		if (fm == null)
+		{
+			throw new IllegalArgumentException(
+				"Cannot build SimplifyingVisitor with null FormulaManager");
+		}
+		this.fm = fm;
+	}
+
+	/**
+	 * Removes the parenthesis, returning the copy of the child.
+	 */
+	@Override
+	public Object visit(ASTParen node, Object data)
+	{
+		return node.jjtGetChild(0).jjtAccept(this, data);
+	}
+
+	/**
+	 * Reduces "x-0" to "x".
+	 */
+	@Override
+	public Object visit(ASTArithmetic node, Object data)
+	{
+		SimpleNode copy = (SimpleNode) super.visit(node, data);
+		if ((copy.getOperator() == Operator.SUB)
+			&& isLiteral(copy.jjtGetChild(1), 0)
+			&& isNumericAction(Operator.SUB)
+			&& isNormalized(copy.jjtGetChild(0)))
+		{
+			return copy.jjtGetChild(0);
+		}
+		return copy;
+	}
+
+	/**
+	 * Reduces "x/1" to "x".
+	 */
+	@Override
+	public Object visit(ASTGeometric node, Object data)
+	{
+		SimpleNode copy = (SimpleNode) super.visit(node, data);
+		if ((copy.getOperator() == Operator.DIV)
+			&& isLiteral(copy.jjtGetChild(1), 1)
+			&& isNumericAction(Operator.DIV)
+			&& isNormalized(copy.jjtGetChild(0)))
+		{
+			return copy.jjtGetChild(0);
+		}
+		return copy;
+	}
+
+	/**
+	 * Reduces "-(-x)" to "x".
+	 */
+	@Override
+	public Object visit(ASTUnary node, Object data)
+	{
+		SimpleNode copy = (SimpleNode) super.visit(node, data);
+		Node child = copy.jjtGetChild(0);
+		if ((child instanceof ASTUnary) && isNormalized(child.jjtGetChild(0)))
+		{
+			return child.jjtGetChild(0);
+		}
+		return copy;
+	}
+
+	/**
+	 * Returns true if the given node is a numeric literal for the given
+	 * Integer value.
+	 */
+	private static boolean isLiteral(Node node, int value)
+	{
+		if (node instanceof ASTNum)
+		{
+			Number n = ((ASTNum) node).getValue();
+			return (n instanceof Integer) && (n.intValue() == value);
+		}
+		return false;
+	}
+
+	/**
+	 * Returns true if the given (simplified) node will always produce an
+	 * Integer or a Double.
+	 */
+	private boolean isNormalized(Node node)
+	{
+		if ((node instanceof ASTNum) || (node instanceof ASTUnary)
+			|| (node instanceof ASTExpon))
+		{
+			return true;
+		}
+		if ((node instanceof ASTArithmetic) || (node instanceof ASTGeometric))
+		{
+			return isNumericAction(((SimpleNode) node).getOperator())
+				&& isNormalized(node.jjtGetChild(0))
+				&& isNormalized(node.jjtGetChild(1));
+		}
+		return false;
+	}
+
+	/**
+	 * Returns true if the OperatorLibrary uses the OperatorAction provided
+	 * with this library for the given Operator on Integer and Double
+	 * arguments.
+	 */
+	private boolean isNumericAction(Operator op)
+	{
+		Class<? extends OperatorAction> expected = getNumericAction(op);
+		return (expected != null)
+			&& isAction(op, expected, Integer.class, Integer.class)
+			&& isAction(op, expected, Integer.class, Double.class)
+			&& isAction(op, expected, Double.class, Integer.class)
+			&& isAction(op, expected, Double.class, Double.class);
+	}
+
+	private boolean isAction(Operator op,
+		Class<? extends OperatorAction> expected, Class<?> format1,
+		Class<?> format2)
+	{
+		OperatorLibrary opLibrary = fm.getOperatorLibrary();
+		if (!(opLibrary instanceof OperatorActionLibrary))
+		{
+			//The OperatorAction is not known in advance
+			return false;
+		}
+		OperatorAction action =
+				((OperatorActionLibrary) opLibrary).getAction(op, format1,
+					format2);
+		return (action != null) && action.getClass().equals(expected);
+	}
+
+	private static Class<? extends OperatorAction> getNumericAction(Operator op)
+	{
+		switch (op)
+		{
+			case ADD:
+				return NumberAdd.class;
+			case SUB:
+				return NumberSubtract.class;
+			case MUL:
+				return NumberMultiply.class;
+			case DIV:
+				return NumberDivide.class;
+			case REM:
+				return NumberRemainder.class;
+			default:
+				return null;
+		}
+	}
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.optimize;
+
+/**
+ * pcgen.base.formula.optimize is a package that transforms the tree of objects
+ * that make up a formula into an equivalent tree that is less expensive to
+ * evaluate.
+ * 
+ * The transformations in this package never modify the tree produced by the
+ * parser. Each produces a new tree, so the original tree remains available
+ * (e.g. to ReconstructionVisitor, so the original text of the formula can be
+ * shown to the user).
+ * 
+ * An optimized tree must evaluate to exactly the same result (including the
+ * class of the result, e.g. Integer vs. Double) as the original tree.
+ * 
+ * This package also contains analyses that do not produce a new tree, but
+ * rather identify work that can be shared during evaluation (e.g.
+ * CommonSubexpressionAnalyzer).
+ */
@@ -0,0 +1,141 @@
+/* Generated By:JJTree: Do not edit this line. ASTNum.java */
+
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package pcgen.base.formula.parse;
+
+/**
+ * An ASTNum is a numeric literal in a formula.
+ * 
+ * The value of the literal is parsed once, when the text of the node is set
+ * (see setToken), rather than each time the formula is processed. A literal
+ * representing an integer (that fits in an Integer) has an Integer value;
+ * any other literal has a Double value.
+ * 
+ * This class is maintained (rather than generated by JJTree) in order to hold
+ * the parsed value.
+ */
+public class ASTNum extends SimpleNode
+{
+	/**
+	 * The value of the literal; null if the text of this node is not set or
+	 * is not a valid number.
+	 */
+	private Number value;
+
+	public ASTNum(int id)
+	{
+		super(id);
+	}
+
+	public ASTNum(FormulaParser p, int id)
+	{
+		super(p, id);
+	}
+
+	/**
+	 * Sets the text String contained by the node, and parses the value of the
+	 * literal from that text.
+	 * 
+	 * @param s
+	 *            The text String contained by the node
+	 */
+	@Override
+	public void setToken(String s)
+	{
+		super.setToken(s);
+		value = parse(s);
+	}
+
+	/**
+	 * Returns the value of the literal represented by this node.
+	 * 
+	 * @return The value (an Integer or Double) of the literal represented by
+	 *         this node; null if the text of this node is not set or is not a
+	 *         valid number
+	 */
+	public Number getValue()
+	{
+		return value;
+	}
+
+	/**
+	 * Returns the value of the given text: an Integer if the text represents
+	 * an integer that fits in an Integer, otherwise a Double (or null if the
+	 * text is not a valid number).
+	 */
+	private static Number parse(String text)
+	{
+		if (text == null)
+		{
+			return null;
+		}
+		if (isInteger(text))
+		{
+			try
+			{
+				return Integer.valueOf(text);
+			}
+			catch (NumberFormatException e)
+			{
+				//Too large for an Integer, fall through to Double
+			}
+		}
+		try
+		{
+			return Double.valueOf(text);
+		}
+		catch (NumberFormatException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Returns true if the given text is an optional minus sign followed by
+	 * one or more digits.
+	 */
+	private static boolean isInteger(String text)
+	{
+		int length = text.length();
+		int start = ((length > 0) && (text.charAt(0) == '-')) ? 1 : 0;
+		if (start == length)
+		{
+			return false;
+		}
+		for (int i = start; i < length; i++)
+		{
+			char c = text.charAt(i);
+			if ((c < '0') || (c > '9'))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Accept the visitor.
+	 */
+	@Override
+	public Object jjtAccept(FormulaParserVisitor visitor, Object data)
+	{
+		return visitor.visit(this, data);
+	}
+}
@@ -0,0 +1,849 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.parse;
+
+/**
+ * A CharSequenceFormulaParser is a hand-written parser for the grammar defined
+ * in formula.jjt, which parses a formula directly from a range of a
+ * CharSequence (such as a String, StringBuilder or CharBuffer - a char[] can be
+ * parsed by wrapping it with CharBuffer.wrap()).
+ * 
+ * The tree produced by query() is identical to the tree produced by
+ * FormulaParser.query() for the same formula: the nodes are of the same types,
+ * with the same IDs, Operators and text, in the same structure. Any formula
+ * rejected by FormulaParser (including one rejected by the token manager of
+ * FormulaParser) is rejected by CharSequenceFormulaParser with a
+ * ParseException.
+ * 
+ * Unlike FormulaParser, tokens are identified by their offsets in the
+ * CharSequence: no Token objects or intermediate Strings are produced, and the
+ * only String produced for a node is the text of that node (for numbers,
+ * words and quoted strings). The nodes do not reference the parser.
+ * 
+ * The tokens are recognized in the same way as the token manager generated
+ * from formula.jjt: the longest possible token is matched at each position,
+ * and operators, parenthesis, brackets and commas absorb any spaces on either
+ * side. (There is otherwise no whitespace between tokens, so for example a
+ * leading space before a variable is not legal, but spaces within a variable
+ * name are)
+ * 
+ * A CharSequenceFormulaParser parses a single formula, and is not thread-safe.
+ */
+public class CharSequenceFormulaParser
+{
+
+	/**
+	 * The token kind used for characters that cannot start any of the tokens
+	 * used by the grammar.
+	 */
+	private static final int UNKNOWN = -1;
+
+	/**
+	 * The CharSequence containing the formula to be parsed.
+	 */
+	private final CharSequence text;
+
+	/**
+	 * The offset in the CharSequence of the first character of the formula.
+	 */
+	private final int start;
+
+	/**
+	 * The offset in the CharSequence after the last character of the formula.
+	 */
+	private final int end;
+
+	/**
+	 * The kind (from FormulaParserConstants) of the current token.
+	 */
+	private int kind;
+
+	/**
+	 * The offset of the first character of the current token (including any
+	 * leading spaces).
+	 */
+	private int tokenStart;
+
+	/**
+	 * The offset after the last character of the current token (including any
+	 * trailing spaces).
+	 */
+	private int tokenEnd;
+
+	/**
+	 * The offset in the CharSequence at which the most recent ParseException
+	 * was encountered, or -1 if no ParseException has been encountered.
+	 */
+	private int errorOffset = -1;
+
+	/**
+	 * The nodes that have been produced but not yet attached to a parent node.
+	 */
+	private Node[] nodes = new Node[16];
+
+	/**
+	 * The number of nodes in the nodes array.
+	 */
+	private int nodeCount;
+
+	/**
+	 * Constructs a new CharSequenceFormulaParser for the formula contained in
+	 * the given CharSequence.
+	 * 
+	 * @param text
+	 *            The CharSequence containing the formula to be parsed
+	 * @throws IllegalArgumentException
+	 *             if the given CharSequence is null
+	 */
+	public CharSequenceFormulaParser(CharSequence text)
+	{
+		this(text, 0, (text == null) ? 0 : text.length());
+	}
+
+	/**
+	 * Constructs a new CharSequenceFormulaParser for the formula contained in
+	 * the given range of the given CharSequence.
+	 * 
+	 * @param text
+	 *            The CharSequence containing the formula to be parsed
+	 * @param start
+	 *            The offset of the first character of the formula
+	 * @param end
+	 *            The offset after the last character of the formula
+	 * @throws IllegalArgumentException
+	 *             if the given CharSequence is null or the given range is not
+	 *             within the CharSequence
+	 */
+	public CharSequenceFormulaParser(CharSequence text, int start, int end)
+	{
+		if (text == null)
+		{
+			throw new IllegalArgumentException(
+				"Cannot parse null CharSequence");
+		}
+		if ((start < 0) || (end < start) || (end > text.length()))
+		{
+			throw new IllegalArgumentException("Range " + start + "-" + end
+				+ " is not within CharSequence of length " + text.length());
+		}
+		this.text = text;
+		this.start = start;
+		this.end = end;
+	}
+
+	/**
+	 * Parses the formula, returning the root node of the tree representing the
+	 * formula.
+	 * 
+	 * @return The root node of the tree representing the formula
+	 * @throws ParseException
+	 *             if the formula is not a well-structured formula
+	 */
+	public SimpleNode query() throws ParseException
+	{
+		nodeCount = 0;
+		errorOffset = -1;
+		tokenEnd = start;
+		next();
+		SimpleNode root = new ASTRoot(FormulaParserTreeConstants.JJTROOT);
+		if (startsExpression())
+		{
+			logicalExpr();
+		}
+		expect(FormulaParserConstants.EOF);
+		close(root, nodeCount);
+		return root;
+	}
+
+	/**
+	 * Returns the offset in the CharSequence at which the ParseException
+	 * thrown by the most recent call to query() was encountered.
+	 * 
+	 * @return The offset in the CharSequence at which the ParseException
+	 *         thrown by query() was encountered, or -1 if query() has not
+	 *         thrown a ParseException
+	 */
+	public int getErrorOffset()
+	{
+		return errorOffset;
+	}
+
+	/*
+	 * The productions of the grammar, see formula.jjt
+	 */
+
+	private void logicalExpr() throws ParseException
+	{
+		equalityExpr();
+		while (true)
+		{
+			Operator op;
+			if (kind == FormulaParserConstants.OR)
+			{
+				op = Operator.OR;
+			}
+			else if (kind == FormulaParserConstants.AND)
+			{
+				op = Operator.AND;
+			}
+			else
+			{
+				return;
+			}
+			next();
+			equalityExpr();
+			closeBinary(new ASTLogical(FormulaParserTreeConstants.JJTLOGICAL),
+				op);
+		}
+	}
+
+	private void equalityExpr() throws ParseException
+	{
+		relationalExpr();
+		while (true)
+		{
+			Operator op;
+			if (kind == FormulaParserConstants.EQUAL)
+			{
+				op = Operator.EQ;
+			}
+			else if (kind == FormulaParserConstants.NOTEQUAL)
+			{
+				op = Operator.NEQ;
+			}
+			else
+			{
+				return;
+			}
+			next();
+			relationalExpr();
+			closeBinary(new ASTEquality(
+				FormulaParserTreeConstants.JJTEQUALITY), op);
+		}
+	}
+
+	private void relationalExpr() throws ParseException
+	{
+		arithmeticExpr();
+		while (true)
+		{
+			Operator op;
+			switch (kind)
+			{
+				case FormulaParserConstants.LT:
+					op = Operator.LT;
+					break;
+				case FormulaParserConstants.GT:
+					op = Operator.GT;
+					break;
+				case FormulaParserConstants.LTEQ:
+					op = Operator.LE;
+					break;
+				case FormulaParserConstants.GTEQ:
+					op = Operator.GE;
+					break;
+				default:
+					return;
+			}
+			next();
+			arithmeticExpr();
+			closeBinary(new ASTRelational(
+				FormulaParserTreeConstants.JJTRELATIONAL), op);
+		}
+	}
+
+	private void arithmeticExpr() throws ParseException
+	{
+		geometricExpr();
+		while (true)
+		{
+			Operator op;
+			if (kind == FormulaParserConstants.PLUS)
+			{
+				op = Operator.ADD;
+			}
+			else if (kind == FormulaParserConstants.MINUS)
+			{
+				op = Operator.SUB;
+			}
+			else
+			{
+				return;
+			}
+			next();
+			geometricExpr();
+			closeBinary(new ASTArithmetic(
+				FormulaParserTreeConstants.JJTARITHMETIC), op);
+		}
+	}
+
+	private void geometricExpr() throws ParseException
+	{
+		unaryExpr();
+		while (true)
+		{
+			Operator op;
+			switch (kind)
+			{
+				case FormulaParserConstants.MULT:
+					op = Operator.MUL;
+					break;
+				case FormulaParserConstants.DIV:
+					op = Operator.DIV;
+					break;
+				case FormulaParserConstants.REM:
+					op = Operator.REM;
+					break;
+				default:
+					return;
+			}
+			next();
+			unaryExpr();
+			closeBinary(new ASTGeometric(
+				FormulaParserTreeConstants.JJTGEOMETRIC), op);
+		}
+	}
+
+	private void unaryExpr() throws ParseException
+	{
+		if (kind == FormulaParserConstants.MINUS)
+		{
+			next();
+			exponExpr();
+			close(new ASTUnary(FormulaParserTreeConstants.JJTUNARY), 1);
+		}
+		else
+		{
+			exponExpr();
+		}
+	}
+
+	private void exponExpr() throws ParseException
+	{
+		int mark = nodeCount;
+		primitiveExpr();
+		if (kind == FormulaParserConstants.POW)
+		{
+			do
+			{
+				next();
+				primitiveExpr();
+			}
+			while (kind == FormulaParserConstants.POW);
+			SimpleNode expon =
+					new ASTExpon(FormulaParserTreeConstants.JJTEXPON);
+			expon.setOperator(Operator.EXP);
+			close(expon, nodeCount - mark);
+		}
+	}
+
+	private void primitiveExpr() throws ParseException
+	{
+		switch (kind)
+		{
+			case FormulaParserConstants.OPENPAREN:
+				parenExpr();
+				break;
+			case FormulaParserConstants.INT:
+			case FormulaParserConstants.FULLSTOP:
+				numberExpr();
+				break;
+			case FormulaParserConstants.REM:
+			case FormulaParserConstants.VARIABLE:
+				lookupExpr();
+				break;
+			default:
+				throw unexpected();
+		}
+	}
+
+	private void parenExpr() throws ParseException
+	{
+		next();
+		logicalExpr();
+		expect(FormulaParserConstants.CLOSEPAREN);
+		close(new ASTParen(FormulaParserTreeConstants.JJTPAREN), 1);
+	}
+
+	private void numberExpr() throws ParseException
+	{
+		int numberStart = tokenStart;
+		if (kind == FormulaParserConstants.INT)
+		{
+			next();
+			//LOOKAHEAD(2): the fraction is only consumed if it has digits
+			if ((kind == FormulaParserConstants.FULLSTOP)
+				&& (tokenEnd < end) && isDigit(text.charAt(tokenEnd)))
+			{
+				next();
+			}
+			else
+			{
+				push(number(numberStart, tokenStart));
+				return;
+			}
+		}
+		else
+		{
+			next();
+		}
+		if (kind != FormulaParserConstants.INT)
+		{
+			throw unexpected();
+		}
+		int numberEnd = tokenEnd;
+		next();
+		push(number(numberStart, numberEnd));
+	}
+
+	private SimpleNode number(int numberStart, int numberEnd)
+	{
+		SimpleNode num = new ASTNum(FormulaParserTreeConstants.JJTNUM);
+		num.setToken(substring(numberStart, numberEnd));
+		return num;
+	}
+
+	private void lookupExpr() throws ParseException
+	{
+		int mark = nodeCount;
+		pcgenSingleWord();
+		if (kind == FormulaParserConstants.OPENBRACKET)
+		{
+			pcgenBracketGroup();
+		}
+		else if (kind == FormulaParserConstants.OPENPAREN)
+		{
+			parenGroup();
+		}
+		if (nodeCount - mark > 1)
+		{
+			close(new ASTPCGenLookup(
+				FormulaParserTreeConstants.JJTPCGENLOOKUP), nodeCount - mark);
+		}
+	}
+
+	private void pcgenSingleWord() throws ParseException
+	{
+		int wordStart = tokenStart;
+		boolean embeddedSpace = false;
+		if (kind == FormulaParserConstants.REM)
+		{
+			embeddedSpace = text.charAt(tokenEnd - 1) == ' ';
+			next();
+		}
+		if (kind != FormulaParserConstants.VARIABLE)
+		{
+			throw unexpected();
+		}
+		int wordEnd = tokenEnd;
+		next();
+		String image = substring(wordStart, wordEnd);
+		if (embeddedSpace)
+		{
+			throw error("Found Word with embedded space: " + image,
+				wordStart);
+		}
+		SimpleNode word =
+				new ASTPCGenSingleWord(
+					FormulaParserTreeConstants.JJTPCGENSINGLEWORD);
+		word.setToken(image);
+		push(word);
+	}
+
+	private void pcgenBracketGroup() throws ParseException
+	{
+		next();
+		pcgenSingleWord();
+		expect(FormulaParserConstants.CLOSEBRACKET);
+		close(new ASTPCGenBracket(FormulaParserTreeConstants.JJTPCGENBRACKET),
+			1);
+	}
+
+	private void parenGroup() throws ParseException
+	{
+		int mark = nodeCount;
+		next();
+		if (startsExpression() || (kind == FormulaParserConstants.STRING_LITERAL))
+		{
+			functionExpr();
+			while (kind == FormulaParserConstants.COMMA)
+			{
+				next();
+				functionExpr();
+			}
+		}
+		expect(FormulaParserConstants.CLOSEPAREN);
+		close(new ASTFParen(FormulaParserTreeConstants.JJTFPAREN), nodeCount
+			- mark);
+	}
+
+	private void functionExpr() throws ParseException
+	{
+		if (kind == FormulaParserConstants.STRING_LITERAL)
+		{
+			SimpleNode string =
+					new ASTQuotString(FormulaParserTreeConstants.JJTQUOTSTRING);
+			string.setToken(substring(tokenStart + 1, tokenEnd - 1));
+			next();
+			push(string);
+		}
+		else if (startsExpression())
+		{
+			logicalExpr();
+		}
+		else
+		{
+			throw unexpected();
+		}
+	}
+
+	/**
+	 * Returns true if the current token can start a logicalExpr.
+	 */
+	private boolean startsExpression()
+	{
+		switch (kind)
+		{
+			case FormulaParserConstants.MINUS:
+			case FormulaParserConstants.OPENPAREN:
+			case FormulaParserConstants.INT:
+			case FormulaParserConstants.FULLSTOP:
+			case FormulaParserConstants.REM:
+			case FormulaParserConstants.VARIABLE:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/*
+	 * Tree construction (equivalent to JJTFormulaParserState)
+	 */
+
+	private void push(Node node)
+	{
+		if (nodeCount == nodes.length)
+		{
+			Node[] larger = new Node[nodeCount * 2];
+			System.arraycopy(nodes, 0, larger, 0, nodeCount);
+			nodes = larger;
+		}
+		nodes[nodeCount++] = node;
+	}
+
+	private void closeBinary(SimpleNode node, Operator op)
+	{
+		node.setOperator(op);
+		close(node, 2);
+	}
+
+	/**
+	 * Makes the given number of most recently produced nodes the children of
+	 * the given node, and then pushes the given node.
+	 */
+	private void close(SimpleNode node, int arity)
+	{
+		//Last child first, so that the children array is allocated once
+		for (int i = arity - 1; i >= 0; i--)
+		{
+			Node child = nodes[--nodeCount];
+			nodes[nodeCount] = null;
+			child.jjtSetParent(node);
+			node.jjtAddChild(child, i);
+		}
+		push(node);
+	}
+
+	/*
+	 * Tokens (equivalent to FormulaParserTokenManager)
+	 */
+
+	private void expect(int expected) throws ParseException
+	{
+		if (kind != expected)
+		{
+			throw unexpected();
+		}
+		if (expected != FormulaParserConstants.EOF)
+		{
+			next();
+		}
+	}
+
+	/**
+	 * Advances to the token following the current token, setting kind,
+	 * tokenStart and tokenEnd.
+	 */
+	private void next() throws ParseException
+	{
+		int pos = tokenEnd;
+		tokenStart = pos;
+		if (pos >= end)
+		{
+			kind = FormulaParserConstants.EOF;
+			return;
+		}
+		//Operators absorb any surrounding spaces
+		int opStart = pos;
+		while ((opStart < end) && (text.charAt(opStart) == ' '))
+		{
+			opStart++;
+		}
+		if ((opStart < end) && scanOperator(opStart))
+		{
+			while ((tokenEnd < end) && (text.charAt(tokenEnd) == ' '))
+			{
+				tokenEnd++;
+			}
+			return;
+		}
+		char c = text.charAt(pos);
+		if (isBasicLetter(c))
+		{
+			kind = FormulaParserConstants.VARIABLE;
+			tokenEnd = scanVariable(pos);
+		}
+		else if (isDigit(c))
+		{
+			int i = pos + 1;
+			while ((i < end) && isDigit(text.charAt(i)))
+			{
+				i++;
+			}
+			kind = FormulaParserConstants.INT;
+			tokenEnd = i;
+		}
+		else if (c == '.')
+		{
+			kind = FormulaParserConstants.FULLSTOP;
+			tokenEnd = pos + 1;
+		}
+		else if (c == '"')
+		{
+			kind = FormulaParserConstants.STRING_LITERAL;
+			tokenEnd = scanString(pos);
+		}
+		else
+		{
+			//Legal to the token manager (if not '\\'), but not to the parser
+			kind = UNKNOWN;
+			tokenEnd = pos + 1;
+		}
+	}
+
+	/**
+	 * Identifies an operator (or parenthesis, bracket or comma) starting at
+	 * the given offset. If one is present, sets kind and sets tokenEnd to the
+	 * offset after the operator, and returns true.
+	 */
+	private boolean scanOperator(int pos)
+	{
+		char c = text.charAt(pos);
+		boolean equalsFollows =
+				(pos + 1 < end) && (text.charAt(pos + 1) == '=');
+		int length = 1;
+		switch (c)
+		{
+			case '+':
+				kind = FormulaParserConstants.PLUS;
+				break;
+			case '-':
+				kind = FormulaParserConstants.MINUS;
+				break;
+			case '*':
+				kind = FormulaParserConstants.MULT;
+				break;
+			case '/':
+				kind = FormulaParserConstants.DIV;
+				break;
+			case '%':
+				kind = FormulaParserConstants.REM;
+				break;
+			case '^':
+				kind = FormulaParserConstants.POW;
+				break;
+			case ',':
+				kind = FormulaParserConstants.COMMA;
+				break;
+			case '(':
+				kind = FormulaParserConstants.OPENPAREN;
+				break;
+			case ')':
+				kind = FormulaParserConstants.CLOSEPAREN;
+				break;
+			case '[':
+				kind = FormulaParserConstants.OPENBRACKET;
+				break;
+			case ']':
+				kind = FormulaParserConstants.CLOSEBRACKET;
+				break;
+			case '>':
+				kind =
+						equalsFollows ? FormulaParserConstants.GTEQ
+							: FormulaParserConstants.GT;
+				length = equalsFollows ? 2 : 1;
+				break;
+			case '<':
+				kind =
+						equalsFollows ? FormulaParserConstants.LTEQ
+							: FormulaParserConstants.LT;
+				length = equalsFollows ? 2 : 1;
+				break;
+			case '=':
+				kind = FormulaParserConstants.EQUAL;
+				length = 2;
+				break;
+			case '!':
+				kind = FormulaParserConstants.NOTEQUAL;
+				length = 2;
+				break;
+			case '&':
+			case '|':
+				kind =
+						(c == '&') ? FormulaParserConstants.AND
+							: FormulaParserConstants.OR;
+				length = 2;
+				if ((pos + 1 < end) && (text.charAt(pos + 1) == c))
+				{
+					tokenEnd = pos + 2;
+					return true;
+				}
+				return false;
+			default:
+				return false;
+		}
+		if ((length == 2) && !equalsFollows)
+		{
+			return false;
+		}
+		tokenEnd = pos + length;
+		return true;
+	}
+
+	/**
+	 * Returns the offset after the longest VARIABLE starting at the given
+	 * offset (which must be a BASIC_LETTER). A VARIABLE is a BASIC_LETTER,
+	 * optionally followed by MID_LETTERs containing at most one "=" and ending
+	 * in a FINAL_LETTER.
+	 */
+	private int scanVariable(int pos)
+	{
+		int variableEnd = pos + 1;
+		boolean foundEquals = false;
+		for (int i = pos + 1; i < end; i++)
+		{
+			char c = text.charAt(i);
+			if (isFinalLetter(c))
+			{
+				variableEnd = i + 1;
+			}
+			else if ((c == '=') && !foundEquals)
+			{
+				foundEquals = true;
+			}
+			else if ((c != '_') && (c != ' ') && (c != ':') && (c != '.')
+				&& (c != '%'))
+			{
+				break;
+			}
+		}
+		return variableEnd;
+	}
+
+	/**
+	 * Returns the offset after the STRING_LITERAL starting at the given offset
+	 * (which must be a double quote).
+	 */
+	private int scanString(int pos) throws ParseException
+	{
+		for (int i = pos + 1; i < end; i++)
+		{
+			char c = text.charAt(i);
+			if (c == '"')
+			{
+				return i + 1;
+			}
+			else if (c == '\\')
+			{
+				i++;
+				if ((i >= end) || ("ntbrf\\'\"".indexOf(text.charAt(i)) == -1))
+				{
+					throw error("Illegal escape in string", i);
+				}
+			}
+			else if ((c == '\n') || (c == '\r'))
+			{
+				throw error("Line break in string", i);
+			}
+		}
+		throw error("Unterminated string", pos);
+	}
+
+	private static boolean isDigit(char c)
+	{
+		return (c >= '0') && (c <= '9');
+	}
+
+	private static boolean isFinalLetter(char c)
+	{
+		return (c == '~') || isDigit(c) || isBasicLetter(c);
+	}
+
+	private static boolean isBasicLetter(char c)
+	{
+		if (c < '\u0080')
+		{
+			return ((c >= 'A') && (c <= 'Z')) || ((c >= 'a') && (c <= 'z'));
+		}
+		return ((c >= '\u00c0') && (c <= '\u00d6'))
+			|| ((c >= '\u00d8') && (c <= '\u00f6'))
+			|| ((c >= '\u00f8') && (c <= '\u1fff'))
+			|| ((c >= '\u3040') && (c <= '\u318f'))
+			|| ((c >= '\u3300') && (c <= '\u337f'))
+			|| ((c >= '\u3400') && (c <= '\u3d2d'))
+			|| ((c >= '\u4e00') && (c <= '\u9fff'))
+			|| ((c >= '\uf900') && (c <= '\ufaff'));
+	}
+
+	private String substring(int from, int to)
+	{
+		if (text instanceof String)
+		{
+			return ((String) text).substring(from, to);
+		}
+		return new StringBuilder(to - from).append(text, from, to).toString();
+	}
+
+	private ParseException unexpected()
+	{
+		if (kind == FormulaParserConstants.EOF)
+		{
+			return error("Unexpected end of formula", tokenStart);
+		}
+		return error("Encountered \"" + substring(tokenStart, tokenEnd)
+			+ "\"", tokenStart);
+	}
+
+	private ParseException error(String message, int offset)
+	{
+		errorOffset = offset;
+		return new ParseException(message + " at column "
+			+ (offset - start + 1) + " of formula: "
+			+ substring(start, end));
+	}
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.parse;
+
+import java.io.Reader;
+
+/**
+ * FormulaParserPool parses formulas with a FormulaParser that is reused by
+ * each thread, rather than constructing a new FormulaParser (along with its
+ * token manager, tree state and character buffer) for each formula.
+ * 
+ * Each thread that parses a formula holds one FormulaParser, which is
+ * reinitialized (see FormulaParser.ReInit) for each formula. The tree state of
+ * the FormulaParser is reset once each formula has been parsed, so the
+ * FormulaParser does not keep the nodes it produced reachable (and the nodes
+ * do not reference the FormulaParser, see SimpleNode).
+ */
+public final class FormulaParserPool
+{
+
+	/**
+	 * The PooledParser for each thread.
+	 */
+	private static final ThreadLocal<PooledParser> PARSERS =
+			new ThreadLocal<PooledParser>()
+			{
+				@Override
+				protected PooledParser initialValue()
+				{
+					return new PooledParser();
+				}
+			};
+
+	private FormulaParserPool()
+	{
+		//Do not instantiate utility class
+	}
+
+	/**
+	 * Parses the given formula, returning the root node of the tree
+	 * representing the formula. This is equivalent to
+	 * new FormulaParser(new StringReader(expression)).query().
+	 * 
+	 * @param expression
+	 *            The formula to be parsed
+	 * @return The root node of the tree representing the formula
+	 * @throws ParseException
+	 *             if the formula is not a well-structured formula
+	 * @throws IllegalArgumentException
+	 *             if the given formula is null
+	 */
+	public static SimpleNode parse(String expression) throws ParseException
+	{
+		if (expression == null)
+		{
+			throw new IllegalArgumentException("Cannot parse null formula");
+		}
+		PooledParser pooled = PARSERS.get();
+		pooled.reader.reset(expression);
+		pooled.parser.ReInit(pooled.reader);
+		try
+		{
+			return pooled.parser.query();
+		}
+		finally
+		{
+			//Release the tree (which is left on the stack by query())
+			pooled.parser.jjtree.reset();
+			pooled.reader.reset(null);
+		}
+	}
+
+	/**
+	 * A PooledParser is the FormulaParser (and the Reader it reads from) held
+	 * by a single thread.
+	 */
+	private static final class PooledParser
+	{
+		private final ExpressionReader reader = new ExpressionReader();
+		private final FormulaParser parser = new FormulaParser(reader);
+	}
+
+	/**
+	 * An ExpressionReader is a Reader of a String, which can be reset to read
+	 * another String.
+	 */
+	private static final class ExpressionReader extends Reader
+	{
+		private String text;
+		private int next;
+
+		private void reset(String expression)
+		{
+			text = expression;
+			next = 0;
+		}
+
+		@Override
+		public int read(char[] cbuf, int off, int len)
+		{
+			if ((text == null) || (next >= text.length()))
+			{
+				return -1;
+			}
+			int count = Math.min(len, text.length() - next);
+			text.getChars(next, next + count, cbuf, off);
+			next += count;
+			return count;
+		}
+
+		@Override
+		public void close()
+		{
+			text = null;
+		}
+	}
+}
@@ -25,17 +25,26 @@ public class SimpleNode implements Node
 	private Node parent;
 	private Node[] children;
 	private int id;
-	private FormulaParser parser;
 
 	public SimpleNode(int i)
 	{
 		id = i;
 	}
 
+	/**
+	 * Constructs a new SimpleNode with the given ID. The given FormulaParser
+	 * is intentionally not stored: a FormulaParser may be reused (see
+	 * FormulaParserPool), and must not remain reachable from the nodes it
+	 * produced.
+	 * 
+	 * @param p
+	 *            The FormulaParser producing the node (ignored)
+	 * @param i
+	 *            The ID of the node
+	 */
 	public SimpleNode(FormulaParser p, int i)
 	{
 		this(i);
-		parser = p;
 	}
 
 	public void jjtOpen()
@@ -118,6 +127,14 @@ public class SimpleNode implements Node
 	 */
 	private String text;
 
+	/**
+	 * Information bound to this node by an evaluator, if any (for example, the
+	 * OperatorAction resolved for the Operator of this node). This is a cache
+	 * only: it is never required for correct evaluation, and an evaluator
+	 * must verify that a binding is applicable before using it.
+	 */
+	private volatile Object binding;
+
 	/**
 	 * Sets the Operator for this Node. Under normal circumstances, this method
 	 * should only be called by the parser, not by any method at runtime.
@@ -181,4 +198,28 @@ public class SimpleNode implements Node
 	{
 		return text;
 	}
+
+	/**
+	 * Returns the information bound to this node by an evaluator, if any.
+	 * 
+	 * @return The information bound to this node by an evaluator, if any.
+	 *         Null is a legal return value if nothing has been bound.
+	 */
+	public Object getBinding()
+	{
+		return binding;
+	}
+
+	/**
+	 * Sets the information bound to this node by an evaluator. The given
+	 * object should be immutable (or thread-safe), since a formula may be
+	 * evaluated by more than one thread.
+	 * 
+	 * @param binding
+	 *            The information to be bound to this node
+	 */
+	public void setBinding(Object binding)
+	{
+		this.binding = binding;
+	}
 }
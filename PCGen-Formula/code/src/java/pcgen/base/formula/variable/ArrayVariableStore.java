@@ -0,0 +1,334 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.variable;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ArrayVariableStore is an implementation of the WriteableVariableStore
+ * interface that stores the values of the variables of each VariableScope in
+ * arrays, using the index of each variable within the
+ * ScopedNamespaceDefinition of the VariableScope (see
+ * VariableLibrary.getVariableIndex and VariableID.getIndex) as the location of
+ * the value.
+ * 
+ * The arrays for a VariableScope are sized to the number of variables defined
+ * in its ScopedNamespaceDefinition, and the arrays for the most recently used
+ * VariableScope are remembered (as a single immutable LastUsed published
+ * through a volatile field), so get(VariableScope, int) is a direct array
+ * access in the common case of a series of variables being read from the same
+ * VariableScope. For a VariableID provided by the VariableLibrary of this
+ * ArrayVariableStore, get, containsKey and put use the index of the
+ * VariableID. Any other VariableID (e.g. one constructed directly or provided
+ * by a different VariableLibrary) is indexed by the VariableLibrary, so values
+ * are stored and retrieved consistently with VariableID.equals, as with
+ * SimpleVariableStore.
+ * 
+ * As each write has the same format for a given variable in the vast majority
+ * of cases, the class of the most recent value written for each variable is
+ * remembered, and the check that the value is legal for the format of the
+ * VariableID is skipped when a value of that class is written.
+ * 
+ * ArrayVariableStore operates much like a Map in that items can be added
+ * multiple times, and old values are overwritten by the newer value. The
+ * exception is that null values are not allowed.
+ * 
+ * Like SimpleVariableStore, ArrayVariableStore is not thread-safe for writes.
+ * It may be read by any number of threads concurrently (e.g. by a
+ * ParallelEvaluator), provided it is not modified while it is being read:
+ * replacing the remembered LastUsed is the only change made by a read, and a
+ * reader always sees a VariableScope together with its own arrays.
+ */
+public class ArrayVariableStore implements WriteableVariableStore
+{
+
+	/**
+	 * The VariableLibrary which provides the VariableIDs (and thus the
+	 * indexes) used by this ArrayVariableStore.
+	 */
+	private final VariableLibrary varLibrary;
+
+	/**
+	 * The values stored for each VariableScope.
+	 */
+	private final Map<VariableScope<?>, ScopeValues> scopeValues =
+			new HashMap<VariableScope<?>, ScopeValues>();
+
+	/**
+	 * The most recently used VariableScope and its values (null if no
+	 * VariableScope has been used). Replaced (never modified), so it is safely
+	 * published to other threads.
+	 */
+	private volatile LastUsed last;
+
+	/**
+	 * Constructs a new (empty) ArrayVariableStore for VariableIDs provided by
+	 * the given VariableLibrary.
+	 * 
+	 * @param varLibrary
+	 *            The VariableLibrary which provides the VariableIDs used by
+	 *            this ArrayVariableStore
+	 * @throws IllegalArgumentException
+	 *             if the given VariableLibrary is null
+	 */
+	public ArrayVariableStore(VariableLibrary varLibrary)
+	{
+		if (varLibrary == null)
+		{
+			throw new IllegalArgumentException(
+				"VariableLibrary cannot be null");
+		}
+		this.varLibrary = varLibrary;
+	}
+
+	/**
+	 * Returns the VariableLibrary which provides the VariableIDs (and thus the
+	 * indexes) used by this ArrayVariableStore.
+	 * 
+	 * @return The VariableLibrary which provides the VariableIDs used by this
+	 *         ArrayVariableStore
+	 */
+	public VariableLibrary getVariableLibrary()
+	{
+		return varLibrary;
+	}
+
+	/**
+	 * Returns the value in this ArrayVariableStore for the given VariableID.
+	 * 
+	 * It is not necessary to check containsKey or for put to have been called
+	 * for the given VariableID. Will return null if there is no value stored
+	 * for the given VariableID.
+	 * 
+	 * @see pcgen.base.formula.variable.VariableStore#get(pcgen.base.formula.variable.VariableID)
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T> T get(VariableID<T> id)
+	{
+		if (id == null)
+		{
+			return null;
+		}
+		ScopeValues sv = getScopeValues(id.getScope(), false);
+		if (sv == null)
+		{
+			return null;
+		}
+		int index = id.getIndex();
+		if (!sv.isStoredAt(index, id))
+		{
+			index = varLibrary.getIndex(id);
+		}
+		return (T) sv.get(index);
+	}
+
+	/**
+	 * Returns the value in this ArrayVariableStore of the variable with the
+	 * given index (see VariableLibrary.getVariableIndex) in the given
+	 * VariableScope.
+	 * 
+	 * The index must be the index of a variable defined in the
+	 * ScopedNamespaceDefinition of the given VariableScope (a variable defined
+	 * in a parent ScopedNamespaceDefinition must be retrieved from the parent
+	 * VariableScope).
+	 * 
+	 * @param scope
+	 *            The VariableScope for which the value should be returned
+	 * @param index
+	 *            The index of the variable within the ScopedNamespaceDefinition
+	 *            of the given VariableScope
+	 * @return The value of the variable with the given index in the given
+	 *         VariableScope; null if there is no value stored for the
+	 *         variable
+	 */
+	public Object get(VariableScope<?> scope, int index)
+	{
+		ScopeValues sv = getScopeValues(scope, false);
+		return (sv == null) ? null : sv.get(index);
+	}
+
+	/**
+	 * Returns true if this ArrayVariableStore contains a value for the given
+	 * VariableID.
+	 * 
+	 * If this method returns true, then it is guaranteed that the get method
+	 * will not return null.
+	 * 
+	 * @see pcgen.base.formula.variable.VariableStore#containsKey(pcgen.base.formula.variable.VariableID)
+	 */
+	@Override
+	public boolean containsKey(VariableID<?> id)
+	{
+		return get(id) != null;
+	}
+
+	/**
+	 * Adds the given non-null value to this ArrayVariableStore for the given
+	 * (non-null) VariableID.
+	 * 
+	 * @see pcgen.base.formula.variable.WriteableVariableStore#put(pcgen.base.formula.variable.VariableID,
+	 *      java.lang.Object)
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public <T> T put(VariableID<T> id, T value)
+	{
+		if (id == null)
+		{
+			throw new IllegalArgumentException("VariableID cannot be null");
+		}
+		if (value == null)
+		{
+			throw new IllegalArgumentException("Value cannot be null");
+		}
+		VariableScope<T> scope = id.getScope();
+		ScopeValues sv = getScopeValues(scope, true);
+		int index = id.getIndex();
+		if (!sv.isStoredAt(index, id))
+		{
+			index = varLibrary.index(scope.getScopeDefinition(), id.getName());
+			sv.ensureCapacity(index);
+		}
+		Class<?> valueClass = value.getClass();
+		if (sv.checkedClasses[index] != valueClass)
+		{
+			Class<T> varFormat = id.getVariableFormat();
+			if (!varFormat.isAssignableFrom(valueClass))
+			{
+				throw new IllegalArgumentException(
+					"VariableID type misassignment.  Expected: "
+						+ varFormat.getSimpleName() + " but got "
+						+ valueClass.getSimpleName());
+			}
+			sv.checkedClasses[index] = valueClass;
+		}
+		sv.ids[index] = id;
+		Object previous = sv.values[index];
+		sv.values[index] = value;
+		return (T) previous;
+	}
+
+	/**
+	 * Returns the ScopeValues for the given VariableScope, creating it if
+	 * requested (otherwise returning null if no values are stored for the
+	 * given VariableScope).
+	 */
+	private ScopeValues getScopeValues(VariableScope<?> scope, boolean create)
+	{
+		LastUsed current = last;
+		if ((current != null) && (current.scope == scope))
+		{
+			return current.values;
+		}
+		ScopeValues sv = scopeValues.get(scope);
+		if (sv == null)
+		{
+			if (!create)
+			{
+				return null;
+			}
+			sv =
+					new ScopeValues(varLibrary.getVariableCount(scope
+						.getScopeDefinition()));
+			scopeValues.put(scope, sv);
+		}
+		last = new LastUsed(scope, sv);
+		return sv;
+	}
+
+	/**
+	 * A VariableScope and the values stored for it.
+	 */
+	private static final class LastUsed
+	{
+		private final VariableScope<?> scope;
+		private final ScopeValues values;
+
+		private LastUsed(VariableScope<?> scope, ScopeValues values)
+		{
+			this.scope = scope;
+			this.values = values;
+		}
+	}
+
+	/**
+	 * The values stored for a single VariableScope.
+	 */
+	private static final class ScopeValues
+	{
+		/**
+		 * The VariableID stored at each index (null if no value is stored).
+		 * Used to confirm that the index of a VariableID is the index assigned
+		 * by the VariableLibrary of this ArrayVariableStore.
+		 */
+		private VariableID<?>[] ids;
+
+		/**
+		 * The value stored at each index (null if no value is stored).
+		 */
+		private Object[] values;
+
+		/**
+		 * The class of the most recent value stored at each index (which is
+		 * known to be legal for the format of the VariableID at that index).
+		 */
+		private Class<?>[] checkedClasses;
+
+		private ScopeValues(int size)
+		{
+			ids = new VariableID<?>[size];
+			values = new Object[size];
+			checkedClasses = new Class<?>[size];
+		}
+
+		/**
+		 * Returns true if a value is stored at the given index for the given
+		 * VariableID.
+		 */
+		private boolean isStoredAt(int index, VariableID<?> id)
+		{
+			if ((index < 0) || (index >= ids.length))
+			{
+				return false;
+			}
+			VariableID<?> stored = ids[index];
+			return (stored == id) || id.equals(stored);
+		}
+
+		private Object get(int index)
+		{
+			return ((index >= 0) && (index < values.length)) ? values[index]
+				: null;
+		}
+
+		private void ensureCapacity(int index)
+		{
+			if (index >= ids.length)
+			{
+				int size = Math.max(index + 1, ids.length * 2);
+				ids = Arrays.copyOf(ids, size);
+				values = Arrays.copyOf(values, size);
+				checkedClasses = Arrays.copyOf(checkedClasses, size);
+			}
+		}
+	}
+
+}
@@ -31,6 +31,11 @@ import java.util.Map;
  * SimpleVariableStore operates much like a Map in that items can be added
  * multiple times, and old values are overwritten by the newer value. The
  * exception is that null values are not allowed.
+ * 
+ * SimpleVariableStore is not thread-safe for writes. It may be read by any
+ * number of threads concurrently (e.g. by a ParallelEvaluator), provided it is
+ * not modified while it is being read, since a read makes no change to the
+ * SimpleVariableStore.
  */
 public class SimpleVariableStore implements WriteableVariableStore
 {
@@ -50,6 +50,13 @@ public class VariableID<T>
 	 */
 	private final CaseInsensitiveString varName;
 
+	/**
+	 * The index of the variable within the ScopedNamespaceDefinition of its
+	 * scope, as assigned by the VariableLibrary that provided this VariableID;
+	 * -1 if this VariableID was not provided by a VariableLibrary.
+	 */
+	private final int index;
+
 	/*
 	 * We choose not to do any enforcement of variable names beyond what is
 	 * already enforced (non-null, non-empty, no leading/trailing whitespace).
@@ -74,6 +81,28 @@ public class VariableID<T>
 	 *             starts/ends with whitespace
 	 */
 	VariableID(VariableScope<T> scope, String name)
+	{
+		this(scope, name, -1);
+	}
+
+	/**
+	 * Constructs a new VariableID with the given scope, name and index.
+	 * 
+	 * Package visibility because the index is assigned by VariableLibrary.
+	 * 
+	 * @param scope
+	 *            The scope of the variable represented by this VariableID
+	 * @param name
+	 *            The name of the variable represented by this VariableID
+	 * @param index
+	 *            The index of the variable within the ScopedNamespaceDefinition
+	 *            of the scope, as assigned by the VariableLibrary that provides
+	 *            this VariableID
+	 * @throws IllegalArgumentException
+	 *             if the scope or name is null, or if the name is empty, or
+	 *             starts/ends with whitespace
+	 */
+	VariableID(VariableScope<T> scope, String name, int index)
 	{
 		if (scope == null)
 		{
@@ -95,6 +124,7 @@ public class VariableID<T>
 		}
 		this.scope = scope;
 		this.varName = new CaseInsensitiveString(name);
+		this.index = index;
 	}
 
 	/**
@@ -119,6 +149,25 @@ public class VariableID<T>
 		return varName.toString();
 	}
 
+	/**
+	 * Returns the index of the variable within the ScopedNamespaceDefinition
+	 * of the scope of this VariableID, as assigned by the VariableLibrary that
+	 * provided this VariableID (see VariableLibrary.getVariableIndex). Indexes
+	 * are dense, so they may be used to store the values of the variables of a
+	 * VariableScope in an array (see ArrayVariableStore).
+	 * 
+	 * The index is not considered by equals (as different VariableLibrary
+	 * objects may assign different indexes to the same variable).
+	 * 
+	 * @return The index of the variable within the ScopedNamespaceDefinition
+	 *         of the scope of this VariableID; -1 if this VariableID was not
+	 *         provided by a VariableLibrary
+	 */
+	public int getIndex()
+	{
+		return index;
+	}
+
 	/**
 	 * Returns the format (e.g. Number.class) of this VariableID (as controlled
 	 * by the Scope).
@@ -18,7 +18,11 @@
 package pcgen.base.formula.variable;
 
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import pcgen.base.lang.CaseInsensitiveString;
 import pcgen.base.util.CaseInsensitiveMap;
 import pcgen.base.util.GenericMapToList;
 
@@ -77,6 +81,24 @@ public class VariableLibrary
 	private GenericMapToList<String, ScopedNamespaceDefinition<?>> variableDefs =
 			GenericMapToList.getMapToList(CaseInsensitiveMap.class);
 
+	/**
+	 * Holds the index of each variable name within each
+	 * ScopedNamespaceDefinition (see getVariableIndex). The size of the map
+	 * for a ScopedNamespaceDefinition is the index of the next variable name
+	 * to be indexed within that ScopedNamespaceDefinition.
+	 * 
+	 * Indexes are held for ScopedNamespaceDefinition objects (rather than
+	 * VariableScope objects), so the number of indexes is limited by the
+	 * number of variable definitions, not the number of VariableScope objects
+	 * that have been instantiated, and no VariableScope is retained.
+	 * 
+	 * This is read without a lock; a lock on the map for a
+	 * ScopedNamespaceDefinition is only held while a new variable name is
+	 * added, so that indexes are assigned without gaps.
+	 */
+	private final ConcurrentMap<ScopedNamespaceDefinition<?>, ConcurrentMap<CaseInsensitiveString, Integer>> variableIndexes =
+			new ConcurrentHashMap<ScopedNamespaceDefinition<?>, ConcurrentMap<CaseInsensitiveString, Integer>>();
+
 	/**
 	 * Asserts the given variable name is valid within the given
 	 * ScopedNamespaceDefinition.
@@ -121,6 +143,7 @@ public class VariableLibrary
 		{
 			//Can't be a conflict
 			variableDefs.addToListFor(varName, snDef);
+			index(snDef, varName);
 			return true;
 		}
 		if (variableDefs.containsInList(varName, snDef))
@@ -143,6 +166,7 @@ public class VariableLibrary
 		if (!hasChildConflict)
 		{
 			variableDefs.addToListFor(varName, snDef);
+			index(snDef, varName);
 		}
 		return !hasChildConflict;
 	}
@@ -300,6 +324,10 @@ public class VariableLibrary
 	 * exception. isLegalVariableID should be called first to determine if
 	 * calling this method is safe.
 	 * 
+	 * The returned VariableID carries the index of the variable within the
+	 * ScopedNamespaceDefinition in which it is defined (see
+	 * getVariableIndex and VariableID.getIndex).
+	 * 
 	 * @param <T>
 	 *            The type of object identified by the VariableID to be returned
 	 * @param scope
@@ -335,11 +363,130 @@ public class VariableLibrary
 		checkLegalVarName(varName);
 		if (variableDefs.containsInList(varName, scope.getScopeDefinition()))
 		{
-			return new VariableID<T>(scope, varName);
+			return new VariableID<T>(scope, varName, index(
+				scope.getScopeDefinition(), varName));
 		}
 		return getVarIDMessaged(scope.getParentScope(), varName, scope);
 	}
 
+	/**
+	 * Returns the index of the variable with the given name that is defined
+	 * (see assertVariableScope) in the given ScopedNamespaceDefinition. A
+	 * variable defined in a parent ScopedNamespaceDefinition is not
+	 * considered (it has an index within that parent).
+	 * 
+	 * Indexes are dense: the variables within each ScopedNamespaceDefinition
+	 * are numbered from zero (see getVariableCount), so they may be used to
+	 * store the values of the variables of a VariableScope in an array (see
+	 * ArrayVariableStore). The index of a variable does not change once
+	 * assigned.
+	 * 
+	 * @param snDef
+	 *            The ScopedNamespaceDefinition in which the variable is
+	 *            defined
+	 * @param varName
+	 *            The (case-insensitive) name of the variable
+	 * @return The index of the variable with the given name within the given
+	 *         ScopedNamespaceDefinition; -1 if the variable is not defined in
+	 *         the given ScopedNamespaceDefinition
+	 * @throws IllegalArgumentException
+	 *             if the given ScopedNamespaceDefinition is null
+	 */
+	public int getVariableIndex(ScopedNamespaceDefinition<?> snDef,
+		String varName)
+	{
+		if (snDef == null)
+		{
+			throw new IllegalArgumentException(
+				"Scope Type Definition cannot be null");
+		}
+		if ((varName == null) || !variableDefs.containsInList(varName, snDef))
+		{
+			return -1;
+		}
+		return index(snDef, varName);
+	}
+
+	/**
+	 * Returns the index of the variable with the given name within the given
+	 * ScopedNamespaceDefinition, assigning the next index if the variable
+	 * name has not previously been indexed.
+	 * 
+	 * This does not check whether the variable is defined in the
+	 * ScopedNamespaceDefinition (it is also used by VariableStore
+	 * implementations to index a VariableID which was constructed directly).
+	 */
+	int index(ScopedNamespaceDefinition<?> snDef, String varName)
+	{
+		ConcurrentMap<CaseInsensitiveString, Integer> indexes =
+				variableIndexes.get(snDef);
+		if (indexes == null)
+		{
+			indexes = new ConcurrentHashMap<CaseInsensitiveString, Integer>();
+			ConcurrentMap<CaseInsensitiveString, Integer> existing =
+					variableIndexes.putIfAbsent(snDef, indexes);
+			if (existing != null)
+			{
+				indexes = existing;
+			}
+		}
+		CaseInsensitiveString name = new CaseInsensitiveString(varName);
+		Integer index = indexes.get(name);
+		if (index == null)
+		{
+			synchronized (indexes)
+			{
+				index = indexes.get(name);
+				if (index == null)
+				{
+					index = Integer.valueOf(indexes.size());
+					indexes.put(name, index);
+				}
+			}
+		}
+		return index.intValue();
+	}
+
+	/**
+	 * Returns the index of the variable identified by the given VariableID
+	 * within the ScopedNamespaceDefinition of the VariableScope of the
+	 * VariableID, without assigning an index.
+	 * 
+	 * @param id
+	 *            The VariableID for which the index should be returned
+	 * @return The index of the variable identified by the given VariableID;
+	 *         -1 if no index has been assigned to the variable
+	 */
+	int getIndex(VariableID<?> id)
+	{
+		Map<CaseInsensitiveString, Integer> indexes =
+				variableIndexes.get(id.getScope().getScopeDefinition());
+		if (indexes == null)
+		{
+			return -1;
+		}
+		Integer index = indexes.get(new CaseInsensitiveString(id.getName()));
+		return (index == null) ? -1 : index.intValue();
+	}
+
+	/**
+	 * Returns the number of variables which have been indexed within the
+	 * given ScopedNamespaceDefinition. The indexes of those variables are zero
+	 * through one less than the returned value.
+	 * 
+	 * @param snDef
+	 *            The ScopedNamespaceDefinition for which the number of indexed
+	 *            variables should be returned
+	 * @return The number of variables which have been indexed within the
+	 *         given ScopedNamespaceDefinition
+	 */
+	public int getVariableCount(ScopedNamespaceDefinition<?> snDef)
+	{
+		Map<CaseInsensitiveString, Integer> indexes =
+				variableIndexes.get(snDef);
+		return (indexes == null) ? 0 : indexes.size();
+	}
+
 	/**
 	 * Ensure a name is not null, zero length, or whitespace padded
 	 */
@@ -0,0 +1,532 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.visitor;
+
+import pcgen.base.formula.manager.FormulaManager;
+import pcgen.base.formula.manager.FunctionBinding;
+import pcgen.base.formula.manager.OperatorBinding;
+import pcgen.base.formula.parse.ASTArithmetic;
+import pcgen.base.formula.parse.ASTEquality;
+import pcgen.base.formula.parse.ASTExpon;
+import pcgen.base.formula.parse.ASTFParen;
+import pcgen.base.formula.parse.ASTGeometric;
+import pcgen.base.formula.parse.ASTLogical;
+import pcgen.base.formula.parse.ASTNum;
+import pcgen.base.formula.parse.ASTPCGenBracket;
+import pcgen.base.formula.parse.ASTPCGenLookup;
+import pcgen.base.formula.parse.ASTPCGenSingleWord;
+import pcgen.base.formula.parse.ASTParen;
+import pcgen.base.formula.parse.ASTQuotString;
+import pcgen.base.formula.parse.ASTRelational;
+import pcgen.base.formula.parse.ASTRoot;
+import pcgen.base.formula.parse.ASTUnary;
+import pcgen.base.formula.parse.FormulaParserVisitor;
+import pcgen.base.formula.parse.Node;
+import pcgen.base.formula.parse.Operator;
+import pcgen.base.formula.parse.SimpleNode;
+import pcgen.base.formula.variable.ScopedNamespaceDefinition;
+import pcgen.base.formula.variable.VariableLibrary;
+import pcgen.base.formula.variable.VariableScope;
+import pcgen.base.formula.variable.VariableStore;
+
+/**
+ * BatchEvaluateVisitor visits a formula in tree form in order to solve the
+ * formula for a number of VariableScope objects at once (e.g. for each
+ * equipment instance). The results are identical to using an EvaluateVisitor
+ * for each VariableScope.
+ * 
+ * Rather than walking the tree once for each VariableScope, the tree is walked
+ * once, and each node is processed for all of the VariableScope objects (one
+ * "column" of values per node), so that the cost of visiting each node is paid
+ * once. The data parameter to each method is the (ascending) array of rows
+ * (indexes into the VariableScope array) to be processed, and each method
+ * returns an array of results (one per VariableScope, where only the rows that
+ * were processed are loaded).
+ * 
+ * The rows to be processed are narrowed when an Operator short-circuits (see
+ * OperatorLibrary.shortCircuit), so that the second argument is only evaluated
+ * for the VariableScope objects where an EvaluateVisitor would evaluate it.
+ * 
+ * Functions are not processed by column, as a Function (see Function.evaluate)
+ * processes its arguments with an EvaluateVisitor. Each Function is therefore
+ * evaluated once per VariableScope, with an EvaluateVisitor for that
+ * VariableScope.
+ * 
+ * As with EvaluateVisitor, the behavior of BatchEvaluateVisitor is not defined
+ * if ValidVisitor returned a FormulaSemantics that indicated isValid() was
+ * false.
+ */
+@SuppressWarnings("PMD.TooManyMethods")
+public class BatchEvaluateVisitor implements FormulaParserVisitor
+{
+
+	/**
+	 * The FormulaManager used to get information about functions and other key
+	 * parameters of a Formula.
+	 */
+	private final FormulaManager fm;
+
+	/**
+	 * The scopes in which the formula is evaluated (one per row).
+	 */
+	private final VariableScope<?>[] scopes;
+
+	/**
+	 * The EvaluateVisitor for each row, used to evaluate Functions (lazily
+	 * constructed).
+	 */
+	private final EvaluateVisitor[] rowVisitors;
+
+	/**
+	 * Constructs a new BatchEvaluateVisitor with the given items used to
+	 * perform the evaluation, as necessary.
+	 * 
+	 * Ownership of the VariableScope array is NOT transferred to the
+	 * BatchEvaluateVisitor; the array is copied.
+	 * 
+	 * @param fm
+	 *            The FormulaManager used to get information about functions and
+	 *            other key parameters of a Formula
+	 * @param scopes
+	 *            The scopes in which the formula is evaluated
+	 * @throws IllegalArgumentException
+	 *             if any of the parameters (or any of the scopes) are null
+	 */
+	public BatchEvaluateVisitor(FormulaManager fm, VariableScope<?>[] scopes)
+	{
+		if (fm == null)
+		{
+			throw new IllegalArgumentException("FormulaManager cannot be null");
+		}
+		if (scopes == null)
+		{
+			throw new IllegalArgumentException("Scopes cannot be null");
+		}
+		for (VariableScope<?> scope : scopes)
+		{
+			if (scope == null)
+			{
+				throw new IllegalArgumentException("Scope cannot be null");
+			}
+		}
+		this.fm = fm;
+		this.scopes = scopes.clone();
+		rowVisitors = new EvaluateVisitor[scopes.length];
+	}
+
+	/**
+	 * Evaluates the formula with the given root node for each VariableScope
+	 * of this BatchEvaluateVisitor, loading the results into the given array
+	 * (in the same order as the VariableScope objects).
+	 * 
+	 * @param root
+	 *            The root node of the formula to be evaluated
+	 * @param results
+	 *            The array into which the results are loaded
+	 * @throws IllegalArgumentException
+	 *             if either parameter is null or the results array is shorter
+	 *             than the array of VariableScope objects
+	 */
+	public void evaluate(Node root, Object[] results)
+	{
+		if (root == null)
+		{
+			throw new IllegalArgumentException("Cannot evaluate with null root");
+		}
+		if (results == null)
+		{
+			throw new IllegalArgumentException("Results cannot be null");
+		}
+		if (results.length < scopes.length)
+		{
+			throw new IllegalArgumentException("Results length ("
+				+ results.length + ") must be at least the number of scopes ("
+				+ scopes.length + ")");
+		}
+		int[] rows = new int[scopes.length];
+		for (int i = 0; i < rows.length; i++)
+		{
+			rows[i] = i;
+		}
+		Object[] column = (Object[]) root.jjtAccept(this, rows);
+		System.arraycopy(column, 0, results, 0, scopes.length);
+	}
+
+	/**
+	 * Visits a SimpleNode. Because this cannot be processed, due to lack of
+	 * knowledge as to the exact type of SimpleNode encountered, the node is
+	 * visited, which - through double dispatch - will result in another method
+	 * on this BatchEvaluateVisitor being called.
+	 * 
+	 * @see pcgen.base.formula.parse.FormulaParserVisitor#visit(pcgen.base.formula.parse.SimpleNode,
+	 *      java.lang.Object)
+	 */
+	@Override
+	public Object visit(SimpleNode node, Object data)
+	{
+		//Delegate to the appropriate class
+		return node.jjtAccept(this, data);
+	}
+
+	/**
+	 * Processes the (single) child of this node, as a root is simply a
+	 * structural placeholder
+	 */
+	@Override
+	public Object visit(ASTRoot node, Object data)
+	{
+		return evaluateSingleChild(node, data);
+	}
+
+	/**
+	 * Evaluates the node, based on the Operator in the node. The second child
+	 * is not evaluated for the rows where the first child determines the
+	 * result (see OperatorLibrary.shortCircuit).
+	 */
+	@Override
+	public Object visit(ASTLogical node, Object data)
+	{
+		return evaluateOperatorNode(node, (int[]) data, true);
+	}
+
+	/**
+	 * Evaluates the node, based on the Operator in the node
+	 */
+	@Override
+	public Object visit(ASTEquality node, Object data)
+	{
+		return evaluateOperatorNode(node, (int[]) data, false);
+	}
+
+	/**
+	 * Evaluates the node, based on the Operator in the node
+	 */
+	@Override
+	public Object visit(ASTRelational node, Object data)
+	{
+		return evaluateOperatorNode(node, (int[]) data, false);
+	}
+
+	/**
+	 * Evaluates the node, based on the Operator in the node
+	 */
+	@Override
+	public Object visit(ASTArithmetic node, Object data)
+	{
+		return evaluateOperatorNode(node, (int[]) data, false);
+	}
+
+	/**
+	 * Evaluates the node, based on the Operator in the node
+	 */
+	@Override
+	public Object visit(ASTGeometric node, Object data)
+	{
+		return evaluateOperatorNode(node, (int[]) data, false);
+	}
+
+	/**
+	 * Evaluates the node, which is a unary negation (as with EvaluateVisitor)
+	 */
+	@Override
+	public Object visit(ASTUnary node, Object data)
+	{
+		int[] rows = (int[]) data;
+		Object[] column = (Object[]) evaluateSingleChild(node, data);
+		for (int row : rows)
+		{
+			Number n = (Number) column[row];
+			if (n instanceof Integer)
+			{
+				column[row] = Integer.valueOf(-((Integer) n).intValue());
+			}
+			else
+			{
+				column[row] = Double.valueOf(-n.doubleValue());
+			}
+		}
+		return column;
+	}
+
+	/**
+	 * Evaluates the exponential node (as with EvaluateVisitor)
+	 */
+	@Override
+	public Object visit(ASTExpon node, Object data)
+	{
+		int[] rows = (int[]) data;
+		int childCount = node.jjtGetNumChildren();
+		Object[] base = (Object[]) node.jjtGetChild(0).jjtAccept(this, data);
+		double[] exponent = new double[scopes.length];
+		Object[] first = (Object[]) node.jjtGetChild(1).jjtAccept(this, data);
+		for (int row : rows)
+		{
+			exponent[row] = ((Number) first[row]).doubleValue();
+		}
+		//"Cheat" to reduce calls to EXP in that X^Y^Z == X^(Y*Z)
+		for (int i = 2; i < childCount; i++)
+		{
+			Object[] n = (Object[]) node.jjtGetChild(i).jjtAccept(this, data);
+			for (int row : rows)
+			{
+				exponent[row] *= ((Number) n[row]).doubleValue();
+			}
+		}
+		for (int row : rows)
+		{
+			base[row] =
+					Double.valueOf(VisitorUtilities.power(
+						((Number) base[row]).doubleValue(), exponent[row]));
+		}
+		return base;
+	}
+
+	/**
+	 * Processes the (single) child of this node, as grouping parenthesis are
+	 * logically present only to define order of operations (now implicit in the
+	 * tree structure)
+	 */
+	@Override
+	public Object visit(ASTParen node, Object data)
+	{
+		return evaluateSingleChild(node, data);
+	}
+
+	/**
+	 * Returns the contents of the node (parsed when the node was built, see
+	 * ASTNum) for each row.
+	 */
+	@Override
+	public Object visit(ASTNum node, Object data)
+	{
+		Number value = node.getValue();
+		Object[] column = new Object[scopes.length];
+		for (int row : (int[]) data)
+		{
+			column[row] = value;
+		}
+		return column;
+	}
+
+	/**
+	 * Processes a function encountered in the formula. The Function is
+	 * identified once, and then evaluated for each row, with an
+	 * EvaluateVisitor for the VariableScope of that row.
+	 */
+	@Override
+	public Object visit(ASTPCGenLookup node, Object data)
+	{
+		FunctionBinding binding =
+				VisitorUtilities.getFunctionBinding(fm.getLibrary(), node);
+		Object[] column = new Object[scopes.length];
+		for (int row : (int[]) data)
+		{
+			column[row] =
+					binding.getFunction().evaluate(getRowVisitor(row),
+						binding.getArguments());
+		}
+		return column;
+	}
+
+	/**
+	 * Processes a variable within the formula (as with EvaluateVisitor). The
+	 * legality of the variable is determined once for each
+	 * ScopedNamespaceDefinition (rather than for each VariableScope).
+	 */
+	@Override
+	public Object visit(ASTPCGenSingleWord node, Object data)
+	{
+		String varName = node.getText();
+		VariableLibrary varLib = fm.getFactory();
+		VariableStore resolver = fm.getResolver();
+		Object[] column = new Object[scopes.length];
+		ScopedNamespaceDefinition<?> checkedDef = null;
+		boolean isLegal = false;
+		for (int row : (int[]) data)
+		{
+			VariableScope<?> scope = scopes[row];
+			ScopedNamespaceDefinition<?> snDef = scope.getScopeDefinition();
+			if (snDef != checkedDef)
+			{
+				isLegal = varLib.isLegalVariableID(snDef, varName);
+				checkedDef = snDef;
+			}
+			Object value =
+					isLegal ? resolver.get(varLib.getVariableID(scope, varName))
+						: null;
+			if (value == null)
+			{
+				value = VisitorUtilities.getInvalidVariableValue(varName);
+			}
+			column[row] = value;
+		}
+		return column;
+	}
+
+	/**
+	 * This type of node is ONLY encountered as part of a function. Since the
+	 * function should have "consumed" these elements, reaching this node in
+	 * BatchEvaluateVisitor indicates either an error in the implementation of
+	 * the formula or a tree structure problem in the formula.
+	 */
+	@Override
+	public Object visit(ASTPCGenBracket node, Object data)
+	{
+		//Should be stripped by the function
+		throw new IllegalStateException(
+			"Evaluation called on invalid Formula (reached Function Brackets)");
+	}
+
+	/**
+	 * This type of node is ONLY encountered as part of a function. Since the
+	 * function should have "consumed" these elements, reaching this node in
+	 * BatchEvaluateVisitor indicates either an error in the implementation of
+	 * the formula or a tree structure problem in the formula.
+	 */
+	@Override
+	public Object visit(ASTFParen node, Object data)
+	{
+		//Should be stripped by the function
+		throw new IllegalStateException(
+			"Evaluation called on invalid Formula (reached Function Parenthesis)");
+	}
+
+	/**
+	 * This type of node is ONLY encountered as part of a function. Since the
+	 * function should have "consumed" these elements, reaching this node in
+	 * BatchEvaluateVisitor indicates either an error in the implementation of
+	 * the formula or a tree structure problem in the formula.
+	 */
+	@Override
+	public Object visit(ASTQuotString node, Object data)
+	{
+		//Should be stripped by the function
+		throw new IllegalStateException(
+			"Evaluation called on invalid Formula (reached Quoted String)");
+	}
+
+	/**
+	 * Evaluates an operator node for the given rows. Must have 2 children and
+	 * a node that contains an Operator.
+	 * 
+	 * @param node
+	 *            The node that contains an Operator and has exactly 2 children.
+	 * @param rows
+	 *            The rows for which the node is evaluated
+	 * @param allowShortCircuit
+	 *            true if the second child should not be evaluated for rows
+	 *            where the first child determines the result; false otherwise
+	 * @return The result of the operation acting on the 2 children, for each
+	 *         row
+	 */
+	private Object[] evaluateOperatorNode(SimpleNode node, int[] rows,
+		boolean allowShortCircuit)
+	{
+		Operator op = node.getOperator();
+		if (op == null)
+		{
+			throw new IllegalStateException(getClass().getSimpleName()
+				+ " must have an operator");
+		}
+		int childCount = node.jjtGetNumChildren();
+		if (childCount != 2)
+		{
+			throw new IllegalStateException(getClass().getSimpleName()
+				+ " must only have 2 children, was: " + childCount);
+		}
+		OperatorBinding binding =
+				VisitorUtilities.getOperatorBinding(fm.getOperatorLibrary(),
+					node, op);
+		Object[] left = (Object[]) node.jjtGetChild(0).jjtAccept(this, rows);
+		int[] remaining = rows;
+		if (allowShortCircuit)
+		{
+			int[] unresolved = new int[rows.length];
+			int count = 0;
+			for (int row : rows)
+			{
+				Object result = binding.shortCircuit(left[row]);
+				if (result == null)
+				{
+					unresolved[count++] = row;
+				}
+				else
+				{
+					left[row] = result;
+				}
+			}
+			if (count == 0)
+			{
+				return left;
+			}
+			remaining = (count == rows.length) ? rows : trim(unresolved, count);
+		}
+		Object[] right =
+				(Object[]) node.jjtGetChild(1).jjtAccept(this, remaining);
+		for (int row : remaining)
+		{
+			left[row] = binding.evaluate(left[row], right[row]);
+		}
+		return left;
+	}
+
+	/**
+	 * Returns an array containing the first count items in the given array.
+	 */
+	private static int[] trim(int[] rows, int count)
+	{
+		int[] trimmed = new int[count];
+		System.arraycopy(rows, 0, trimmed, 0, count);
+		return trimmed;
+	}
+
+	/**
+	 * Returns the EvaluateVisitor for the VariableScope of the given row.
+	 */
+	private EvaluateVisitor getRowVisitor(int row)
+	{
+		EvaluateVisitor visitor = rowVisitors[row];
+		if (visitor == null)
+		{
+			visitor = new EvaluateVisitor(fm, scopes[row]);
+			rowVisitors[row] = visitor;
+		}
+		return visitor;
+	}
+
+	/**
+	 * Evaluates a single child node for the given rows.
+	 * 
+	 * @param node
+	 *            The node for which the (single) child will be evaluated
+	 * @param data
+	 *            The rows for which the child will be evaluated
+	 * @return The result of the evaluation on the child of the given node, for
+	 *         each row
+	 */
+	private Object evaluateSingleChild(Node node, Object data)
+	{
+		int childCount = node.jjtGetNumChildren();
+		if (childCount != 1)
+		{
+			throw new IllegalStateException(getClass().getSimpleName()
+				+ " must only have 1 child, was: " + childCount);
+		}
+		return node.jjtGetChild(0).jjtAccept(this, data);
+	}
+}
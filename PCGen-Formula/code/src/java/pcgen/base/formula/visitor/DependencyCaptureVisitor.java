@@ -18,8 +18,8 @@
 package pcgen.base.formula.visitor;
 
 import pcgen.base.formula.base.FormulaDependencyManager;
-import pcgen.base.formula.function.Function;
 import pcgen.base.formula.manager.FormulaManager;
+import pcgen.base.formula.manager.FunctionBinding;
 import pcgen.base.formula.parse.ASTArithmetic;
 import pcgen.base.formula.parse.ASTEquality;
 import pcgen.base.formula.parse.ASTExpon;
@@ -207,16 +207,17 @@ public class DependencyCaptureVisitor implements FormulaParserVisitor
 	@Override
 	public Object visit(ASTPCGenLookup node, Object data)
 	{
-		Function function = VisitorUtilities.getFunction(fm.getLibrary(), node);
+		FunctionBinding binding =
+				VisitorUtilities.getFunctionBinding(fm.getLibrary(), node);
 		//TODO Is this an exception or does it add to FDM in some way... ??
-		if (function == null)
+		if (binding == null)
 		{
 			throw new IllegalStateException(node.getText()
 				+ " is not a valid function name");
 		}
-		Node[] args = VisitorUtilities.accumulateArguments(node.jjtGetChild(1));
 		FormulaDependencyManager fdm = (FormulaDependencyManager) data;
-		function.getDependencies(this, fdm, args);
+		binding.getFunction().getDependencies(this, fdm,
+			binding.getArguments());
 		return fdm;
 	}
 
@@ -17,8 +17,10 @@
  */
 package pcgen.base.formula.visitor;
 
-import pcgen.base.formula.function.Function;
 import pcgen.base.formula.manager.FormulaManager;
+import pcgen.base.formula.manager.FunctionBinding;
+import pcgen.base.formula.manager.OperatorBinding;
+import pcgen.base.formula.manager.VariableBinding;
 import pcgen.base.formula.parse.ASTArithmetic;
 import pcgen.base.formula.parse.ASTEquality;
 import pcgen.base.formula.parse.ASTExpon;
@@ -38,10 +40,7 @@ import pcgen.base.formula.parse.FormulaParserVisitor;
 import pcgen.base.formula.parse.Node;
 import pcgen.base.formula.parse.Operator;
 import pcgen.base.formula.parse.SimpleNode;
-import pcgen.base.formula.variable.VariableID;
-import pcgen.base.formula.variable.VariableLibrary;
 import pcgen.base.formula.variable.VariableScope;
-import pcgen.base.formula.variable.VariableStore;
 
 /**
  * EvaluateVisitor visits a formula in tree form in order to solve the formula -
@@ -132,12 +131,14 @@ public class EvaluateVisitor implements FormulaParserVisitor
 	}
 
 	/**
-	 * Evaluates the node, based on the Operator in the node
+	 * Evaluates the node, based on the Operator in the node. The second child
+	 * is not evaluated if the first child determines the result (see
+	 * OperatorLibrary.shortCircuit).
 	 */
 	@Override
 	public Object visit(ASTLogical node, Object data)
 	{
-		return evaluateOperatorNode(node);
+		return evaluateOperatorNode(node, true);
 	}
 
 	/**
@@ -146,7 +147,7 @@ public class EvaluateVisitor implements FormulaParserVisitor
 	@Override
 	public Object visit(ASTEquality node, Object data)
 	{
-		return evaluateOperatorNode(node);
+		return evaluateOperatorNode(node, false);
 	}
 
 	/**
@@ -155,7 +156,7 @@ public class EvaluateVisitor implements FormulaParserVisitor
 	@Override
 	public Object visit(ASTRelational node, Object data)
 	{
-		return evaluateOperatorNode(node);
+		return evaluateOperatorNode(node, false);
 	}
 
 	/**
@@ -164,7 +165,7 @@ public class EvaluateVisitor implements FormulaParserVisitor
 	@Override
 	public Object visit(ASTArithmetic node, Object data)
 	{
-		return evaluateOperatorNode(node);
+		return evaluateOperatorNode(node, false);
 	}
 
 	/**
@@ -173,7 +174,7 @@ public class EvaluateVisitor implements FormulaParserVisitor
 	@Override
 	public Object visit(ASTGeometric node, Object data)
 	{
-		return evaluateOperatorNode(node);
+		return evaluateOperatorNode(node, false);
 	}
 
 	/**
@@ -214,7 +215,8 @@ public class EvaluateVisitor implements FormulaParserVisitor
 			Number n = (Number) node.jjtGetChild(i).jjtAccept(this, null);
 			exponent = Double.valueOf(exponent.doubleValue() * n.doubleValue());
 		}
-		return Math.pow(base.doubleValue(), exponent.doubleValue());
+		return VisitorUtilities.power(base.doubleValue(),
+			exponent.doubleValue());
 	}
 
 	/**
@@ -229,62 +231,61 @@ public class EvaluateVisitor implements FormulaParserVisitor
 	}
 
 	/**
-	 * Returns the contents of the node, which is a numeric value.
+	 * Returns the contents of the node, which is a numeric value (parsed when
+	 * the node was built, see ASTNum).
 	 */
 	@Override
 	public Object visit(ASTNum node, Object data)
 	{
-		String nodeText = node.getText();
-		try
-		{
-			return Integer.valueOf(nodeText);
-		}
-		catch (NumberFormatException e)
-		{
-			return Double.valueOf(nodeText);
-		}
+		return node.getValue();
 	}
 
 	/**
 	 * Processes a function encountered in the formula.
 	 * 
 	 * This will decode what function is being called, using the
-	 * FunctionLibrary, and then call evaluate() on the Function, relying on the
+	 * FunctionLibrary (once per node, see VisitorUtilities.getFunctionBinding),
+	 * and then call evaluate() on the Function, relying on the
 	 * behavior of that method (as defined in the contract of the Function
 	 * interface) to calculate the return value.
 	 */
 	@Override
 	public Object visit(ASTPCGenLookup node, Object data)
 	{
-		Function function = VisitorUtilities.getFunction(fm.getLibrary(), node);
-		Node[] args = VisitorUtilities.accumulateArguments(node.jjtGetChild(1));
+		FunctionBinding binding =
+				VisitorUtilities.getFunctionBinding(fm.getLibrary(), node);
 		//evaluate the function
-		return function.evaluate(this, args);
+		return binding.getFunction().evaluate(this, binding.getArguments());
 	}
 
 	/**
 	 * Processes a variable within the formula. This relies on the
 	 * VariableIDFactory and the VariableScope to precisely determine the
 	 * VariableID and then fetch the value for that VariableID from the
-	 * VariableStore (cache).
+	 * VariableStore (cache). The variable is resolved once per node and
+	 * ScopedNamespaceDefinition (see VariableBinding).
 	 */
 	@Override
 	public Object visit(ASTPCGenSingleWord node, Object data)
 	{
-		String varName = node.getText();
-		VariableLibrary varLib = fm.getFactory();
-		if (varLib.isLegalVariableID(scope.getScopeDefinition(), varName))
+		VariableBinding binding;
+		Object bound = node.getBinding();
+		if (bound instanceof VariableBinding)
 		{
-			VariableID<?> id = varLib.getVariableID(scope, varName);
-			VariableStore resolver = fm.getResolver();
-			if (resolver.containsKey(id))
-			{
-				return resolver.get(id);
-			}
+			binding = (VariableBinding) bound;
 		}
-		System.out.println("Evaluation called on invalid variable: '" + varName
-			+ "', assuming zero");
-		return Integer.valueOf(0);
+		else
+		{
+			binding = new VariableBinding(node.getText());
+			node.setBinding(binding);
+		}
+		Object value = binding.getValue(fm, scope);
+		if (value != null)
+		{
+			return value;
+		}
+		return VisitorUtilities.getInvalidVariableValue(binding
+			.getVariableName());
 		//		throw new IllegalStateException(
 		//			"Evaluation called on invalid Formula (reached invalid non-term: "
 		//				+ termName + ")");
@@ -341,9 +342,13 @@ public class EvaluateVisitor implements FormulaParserVisitor
 	 * 
 	 * @param node
 	 *            The node that contains an Operator and has exactly 2 children.
+	 * @param allowShortCircuit
+	 *            true if the second child should not be evaluated when the
+	 *            first child determines the result; false otherwise
 	 * @return The result of the operation acting on the 2 children
 	 */
-	private Object evaluateOperatorNode(SimpleNode node)
+	private Object evaluateOperatorNode(SimpleNode node,
+		boolean allowShortCircuit)
 	{
 		Operator op = node.getOperator();
 		if (op == null)
@@ -357,9 +362,20 @@ public class EvaluateVisitor implements FormulaParserVisitor
 			throw new IllegalStateException(getClass().getSimpleName()
 				+ " must only have 2 children, was: " + childCount);
 		}
+		OperatorBinding binding =
+				VisitorUtilities.getOperatorBinding(fm.getOperatorLibrary(),
+					node, op);
 		Object child1result = node.jjtGetChild(0).jjtAccept(this, null);
+		if (allowShortCircuit)
+		{
+			Object result = binding.shortCircuit(child1result);
+			if (result != null)
+			{
+				return result;
+			}
+		}
 		Object child2result = node.jjtGetChild(1).jjtAccept(this, null);
-		return fm.getOperatorLibrary().evaluate(op, child1result, child2result);
+		return binding.evaluate(child1result, child2result);
 	}
 
 	/**
@@ -17,7 +17,7 @@
  */
 package pcgen.base.formula.visitor;
 
-import pcgen.base.formula.function.Function;
+import pcgen.base.formula.manager.FunctionBinding;
 import pcgen.base.formula.manager.FunctionLibrary;
 import pcgen.base.formula.parse.ASTArithmetic;
 import pcgen.base.formula.parse.ASTEquality;
@@ -235,9 +235,9 @@ public class StaticVisitor implements FormulaParserVisitor
 	@Override
 	public Object visit(ASTPCGenLookup node, Object data)
 	{
-		Function function = VisitorUtilities.getFunction(library, node);
-		Node[] args = VisitorUtilities.accumulateArguments(node.jjtGetChild(1));
-		return function.isStatic(this, args);
+		FunctionBinding binding =
+				VisitorUtilities.getFunctionBinding(library, node);
+		return binding.getFunction().isStatic(this, binding.getArguments());
 	}
 
 	/**
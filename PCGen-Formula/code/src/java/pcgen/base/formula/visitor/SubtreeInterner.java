@@ -0,0 +1,235 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.visitor;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import pcgen.base.formula.parse.Node;
+import pcgen.base.formula.parse.Operator;
+import pcgen.base.formula.parse.SimpleNode;
+
+/**
+ * SubtreeInterner produces a copy of the tree of objects produced by the
+ * parser for a formula, in which each subtree that is structurally identical
+ * to a subtree already interned by the same SubtreeInterner is replaced by
+ * that existing subtree. As with TextInterningVisitor, the text of each node
+ * is canonicalized through the shared String pool (see String.intern()).
+ * 
+ * As an example, once "floor(LEVEL/2)+1" has been interned, interning
+ * "floor(LEVEL/2)*3" reuses the existing "floor(LEVEL/2)" subtree (and the
+ * nodes within it), so only the multiplication, the "3" and the root are new
+ * nodes.
+ * 
+ * Structure is identified by hash-consing: the tree is interned from the
+ * bottom up, so the children of a node are interned before the node itself,
+ * and a node is then identified by its type, Operator and text along with the
+ * identity of its (interned) children. Unlike CommonSubexpressionAnalyzer,
+ * parenthesis are not ignored, so an interned tree reconstructs to exactly the
+ * same formula as the original tree.
+ * 
+ * Since a node may be shared by many formulas (and may appear more than once
+ * in a single formula), the parent of a shared node (see jjtGetParent()) is
+ * the first node to which it was attached, and should not be relied upon.
+ * None of the visitors in this library use the parent of a node. The interned
+ * nodes must not be modified.
+ * 
+ * SubtreeInterner is thread-safe. It holds a strong reference to each distinct
+ * node that has been interned, which is consistent with formulas being loaded
+ * once and held for the lifetime of the SubtreeInterner.
+ */
+public class SubtreeInterner extends TreeCopyVisitor
+{
+
+	/**
+	 * The interned nodes, indexed by their structure.
+	 */
+	private final ConcurrentMap<Shape, SimpleNode> nodes =
+			new ConcurrentHashMap<Shape, SimpleNode>();
+
+	/**
+	 * The number of nodes that were replaced by an existing interned node.
+	 */
+	private final AtomicLong savedCount = new AtomicLong();
+
+	/**
+	 * Returns an interned copy of the tree starting with the given root node.
+	 * The given tree is not modified.
+	 * 
+	 * @param root
+	 *            The root node of the tree to be interned
+	 * @return The root node of the interned copy of the given tree
+	 * @throws IllegalArgumentException
+	 *             if the given root node is null
+	 */
+	public SimpleNode intern(SimpleNode root)
+	{
+		if (root == null)
+		{
+			throw new IllegalArgumentException("Cannot intern null root");
+		}
+		return (SimpleNode) root.jjtAccept(this, null);
+	}
+
+	/**
+	 * Returns the number of distinct nodes held by this SubtreeInterner.
+	 * 
+	 * @return The number of distinct nodes held by this SubtreeInterner
+	 */
+	public int getNodeCount()
+	{
+		return nodes.size();
+	}
+
+	/**
+	 * Returns the number of nodes that were saved by this SubtreeInterner,
+	 * being the number of nodes in the trees given to intern(SimpleNode) that
+	 * were replaced by an existing interned node rather than copied.
+	 * 
+	 * @return The number of nodes saved by this SubtreeInterner
+	 */
+	public long getSavedNodeCount()
+	{
+		return savedCount.get();
+	}
+
+	/**
+	 * Returns the interned node with the same type, Operator, text and
+	 * (interned) children as the given node. If no such node has been
+	 * interned, the given copy is loaded and becomes the interned node.
+	 * 
+	 * @see pcgen.base.formula.visitor.TreeCopyVisitor#copy(pcgen.base.formula.parse.SimpleNode,
+	 *      pcgen.base.formula.parse.SimpleNode, java.lang.Object)
+	 */
+	@Override
+	protected SimpleNode copy(SimpleNode node, SimpleNode copy, Object data)
+	{
+		int childCount = node.jjtGetNumChildren();
+		Node[] children = new Node[childCount];
+		for (int i = 0; i < childCount; i++)
+		{
+			children[i] = processChild(node.jjtGetChild(i), data);
+		}
+		Shape shape =
+				new Shape(node.getId(), node.getOperator(),
+					copyText(node.getText()), children);
+		SimpleNode existing = nodes.get(shape);
+		if (existing != null)
+		{
+			savedCount.incrementAndGet();
+			return existing;
+		}
+		copy.setOperator(shape.operator);
+		copy.setToken(shape.text);
+		for (int i = 0; i < childCount; i++)
+		{
+			copy.jjtAddChild(children[i], i);
+		}
+		existing = nodes.putIfAbsent(shape, copy);
+		if (existing != null)
+		{
+			//Another thread interned the same node first
+			savedCount.incrementAndGet();
+			return existing;
+		}
+		for (Node child : children)
+		{
+			if (child.jjtGetParent() == null)
+			{
+				child.jjtSetParent(copy);
+			}
+		}
+		return copy;
+	}
+
+	/**
+	 * Returns the canonical representation of the given text.
+	 * 
+	 * @see pcgen.base.formula.visitor.TreeCopyVisitor#copyText(java.lang.String)
+	 */
+	@Override
+	protected String copyText(String text)
+	{
+		return (text == null) ? null : text.intern();
+	}
+
+	/**
+	 * The structure of a single node, with the children represented by the
+	 * identity of their interned nodes.
+	 */
+	private static final class Shape
+	{
+		private final int type;
+		private final Operator operator;
+		private final String text;
+		private final Node[] children;
+		private final int hash;
+
+		private Shape(int type, Operator operator, String text, Node[] children)
+		{
+			this.type = type;
+			this.operator = operator;
+			this.text = text;
+			this.children = children;
+			int h = type;
+			for (Node child : children)
+			{
+				h = 31 * h + System.identityHashCode(child);
+			}
+			h = 31 * h + ((operator == null) ? 0 : operator.hashCode());
+			hash = 31 * h + ((text == null) ? 0 : text.hashCode());
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (o == this)
+			{
+				return true;
+			}
+			if (o instanceof Shape)
+			{
+				Shape other = (Shape) o;
+				if ((type != other.type) || (operator != other.operator)
+					|| (children.length != other.children.length)
+					|| ((text == null) ? (other.text != null) : !text
+						.equals(other.text)))
+				{
+					return false;
+				}
+				//Children are interned, so identity is sufficient
+				for (int i = 0; i < children.length; i++)
+				{
+					if (children[i] != other.children[i])
+					{
+						return false;
+					}
+				}
+				return true;
+			}
+			return false;
+		}
+	}
+}
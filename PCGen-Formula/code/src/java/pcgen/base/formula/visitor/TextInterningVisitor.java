@@ -0,0 +1,209 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.visitor;
+
+import pcgen.base.formula.parse.ASTArithmetic;
+import pcgen.base.formula.parse.ASTEquality;
+import pcgen.base.formula.parse.ASTExpon;
+import pcgen.base.formula.parse.ASTFParen;
+import pcgen.base.formula.parse.ASTGeometric;
+import pcgen.base.formula.parse.ASTLogical;
+import pcgen.base.formula.parse.ASTNum;
+import pcgen.base.formula.parse.ASTPCGenBracket;
+import pcgen.base.formula.parse.ASTPCGenLookup;
+import pcgen.base.formula.parse.ASTPCGenSingleWord;
+import pcgen.base.formula.parse.ASTParen;
+import pcgen.base.formula.parse.ASTQuotString;
+import pcgen.base.formula.parse.ASTRelational;
+import pcgen.base.formula.parse.ASTRoot;
+import pcgen.base.formula.parse.ASTUnary;
+import pcgen.base.formula.parse.FormulaParserVisitor;
+import pcgen.base.formula.parse.Node;
+import pcgen.base.formula.parse.SimpleNode;
+
+/**
+ * TextInterningVisitor canonicalizes the text of each node (variable names,
+ * function names and quoted strings) in the tree of objects produced by the
+ * parser for a formula, through the shared String pool (see String.intern()),
+ * so that equal names in different formulas refer to the same String.
+ * 
+ * Only the text is shared: the nodes themselves (and the memory used by each
+ * node) are unchanged.
+ * 
+ * The tree is modified in place (no copy of the tree is made), so this should
+ * only be used on a tree that has just been produced by the parser, before it
+ * is shared. The structure, node types and Operators of the tree are not
+ * changed, and the text of each node remains equal to the original text.
+ * 
+ * To share entire subtrees between formulas, see SubtreeInterner.
+ */
+@SuppressWarnings("PMD.TooManyMethods")
+public class TextInterningVisitor implements FormulaParserVisitor
+{
+
+	/**
+	 * Canonicalizes the text of the nodes in the tree starting with the given
+	 * root node, returning the (same) root node.
+	 * 
+	 * @param root
+	 *            The root node of the tree for which the text will be
+	 *            interned
+	 * @return The given root node
+	 * @throws IllegalArgumentException
+	 *             if the given root node is null
+	 */
+	public SimpleNode internText(SimpleNode root)
+	{
+		if (root == null)
+		{
+			throw new IllegalArgumentException("Cannot intern text of null root");
+		}
+		root.jjtAccept(this, null);
+		return root;
+	}
+
+	/**
+	 * Visits a SimpleNode. Because this cannot be processed, due to lack of
+	 * knowledge as to the exact type of SimpleNode encountered, the node is
+	 * visited, which - through double dispatch - will result in another method
+	 * on this TextInterningVisitor being called.
+	 * 
+	 * @see pcgen.base.formula.parse.FormulaParserVisitor#visit(pcgen.base.formula.parse.SimpleNode,
+	 *      java.lang.Object)
+	 */
+	@Override
+	public Object visit(SimpleNode node, Object data)
+	{
+		//Delegate to the appropriate class
+		return node.jjtAccept(this, data);
+	}
+
+	@Override
+	public Object visit(ASTRoot node, Object data)
+	{
+		return internNode(node, data);
+	}
+
+	@Override
+	public Object visit(ASTLogical node, Object data)
+	{
+		return internNode(node, data);
+	}
+
+	@Override
+	public Object visit(ASTEquality node, Object data)
+	{
+		return internNode(node, data);
+	}
+
+	@Override
+	public Object visit(ASTRelational node, Object data)
+	{
+		return internNode(node, data);
+	}
+
+	@Override
+	public Object visit(ASTArithmetic node, Object data)
+	{
+		return internNode(node, data);
+	}
+
+	@Override
+	public Object visit(ASTGeometric node, Object data)
+	{
+		return internNode(node, data);
+	}
+
+	@Override
+	public Object visit(ASTUnary node, Object data)
+	{
+		return internNode(node, data);
+	}
+
+	@Override
+	public Object visit(ASTExpon node, Object data)
+	{
+		return internNode(node, data);
+	}
+
+	@Override
+	public Object visit(ASTParen node, Object data)
+	{
+		return internNode(node, data);
+	}
+
+	/**
+	 * The text of a number is not interned, as setting the text of an ASTNum
+	 * would parse the value of the literal again.
+	 */
+	@Override
+	public Object visit(ASTNum node, Object data)
+	{
+		return node;
+	}
+
+	@Override
+	public Object visit(ASTPCGenLookup node, Object data)
+	{
+		return internNode(node, data);
+	}
+
+	@Override
+	public Object visit(ASTPCGenSingleWord node, Object data)
+	{
+		return internNode(node, data);
+	}
+
+	@Override
+	public Object visit(ASTPCGenBracket node, Object data)
+	{
+		return internNode(node, data);
+	}
+
+	@Override
+	public Object visit(ASTFParen node, Object data)
+	{
+		return internNode(node, data);
+	}
+
+	@Override
+	public Object visit(ASTQuotString node, Object data)
+	{
+		return internNode(node, data);
+	}
+
+	/**
+	 * Canonicalizes the text of the given node, and visits each child of the
+	 * given node.
+	 */
+	private Object internNode(SimpleNode node, Object data)
+	{
+		String text = node.getText();
+		if (text != null)
+		{
+			node.setToken(text.intern());
+		}
+		int childCount = node.jjtGetNumChildren();
+		for (int i = 0; i < childCount; i++)
+		{
+			Node child = node.jjtGetChild(i);
+			child.jjtAccept(this, data);
+		}
+		return node;
+	}
+}
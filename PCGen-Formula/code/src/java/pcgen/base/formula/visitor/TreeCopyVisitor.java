@@ -0,0 +1,218 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.visitor;
+
+import pcgen.base.formula.parse.ASTArithmetic;
+import pcgen.base.formula.parse.ASTEquality;
+import pcgen.base.formula.parse.ASTExpon;
+import pcgen.base.formula.parse.ASTFParen;
+import pcgen.base.formula.parse.ASTGeometric;
+import pcgen.base.formula.parse.ASTLogical;
+import pcgen.base.formula.parse.ASTNum;
+import pcgen.base.formula.parse.ASTPCGenBracket;
+import pcgen.base.formula.parse.ASTPCGenLookup;
+import pcgen.base.formula.parse.ASTPCGenSingleWord;
+import pcgen.base.formula.parse.ASTParen;
+import pcgen.base.formula.parse.ASTQuotString;
+import pcgen.base.formula.parse.ASTRelational;
+import pcgen.base.formula.parse.ASTRoot;
+import pcgen.base.formula.parse.ASTUnary;
+import pcgen.base.formula.parse.FormulaParserVisitor;
+import pcgen.base.formula.parse.Node;
+import pcgen.base.formula.parse.SimpleNode;
+
+/**
+ * TreeCopyVisitor makes a copy of the tree of objects that make up a formula.
+ * 
+ * Each visit method returns a new node of the same type as the visited node,
+ * with the same Operator and text, and with children that are the result of
+ * processChild on each child of the visited node. The visited tree is not
+ * modified.
+ * 
+ * This is intended to be extended by visitors that transform a formula (e.g.
+ * to optimize it), since those visitors must produce a new tree rather than
+ * modifying the existing tree. Such a visitor can override processChild (to
+ * replace any node) or the visit method for a specific type of node.
+ */
+@SuppressWarnings("PMD.TooManyMethods")
+public class TreeCopyVisitor implements FormulaParserVisitor
+{
+
+	/**
+	 * Visits a SimpleNode. Because this cannot be processed, due to lack of
+	 * knowledge as to the exact type of SimpleNode encountered, the node is
+	 * visited, which - through double dispatch - will result in another method
+	 * on this TreeCopyVisitor being called.
+	 * 
+	 * @see pcgen.base.formula.parse.FormulaParserVisitor#visit(pcgen.base.formula.parse.SimpleNode,
+	 *      java.lang.Object)
+	 */
+	@Override
+	public Object visit(SimpleNode node, Object data)
+	{
+		//Delegate to the appropriate class
+		return node.jjtAccept(this, data);
+	}
+
+	@Override
+	public Object visit(ASTRoot node, Object data)
+	{
+		return copy(node, new ASTRoot(node.getId()), data);
+	}
+
+	@Override
+	public Object visit(ASTLogical node, Object data)
+	{
+		return copy(node, new ASTLogical(node.getId()), data);
+	}
+
+	@Override
+	public Object visit(ASTEquality node, Object data)
+	{
+		return copy(node, new ASTEquality(node.getId()), data);
+	}
+
+	@Override
+	public Object visit(ASTRelational node, Object data)
+	{
+		return copy(node, new ASTRelational(node.getId()), data);
+	}
+
+	@Override
+	public Object visit(ASTArithmetic node, Object data)
+	{
+		return copy(node, new ASTArithmetic(node.getId()), data);
+	}
+
+	@Override
+	public Object visit(ASTGeometric node, Object data)
+	{
+		return copy(node, new ASTGeometric(node.getId()), data);
+	}
+
+	@Override
+	public Object visit(ASTUnary node, Object data)
+	{
+		return copy(node, new ASTUnary(node.getId()), data);
+	}
+
+	@Override
+	public Object visit(ASTExpon node, Object data)
+	{
+		return copy(node, new ASTExpon(node.getId()), data);
+	}
+
+	@Override
+	public Object visit(ASTParen node, Object data)
+	{
+		return copy(node, new ASTParen(node.getId()), data);
+	}
+
+	@Override
+	public Object visit(ASTNum node, Object data)
+	{
+		return copy(node, new ASTNum(node.getId()), data);
+	}
+
+	@Override
+	public Object visit(ASTPCGenLookup node, Object data)
+	{
+		return copy(node, new ASTPCGenLookup(node.getId()), data);
+	}
+
+	@Override
+	public Object visit(ASTPCGenSingleWord node, Object data)
+	{
+		return copy(node, new ASTPCGenSingleWord(node.getId()), data);
+	}
+
+	@Override
+	public Object visit(ASTPCGenBracket node, Object data)
+	{
+		return copy(node, new ASTPCGenBracket(node.getId()), data);
+	}
+
+	@Override
+	public Object visit(ASTFParen node, Object data)
+	{
+		return copy(node, new ASTFParen(node.getId()), data);
+	}
+
+	@Override
+	public Object visit(ASTQuotString node, Object data)
+	{
+		return copy(node, new ASTQuotString(node.getId()), data);
+	}
+
+	/**
+	 * Loads the given copy with the Operator and text (see copyText) of the
+	 * given node, and with the result of processChild for each child of the
+	 * given node.
+	 * 
+	 * @param node
+	 *            The node being copied
+	 * @param copy
+	 *            The new (empty) node of the same type as the node being
+	 *            copied
+	 * @param data
+	 *            The data passed to the visit method
+	 * @return The copy, after it has been loaded
+	 */
+	protected SimpleNode copy(SimpleNode node, SimpleNode copy, Object data)
+	{
+		copy.setOperator(node.getOperator());
+		copy.setToken(copyText(node.getText()));
+		int childCount = node.jjtGetNumChildren();
+		for (int i = 0; i < childCount; i++)
+		{
+			Node child = processChild(node.jjtGetChild(i), data);
+			child.jjtSetParent(copy);
+			copy.jjtAddChild(child, i);
+		}
+		return copy;
+	}
+
+	/**
+	 * Returns the text to be loaded into the copy of a node that contains the
+	 * given text. By default, this is the given text.
+	 * 
+	 * @param text
+	 *            The text of the node being copied (may be null)
+	 * @return The text to be loaded into the copy of the node
+	 */
+	protected String copyText(String text)
+	{
+		return text;
+	}
+
+	/**
+	 * Returns the node that will replace the given child in the copy of its
+	 * parent. By default, this is a copy of the given child.
+	 * 
+	 * @param child
+	 *            The child of a node being copied
+	 * @param data
+	 *            The data passed to the visit method
+	 * @return The node that will replace the given child in the copy of its
+	 *         parent
+	 */
+	protected Node processChild(Node child, Object data)
+	{
+		return (Node) child.jjtAccept(this, data);
+	}
+}
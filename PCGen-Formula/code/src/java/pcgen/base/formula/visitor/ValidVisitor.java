@@ -285,7 +285,7 @@ public class ValidVisitor implements FormulaParserVisitor
 
 	/**
 	 * Processes a numeric node. This ensures that the node has no children and
-	 * that it can be parsed as a numeric value.
+	 * that it was parsed as a numeric value (see ASTNum).
 	 */
 	@Override
 	public Object visit(ASTNum node, Object data)
@@ -294,15 +294,11 @@ public class ValidVisitor implements FormulaParserVisitor
 		{
 			return new InvalidChildCount(node, 0);
 		}
-		try
-		{
-			Double.parseDouble(node.getText());
-			return new FormulaSemanticsValid(NUMBER_CLASS);
-		}
-		catch (NumberFormatException e)
+		if (node.getValue() == null)
 		{
 			return new InvalidNumber(node.getClass(), node.getText());
 		}
+		return new FormulaSemanticsValid(NUMBER_CLASS);
 	}
 
 	/**
@@ -18,12 +18,17 @@
 package pcgen.base.formula.visitor;
 
 import pcgen.base.formula.function.Function;
+import pcgen.base.formula.manager.FunctionBinding;
 import pcgen.base.formula.manager.FunctionLibrary;
+import pcgen.base.formula.manager.OperatorBinding;
+import pcgen.base.formula.manager.OperatorLibrary;
 import pcgen.base.formula.parse.ASTFParen;
 import pcgen.base.formula.parse.ASTPCGenBracket;
 import pcgen.base.formula.parse.ASTPCGenLookup;
 import pcgen.base.formula.parse.ASTPCGenSingleWord;
 import pcgen.base.formula.parse.Node;
+import pcgen.base.formula.parse.Operator;
+import pcgen.base.formula.parse.SimpleNode;
 
 /**
  * VisitorUtilities are a set of common behaviors used among a number of
@@ -73,6 +78,104 @@ public final class VisitorUtilities
 		return function;
 	}
 
+	/**
+	 * Returns the FunctionBinding (the Function and arguments) for the given
+	 * node, using the given FunctionLibrary to identify the Function.
+	 * 
+	 * The FunctionBinding is stored on the node, so that subsequent calls for
+	 * the same node and FunctionLibrary return the same FunctionBinding
+	 * without identifying the Function or gathering the arguments again.
+	 * 
+	 * @param library
+	 *            The FunctionLibrary containing the Function for the node
+	 * @param node
+	 *            The node which contains the function (this includes the
+	 *            function name and arguments)
+	 * @return The FunctionBinding for the given node; null if the
+	 *         FunctionLibrary does not contain the Function
+	 */
+	public static FunctionBinding getFunctionBinding(FunctionLibrary library,
+		ASTPCGenLookup node)
+	{
+		Object bound = node.getBinding();
+		if (bound instanceof FunctionBinding)
+		{
+			FunctionBinding binding = (FunctionBinding) bound;
+			if (binding.isBoundTo(library))
+			{
+				return binding;
+			}
+		}
+		Function function = getFunction(library, node);
+		if (function == null)
+		{
+			return null;
+		}
+		FunctionBinding binding =
+				new FunctionBinding(library, function,
+					accumulateArguments(node.jjtGetChild(1)));
+		node.setBinding(binding);
+		return binding;
+	}
+
+	/**
+	 * Returns the OperatorBinding for the given node, storing a new
+	 * OperatorBinding on the node if it does not have one for the given
+	 * OperatorLibrary and Operator.
+	 * 
+	 * @param opLibrary
+	 *            The OperatorLibrary used to evaluate the Operator
+	 * @param node
+	 *            The node that contains the given Operator
+	 * @param op
+	 *            The Operator contained in the given node
+	 * @return The OperatorBinding for the given node
+	 */
+	public static OperatorBinding getOperatorBinding(OperatorLibrary opLibrary,
+		SimpleNode node, Operator op)
+	{
+		Object bound = node.getBinding();
+		if (bound instanceof OperatorBinding)
+		{
+			OperatorBinding binding = (OperatorBinding) bound;
+			if (binding.isBoundTo(opLibrary, op))
+			{
+				return binding;
+			}
+		}
+		OperatorBinding binding = new OperatorBinding(opLibrary, op);
+		node.setBinding(binding);
+		return binding;
+	}
+
+	/**
+	 * Links the formula with the given root node to the given
+	 * FunctionLibrary, by storing the FunctionBinding for each function in the
+	 * formula (see getFunctionBinding).
+	 * 
+	 * Linking is optional (the FunctionBinding is otherwise stored when each
+	 * function is first processed), but allows the cost of identifying the
+	 * Functions to be paid when a formula is prepared rather than when it is
+	 * first processed.
+	 * 
+	 * @param library
+	 *            The FunctionLibrary containing the Functions for the formula
+	 * @param root
+	 *            The root node of the formula to be linked
+	 */
+	public static void link(FunctionLibrary library, Node root)
+	{
+		if (root instanceof ASTPCGenLookup)
+		{
+			getFunctionBinding(library, (ASTPCGenLookup) root);
+		}
+		int childCount = root.jjtGetNumChildren();
+		for (int i = 0; i < childCount; i++)
+		{
+			link(library, root.jjtGetChild(i));
+		}
+	}
+
 	/**
 	 * Returns an array of Node that represent the children (arguments) of the
 	 * given node.
@@ -94,4 +197,45 @@ public final class VisitorUtilities
 		return args;
 	}
 
+	/**
+	 * Returns the value used in place of a variable that is not valid (or has
+	 * no value) in the context in which a formula is evaluated. This is shared
+	 * by all of the evaluators, so that an invalid variable is reported and
+	 * treated identically however the formula is evaluated.
+	 * 
+	 * @param varName
+	 *            The name of the variable that is not valid
+	 * @return The value used in place of the variable (zero)
+	 */
+	public static Object getInvalidVariableValue(String varName)
+	{
+		System.out.println("Evaluation called on invalid variable: '"
+			+ varName + "', assuming zero");
+		return Integer.valueOf(0);
+	}
+
+	/**
+	 * Returns the base raised to the power of the exponent. This is the
+	 * calculation performed for an exponential (^) in a formula.
+	 * 
+	 * An exponent of 2 is reduced to a multiplication (x^2 is x*x), which
+	 * produces exactly the same result as Math.pow (for any base, including
+	 * -0.0, infinities and NaN) at a lower cost. Any other exponent is
+	 * calculated by Math.pow.
+	 * 
+	 * @param base
+	 *            The base of the exponential
+	 * @param exponent
+	 *            The exponent of the exponential
+	 * @return The base raised to the power of the exponent
+	 */
+	public static double power(double base, double exponent)
+	{
+		if (exponent == 2.0)
+		{
+			return base * base;
+		}
+		return Math.pow(base, exponent);
+	}
+
 }
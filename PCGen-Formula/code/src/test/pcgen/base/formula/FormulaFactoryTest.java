@@ -0,0 +1,185 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class FormulaFactoryTest extends TestCase
+{
+
+	@Test
+	public void testConstructor()
+	{
+		try
+		{
+			new FormulaFactory(-1);
+			fail("negative size should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+		try
+		{
+			new FormulaFactory(10, null);
+			fail("null Weigher should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+	}
+
+	@Test
+	public void testGetFormula()
+	{
+		FormulaFactory factory = new FormulaFactory(10);
+		try
+		{
+			factory.getFormula(null);
+			fail("null formula should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+		try
+		{
+			factory.getFormula("(a");
+			fail("unparseable formula should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+		assertEquals(0, factory.size());
+		ComplexNEPFormula<?> f = factory.getFormula("floor(LEVEL/2)");
+		assertEquals("floor(LEVEL/2)", f.toString());
+		assertSame(f, factory.getFormula("floor(LEVEL/2)"));
+		assertSame(f, factory.getFormula("floor( LEVEL / 2 )"));
+		assertNotSame(f, factory.getFormula("floor(LEVEL/3)"));
+		assertEquals(2, factory.size());
+		assertEquals(2, factory.getHitCount());
+		assertEquals(3, factory.getMissCount());
+		factory.clear();
+		assertEquals(0, factory.size());
+		assertEquals(0, factory.getWeight());
+		assertNotSame(f, factory.getFormula("floor(LEVEL/2)"));
+	}
+
+	@Test
+	public void testParsesRequestedText()
+	{
+		FormulaFactory factory = new FormulaFactory(10);
+		String expression = "floor( LEVEL / 2 ) + 1";
+		ComplexNEPFormula<?> f = factory.getFormula(expression);
+		assertEquals(new ComplexNEPFormula<Number>(expression).toString(),
+			f.toString());
+		//Later requests share the formula of the first request
+		assertSame(f, factory.getFormula("floor(LEVEL/2)+1"));
+		assertEquals(new ComplexNEPFormula<Number>(expression).toString(),
+			f.toString());
+	}
+
+	@Test
+	public void testNormalize()
+	{
+		assertEquals("a+b", FormulaFactory.normalize("a+b"));
+		assertEquals("a+b", FormulaFactory.normalize("a  +  b"));
+		assertEquals("max(a,b)", FormulaFactory.normalize("max( a , b )"));
+		assertEquals("(a<b)&&(c>=d)",
+			FormulaFactory.normalize("( a < b ) && ( c >= d )"));
+		//Spaces within variable names are significant
+		assertEquals("Hit Points*2",
+			FormulaFactory.normalize("Hit Points * 2"));
+		//As are spaces within Strings
+		assertEquals("floor(\"a + b\")",
+			FormulaFactory.normalize("floor( \"a + b\" )"));
+		assertEquals("floor(\"a \\\" + b\")",
+			FormulaFactory.normalize("floor(\"a \\\" + b\")"));
+		//Spaces that could join two characters into a different token
+		assertEquals("a< = b", FormulaFactory.normalize("a < = b"));
+		assertEquals("a==b", FormulaFactory.normalize("a == b"));
+		assertEquals("a!=b", FormulaFactory.normalize("a != b"));
+		//"=" and "%" may appear within a variable name
+		assertEquals("a = b", FormulaFactory.normalize("a = b"));
+		assertEquals("a % b", FormulaFactory.normalize("a % b"));
+		//Leading and trailing spaces are not ignored by the parser
+		assertEquals(" a", FormulaFactory.normalize(" a"));
+		assertEquals("a ", FormulaFactory.normalize("a "));
+	}
+
+	@Test
+	public void testNormalizedFormulasMatch()
+	{
+		String[] formulas =
+				{"1 + 2 * 3", "( 4 - 1 ) ^ 2", "max( 1 , 2 ) - 3",
+					"( 1 < 2 ) || ( 2 >= 3 )", "-( -1 )"};
+		for (String formula : formulas)
+		{
+			assertEquals(formula,
+				new ComplexNEPFormula<Object>(formula).toString(),
+				new ComplexNEPFormula<Object>(
+					FormulaFactory.normalize(formula)).toString());
+		}
+	}
+
+	@Test
+	public void testEviction()
+	{
+		FormulaFactory factory = new FormulaFactory(2);
+		ComplexNEPFormula<?> a = factory.getFormula("a");
+		ComplexNEPFormula<?> b = factory.getFormula("b");
+		//a was requested again, so b is evicted first
+		assertSame(a, factory.getFormula("a"));
+		factory.getFormula("c");
+		assertEquals(2, factory.size());
+		assertEquals(1, factory.getEvictionCount());
+		assertSame(a, factory.getFormula("a"));
+		assertNotSame(b, factory.getFormula("b"));
+		assertEquals(2, factory.size());
+		assertEquals(2, factory.getEvictionCount());
+	}
+
+	@Test
+	public void testWeigher()
+	{
+		FormulaFactory factory =
+				new FormulaFactory(8, new FormulaFactory.Weigher()
+				{
+					@Override
+					public int weigh(String expression,
+						ComplexNEPFormula<?> formula)
+					{
+						return expression.length();
+					}
+				});
+		factory.getFormula("a+b");
+		factory.getFormula("c+d");
+		assertEquals(6, factory.getWeight());
+		factory.getFormula("e+f");
+		assertEquals(2, factory.size());
+		assertEquals(6, factory.getWeight());
+		//Heavier than the maximum: returned but not retained
+		ComplexNEPFormula<?> heavy = factory.getFormula("a+b+c+d+e+f");
+		assertEquals("a+b+c+d+e+f", heavy.toString());
+		assertTrue(factory.getWeight() <= 8);
+	}
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import pcgen.base.formula.FormulaLoader.Stage;
+import pcgen.base.formula.manager.ScopeInformation;
+import pcgen.base.formula.manager.SimpleFormulaDependencyManager;
+import pcgen.base.formula.parse.TokenMgrError;
+import pcgen.base.formula.testsupport.AbstractFormulaTestCase;
+import pcgen.base.formula.variable.VariableID;
+import pcgen.base.formula.variable.VariableScope;
+
+public class FormulaLoaderTest extends AbstractFormulaTestCase
+{
+
+	private FormulaLoader loader;
+
+	private VariableID<Number> a;
+
+	private VariableID<Number> b;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		FormulaUtilities.loadBuiltInFunctions(library);
+		FormulaUtilities.loadBuiltInOperators(opLibrary);
+		a = getVariable("a");
+		b = getVariable("b");
+		loader = new FormulaLoader(fm, 3, 4);
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		loader.shutdown();
+		super.tearDown();
+	}
+
+	@Test
+	public void testConstructor()
+	{
+		try
+		{
+			new FormulaLoader(null, 2, 2);
+			fail("null FormulaManager should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+		try
+		{
+			new FormulaLoader(fm, 0, 2);
+			fail("zero parallelism should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+		try
+		{
+			new FormulaLoader(fm, 2, 0);
+			fail("zero queue capacity should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+	}
+
+	@Test
+	public void testLoadIllegal() throws InterruptedException
+	{
+		try
+		{
+			loader.load(null, new VariableScope<?>[0]);
+			fail("null expressions should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+		try
+		{
+			loader.load(new String[0], null);
+			fail("null scopes should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+		try
+		{
+			loader.load(new String[]{"1"}, new VariableScope<?>[0]);
+			fail("mismatched lengths should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+		try
+		{
+			loader.load(new String[]{null}, new VariableScope<?>[]{globalScope});
+			fail("null expression should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+		try
+		{
+			loader.load(new String[]{"1"}, new VariableScope<?>[]{null});
+			fail("null scope should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+	}
+
+	@Test
+	public void testEmpty() throws InterruptedException
+	{
+		FormulaLoadResult result =
+				loader.load(new String[0], new VariableScope<?>[0]);
+		assertEquals(0, result.size());
+		assertEquals(0, result.getErrorCount());
+	}
+
+	@Test
+	public void testLoad() throws InterruptedException
+	{
+		String[] expressions = {"a+1", "a+", "max(a,b)", "c*2", "3"};
+		FormulaLoadResult result =
+				loader.load(expressions, scopes(expressions.length));
+		assertEquals(5, result.size());
+		assertEquals(2, result.getErrorCount());
+
+		assertTrue(result.isLoaded(0));
+		assertEquals("a+1", result.getFormula(0).toString());
+		assertTrue(result.getSemantics(0).isValid());
+		assertEquals(Collections.singletonList(a), result.getDependencies(0));
+		assertNull(result.getFailedStage(0));
+		assertNull(result.getError(0));
+
+		assertFalse(result.isLoaded(1));
+		assertEquals(Stage.PARSE, result.getFailedStage(1));
+		assertNotNull(result.getError(1));
+		assertNull(result.getFormula(1));
+		assertNull(result.getSemantics(1));
+		assertNull(result.getDependencies(1));
+
+		assertTrue(result.isLoaded(2));
+		assertEquals(Arrays.asList(a, b), result.getDependencies(2));
+
+		assertFalse(result.isLoaded(3));
+		assertEquals(Stage.VALIDATE, result.getFailedStage(3));
+		assertNotNull(result.getFormula(3));
+		assertFalse(result.getSemantics(3).isValid());
+		assertEquals(result.getSemantics(3).getReport(), result.getError(3));
+		assertNull(result.getDependencies(3));
+
+		assertTrue(result.isLoaded(4));
+		assertTrue(result.getDependencies(4).isEmpty());
+
+		assertTrue(result.getStageNanos(Stage.PARSE) > 0);
+		assertTrue(result.getStageNanos(Stage.VALIDATE) > 0);
+		assertTrue(result.getStageNanos(Stage.DEPENDENCIES) > 0);
+		assertTrue(result.getElapsedNanos() > 0);
+	}
+
+	@Test
+	public void testLexicalError() throws InterruptedException
+	{
+		//An unterminated String is rejected by the token manager of the parser
+		String[] expressions = {"1+2", "f(\"a", "3", "\"b", "a"};
+		FormulaLoader single = new FormulaLoader(fm, 1, 1);
+		try
+		{
+			FormulaLoadResult result =
+					single.load(expressions, scopes(expressions.length));
+			assertEquals(2, result.getErrorCount());
+			assertTrue(result.isLoaded(0));
+			assertEquals(Stage.PARSE, result.getFailedStage(1));
+			assertTrue(result.getError(1), result.getError(1).contains(
+				TokenMgrError.class.getSimpleName()));
+			assertNull(result.getFormula(1));
+			assertTrue(result.isLoaded(2));
+			assertEquals(Stage.PARSE, result.getFailedStage(3));
+			assertTrue(result.isLoaded(4));
+			//The loader is still usable
+			result = single.load(expressions, scopes(expressions.length));
+			assertEquals(2, result.getErrorCount());
+		}
+		finally
+		{
+			single.shutdown();
+		}
+	}
+
+	@Test
+	public void testLargeBatch() throws InterruptedException
+	{
+		String[] expressions = new String[2000];
+		for (int i = 0; i < expressions.length; i++)
+		{
+			switch (i % 4)
+			{
+				case 0:
+					expressions[i] = "floor(a/2)+" + i;
+					break;
+				case 1:
+					expressions[i] = "max(a," + i + ")*b";
+					break;
+				case 2:
+					expressions[i] = "undefined" + (i % 7) + "+1";
+					break;
+				default:
+					expressions[i] = "(" + i;
+					break;
+			}
+		}
+		FormulaLoadResult result =
+				loader.load(expressions, scopes(expressions.length));
+		assertEquals(expressions.length, result.size());
+		assertEquals(expressions.length / 2, result.getErrorCount());
+		ScopeInformation si = new ScopeInformation(fm, globalScope);
+		for (int i = 0; i < expressions.length; i++)
+		{
+			String expression = expressions[i];
+			switch (i % 4)
+			{
+				case 2:
+					assertEquals(expression, Stage.VALIDATE,
+						result.getFailedStage(i));
+					break;
+				case 3:
+					assertEquals(expression, Stage.PARSE,
+						result.getFailedStage(i));
+					break;
+				default:
+					assertTrue(expression, result.isLoaded(i));
+					assertEquals(expression, result.getFormula(i).toString());
+					SimpleFormulaDependencyManager fdm =
+							new SimpleFormulaDependencyManager();
+					new ComplexNEPFormula<Number>(expression).getDependencies(
+						si, fdm);
+					assertEquals(expression, fdm.getVariables(),
+						result.getDependencies(i));
+			}
+		}
+		//Shared subtrees through the FormulaManager
+		assertTrue(fm.getSavedNodeCount() > 0);
+	}
+
+	@Test
+	public void testReuse() throws InterruptedException
+	{
+		String[] expressions = {"a", "b"};
+		for (int i = 0; i < 3; i++)
+		{
+			FormulaLoadResult result =
+					loader.load(expressions, scopes(expressions.length));
+			assertEquals(0, result.getErrorCount());
+			assertEquals(Collections.singletonList(b),
+				result.getDependencies(1));
+		}
+	}
+
+	private VariableScope<?>[] scopes(int size)
+	{
+		VariableScope<?>[] scopes = new VariableScope<?>[size];
+		Arrays.fill(scopes, globalScope);
+		return scopes;
+	}
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import pcgen.base.formula.testsupport.AbstractFormulaTestCase;
+
+public class MappedFormulaReaderTest extends AbstractFormulaTestCase
+{
+
+	private File file;
+
+	private Capture capture;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		file = File.createTempFile("formulas", ".txt");
+		capture = new Capture();
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		file.delete();
+		super.tearDown();
+	}
+
+	@Test
+	public void testConstructor()
+	{
+		try
+		{
+			new MappedFormulaReader(null);
+			fail("null FormulaManager should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+		try
+		{
+			new MappedFormulaReader(fm, 0);
+			fail("zero window size should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+	}
+
+	@Test
+	public void testReadNull() throws IOException
+	{
+		MappedFormulaReader reader = new MappedFormulaReader(fm);
+		try
+		{
+			reader.read(null, capture);
+			fail("null File should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+		try
+		{
+			reader.read(file, null);
+			fail("null Handler should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+	}
+
+	@Test
+	public void testEmpty() throws IOException
+	{
+		write(new byte[0]);
+		assertEquals(0, new MappedFormulaReader(fm).read(file, capture));
+		assertTrue(capture.formulas.isEmpty());
+		assertTrue(capture.errors.isEmpty());
+	}
+
+	@Test
+	public void testRead() throws IOException
+	{
+		write("a+1\nmax(a,b)*2\r\n\nMy Var\n\u00e9t\u00e9/2\nf(\"x y\")");
+		assertEquals(5, new MappedFormulaReader(fm).read(file, capture));
+		assertEquals("1:a+1", capture.formulas.get(0));
+		assertEquals("2:max(a,b)*2", capture.formulas.get(1));
+		assertEquals("4:My Var", capture.formulas.get(2));
+		assertEquals("5:\u00e9t\u00e9/2", capture.formulas.get(3));
+		assertEquals("6:f(\"x y\")", capture.formulas.get(4));
+		assertTrue(capture.errors.isEmpty());
+	}
+
+	@Test
+	public void testErrors() throws IOException
+	{
+		write("a+1\n1+*2\n(a\n\u00e9^\nb");
+		assertEquals(2, new MappedFormulaReader(fm).read(file, capture));
+		assertEquals("1:a+1", capture.formulas.get(0));
+		assertEquals("5:b", capture.formulas.get(1));
+		assertEquals(3, capture.errors.size());
+		assertEquals("2:3", capture.errors.get(0));
+		assertEquals("3:3", capture.errors.get(1));
+		assertEquals("4:3", capture.errors.get(2));
+	}
+
+	@Test
+	public void testMalformed() throws IOException
+	{
+		write(new byte[]{'a', '\n', 'b', '+', (byte) 0xC3, '\n', 'c'});
+		assertEquals(2, new MappedFormulaReader(fm).read(file, capture));
+		assertEquals("1:a", capture.formulas.get(0));
+		assertEquals("3:c", capture.formulas.get(1));
+		assertEquals(1, capture.errors.size());
+		assertEquals("2:3", capture.errors.get(0));
+	}
+
+	@Test
+	public void testByteOrderMark() throws IOException
+	{
+		write(new byte[]{(byte) 0xEF, (byte) 0xBB, (byte) 0xBF, 'a', '+',
+			'1'});
+		assertEquals(1, new MappedFormulaReader(fm).read(file, capture));
+		assertEquals("1:a+1", capture.formulas.get(0));
+	}
+
+	@Test
+	public void testSmallWindow() throws IOException
+	{
+		StringBuilder sb = new StringBuilder();
+		List<String> expected = new ArrayList<String>();
+		for (int i = 0; i < 200; i++)
+		{
+			String formula =
+					((i % 10) == 0) ? "max(a,b,floor(c/2),abs(d-" + i + "))"
+						: "a+" + i;
+			sb.append(formula).append((i % 3 == 0) ? "\r\n" : "\n");
+			expected.add((i + 1) + ":" + formula);
+		}
+		write(sb.toString());
+		//Smaller than the longest line, so the window must grow
+		assertEquals(200, new MappedFormulaReader(fm, 7).read(file, capture));
+		assertEquals(expected, capture.formulas);
+		assertTrue(capture.errors.isEmpty());
+		assertTrue(fm.getSavedNodeCount() > 0);
+	}
+
+	private void write(String contents) throws IOException
+	{
+		write(contents.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private void write(byte[] contents) throws IOException
+	{
+		FileOutputStream out = new FileOutputStream(file);
+		try
+		{
+			out.write(contents);
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	private static class Capture implements MappedFormulaReader.Handler
+	{
+		private final List<String> formulas = new ArrayList<String>();
+		private final List<String> errors = new ArrayList<String>();
+
+		@Override
+		public void formula(long line, ComplexNEPFormula<?> formula)
+		{
+			formulas.add(line + ":" + formula);
+		}
+
+		@Override
+		public void error(long line, int column, String message)
+		{
+			errors.add(line + ":" + column);
+		}
+	}
+}
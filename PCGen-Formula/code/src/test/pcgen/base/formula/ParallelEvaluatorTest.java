@@ -0,0 +1,246 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula;
+
+import org.junit.Test;
+
+import pcgen.base.formula.manager.FormulaManager;
+import pcgen.base.formula.manager.ScopeInformation;
+import pcgen.base.formula.testsupport.AbstractFormulaTestCase;
+import pcgen.base.formula.variable.ArrayVariableStore;
+import pcgen.base.formula.variable.VariableID;
+import pcgen.base.formula.variable.VariableScope;
+
+public class ParallelEvaluatorTest extends AbstractFormulaTestCase
+{
+
+	private VariableScope<?>[] scopes;
+
+	private ParallelEvaluator evaluator;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		FormulaUtilities.loadBuiltInFunctions(library);
+		FormulaUtilities.loadBuiltInOperators(opLibrary);
+		getVariable("a");
+		getVariable("b");
+		scopes = new VariableScope<?>[500];
+		for (int i = 0; i < scopes.length; i++)
+		{
+			VariableScope<?> scope = newScope(globalScope);
+			scopes[i] = scope;
+			put(scope, "a", Integer.valueOf(i));
+			put(scope, "b", Double.valueOf(i / 2.0));
+		}
+		evaluator = new ParallelEvaluator(fm, 4, 16);
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		evaluator.shutdown();
+		super.tearDown();
+	}
+
+	private <T> VariableScope<T> newScope(VariableScope<T> scope)
+	{
+		return fm.getFactory().instantiateScope(null,
+			scope.getScopeDefinition());
+	}
+
+	@SuppressWarnings("unchecked")
+	private void put(VariableScope<?> scope, String name, Number value)
+	{
+		store.put((VariableID<Number>) fm.getFactory().getVariableID(scope,
+			name), value);
+	}
+
+	@Test
+	public void testConstructor()
+	{
+		try
+		{
+			new ParallelEvaluator(null, 2, 2);
+			fail("null FormulaManager should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+		try
+		{
+			new ParallelEvaluator(fm, 0, 2);
+			fail("zero parallelism should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+		try
+		{
+			new ParallelEvaluator(fm, 2, 0);
+			fail("zero threshold should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+	}
+
+	@Test
+	public void testEvaluateNull()
+	{
+		NEPFormula<Number> formula = new ComplexNEPFormula<Number>("a+1");
+		try
+		{
+			evaluator.evaluate((NEPFormula<?>) null, scopes);
+			fail("null formula should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+		try
+		{
+			evaluator.evaluate(formula, null);
+			fail("null scopes should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+		try
+		{
+			evaluator.evaluate(formula, new VariableScope<?>[]{null});
+			fail("null scope should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+		try
+		{
+			evaluator.evaluate(new NEPFormula<?>[]{formula, formula},
+				new VariableScope<?>[]{globalScope});
+			fail("mismatched lengths should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+	}
+
+	@Test
+	public void testEvaluateInOrder()
+	{
+		NEPFormula<Number> formula = new ComplexNEPFormula<Number>("a*2+b");
+		Object[] results = evaluator.evaluate(formula, scopes);
+		assertEquals(scopes.length, results.length);
+		for (int i = 0; i < scopes.length; i++)
+		{
+			Object expected =
+					formula.resolve(new ScopeInformation(fm, scopes[i]));
+			assertEquals(expected, results[i]);
+		}
+	}
+
+	@Test
+	public void testEvaluatePairs()
+	{
+		NEPFormula<?>[] formulas = new NEPFormula<?>[scopes.length];
+		for (int i = 0; i < formulas.length; i++)
+		{
+			formulas[i] =
+					new ComplexNEPFormula<Number>((i % 2 == 0) ? "a+1"
+						: "max(a,b)-1");
+		}
+		Object[] results = evaluator.evaluate(formulas, scopes);
+		for (int i = 0; i < scopes.length; i++)
+		{
+			Object expected = Integer.valueOf((i % 2 == 0) ? i + 1 : i - 1);
+			assertEquals(expected, results[i]);
+		}
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testArrayVariableStore()
+	{
+		//Read concurrently, alternating VariableScopes on every thread
+		ArrayVariableStore arrayStore =
+				new ArrayVariableStore(fm.getFactory());
+		for (VariableScope<?> scope : scopes)
+		{
+			for (String name : new String[]{"a", "b"})
+			{
+				VariableID<Number> id =
+						(VariableID<Number>) fm.getFactory().getVariableID(
+							scope, name);
+				arrayStore.put(id, store.get(id));
+			}
+		}
+		FormulaManager arrayManager =
+				new FormulaManager(library, opLibrary, fm.getFactory(),
+					arrayStore);
+		ParallelEvaluator arrayEvaluator =
+				new ParallelEvaluator(arrayManager, 4, 1);
+		try
+		{
+			NEPFormula<Number> formula =
+					new ComplexNEPFormula<Number>("a*2+b");
+			for (int pass = 0; pass < 20; pass++)
+			{
+				Object[] results = arrayEvaluator.evaluate(formula, scopes);
+				for (int i = 0; i < scopes.length; i++)
+				{
+					assertEquals(Double.valueOf(i * 2.5), results[i]);
+				}
+			}
+		}
+		finally
+		{
+			arrayEvaluator.shutdown();
+		}
+	}
+
+	@Test
+	public void testEvaluateEmpty()
+	{
+		NEPFormula<Number> formula = new ComplexNEPFormula<Number>("a");
+		assertEquals(0,
+			evaluator.evaluate(formula, new VariableScope<?>[0]).length);
+	}
+
+	@Test
+	public void testException()
+	{
+		put(scopes[321], "a", Integer.valueOf(0));
+		NEPFormula<Number> formula = new ComplexNEPFormula<Number>("7/a");
+		try
+		{
+			evaluator.evaluate(formula, scopes);
+			fail("Integer division by zero should be thrown");
+		}
+		catch (ArithmeticException e)
+		{
+			//ok
+		}
+	}
+}
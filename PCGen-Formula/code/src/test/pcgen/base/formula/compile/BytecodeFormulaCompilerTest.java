@@ -0,0 +1,56 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.compile;
+
+import org.junit.Test;
+
+import pcgen.base.formula.manager.ScopeInformation;
+import pcgen.base.formula.parse.SimpleNode;
+import pcgen.base.formula.testsupport.AbstractCompilerTestCase;
+import pcgen.base.formula.testsupport.TestUtilities;
+
+public class BytecodeFormulaCompilerTest extends AbstractCompilerTestCase
+{
+
+	private BytecodeFormulaCompiler compiler;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		compiler = new BytecodeFormulaCompiler();
+	}
+
+	@Override
+	protected FormulaCompiler getCompiler()
+	{
+		return compiler;
+	}
+
+	@Test
+	public void testDistinctClasses()
+	{
+		SimpleNode node = TestUtilities.doParse("a+1");
+		CompiledFormula first = compiler.compile(fm, node);
+		CompiledFormula second = compiler.compile(fm, node);
+		assertNotSame(first.getClass(), second.getClass());
+		ScopeInformation si = new ScopeInformation(fm, globalScope);
+		assertEquals(Integer.valueOf(4), first.evaluate(si));
+		assertEquals(Integer.valueOf(4), second.evaluate(si));
+	}
+}
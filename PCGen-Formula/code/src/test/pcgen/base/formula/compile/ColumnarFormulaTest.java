@@ -0,0 +1,292 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.compile;
+
+import org.junit.Test;
+
+import pcgen.base.formula.function.AbsFunction;
+import pcgen.base.formula.function.AbstractUnaryFunction;
+import pcgen.base.formula.function.CeilFunction;
+import pcgen.base.formula.function.FloorFunction;
+import pcgen.base.formula.function.IfFunction;
+import pcgen.base.formula.function.MaxFunction;
+import pcgen.base.formula.function.MinFunction;
+import pcgen.base.formula.function.RoundFunction;
+import pcgen.base.formula.operator.bool.BooleanAnd;
+import pcgen.base.formula.operator.bool.BooleanEquals;
+import pcgen.base.formula.operator.bool.BooleanNotEqual;
+import pcgen.base.formula.operator.bool.BooleanOr;
+import pcgen.base.formula.operator.number.NumberAdd;
+import pcgen.base.formula.operator.number.NumberDivide;
+import pcgen.base.formula.operator.number.NumberEquals;
+import pcgen.base.formula.operator.number.NumberGreaterThan;
+import pcgen.base.formula.operator.number.NumberGreaterThanOrEqualTo;
+import pcgen.base.formula.operator.number.NumberLessThan;
+import pcgen.base.formula.operator.number.NumberLessThanOrEqualTo;
+import pcgen.base.formula.operator.number.NumberMultiply;
+import pcgen.base.formula.operator.number.NumberNotEqual;
+import pcgen.base.formula.operator.number.NumberRemainder;
+import pcgen.base.formula.operator.number.NumberSubtract;
+import pcgen.base.formula.parse.SimpleNode;
+import pcgen.base.formula.testsupport.AbstractFormulaTestCase;
+import pcgen.base.formula.testsupport.TestUtilities;
+import pcgen.base.formula.variable.VariableID;
+import pcgen.base.formula.variable.VariableScope;
+import pcgen.base.formula.visitor.EvaluateVisitor;
+
+public class ColumnarFormulaTest extends AbstractFormulaTestCase
+{
+
+	private static final String[] FORMULAS = {"1", "-1.5", "a", "-a", "b",
+		"-b", "a+b", "a+c", "a-c", "b-a", "a*c", "a*b", "b*b", "a*b-c",
+		"(a+b)*c", "a/c", "c/2", "b/a", "(a)%c", "(b)%2", "-(-a)", "a^2",
+		"a^b^c", "b^0.5", "a<b", "a<=c", "a>b", "b>=c", "a==3", "a!=c",
+		"(a<b)&&(b<c)", "(a<b)||(b>c)", "(a<b)==(b>c)", "(a<b)!=(b>c)",
+		"abs(c)", "abs(b-a)", "ceil(b)", "floor(b)", "round(b)",
+		"ceil(a)", "floor(-b)", "round(a+b)", "max(a,b,c)", "min(a,b,c)",
+		"max(a,c)", "min(b,a)", "max(1,1.0)", "min(1,1.0)",
+		"if(a>b,a,b)", "if(a<b,a<c,b<c)", "abs(if(c<0,c,a))+max(a,2)*b",
+		"count(a)*b", "(d==0)||(a/d>0)", "(a>0)&&(b>1)", "z", "z+a"};
+
+	private VariableScope<?>[] scopes;
+
+	private int callCount;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		opLibrary.addAction(new NumberEquals());
+		opLibrary.addAction(new NumberNotEqual());
+		opLibrary.addAction(new NumberAdd());
+		opLibrary.addAction(new NumberSubtract());
+		opLibrary.addAction(new NumberDivide());
+		opLibrary.addAction(new NumberMultiply());
+		opLibrary.addAction(new NumberGreaterThan());
+		opLibrary.addAction(new NumberGreaterThanOrEqualTo());
+		opLibrary.addAction(new NumberLessThan());
+		opLibrary.addAction(new NumberLessThanOrEqualTo());
+		opLibrary.addAction(new NumberRemainder());
+		opLibrary.addAction(new BooleanAnd());
+		opLibrary.addAction(new BooleanOr());
+		opLibrary.addAction(new BooleanEquals());
+		opLibrary.addAction(new BooleanNotEqual());
+		library.addFunction(new AbsFunction());
+		library.addFunction(new CeilFunction());
+		library.addFunction(new FloorFunction());
+		library.addFunction(new RoundFunction());
+		library.addFunction(new MaxFunction());
+		library.addFunction(new MinFunction());
+		library.addFunction(new IfFunction());
+		library.addFunction(new AbstractUnaryFunction()
+		{
+			@Override
+			public String getFunctionName()
+			{
+				return "COUNT";
+			}
+
+			@Override
+			protected Number evaluate(Number n)
+			{
+				callCount++;
+				return n;
+			}
+		});
+		getVariable("a");
+		getVariable("b");
+		getVariable("c");
+		getVariable("d");
+		getVariable("z");
+		scopes = new VariableScope<?>[6];
+		for (int i = 0; i < scopes.length; i++)
+		{
+			VariableScope<?> scope = newScope(globalScope);
+			scopes[i] = scope;
+			put(scope, "a", Integer.valueOf(i - 2));
+			put(scope, "b", Double.valueOf(i * 1.5));
+			put(scope, "c", Integer.valueOf(3 - 2 * i));
+			put(scope, "d", Integer.valueOf(i - 3));
+		}
+	}
+
+	private <T> VariableScope<T> newScope(VariableScope<T> scope)
+	{
+		return fm.getFactory().instantiateScope(null,
+			scope.getScopeDefinition());
+	}
+
+	@SuppressWarnings("unchecked")
+	private void put(VariableScope<?> scope, String name, Number value)
+	{
+		store.put((VariableID<Number>) fm.getFactory().getVariableID(scope,
+			name), value);
+	}
+
+	private void assertMatchesEvaluate(String formula)
+	{
+		SimpleNode node = TestUtilities.doParse(formula);
+		isValid(formula, node);
+		Object[] results = new Object[scopes.length];
+		new ColumnarFormula(fm, node).evaluate(scopes, results);
+		for (int i = 0; i < scopes.length; i++)
+		{
+			Object expected =
+					new EvaluateVisitor(fm, scopes[i]).visit(node, null);
+			assertEquals(formula + " in scope " + i, expected, results[i]);
+			assertEquals(formula + " in scope " + i, expected.getClass(),
+				results[i].getClass());
+		}
+	}
+
+	@Test
+	public void testNull()
+	{
+		SimpleNode node = TestUtilities.doParse("1");
+		try
+		{
+			new ColumnarFormula(null, node);
+			fail("null FormulaManager should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+		try
+		{
+			new ColumnarFormula(fm, null);
+			fail("null root should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+		ColumnarFormula formula = new ColumnarFormula(fm, node);
+		try
+		{
+			formula.evaluate(null, new Object[1]);
+			fail("null scopes should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+		try
+		{
+			formula.evaluate(new VariableScope<?>[]{null}, new Object[1]);
+			fail("null scope should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+		try
+		{
+			formula.evaluate(scopes, null);
+			fail("null results should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+		try
+		{
+			formula.evaluate(scopes, new Object[1]);
+			fail("short results should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+	}
+
+	@Test
+	public void testMatchesEvaluate()
+	{
+		for (String formula : FORMULAS)
+		{
+			assertMatchesEvaluate(formula);
+		}
+	}
+
+	@Test
+	public void testFunctionCalledOncePerScope()
+	{
+		assertMatchesEvaluate("count(a)+1");
+		//Once by ColumnarFormula, once by EvaluateVisitor
+		assertEquals(2 * scopes.length, callCount);
+	}
+
+	@Test
+	public void testShortCircuit()
+	{
+		//a<0 for the first two scopes only
+		String formula = "(a<0)||(count(a)>0)";
+		SimpleNode node = TestUtilities.doParse(formula);
+		isValid(formula, node);
+		Object[] results = new Object[scopes.length];
+		new ColumnarFormula(fm, node).evaluate(scopes, results);
+		assertEquals(4, callCount);
+		assertEquals(Boolean.TRUE, results[0]);
+		assertEquals(Boolean.FALSE, results[2]);
+	}
+
+	@Test
+	public void testDivideByZero()
+	{
+		SimpleNode node = TestUtilities.doParse("a/d");
+		isValid("a/d", node);
+		try
+		{
+			new ColumnarFormula(fm, node).evaluate(scopes,
+				new Object[scopes.length]);
+			fail("Integer division by zero should fail as with EvaluateVisitor");
+		}
+		catch (ArithmeticException e)
+		{
+			//ok
+		}
+	}
+
+	@Test
+	public void testBoxedVariable()
+	{
+		put(scopes[1], "a", Long.valueOf(7));
+		put(scopes[4], "b", Float.valueOf(2.5f));
+		assertMatchesEvaluate("a+b");
+		assertMatchesEvaluate("a*2");
+		assertMatchesEvaluate("max(a,b)");
+	}
+
+	@Test
+	public void testLargeBatch()
+	{
+		VariableScope<?>[] large = new VariableScope<?>[1000];
+		for (int i = 0; i < large.length; i++)
+		{
+			VariableScope<?> scope = newScope(globalScope);
+			large[i] = scope;
+			put(scope, "a", Integer.valueOf(i % 17 - 8));
+			put(scope, "b", Double.valueOf(i / 4.0));
+		}
+		scopes = large;
+		assertMatchesEvaluate("a*a+b*3-(a)%5");
+		assertMatchesEvaluate("max(a,b)-floor(b/3)");
+		assertMatchesEvaluate("(a*b>10)||(b<a)");
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.compile;
+
+import org.junit.Test;
+
+import pcgen.base.formula.base.OperatorAction;
+import pcgen.base.formula.function.AbstractUnaryFunction;
+import pcgen.base.formula.manager.FormulaManager;
+import pcgen.base.formula.manager.ScopeInformation;
+import pcgen.base.formula.manager.SimpleOperatorLibrary;
+import pcgen.base.formula.operator.number.NumberAdd;
+import pcgen.base.formula.parse.Operator;
+import pcgen.base.formula.parse.SimpleNode;
+import pcgen.base.formula.testsupport.AbstractCompilerTestCase;
+import pcgen.base.formula.testsupport.TestUtilities;
+
+public class PrimitiveFormulaCompilerTest extends AbstractCompilerTestCase
+{
+
+	private PrimitiveFormulaCompiler compiler;
+
+	private int longCount;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		compiler = new PrimitiveFormulaCompiler();
+	}
+
+	@Override
+	protected FormulaCompiler getCompiler()
+	{
+		return compiler;
+	}
+
+	@Test
+	public void testLongVariable()
+	{
+		store.put(getVariable("a"), Long.valueOf(3));
+		String formula = "max(a,1)";
+		SimpleNode node = TestUtilities.doParse(formula);
+		compilesTo(formula, node);
+		formula = "if(a>1,a,b)";
+		compilesTo(formula, TestUtilities.doParse(formula));
+		formula = "a+1";
+		compilesTo(formula, TestUtilities.doParse(formula));
+	}
+
+	@Test
+	public void testLongFunctionEvaluatedOnce()
+	{
+		//A Long is evaluated as with EvaluateVisitor from where it appears
+		library.addFunction(new AbstractUnaryFunction()
+		{
+			@Override
+			public String getFunctionName()
+			{
+				return "LONGCOUNT";
+			}
+
+			@Override
+			protected Number evaluate(Number n)
+			{
+				longCount++;
+				return Long.valueOf(n.longValue());
+			}
+		});
+		String[] formulas =
+				{"longcount(a)", "longcount(a)+1", "2*longcount(c)",
+					"-longcount(a)", "abs(longcount(c))", "ceil(longcount(a))",
+					"longcount(a)^2", "max(longcount(a),b)",
+					"min(longcount(a),b)*2", "longcount(a)>b",
+					"if(longcount(a)>1,a,b)", "if(a>1,longcount(a),b)+1"};
+		ScopeInformation si = new ScopeInformation(fm, globalScope);
+		for (String formula : formulas)
+		{
+			SimpleNode node = TestUtilities.doParse(formula);
+			Object expected = si.evaluate(node);
+			CompiledFormula cf = compiler.compile(fm, node);
+			longCount = 0;
+			Object result = cf.evaluate(si);
+			assertEquals("Incorrect class for " + formula, expected.getClass(),
+				result.getClass());
+			assertEquals("Incorrect value for " + formula, expected, result);
+			assertEquals("Incorrect evaluations for " + formula, 1, longCount);
+		}
+	}
+
+	@Test
+	public void testCustomOperatorAction()
+	{
+		/*
+		 * A library where Integer + Integer is handled by something other than
+		 * NumberAdd must not use the primitive addition
+		 */
+		opLibrary = new SimpleOperatorLibrary();
+		opLibrary.addAction(new OperatorAction()
+		{
+			@Override
+			public Operator getOperator()
+			{
+				return Operator.ADD;
+			}
+
+			@Override
+			public Class<?> abstractEvaluate(Class<?> format1, Class<?> format2)
+			{
+				return Integer.class.equals(format1)
+					&& Integer.class.equals(format2) ? Integer.class : null;
+			}
+
+			@Override
+			public Object evaluate(Object l, Object r)
+			{
+				return Integer.valueOf(100);
+			}
+		});
+		opLibrary.addAction(new NumberAdd());
+		fm = new FormulaManager(library, opLibrary, fm.getFactory(), store);
+		SimpleNode node = TestUtilities.doParse("1+2+b");
+		CompiledFormula cf = compiler.compile(fm, node);
+		ScopeInformation si = new ScopeInformation(fm, globalScope);
+		assertEquals(Double.valueOf(102.5), cf.evaluate(si));
+		assertEquals(si.evaluate(node), cf.evaluate(si));
+	}
+}
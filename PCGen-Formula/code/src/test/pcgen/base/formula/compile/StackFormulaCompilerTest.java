@@ -0,0 +1,83 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.compile;
+
+import org.junit.Test;
+
+import pcgen.base.formula.function.MaxFunction;
+import pcgen.base.formula.manager.ScopeInformation;
+import pcgen.base.formula.parse.SimpleNode;
+import pcgen.base.formula.testsupport.AbstractCompilerTestCase;
+import pcgen.base.formula.testsupport.TestUtilities;
+
+public class StackFormulaCompilerTest extends AbstractCompilerTestCase
+{
+
+	private StackFormulaCompiler compiler;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		compiler = new StackFormulaCompiler();
+	}
+
+	@Override
+	protected FormulaCompiler getCompiler()
+	{
+		return compiler;
+	}
+
+	@Test
+	public void testCodeLength()
+	{
+		//CONSTANT 0, VARIABLE 1, OPERATOR 2
+		StackProgram program =
+				compiler.compile(fm, TestUtilities.doParse("(1+a)"));
+		assertEquals(6, program.getCodeLength());
+		assertEquals(2, program.getMaxStack());
+	}
+
+	@Test
+	public void testNestedEvaluation()
+	{
+		final StackProgram inner =
+				compiler.compile(fm, TestUtilities.doParse("a*2+b"));
+		//A Function that evaluates another StackProgram on the same thread
+		library.addFunction(new MaxFunction()
+		{
+			@Override
+			public String getFunctionName()
+			{
+				return "NESTED";
+			}
+
+			@Override
+			protected Number evaluate(Number n1, Number n2)
+			{
+				ScopeInformation si = new ScopeInformation(fm, globalScope);
+				return n1.doubleValue() + n2.doubleValue()
+					+ ((Number) inner.evaluate(si)).doubleValue();
+			}
+		});
+		String formula = "1+nested(a,if(a<b,1,2))*(c-1)";
+		SimpleNode node = TestUtilities.doParse(formula);
+		isValid(formula, node);
+		compilesTo(formula, node);
+	}
+}
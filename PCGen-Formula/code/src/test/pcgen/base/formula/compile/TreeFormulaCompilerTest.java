@@ -0,0 +1,86 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.compile;
+
+import org.junit.Test;
+
+import pcgen.base.formula.ComplexNEPFormula;
+import pcgen.base.formula.manager.FormulaManager;
+import pcgen.base.formula.manager.ScopeInformation;
+import pcgen.base.formula.parse.SimpleNode;
+import pcgen.base.formula.testsupport.AbstractCompilerTestCase;
+import pcgen.base.formula.testsupport.TestUtilities;
+
+public class TreeFormulaCompilerTest extends AbstractCompilerTestCase
+{
+
+	private TreeFormulaCompiler compiler;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		compiler = new TreeFormulaCompiler();
+	}
+
+	@Override
+	protected FormulaCompiler getCompiler()
+	{
+		return compiler;
+	}
+
+	@Test
+	public void testFormulaManagerCache()
+	{
+		FormulaManager compiling =
+				new FormulaManager(library, opLibrary, fm.getFactory(), store,
+					compiler);
+		SimpleNode node = TestUtilities.doParse("a+1");
+		assertNull(fm.getCompiledFormula(node));
+		CompiledFormula cf = compiling.getCompiledFormula(node);
+		assertNotNull(cf);
+		assertSame(cf, compiling.getCompiledFormula(node));
+		assertNotSame(cf,
+			compiling.getCompiledFormula(TestUtilities.doParse("a+1")));
+		//Held by the parsed tree for each FormulaManager
+		FormulaManager other =
+				new FormulaManager(library, opLibrary, fm.getFactory(), store,
+					compiler);
+		CompiledFormula otherCf = other.getCompiledFormula(node);
+		assertNotSame(cf, otherCf);
+		assertSame(cf, compiling.getCompiledFormula(node));
+		assertSame(otherCf, other.getCompiledFormula(node));
+		ScopeInformation si = new ScopeInformation(compiling, globalScope);
+		assertEquals(Integer.valueOf(4),
+			compiling.getCompiledFormula(node).evaluate(si));
+	}
+
+	@Test
+	public void testResolveCompiled()
+	{
+		FormulaManager compiling =
+				new FormulaManager(library, opLibrary, fm.getFactory(), store,
+					compiler);
+		ScopeInformation si = new ScopeInformation(compiling, globalScope);
+		ComplexNEPFormula<Number> formula =
+				new ComplexNEPFormula<Number>("max(a,b)*c");
+		assertEquals(Integer.valueOf(-12), formula.resolve(si));
+		store.put(getVariable("b"), Integer.valueOf(5));
+		assertEquals(Integer.valueOf(-20), formula.resolve(si));
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.manager;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import pcgen.base.formula.base.FormulaSemantics;
+import pcgen.base.formula.function.AbsFunction;
+import pcgen.base.formula.parse.SimpleNode;
+import pcgen.base.formula.testsupport.TestUtilities;
+import pcgen.base.formula.variable.NamespaceDefinition;
+import pcgen.base.formula.variable.ScopedNamespaceDefinition;
+import pcgen.base.formula.variable.ScopedNamespaceDefinitionLibrary;
+import pcgen.base.formula.variable.SimpleVariableStore;
+import pcgen.base.formula.variable.VariableLibrary;
+
+public class FormulaManagerTest extends TestCase
+{
+
+	private VariableLibrary varLibrary;
+	private SimpleFunctionLibrary ftnLibrary;
+	private FormulaManager fm;
+	private ScopedNamespaceDefinition<Number> globalDef;
+	private ScopedNamespaceDefinition<Number> eqDef;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		ScopedNamespaceDefinitionLibrary sndLibrary =
+				new ScopedNamespaceDefinitionLibrary();
+		globalDef =
+				sndLibrary.defineGlobalScopeDefinition(new NamespaceDefinition<Number>(
+					Number.class, "VAR"));
+		eqDef = sndLibrary.getScopeDefinition(globalDef, "EQUIPMENT");
+		varLibrary = new VariableLibrary(sndLibrary);
+		ftnLibrary = new SimpleFunctionLibrary();
+		fm =
+				new FormulaManager(ftnLibrary, new SimpleOperatorLibrary(),
+					varLibrary, new SimpleVariableStore());
+	}
+
+	@Test
+	public void testIsValidNull()
+	{
+		try
+		{
+			fm.isValid(null, globalDef);
+			fail("null root should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+		try
+		{
+			fm.isValid(TestUtilities.doParse("1"), null);
+			fail("null ScopedNamespaceDefinition should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+	}
+
+	@Test
+	public void testIsValidPerDefinition()
+	{
+		varLibrary.assertVariableScope(eqDef, "Weight");
+		SimpleNode root = TestUtilities.doParse("Weight");
+		//Validating in one definition must not affect another
+		assertFalse(fm.isValid(root, globalDef).isValid());
+		assertTrue(fm.isValid(root, eqDef).isValid());
+		assertFalse(fm.isValid(root, globalDef).isValid());
+	}
+
+	@Test
+	public void testValidIsCached()
+	{
+		SimpleNode root = TestUtilities.doParse("1");
+		FormulaSemantics fs = fm.isValid(root, globalDef);
+		assertTrue(fs.isValid());
+		assertSame(fs, fm.isValid(root, globalDef));
+		assertTrue(fm.isValid(root, eqDef).isValid());
+	}
+
+	@Test
+	public void testInvalidIsNotCached()
+	{
+		SimpleNode root = TestUtilities.doParse("abs(-1)");
+		assertFalse(fm.isValid(root, globalDef).isValid());
+		ftnLibrary.addFunction(new AbsFunction());
+		assertTrue(fm.isValid(root, globalDef).isValid());
+	}
+
+	@Test
+	public void testValidPerFormulaManager()
+	{
+		ftnLibrary.addFunction(new AbsFunction());
+		FormulaManager other =
+				new FormulaManager(new SimpleFunctionLibrary(),
+					new SimpleOperatorLibrary(), varLibrary,
+					new SimpleVariableStore());
+		SimpleNode root = TestUtilities.doParse("abs(-1)");
+		//The same parsed tree, validated through each FormulaManager in turn
+		FormulaSemantics valid = fm.isValid(root, globalDef);
+		assertTrue(valid.isValid());
+		assertFalse(other.isValid(root, globalDef).isValid());
+		//Held for each FormulaManager, not replaced on alternation
+		assertSame(valid, fm.isValid(root, globalDef));
+		assertFalse(other.isValid(root, globalDef).isValid());
+	}
+
+	@Test
+	public void testIntern()
+	{
+		try
+		{
+			fm.intern(null);
+			fail("null root should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+		SimpleNode first = fm.intern(TestUtilities.doParse("floor(a/2)+1"));
+		assertEquals(0, fm.getSavedNodeCount());
+		SimpleNode second = fm.intern(TestUtilities.doParse("floor(a/2)-1"));
+		assertTrue(fm.getSavedNodeCount() > 0);
+		//Root -> Arithmetic -> Lookup
+		assertSame(first.jjtGetChild(0).jjtGetChild(0), second.jjtGetChild(0)
+			.jjtGetChild(0));
+	}
+}
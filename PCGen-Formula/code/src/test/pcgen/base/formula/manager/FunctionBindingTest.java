@@ -0,0 +1,211 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.manager;
+
+import org.junit.Test;
+
+import pcgen.base.formula.base.FormulaDependencyManager;
+import pcgen.base.formula.base.FormulaSemantics;
+import pcgen.base.formula.function.AbsFunction;
+import pcgen.base.formula.function.Function;
+import pcgen.base.formula.parse.ASTPCGenLookup;
+import pcgen.base.formula.parse.Node;
+import pcgen.base.formula.parse.SimpleNode;
+import pcgen.base.formula.testsupport.AbstractFormulaTestCase;
+import pcgen.base.formula.testsupport.TestUtilities;
+import pcgen.base.formula.visitor.DependencyCaptureVisitor;
+import pcgen.base.formula.visitor.EvaluateVisitor;
+import pcgen.base.formula.visitor.StaticVisitor;
+import pcgen.base.formula.visitor.ValidVisitor;
+import pcgen.base.formula.visitor.VisitorUtilities;
+
+public class FunctionBindingTest extends AbstractFormulaTestCase
+{
+
+	private Function abs;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		abs = new AbsFunction();
+		library.addFunction(abs);
+		store.put(getVariable("a"), Integer.valueOf(-3));
+	}
+
+	@Test
+	public void testConstructor()
+	{
+		Node[] args = new Node[0];
+		try
+		{
+			new FunctionBinding(null, abs, args);
+			fail("null FunctionLibrary should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+		try
+		{
+			new FunctionBinding(library, null, args);
+			fail("null Function should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+		try
+		{
+			new FunctionBinding(library, abs, null);
+			fail("null arguments should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+		FunctionBinding binding = new FunctionBinding(library, abs, args);
+		assertSame(abs, binding.getFunction());
+		assertSame(args, binding.getArguments());
+		assertTrue(binding.isBoundTo(library));
+		assertFalse(binding.isBoundTo(new SimpleFunctionLibrary()));
+	}
+
+	@Test
+	public void testBoundOnce()
+	{
+		String formula = "abs(a)";
+		SimpleNode node = TestUtilities.doParse(formula);
+		isValid(formula, node);
+		ASTPCGenLookup lookup = getLookup(node);
+		assertNull(lookup.getBinding());
+		EvaluateVisitor visitor = new EvaluateVisitor(fm, globalScope);
+		assertEquals(Integer.valueOf(3), visitor.visit(node, null));
+		FunctionBinding binding = (FunctionBinding) lookup.getBinding();
+		assertNotNull(binding);
+		assertSame(abs, binding.getFunction());
+		assertEquals(1, binding.getArguments().length);
+		assertEquals(Integer.valueOf(3), visitor.visit(node, null));
+		assertSame(binding, lookup.getBinding());
+		assertSame(binding,
+			VisitorUtilities.getFunctionBinding(library, lookup));
+	}
+
+	@Test
+	public void testArgumentsOwnedByFunction()
+	{
+		//A Function (not read-only) that takes ownership of the args array
+		final Function clobber = new Function()
+		{
+			@Override
+			public String getFunctionName()
+			{
+				return "clobber";
+			}
+
+			@Override
+			public Boolean isStatic(StaticVisitor visitor, Node[] args)
+			{
+				return abs.isStatic(visitor, args);
+			}
+
+			@Override
+			public FormulaSemantics allowArgs(ValidVisitor visitor,
+				Node[] args)
+			{
+				return abs.allowArgs(visitor, args);
+			}
+
+			@Override
+			public Object evaluate(EvaluateVisitor visitor, Node[] args)
+			{
+				Object result = abs.evaluate(visitor, args);
+				args[0] = null;
+				return result;
+			}
+
+			@Override
+			public void getDependencies(DependencyCaptureVisitor visitor,
+				FormulaDependencyManager fdm, Node[] args)
+			{
+				abs.getDependencies(visitor, fdm, args);
+			}
+		};
+		library.addFunction(clobber);
+		String formula = "clobber(a)";
+		SimpleNode node = TestUtilities.doParse(formula);
+		isValid(formula, node);
+		EvaluateVisitor visitor = new EvaluateVisitor(fm, globalScope);
+		assertEquals(Integer.valueOf(3), visitor.visit(node, null));
+		assertEquals(Integer.valueOf(3), visitor.visit(node, null));
+		FunctionBinding binding = (FunctionBinding) getLookup(node).getBinding();
+		Node[] args = binding.getArguments();
+		assertNotSame(args, binding.getArguments());
+		assertNotNull(args[0]);
+		//The built-in functions share the array
+		FunctionBinding absBinding = new FunctionBinding(library, abs, args);
+		assertSame(args, absBinding.getArguments());
+	}
+
+	@Test
+	public void testLink()
+	{
+		SimpleNode node = TestUtilities.doParse("abs(a)+1");
+		ASTPCGenLookup lookup = getLookup(node);
+		VisitorUtilities.link(library, node);
+		FunctionBinding binding = (FunctionBinding) lookup.getBinding();
+		assertNotNull(binding);
+		assertTrue(binding.isBoundTo(library));
+		//A different FunctionLibrary is bound again
+		SimpleFunctionLibrary other = new SimpleFunctionLibrary();
+		Function otherAbs = new AbsFunction();
+		other.addFunction(otherAbs);
+		FunctionBinding otherBinding =
+				VisitorUtilities.getFunctionBinding(other, lookup);
+		assertSame(otherAbs, otherBinding.getFunction());
+		assertSame(otherBinding, lookup.getBinding());
+	}
+
+	@Test
+	public void testUnknownFunction()
+	{
+		SimpleNode node = TestUtilities.doParse("floor(a)");
+		ASTPCGenLookup lookup = getLookup(node);
+		assertNull(VisitorUtilities.getFunctionBinding(library, lookup));
+		assertNull(lookup.getBinding());
+		VisitorUtilities.link(library, node);
+		assertNull(lookup.getBinding());
+	}
+
+	private static ASTPCGenLookup getLookup(Node node)
+	{
+		if (node instanceof ASTPCGenLookup)
+		{
+			return (ASTPCGenLookup) node;
+		}
+		for (int i = 0; i < node.jjtGetNumChildren(); i++)
+		{
+			ASTPCGenLookup lookup = getLookup(node.jjtGetChild(i));
+			if (lookup != null)
+			{
+				return lookup;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.manager;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import pcgen.base.formula.base.OperatorAction;
+import pcgen.base.formula.operator.bool.BooleanAnd;
+import pcgen.base.formula.operator.number.NumberAdd;
+import pcgen.base.formula.parse.Operator;
+
+public class OperatorBindingTest extends TestCase
+{
+
+	private SimpleOperatorLibrary library;
+	private OperatorBinding binding;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		library = new SimpleOperatorLibrary();
+		//Only for Integer, so selection depends on the actual arguments
+		library.addAction(new OperatorAction()
+		{
+			@Override
+			public Operator getOperator()
+			{
+				return Operator.ADD;
+			}
+
+			@Override
+			public Class<?> abstractEvaluate(Class<?> format1,
+				Class<?> format2)
+			{
+				if (Integer.class.equals(format1)
+					&& Integer.class.equals(format2))
+				{
+					return Integer.class;
+				}
+				return null;
+			}
+
+			@Override
+			public Object evaluate(Object l, Object r)
+			{
+				return Integer.valueOf(100);
+			}
+		});
+		library.addAction(new NumberAdd());
+		library.addAction(new BooleanAnd());
+		binding = new OperatorBinding(library, Operator.ADD);
+	}
+
+	@Test
+	public void testConstructor()
+	{
+		try
+		{
+			new OperatorBinding(null, Operator.ADD);
+			fail("null OperatorLibrary should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+		try
+		{
+			new OperatorBinding(library, null);
+			fail("null Operator should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+	}
+
+	@Test
+	public void testIsBoundTo()
+	{
+		assertTrue(binding.isBoundTo(library, Operator.ADD));
+		assertFalse(binding.isBoundTo(library, Operator.SUB));
+		assertFalse(binding.isBoundTo(new SimpleOperatorLibrary(),
+			Operator.ADD));
+	}
+
+	@Test
+	public void testEvaluate()
+	{
+		assertEquals(Integer.valueOf(100), binding.evaluate(1, 2));
+		assertEquals(Integer.valueOf(100), binding.evaluate(3, 4));
+		//Different classes must reselect the OperatorAction
+		assertEquals(Double.valueOf(3.5), binding.evaluate(1, 2.5));
+		assertEquals(Double.valueOf(4.5), binding.evaluate(2, 2.5));
+		assertEquals(Integer.valueOf(100), binding.evaluate(1, 2));
+		assertEquals(library.evaluate(Operator.ADD, 1.5, 2), binding.evaluate(
+			1.5, 2));
+	}
+
+	@Test
+	public void testEvaluateInvalid()
+	{
+		assertEquals(Integer.valueOf(100), binding.evaluate(1, 2));
+		try
+		{
+			binding.evaluate(Boolean.TRUE, 2);
+			fail("No OperatorAction for Boolean + Integer");
+		}
+		catch (IllegalStateException e)
+		{
+			//ok
+		}
+	}
+
+	@Test
+	public void testShortCircuit()
+	{
+		assertNull(binding.shortCircuit(1));
+		OperatorBinding and = new OperatorBinding(library, Operator.AND);
+		assertEquals(Boolean.FALSE, and.shortCircuit(Boolean.FALSE));
+		assertNull(and.shortCircuit(Boolean.TRUE));
+		assertEquals(Boolean.TRUE, and.evaluate(Boolean.TRUE, Boolean.TRUE));
+	}
+
+	@Test
+	public void testPlainOperatorLibrary()
+	{
+		final int[] evaluations = new int[1];
+		//Only implements OperatorLibrary, so every evaluation is delegated
+		OperatorLibrary plain = new OperatorLibrary()
+		{
+			@Override
+			public void addAction(OperatorAction oa)
+			{
+				library.addAction(oa);
+			}
+
+			@Override
+			public Object evaluate(Operator op, Object o1, Object o2)
+			{
+				evaluations[0]++;
+				return library.evaluate(op, o1, o2);
+			}
+
+			@Override
+			public Class<?> processAbstract(Operator op, Class<?> format1,
+				Class<?> format2)
+			{
+				return library.processAbstract(op, format1, format2);
+			}
+		};
+		OperatorBinding plainBinding = new OperatorBinding(plain, Operator.ADD);
+		assertEquals(Integer.valueOf(100), plainBinding.evaluate(1, 2));
+		assertEquals(Double.valueOf(3.5), plainBinding.evaluate(1, 2.5));
+		assertEquals(Integer.valueOf(100), plainBinding.evaluate(1, 2));
+		assertEquals(3, evaluations[0]);
+		//Never short circuits, as the OperatorActions are not known
+		OperatorBinding and = new OperatorBinding(plain, Operator.AND);
+		assertNull(and.shortCircuit(Boolean.FALSE));
+		assertEquals(Boolean.FALSE, and.evaluate(Boolean.FALSE, Boolean.TRUE));
+	}
+}
@@ -21,7 +21,10 @@ import junit.framework.TestCase;
 
 import org.junit.Test;
 
+import pcgen.base.formula.base.OperatorAction;
+import pcgen.base.formula.operator.bool.BooleanAnd;
 import pcgen.base.formula.operator.bool.BooleanEquals;
+import pcgen.base.formula.operator.bool.BooleanOr;
 import pcgen.base.formula.operator.number.NumberAdd;
 import pcgen.base.formula.operator.number.NumberEquals;
 import pcgen.base.formula.parse.Operator;
@@ -99,4 +102,61 @@ public class SimpleOperatorLibraryTest extends TestCase
 		assertEquals(Boolean.FALSE, library.evaluate(Operator.EQ, 1, 2));
 	}
 
+	@Test
+	public void testGetAction()
+	{
+		assertNull(library.getAction(Operator.EQ, Integer.class, Integer.class));
+		BooleanEquals boolEquals = new BooleanEquals();
+		NumberEquals numEquals = new NumberEquals();
+		library.addAction(boolEquals);
+		library.addAction(numEquals);
+		assertSame(numEquals,
+			library.getAction(Operator.EQ, Integer.class, Double.class));
+		assertSame(boolEquals,
+			library.getAction(Operator.EQ, Boolean.class, Boolean.class));
+		assertNull(library.getAction(Operator.EQ, Boolean.class, Integer.class));
+		assertNull(library.getAction(Operator.ADD, Integer.class, Integer.class));
+	}
+
+	@Test
+	public void testShortCircuit()
+	{
+		assertNull(library.shortCircuit(Operator.AND, Boolean.FALSE));
+		library.addAction(new BooleanAnd());
+		library.addAction(new BooleanOr());
+		library.addAction(new NumberAdd());
+		assertEquals(Boolean.FALSE,
+			library.shortCircuit(Operator.AND, Boolean.FALSE));
+		assertNull(library.shortCircuit(Operator.AND, Boolean.TRUE));
+		assertEquals(Boolean.TRUE,
+			library.shortCircuit(Operator.OR, Boolean.TRUE));
+		assertNull(library.shortCircuit(Operator.OR, Boolean.FALSE));
+		assertNull(library.shortCircuit(Operator.ADD, Integer.valueOf(0)));
+		//Another (eager) action for AND means the right side may matter
+		library.addAction(new OperatorAction()
+		{
+			@Override
+			public Operator getOperator()
+			{
+				return Operator.AND;
+			}
+
+			@Override
+			public Class<?> abstractEvaluate(Class<?> format1,
+				Class<?> format2)
+			{
+				return null;
+			}
+
+			@Override
+			public Object evaluate(Object l, Object r)
+			{
+				return null;
+			}
+		});
+		assertNull(library.shortCircuit(Operator.AND, Boolean.FALSE));
+		assertEquals(Boolean.TRUE,
+			library.shortCircuit(Operator.OR, Boolean.TRUE));
+	}
+
 }
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.manager;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import pcgen.base.formula.variable.ArrayVariableStore;
+import pcgen.base.formula.variable.NamespaceDefinition;
+import pcgen.base.formula.variable.ScopedNamespaceDefinition;
+import pcgen.base.formula.variable.ScopedNamespaceDefinitionLibrary;
+import pcgen.base.formula.variable.SimpleVariableStore;
+import pcgen.base.formula.variable.VariableID;
+import pcgen.base.formula.variable.VariableLibrary;
+import pcgen.base.formula.variable.VariableScope;
+
+public class VariableBindingTest extends TestCase
+{
+
+	private VariableLibrary varLibrary;
+	private SimpleVariableStore store;
+	private FormulaManager fm;
+	private ScopedNamespaceDefinition<Number> globalDef;
+	private ScopedNamespaceDefinition<Number> eqDef;
+	private VariableScope<Number> globalScope;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		ScopedNamespaceDefinitionLibrary sndLibrary =
+				new ScopedNamespaceDefinitionLibrary();
+		globalDef =
+				sndLibrary.defineGlobalScopeDefinition(new NamespaceDefinition<Number>(
+					Number.class, "VAR"));
+		eqDef = sndLibrary.getScopeDefinition(globalDef, "EQUIPMENT");
+		varLibrary = new VariableLibrary(sndLibrary);
+		globalScope = varLibrary.instantiateScope(null, globalDef);
+		store = new SimpleVariableStore();
+		fm =
+				new FormulaManager(new SimpleFunctionLibrary(),
+					new SimpleOperatorLibrary(), varLibrary, store);
+	}
+
+	@Test
+	public void testConstructor()
+	{
+		try
+		{
+			new VariableBinding(null);
+			fail("null variable name should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+		assertEquals("a", new VariableBinding("a").getVariableName());
+	}
+
+	@Test
+	public void testResolvedOnce()
+	{
+		varLibrary.assertVariableScope(globalDef, "a");
+		VariableBinding binding = new VariableBinding("a");
+		VariableID<?> id = binding.getVariableID(varLibrary, globalScope);
+		assertEquals(varLibrary.getVariableID(globalScope, "a"), id);
+		assertEquals(id, binding.getVariableID(varLibrary, globalScope));
+		assertNull(binding.getValue(fm, globalScope));
+		store.put(varLibrary.getVariableID(globalScope, "a"),
+			Integer.valueOf(4));
+		assertEquals(Integer.valueOf(4), binding.getValue(fm, globalScope));
+	}
+
+	@Test
+	public void testScopeChange()
+	{
+		varLibrary.assertVariableScope(eqDef, "b");
+		VariableScope<Number> sword =
+				varLibrary.instantiateScope(globalScope, eqDef);
+		VariableScope<Number> shield =
+				varLibrary.instantiateScope(globalScope, eqDef);
+		store.put(varLibrary.getVariableID(sword, "b"), Integer.valueOf(1));
+		store.put(varLibrary.getVariableID(shield, "b"), Integer.valueOf(2));
+		VariableBinding binding = new VariableBinding("b");
+		assertNull(binding.getValue(fm, globalScope));
+		assertEquals(Integer.valueOf(1), binding.getValue(fm, sword));
+		assertEquals(Integer.valueOf(2), binding.getValue(fm, shield));
+		assertEquals(Integer.valueOf(1), binding.getValue(fm, sword));
+	}
+
+	@Test
+	public void testBecomesLegal()
+	{
+		VariableBinding binding = new VariableBinding("c");
+		assertNull(binding.getVariableID(varLibrary, globalScope));
+		varLibrary.assertVariableScope(globalDef, "c");
+		assertEquals(varLibrary.getVariableID(globalScope, "c"),
+			binding.getVariableID(varLibrary, globalScope));
+	}
+
+	@Test
+	public void testArrayVariableStore()
+	{
+		varLibrary.assertVariableScope(globalDef, "a");
+		varLibrary.assertVariableScope(eqDef, "b");
+		ArrayVariableStore arrayStore = new ArrayVariableStore(varLibrary);
+		FormulaManager arrayFM =
+				new FormulaManager(new SimpleFunctionLibrary(),
+					new SimpleOperatorLibrary(), varLibrary, arrayStore);
+		arrayStore.put(varLibrary.getVariableID(globalScope, "a"),
+			Integer.valueOf(7));
+		VariableBinding a = new VariableBinding("a");
+		VariableBinding b = new VariableBinding("b");
+		for (int i = 0; i < 20; i++)
+		{
+			VariableScope<Number> item =
+					varLibrary.instantiateScope(globalScope, eqDef);
+			arrayStore.put(varLibrary.getVariableID(item, "b"),
+				Integer.valueOf(i));
+			//a is defined in the parent (global) scope
+			assertEquals(Integer.valueOf(7), a.getValue(arrayFM, item));
+			assertEquals(Integer.valueOf(i), b.getValue(arrayFM, item));
+			assertEquals(varLibrary.getVariableID(item, "b"),
+				b.getVariableID(varLibrary, item));
+		}
+		assertEquals(Integer.valueOf(7), a.getValue(arrayFM, globalScope));
+		assertNull(b.getValue(arrayFM, globalScope));
+	}
+
+	@Test
+	public void testOtherLibraryStore()
+	{
+		varLibrary.assertVariableScope(globalDef, "x");
+		varLibrary.assertVariableScope(globalDef, "a");
+		//Indexes in this store differ from those of varLibrary
+		ScopedNamespaceDefinitionLibrary otherSnd =
+				new ScopedNamespaceDefinitionLibrary();
+		VariableLibrary otherLibrary = new VariableLibrary(otherSnd);
+		otherLibrary.assertVariableScope(globalDef, "a");
+		ArrayVariableStore arrayStore = new ArrayVariableStore(otherLibrary);
+		FormulaManager arrayFM =
+				new FormulaManager(new SimpleFunctionLibrary(),
+					new SimpleOperatorLibrary(), varLibrary, arrayStore);
+		arrayStore.put(varLibrary.getVariableID(globalScope, "a"),
+			Integer.valueOf(3));
+		assertEquals(Integer.valueOf(3),
+			new VariableBinding("a").getValue(arrayFM, globalScope));
+		assertNull(new VariableBinding("x").getValue(arrayFM, globalScope));
+	}
+}
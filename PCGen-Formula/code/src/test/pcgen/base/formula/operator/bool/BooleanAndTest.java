@@ -134,4 +134,12 @@ public class BooleanAndTest extends TestCase
 		assertEquals(Boolean.FALSE, op.evaluate(Boolean.TRUE, Boolean.FALSE));
 		assertEquals(Boolean.FALSE, op.evaluate(Boolean.FALSE, Boolean.FALSE));
 	}
+
+	public void testShortCircuit()
+	{
+		assertEquals(Boolean.FALSE, op.shortCircuit(Boolean.FALSE));
+		assertNull(op.shortCircuit(Boolean.TRUE));
+		assertNull(op.shortCircuit(Integer.valueOf(0)));
+		assertNull(op.shortCircuit(null));
+	}
 }
@@ -134,4 +134,12 @@ public class BooleanOrTest extends TestCase
 		assertEquals(Boolean.TRUE, op.evaluate(Boolean.TRUE, Boolean.FALSE));
 		assertEquals(Boolean.FALSE, op.evaluate(Boolean.FALSE, Boolean.FALSE));
 	}
+
+	public void testShortCircuit()
+	{
+		assertEquals(Boolean.TRUE, op.shortCircuit(Boolean.TRUE));
+		assertNull(op.shortCircuit(Boolean.FALSE));
+		assertNull(op.shortCircuit(Integer.valueOf(0)));
+		assertNull(op.shortCircuit(null));
+	}
 }
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.optimize;
+
+import org.junit.Test;
+
+import pcgen.base.formula.function.AbstractUnaryFunction;
+import pcgen.base.formula.operator.number.NumberAdd;
+import pcgen.base.formula.operator.number.NumberDivide;
+import pcgen.base.formula.operator.number.NumberMultiply;
+import pcgen.base.formula.operator.number.NumberRemainder;
+import pcgen.base.formula.operator.number.NumberSubtract;
+import pcgen.base.formula.parse.Node;
+import pcgen.base.formula.parse.SimpleNode;
+import pcgen.base.formula.testsupport.AbstractFormulaTestCase;
+import pcgen.base.formula.testsupport.TestUtilities;
+import pcgen.base.formula.visitor.StaticVisitor;
+
+public class CommonSubexpressionAnalyzerTest extends AbstractFormulaTestCase
+{
+
+	private CountingFunction pure;
+	private CountingFunction impure;
+	private CommonSubexpressionAnalyzer analyzer;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		opLibrary.addAction(new NumberAdd());
+		opLibrary.addAction(new NumberSubtract());
+		opLibrary.addAction(new NumberDivide());
+		opLibrary.addAction(new NumberMultiply());
+		opLibrary.addAction(new NumberRemainder());
+		pure = new CountingFunction("PURE", true);
+		impure = new CountingFunction("IMPURE", false);
+		library.addFunction(pure);
+		library.addFunction(impure);
+		store.put(getVariable("a"), Integer.valueOf(13));
+		store.put(getVariable("b"), Double.valueOf(2.5));
+		analyzer = new CommonSubexpressionAnalyzer(fm);
+	}
+
+	@Test
+	public void testNull()
+	{
+		try
+		{
+			new CommonSubexpressionAnalyzer(null);
+			fail("null FormulaManager should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+		try
+		{
+			analyzer.addFormula(null);
+			fail("null formula should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+		try
+		{
+			new MemoizingEvaluateVisitor(fm, globalScope, null);
+			fail("null SharedSubexpressions should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+	}
+
+	@Test
+	public void testWithinFormula()
+	{
+		SimpleNode node = add("pure(a-10)/2+(pure(a-10))%2");
+		SharedSubexpressions shared = analyzer.getSharedSubexpressions();
+		//pure(a-10) and a-10
+		assertEquals(2, shared.getSlotCount());
+		assertEquals(4, shared.getNodeCount());
+		MemoizingEvaluateVisitor visitor =
+				new MemoizingEvaluateVisitor(fm, globalScope, shared);
+		assertEquals(Double.valueOf(2.5), visitor.visit(node, null));
+		assertEquals(1, pure.count);
+		visitor.reset();
+		assertEquals(Double.valueOf(2.5), visitor.visit(node, null));
+		assertEquals(2, pure.count);
+	}
+
+	@Test
+	public void testAcrossFormulas()
+	{
+		SimpleNode first = add("pure(a)+1");
+		SimpleNode second = add("pure(a)*b");
+		SharedSubexpressions shared = analyzer.getSharedSubexpressions();
+		assertEquals(1, shared.getSlotCount());
+		MemoizingEvaluateVisitor visitor =
+				new MemoizingEvaluateVisitor(fm, globalScope, shared);
+		assertEquals(Integer.valueOf(14), visitor.visit(first, null));
+		assertEquals(Double.valueOf(32.5), visitor.visit(second, null));
+		assertEquals(1, pure.count);
+		//New recalculation
+		store.put(getVariable("a"), Integer.valueOf(2));
+		visitor.reset();
+		assertEquals(Integer.valueOf(3), visitor.visit(first, null));
+		assertEquals(Double.valueOf(5.0), visitor.visit(second, null));
+		assertEquals(2, pure.count);
+	}
+
+	@Test
+	public void testParenthesisIgnored()
+	{
+		add("(a+b)*2+pure(a+b)");
+		SharedSubexpressions shared = analyzer.getSharedSubexpressions();
+		assertEquals(1, shared.getSlotCount());
+		assertEquals(2, shared.getNodeCount());
+	}
+
+	@Test
+	public void testImpureNotShared()
+	{
+		SimpleNode node = add("impure(a)+impure(a)");
+		SharedSubexpressions shared = analyzer.getSharedSubexpressions();
+		assertEquals(0, shared.getSlotCount());
+		MemoizingEvaluateVisitor visitor =
+				new MemoizingEvaluateVisitor(fm, globalScope, shared);
+		assertEquals(Integer.valueOf(26), visitor.visit(node, null));
+		assertEquals(2, impure.count);
+	}
+
+	@Test
+	public void testDifferentNotShared()
+	{
+		add("a-10+b");
+		add("10-a+b");
+		add("a+b-10");
+		assertEquals(0, analyzer.getSharedSubexpressions().getSlotCount());
+	}
+
+	private SimpleNode add(String formula)
+	{
+		SimpleNode node = TestUtilities.doParse(formula);
+		isValid(formula, node);
+		analyzer.addFormula(node);
+		return node;
+	}
+
+	private static class CountingFunction extends AbstractUnaryFunction
+	{
+		private final String name;
+		private final boolean isPure;
+		private int count;
+
+		public CountingFunction(String name, boolean isPure)
+		{
+			this.name = name;
+			this.isPure = isPure;
+		}
+
+		@Override
+		public String getFunctionName()
+		{
+			return name;
+		}
+
+		@Override
+		public Boolean isStatic(StaticVisitor visitor, Node[] args)
+		{
+			return isPure ? super.isStatic(visitor, args) : Boolean.FALSE;
+		}
+
+		@Override
+		protected Number evaluate(Number n)
+		{
+			count++;
+			return n;
+		}
+	}
+}
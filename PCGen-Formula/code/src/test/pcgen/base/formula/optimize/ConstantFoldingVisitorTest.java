@@ -0,0 +1,128 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.optimize;
+
+import org.junit.Test;
+
+import pcgen.base.formula.compile.FormulaCompiler;
+import pcgen.base.formula.compile.TreeFormulaCompiler;
+import pcgen.base.formula.function.AbstractUnaryFunction;
+import pcgen.base.formula.manager.ScopeInformation;
+import pcgen.base.formula.parse.Node;
+import pcgen.base.formula.parse.SimpleNode;
+import pcgen.base.formula.testsupport.AbstractCompilerTestCase;
+import pcgen.base.formula.testsupport.TestUtilities;
+import pcgen.base.formula.visitor.ReconstructionVisitor;
+import pcgen.base.formula.visitor.StaticVisitor;
+
+public class ConstantFoldingVisitorTest extends AbstractCompilerTestCase
+{
+
+	private ConstantFoldingVisitor folder;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		//A Function that is never static, even with static arguments
+		library.addFunction(new AbstractUnaryFunction()
+		{
+			@Override
+			public String getFunctionName()
+			{
+				return "DYNAMIC";
+			}
+
+			@Override
+			public Boolean isStatic(StaticVisitor visitor, Node[] args)
+			{
+				return Boolean.FALSE;
+			}
+
+			@Override
+			protected Number evaluate(Number n)
+			{
+				return n;
+			}
+		});
+		folder = new ConstantFoldingVisitor(fm, globalScope);
+	}
+
+	@Override
+	protected FormulaCompiler getCompiler()
+	{
+		return new TreeFormulaCompiler();
+	}
+
+	private void foldsTo(String formula, String expected)
+	{
+		SimpleNode node = TestUtilities.doParse(formula);
+		isValid(formula, node);
+		SimpleNode folded = (SimpleNode) folder.visit(node, null);
+		assertEquals(expected, reconstruct(folded));
+		//Original tree is untouched
+		assertEquals(formula, reconstruct(node));
+		ScopeInformation si = new ScopeInformation(fm, globalScope);
+		Object expectedValue = si.evaluate(node);
+		Object actual = getCompiler().compile(fm, folded).evaluate(si);
+		assertEquals(expectedValue.getClass(), actual.getClass());
+		assertEquals(expectedValue, actual);
+	}
+
+	private String reconstruct(SimpleNode node)
+	{
+		return new ReconstructionVisitor().visit(node, new StringBuilder())
+			.toString();
+	}
+
+	@Test
+	public void testFoldArithmetic()
+	{
+		foldsTo("1+2", "3");
+		foldsTo("7/2", "3.5");
+		foldsTo("a+2*3", "a+6");
+		foldsTo("floor(10/3)+a", "3+a");
+		foldsTo("-2+a", "-2+a");
+		foldsTo("2*0.0+a", "0+a");
+	}
+
+	@Test
+	public void testFoldIf()
+	{
+		foldsTo("if(1<2,3*4,a)", "12");
+		foldsTo("if(1>2,3*4,a)", "a");
+		foldsTo("2*if(1<2,a+1,b)", "2*(a+1)");
+		foldsTo("if(a<1,2*3,4)", "if(a<1,6,4)");
+	}
+
+	@Test
+	public void testNoFold()
+	{
+		foldsTo("a+b", "a+b");
+		foldsTo("dynamic(2*3)+a", "dynamic(6)+a");
+		foldsTo("(1<2)&&(a<b)", "(1<2)&&(a<b)");
+	}
+
+	@Test
+	public void testExceptionNotFolded()
+	{
+		SimpleNode node = TestUtilities.doParse("1/0+a");
+		SimpleNode folded = (SimpleNode) folder.visit(node, null);
+		assertEquals("1/0+a", reconstruct(folded));
+	}
+}
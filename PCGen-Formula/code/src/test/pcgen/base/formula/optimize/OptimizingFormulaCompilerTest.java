@@ -0,0 +1,57 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.optimize;
+
+import org.junit.Test;
+
+import pcgen.base.formula.compile.FormulaCompiler;
+import pcgen.base.formula.compile.TreeFormulaCompiler;
+import pcgen.base.formula.testsupport.AbstractCompilerTestCase;
+
+public class OptimizingFormulaCompilerTest extends AbstractCompilerTestCase
+{
+
+	private FormulaCompiler compiler;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		compiler = new OptimizingFormulaCompiler(new TreeFormulaCompiler());
+	}
+
+	@Override
+	protected FormulaCompiler getCompiler()
+	{
+		return compiler;
+	}
+
+	@Test
+	public void testNullCompiler()
+	{
+		try
+		{
+			new OptimizingFormulaCompiler(null);
+			fail("null FormulaCompiler should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.optimize;
+
+import org.junit.Test;
+
+import pcgen.base.formula.compile.CompiledFormula;
+import pcgen.base.formula.compile.FormulaCompiler;
+import pcgen.base.formula.compile.TreeFormulaCompiler;
+import pcgen.base.formula.manager.FormulaManager;
+import pcgen.base.formula.parse.SimpleNode;
+import pcgen.base.formula.testsupport.AbstractCompilerTestCase;
+import pcgen.base.formula.testsupport.TestUtilities;
+import pcgen.base.formula.visitor.ReconstructionVisitor;
+import pcgen.base.formula.visitor.VisitorUtilities;
+
+public class SimplifyingVisitorTest extends AbstractCompilerTestCase
+{
+
+	private static final String[] IDENTITIES = {"a-0", "b-0", "(a+b)-0",
+		"(a*2)/1", "(b*2)/1", "-(-(a+1))", "-(-(b*1))", "(0.0*1)-0",
+		"-(-0.0)", "(a/2)/1", "a*1", "b*1", "0.0*1", "a+0", "-0.0+0", "a^0",
+		"b^1", "c^2", "b^0.5", "(0-b)^0.5", "(0-2.0*0.0)^0.5"};
+
+	private final FormulaCompiler compiler = new FormulaCompiler()
+	{
+		@Override
+		public CompiledFormula compile(FormulaManager formulaManager,
+			SimpleNode root)
+		{
+			if (formulaManager == null)
+			{
+				throw new IllegalArgumentException();
+			}
+			if (root == null)
+			{
+				throw new IllegalArgumentException();
+			}
+			return new TreeFormulaCompiler().compile(formulaManager,
+				(SimpleNode) new SimplifyingVisitor(formulaManager).visit(root,
+					null));
+		}
+	};
+
+	@Override
+	protected FormulaCompiler getCompiler()
+	{
+		return compiler;
+	}
+
+	private void simplifiesTo(String formula, String expected)
+	{
+		SimpleNode node = TestUtilities.doParse(formula);
+		isValid(formula, node);
+		SimpleNode simplified =
+				(SimpleNode) new SimplifyingVisitor(fm).visit(node, null);
+		assertEquals(expected, new ReconstructionVisitor().visit(simplified,
+			new StringBuilder()).toString());
+		compilesTo(formula, node);
+	}
+
+	@Test
+	public void testNull()
+	{
+		try
+		{
+			new SimplifyingVisitor(null);
+			fail("null FormulaManager should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+	}
+
+	@Test
+	public void testIdentitiesMatchEvaluate()
+	{
+		for (String formula : IDENTITIES)
+		{
+			SimpleNode node = TestUtilities.doParse(formula);
+			isValid(formula, node);
+			compilesTo(formula, node);
+		}
+	}
+
+	@Test
+	public void testSimplify()
+	{
+		simplifiesTo("(a)", "a");
+		simplifiesTo("((a+b))*c", "a+b*c");
+		simplifiesTo("(b^2)-0", "b^2");
+		simplifiesTo("(b^2+1)/1", "b^2+1");
+		simplifiesTo("-(-(-b+1))", "-b+1");
+		simplifiesTo("max((a),(b))", "max(a,b)");
+	}
+
+	@Test
+	public void testNotSimplified()
+	{
+		//Variables may not be Integer or Double
+		simplifiesTo("a-0", "a-0");
+		simplifiesTo("a/1", "a/1");
+		simplifiesTo("-(-a)", "--a");
+		simplifiesTo("(a*2)-0", "a*2-0");
+		//Not identities in this library
+		simplifiesTo("(a*2)*1", "a*2*1");
+		simplifiesTo("(a*2)+0", "a*2+0");
+		simplifiesTo("(a*2)-0.0", "a*2-0.0");
+	}
+
+	@Test
+	public void testPower()
+	{
+		double[] values = {0.0, -0.0, 1.0, -1.0, 2.5, -2.5, 1e200, -1e200,
+			Double.MIN_VALUE, -Double.MIN_VALUE, Double.MAX_VALUE,
+			Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NaN};
+		double[] exponents = {0.0, -0.0, 1.0, 2.0, -2.0, 0.5, 3.0,
+			Double.NaN};
+		for (double base : values)
+		{
+			for (double exponent : exponents)
+			{
+				//Bit-identical to Math.pow
+				assertEquals(base + "^" + exponent,
+					Double.doubleToRawLongBits(Math.pow(base, exponent)),
+					Double.doubleToRawLongBits(VisitorUtilities.power(base,
+						exponent)));
+			}
+		}
+	}
+}
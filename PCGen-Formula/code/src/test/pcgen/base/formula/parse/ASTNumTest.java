@@ -0,0 +1,66 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.parse;
+
+import java.io.StringReader;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class ASTNumTest extends TestCase
+{
+
+	@Test
+	public void testParsedValue() throws ParseException
+	{
+		SimpleNode root =
+				new FormulaParser(new StringReader("1+2.5")).query();
+		Node arith = root.jjtGetChild(0);
+		Number left = ((ASTNum) arith.jjtGetChild(0)).getValue();
+		Number right = ((ASTNum) arith.jjtGetChild(1)).getValue();
+		assertEquals(Integer.valueOf(1), left);
+		assertEquals(Double.valueOf(2.5), right);
+	}
+
+	@Test
+	public void testSetToken()
+	{
+		ASTNum num = new ASTNum(FormulaParserTreeConstants.JJTNUM);
+		assertNull(num.getValue());
+		num.setToken("42");
+		assertEquals(Integer.valueOf(42), num.getValue());
+		num.setToken("-7");
+		assertEquals(Integer.valueOf(-7), num.getValue());
+		num.setToken(".5");
+		assertEquals(Double.valueOf(0.5), num.getValue());
+		num.setToken("3.0");
+		assertEquals(Double.valueOf(3.0), num.getValue());
+		num.setToken("1.0E10");
+		assertEquals(Double.valueOf(1.0E10), num.getValue());
+		//Too large for an Integer
+		num.setToken("12345678901");
+		assertEquals(Double.valueOf(12345678901.0), num.getValue());
+		num.setToken("-");
+		assertNull(num.getValue());
+		num.setToken("abc");
+		assertNull(num.getValue());
+		num.setToken(null);
+		assertNull(num.getValue());
+	}
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.parse;
+
+import java.io.StringReader;
+import java.nio.CharBuffer;
+
+import org.junit.Test;
+
+/**
+ * Runs each of the formulas in FormulaParserTest through both FormulaParser
+ * and CharSequenceFormulaParser, ensuring they produce identical trees (or
+ * both reject the formula).
+ */
+public class CharSequenceFormulaParserTest extends FormulaParserTest
+{
+
+	private static final String[] FORMULAS = {"", " ", "a", " a", "a ",
+		"a b", "a  +  b", " -a", "- a", "-(-a)", "--a", "a = b", "a=b",
+		"a==b", "a = = b", "a< =b", "a <= b", "a>= b", "a!=b", "a ! = b",
+		"a&&b", "a & & b", "a||b", "a|b", "(a)%b", "(a) % b", "(a)%%b",
+		"%a", " %a", "% a", "(a)*%b", "a%b", "a%", "a:b.c_d~", "a_", "a.",
+		"a=b=c", "CL=Special Fighter", "1", "1.5", "1.", ".5", "1.5.5",
+		"1 .5", "1. 5", "00.50", "1a", "a1", "~a", "\u00e9t\u00e9",
+		"\u4e2d\u6587", "a\u00d7b", "a^b^c", "a^-b", "-a^b", "(a+b)*c",
+		"a+b*c-d/e", "a<b==c>d", "a&&b||c", "f()", "f( )", "f(a)",
+		"f(a, b)", "f(a ,b)", "f(\"x\")", "f(\"\")", "f(\"a\\\"b\")",
+		"f(\"a\\nb\")", "f(\"a\\qb\")", "f(\"a", "f(\"a\nb\")", "f(\"x\",1)",
+		"\"x\"", "f[a]", "f[ a ]", "f[%a]", "f[1]", "f[a](1)", "f(a)[b]",
+		"f(g(h(1)))", "if(a>b,a,b)", "max(a,2)*abs(-b)", "a\tb", "a\\nb",
+		"a#b", "a$", "(", ")", "a)", "(a", "[a]", "a[", "1,2", "a\r",
+		"(((1)))", "-(1)", "- 1", "a - -b", "a--b", "-.5", ".a", "a.5"};
+
+	@Override
+	protected SimpleNode doTest(String formula) throws ParseException
+	{
+		SimpleNode expected = parseJavaCC(formula);
+		SimpleNode actual;
+		try
+		{
+			actual = new CharSequenceFormulaParser(formula).query();
+		}
+		catch (ParseException e)
+		{
+			assertNull("CharSequenceFormulaParser rejected " + formula
+				+ ": " + e.getMessage(), expected);
+			throw e;
+		}
+		assertNotNull("CharSequenceFormulaParser accepted " + formula,
+			expected);
+		assertSameStructure(formula, expected, actual);
+		return actual;
+	}
+
+	private SimpleNode parseJavaCC(String formula)
+	{
+		try
+		{
+			return new FormulaParser(new StringReader(formula)).query();
+		}
+		catch (ParseException e)
+		{
+			return null;
+		}
+		catch (TokenMgrError e)
+		{
+			return null;
+		}
+	}
+
+	@Test
+	public void testConformance()
+	{
+		for (String formula : FORMULAS)
+		{
+			try
+			{
+				doTest(formula);
+			}
+			catch (ParseException e)
+			{
+				//ok, conformance checked by doTest
+			}
+		}
+	}
+
+	@Test
+	public void testRange() throws ParseException
+	{
+		String formula = "a+b*c";
+		String text = "xx(" + formula + ")yy";
+		SimpleNode actual =
+				new CharSequenceFormulaParser(text, 3, 3 + formula.length())
+					.query();
+		assertSameStructure(formula, parseJavaCC(formula), actual);
+		char[] chars = text.toCharArray();
+		actual =
+				new CharSequenceFormulaParser(CharBuffer.wrap(chars), 3,
+					3 + formula.length()).query();
+		assertSameStructure(formula, parseJavaCC(formula), actual);
+		actual =
+				new CharSequenceFormulaParser(new StringBuilder(formula))
+					.query();
+		assertSameStructure(formula, parseJavaCC(formula), actual);
+	}
+
+	@Test
+	public void testIllegalConstruction()
+	{
+		try
+		{
+			new CharSequenceFormulaParser(null);
+			fail("null CharSequence should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+		try
+		{
+			new CharSequenceFormulaParser("abc", 2, 1);
+			fail("reversed range should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+		try
+		{
+			new CharSequenceFormulaParser("abc", 1, 4);
+			fail("range beyond end should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+	}
+
+	@Test
+	public void testErrorColumn()
+	{
+		try
+		{
+			new CharSequenceFormulaParser("xx1+*2", 2, 6).query();
+			fail("Expected Parse Error with two signs");
+		}
+		catch (ParseException e)
+		{
+			assertTrue(e.getMessage(), e.getMessage().contains("column 3"));
+		}
+	}
+
+	@Test
+	public void testNoParser() throws ParseException
+	{
+		SimpleNode root = new CharSequenceFormulaParser("f(a,1)").query();
+		assertSame(root, root.jjtGetChild(0).jjtGetParent());
+		assertNull(root.jjtGetParent());
+	}
+
+	private void assertSameStructure(String formula, Node expected,
+		Node actual)
+	{
+		assertEquals(formula, expected.getClass(), actual.getClass());
+		assertEquals(formula, expected.getId(), actual.getId());
+		SimpleNode e = (SimpleNode) expected;
+		SimpleNode a = (SimpleNode) actual;
+		assertEquals(formula, e.getOperator(), a.getOperator());
+		assertEquals(formula, e.getText(), a.getText());
+		if (expected instanceof ASTNum)
+		{
+			assertEquals(formula, ((ASTNum) expected).getValue(),
+				((ASTNum) actual).getValue());
+		}
+		assertEquals(formula, expected.jjtGetNumChildren(),
+			actual.jjtGetNumChildren());
+		for (int i = 0; i < expected.jjtGetNumChildren(); i++)
+		{
+			assertSame(formula, actual, actual.jjtGetChild(i).jjtGetParent());
+			assertSameStructure(formula, expected.jjtGetChild(i),
+				actual.jjtGetChild(i));
+		}
+	}
+}
@@ -30,8 +30,10 @@ import pcgen.base.formula.operator.number.NumberMultiply;
 import pcgen.base.formula.operator.number.NumberNotEqual;
 import pcgen.base.formula.operator.number.NumberRemainder;
 import pcgen.base.formula.operator.number.NumberSubtract;
+import pcgen.base.formula.optimize.SimplifyingVisitor;
 import pcgen.base.formula.testsupport.AbstractFormulaTestCase;
 import pcgen.base.formula.testsupport.TestUtilities;
+import pcgen.base.formula.visitor.EvaluateVisitor;
 import pcgen.base.formula.visitor.ReconstructionVisitor;
 
 public class FormulaArithmeticTest extends AbstractFormulaTestCase
@@ -54,6 +56,20 @@ public class FormulaArithmeticTest extends AbstractFormulaTestCase
 		opLibrary.addAction(new NumberRemainder());
 	}
 
+	@Override
+	public void evaluatesTo(String formula, SimpleNode node, Object valueOf)
+	{
+		super.evaluatesTo(formula, node, valueOf);
+		//The simplified tree must produce exactly the same result
+		EvaluateVisitor visitor = new EvaluateVisitor(fm, globalScope);
+		Object expected = node.jjtAccept(visitor, null);
+		Node simplified = (Node) new SimplifyingVisitor(fm).visit(node, null);
+		Object result = simplified.jjtAccept(visitor, null);
+		assertEquals("Simplified class for " + formula, expected.getClass(),
+			result.getClass());
+		assertEquals("Simplified value for " + formula, expected, result);
+	}
+
 	@Test
 	public void testIntegerPositive()
 	{
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.parse;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import pcgen.base.formula.visitor.ReconstructionVisitor;
+
+public class FormulaParserPoolTest extends TestCase
+{
+
+	private static final String[] FORMULAS = {"1", "-1.5", "a", "a+b*c",
+		"(a+b)*c", "a^b^c", "(a<b)&&(b<c)", "if(a>b,a,b)",
+		"max(a,2)*abs(-b)", "floor(\"x\")", "a[b]", "My Var",
+		"CL=Special Fighter+1", ""};
+
+	@Test
+	public void testNull() throws ParseException
+	{
+		try
+		{
+			FormulaParserPool.parse(null);
+			fail("null formula should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+	}
+
+	@Test
+	public void testParse() throws ParseException
+	{
+		//Repeated, so the parser for this thread is reused
+		for (int i = 0; i < 3; i++)
+		{
+			for (String formula : FORMULAS)
+			{
+				assertEquals(formula, dump(new FormulaParser(new StringReader(
+					formula)).query()), dump(FormulaParserPool.parse(formula)));
+			}
+		}
+	}
+
+	@Test
+	public void testReuseAfterError() throws ParseException
+	{
+		try
+		{
+			FormulaParserPool.parse("(1+2");
+			fail("Expected Parse Error with mismatched Parenthesis");
+		}
+		catch (ParseException e)
+		{
+			//ok
+		}
+		assertEquals("a+1", reconstruct(FormulaParserPool.parse("a+1")));
+		try
+		{
+			FormulaParserPool.parse("f(\"unterminated");
+			fail("Expected Error with unterminated String");
+		}
+		catch (TokenMgrError e)
+		{
+			//ok
+		}
+		assertEquals("b*2", reconstruct(FormulaParserPool.parse("b*2")));
+	}
+
+	@Test
+	public void testLongFormula() throws ParseException
+	{
+		StringBuilder sb = new StringBuilder("a");
+		for (int i = 0; i < 2000; i++)
+		{
+			sb.append('+').append(i);
+		}
+		String formula = sb.toString();
+		assertEquals(formula, reconstruct(FormulaParserPool.parse(formula)));
+		assertEquals("c", reconstruct(FormulaParserPool.parse("c")));
+	}
+
+	@Test
+	public void testThreads() throws Exception
+	{
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try
+		{
+			List<Future<String>> results = new ArrayList<Future<String>>();
+			for (int i = 0; i < 400; i++)
+			{
+				final String formula = "floor(a/" + i + ")+max(b," + i + ")";
+				results.add(pool.submit(new Callable<String>()
+				{
+					@Override
+					public String call() throws ParseException
+					{
+						return reconstruct(FormulaParserPool.parse(formula));
+					}
+				}));
+			}
+			for (int i = 0; i < results.size(); i++)
+			{
+				assertEquals("floor(a/" + i + ")+max(b," + i + ")", results
+					.get(i).get());
+			}
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+
+	private static String reconstruct(SimpleNode node)
+	{
+		StringBuilder sb = new StringBuilder();
+		new ReconstructionVisitor().visit(node, sb);
+		return sb.toString();
+	}
+
+	private static String dump(Node node)
+	{
+		StringBuilder sb = new StringBuilder();
+		dump(node, sb);
+		return sb.toString();
+	}
+
+	private static void dump(Node node, StringBuilder sb)
+	{
+		SimpleNode sn = (SimpleNode) node;
+		sb.append(node.getClass().getSimpleName()).append('(')
+			.append(sn.getOperator()).append(',').append(sn.getText());
+		for (int i = 0; i < node.jjtGetNumChildren(); i++)
+		{
+			assertSame(node, node.jjtGetChild(i).jjtGetParent());
+			sb.append(',');
+			dump(node.jjtGetChild(i), sb);
+		}
+		sb.append(')');
+	}
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.testsupport;
+
+import org.junit.Test;
+
+import pcgen.base.formula.compile.CompiledFormula;
+import pcgen.base.formula.compile.FormulaCompiler;
+import pcgen.base.formula.function.AbsFunction;
+import pcgen.base.formula.function.AbstractUnaryFunction;
+import pcgen.base.formula.function.CeilFunction;
+import pcgen.base.formula.function.FloorFunction;
+import pcgen.base.formula.function.IfFunction;
+import pcgen.base.formula.function.MaxFunction;
+import pcgen.base.formula.function.MinFunction;
+import pcgen.base.formula.function.RoundFunction;
+import pcgen.base.formula.manager.ScopeInformation;
+import pcgen.base.formula.operator.bool.BooleanAnd;
+import pcgen.base.formula.operator.bool.BooleanEquals;
+import pcgen.base.formula.operator.bool.BooleanNotEqual;
+import pcgen.base.formula.operator.bool.BooleanOr;
+import pcgen.base.formula.operator.number.NumberAdd;
+import pcgen.base.formula.operator.number.NumberDivide;
+import pcgen.base.formula.operator.number.NumberEquals;
+import pcgen.base.formula.operator.number.NumberGreaterThan;
+import pcgen.base.formula.operator.number.NumberGreaterThanOrEqualTo;
+import pcgen.base.formula.operator.number.NumberLessThan;
+import pcgen.base.formula.operator.number.NumberLessThanOrEqualTo;
+import pcgen.base.formula.operator.number.NumberMultiply;
+import pcgen.base.formula.operator.number.NumberNotEqual;
+import pcgen.base.formula.operator.number.NumberRemainder;
+import pcgen.base.formula.operator.number.NumberSubtract;
+import pcgen.base.formula.parse.SimpleNode;
+
+public abstract class AbstractCompilerTestCase extends AbstractFormulaTestCase
+{
+
+	/**
+	 * Formulas (using the variables a, b and c) that each FormulaCompiler
+	 * must evaluate identically to EvaluateVisitor.
+	 */
+	protected static final String[] FORMULAS = {"1", "-1", "1.5", "-1.5",
+		"1+2", "1+2.5", "2-3.5", "7/2", "6/3", "7.5/2", "7%3", "7.5%2", "2*3",
+		"2*0.0", "0.0*a", "a", "b", "c", "-a", "-b", "-(-a)", "a+b", "a*b-c",
+		"(a+b)*c", "a/c", "c/a", "(a)%c", "a^2", "2^3^2", "a^b^c", "b^0.5",
+		"a<b", "a<=b", "a>b", "a>=b", "a==3", "a!=b", "b==2.5",
+		"(a<b)&&(b<c)", "(a>b)&&(b>c)", "(a<b)||(b>c)", "(a<b)||(b<c)",
+		"(a<b)==(b>c)", "(a<b)!=(b>c)", "abs(c)", "abs(-2.5)", "ceil(b)",
+		"ceil(a)", "floor(b)", "floor(-b)", "round(b)", "round(c/a)",
+		"max(a,b)", "max(a,b,c)", "min(a,b,c)", "max(1,1.0)", "min(1,1.0)",
+		"if(a>b,a,b)", "if(a<b,a*2,b/2)", "if(a<b,a<c,b<c)",
+		"abs(if(c<0,c,a))+max(a,2)*min(b,3)", "myabs(c)",
+		"myabs(if(a>0,b,c))", "a+myabs(c)*(b-1)", "max(a,myabs(c)^2)",
+		"2147483647+1", "-2147483647-a", "(0-2147483647-1)/(0-1)",
+		"b/(c+4)", "-b/(c+4)", "b*(c+4)", "-b*0"};
+
+	private ScopeInformation si;
+
+	private AbstractUnaryFunction count;
+
+	private int callCount;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		opLibrary.addAction(new NumberEquals());
+		opLibrary.addAction(new NumberNotEqual());
+		opLibrary.addAction(new NumberAdd());
+		opLibrary.addAction(new NumberSubtract());
+		opLibrary.addAction(new NumberDivide());
+		opLibrary.addAction(new NumberMultiply());
+		opLibrary.addAction(new NumberGreaterThanOrEqualTo());
+		opLibrary.addAction(new NumberGreaterThan());
+		opLibrary.addAction(new NumberLessThanOrEqualTo());
+		opLibrary.addAction(new NumberLessThan());
+		opLibrary.addAction(new NumberRemainder());
+		opLibrary.addAction(new BooleanAnd());
+		opLibrary.addAction(new BooleanOr());
+		opLibrary.addAction(new BooleanEquals());
+		opLibrary.addAction(new BooleanNotEqual());
+		library.addFunction(new AbsFunction());
+		library.addFunction(new CeilFunction());
+		library.addFunction(new FloorFunction());
+		library.addFunction(new RoundFunction());
+		library.addFunction(new MaxFunction());
+		library.addFunction(new MinFunction());
+		library.addFunction(new IfFunction());
+		//Not a built-in, so must be called through the Function interface
+		library.addFunction(new AbsFunction()
+		{
+			@Override
+			public String getFunctionName()
+			{
+				return "MYABS";
+			}
+		});
+		//Counts calls, to detect evaluation of the right side of && and ||
+		count = new AbstractUnaryFunction()
+		{
+			@Override
+			public String getFunctionName()
+			{
+				return "COUNT";
+			}
+
+			@Override
+			protected Number evaluate(Number n)
+			{
+				callCount++;
+				return n;
+			}
+		};
+		library.addFunction(count);
+		store.put(getVariable("a"), Integer.valueOf(3));
+		store.put(getVariable("b"), Double.valueOf(2.5));
+		store.put(getVariable("c"), Integer.valueOf(-4));
+		si = new ScopeInformation(fm, globalScope);
+	}
+
+	/**
+	 * Returns the FormulaCompiler to be tested.
+	 * 
+	 * @return The FormulaCompiler to be tested
+	 */
+	protected abstract FormulaCompiler getCompiler();
+
+	protected void compilesTo(String formula, SimpleNode node)
+	{
+		Object expected = si.evaluate(node);
+		CompiledFormula compiled = getCompiler().compile(fm, node);
+		Object result = compiled.evaluate(si);
+		assertEquals("Incorrect class for " + formula, expected.getClass(),
+			result.getClass());
+		assertEquals("Incorrect value for " + formula, expected, result);
+	}
+
+	@Test
+	public void testMatchesEvaluate()
+	{
+		for (String formula : FORMULAS)
+		{
+			SimpleNode node = TestUtilities.doParse(formula);
+			isValid(formula, node);
+			compilesTo(formula, node);
+		}
+	}
+
+	@Test
+	public void testVariableChange()
+	{
+		String formula = "a*b+c";
+		SimpleNode node = TestUtilities.doParse(formula);
+		CompiledFormula compiled = getCompiler().compile(fm, node);
+		assertEquals(Double.valueOf(3.5), compiled.evaluate(si));
+		store.put(getVariable("a"), Integer.valueOf(4));
+		assertEquals(Double.valueOf(6.0), compiled.evaluate(si));
+		store.put(getVariable("c"), Double.valueOf(-4.5));
+		assertEquals(Double.valueOf(5.5), compiled.evaluate(si));
+	}
+
+	@Test
+	public void testCompileNull()
+	{
+		SimpleNode node = TestUtilities.doParse("1");
+		try
+		{
+			getCompiler().compile(null, node);
+			fail("null FormulaManager should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+		try
+		{
+			getCompiler().compile(fm, null);
+			fail("null root should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+	}
+
+	@Test
+	public void testShortCircuit()
+	{
+		assertCalls("(a<b)&&(count(a)>0)", Boolean.FALSE, 0);
+		assertCalls("(a>b)||(count(a)>0)", Boolean.TRUE, 0);
+		assertCalls("(a>b)&&(count(a)>0)", Boolean.TRUE, 1);
+		assertCalls("(a<b)||(count(a)>0)", Boolean.TRUE, 1);
+		assertCalls("((a<b)&&(count(a)>0))||(count(b)>0)", Boolean.TRUE, 1);
+		assertCalls("(a==b)==(count(a)>0)", Boolean.FALSE, 1);
+		assertCalls("if((a<b)&&(count(a)>0),1,2)", Integer.valueOf(2), 0);
+	}
+
+	private void assertCalls(String formula, Object expected, int calls)
+	{
+		SimpleNode node = TestUtilities.doParse(formula);
+		isValid(formula, node);
+		CompiledFormula compiled = getCompiler().compile(fm, node);
+		callCount = 0;
+		assertEquals(formula, expected, compiled.evaluate(si));
+		assertEquals(formula, calls, callCount);
+		callCount = 0;
+		assertEquals(formula, expected, si.evaluate(node));
+		assertEquals(formula, calls, callCount);
+	}
+}
@@ -55,6 +55,7 @@ public abstract class AbstractFormulaTestCase extends TestCase
 	private ScopedNamespaceDefinitionLibrary stDefLib;
 	private VariableLibrary varLibrary;
 	private ScopedNamespaceDefinition<?> globalScopeDef;
+	protected FormulaManager fm;
 
 	@Override
 	protected void setUp() throws Exception
@@ -71,7 +72,7 @@ public abstract class AbstractFormulaTestCase extends TestCase
 		library = new SimpleFunctionLibrary();
 		staticVisitor = new StaticVisitor(library);
 		store = new SimpleVariableStore();
-		FormulaManager fm = new FormulaManager(library, opLibrary, varLibrary, store);
+		fm = new FormulaManager(library, opLibrary, varLibrary, store);
 		valid = new ValidVisitor(fm, globalScopeDef);
 		eval = new EvaluateVisitor(fm, globalScope);
 		varCapture = new DependencyCaptureVisitor(fm, globalScope);
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2014 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.variable;
+
+import junit.framework.TestCase;
+
+public class ArrayVariableStoreTest extends TestCase
+{
+
+	private ScopedNamespaceDefinitionLibrary sndLibrary;
+	private VariableLibrary varLibrary;
+	private ScopedNamespaceDefinition<Number> global;
+	private ArrayVariableStore store;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		sndLibrary = new ScopedNamespaceDefinitionLibrary();
+		global =
+				sndLibrary.defineGlobalScopeDefinition(new NamespaceDefinition<Number>(
+					Number.class, "VAR"));
+		varLibrary = new VariableLibrary(sndLibrary);
+		store = new ArrayVariableStore(varLibrary);
+	}
+
+	public void testNulls()
+	{
+		try
+		{
+			new ArrayVariableStore(null);
+			fail("null VariableLibrary should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//yep
+		}
+		VariableScope scope = new VariableScope(global, null);
+		VariableID vid = new VariableID(scope, "test");
+		try
+		{
+			store.put(null, Integer.valueOf(4));
+			fail("null VariableID should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//yep
+		}
+		try
+		{
+			store.put(vid, null);
+			fail("null value should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//yep
+		}
+		try
+		{
+			store.put(vid, "NotANumber!");
+			fail("value of the wrong format should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//yep
+		}
+		assertNull(store.get(null));
+		assertFalse(store.containsKey(null));
+	}
+
+	public void testGlobal()
+	{
+		VariableScope scope = new VariableScope(global, null);
+		VariableID vid = new VariableID(scope, "test");
+		assertFalse(store.containsKey(vid));
+		assertNull(store.put(vid, Integer.valueOf(9)));
+		assertTrue(store.containsKey(vid));
+		assertEquals(Integer.valueOf(9), store.get(vid));
+		assertEquals(Integer.valueOf(9), store.put(vid, Integer.valueOf(4)));
+		assertTrue(store.containsKey(vid));
+		assertEquals(Integer.valueOf(4), store.get(vid));
+		assertEquals(Integer.valueOf(4), store.put(vid, Double.valueOf(1.5)));
+		assertEquals(Double.valueOf(1.5), store.get(vid));
+	}
+
+	public void testIndependence()
+	{
+		VariableScope scope = new VariableScope(global, null);
+		VariableScope scope2 = new VariableScope(global, null);
+		VariableID vid1 = new VariableID(scope, "test");
+		VariableID vid2 = new VariableID(scope, "test");
+		VariableID vid3 = new VariableID(scope, "test2");
+		VariableID vid4 = new VariableID(scope2, "test");
+		assertNull(store.put(vid1, Integer.valueOf(9)));
+		assertTrue(store.containsKey(vid1));
+		assertTrue(store.containsKey(vid2));
+		assertFalse(store.containsKey(vid3));
+		assertFalse(store.containsKey(vid4));
+		assertEquals(Integer.valueOf(9), store.put(vid2, Integer.valueOf(4)));
+		assertTrue(store.containsKey(vid1));
+		assertTrue(store.containsKey(vid2));
+		assertFalse(store.containsKey(vid3));
+		assertFalse(store.containsKey(vid4));
+		assertEquals(Integer.valueOf(4), store.get(vid1));
+		assertNull(store.put(vid4, Integer.valueOf(3)));
+		assertTrue(store.containsKey(vid1));
+		assertTrue(store.containsKey(vid2));
+		assertFalse(store.containsKey(vid3));
+		assertTrue(store.containsKey(vid4));
+		assertEquals(Integer.valueOf(4), store.get(vid1));
+		assertEquals(Integer.valueOf(3), store.get(vid4));
+	}
+
+	public void testLibraryVariableIDs()
+	{
+		VariableScope<Number> scope = varLibrary.instantiateScope(null, global);
+		VariableID<Number> unregistered = new VariableID<Number>(scope, "a");
+		assertNull(store.put(unregistered, Integer.valueOf(1)));
+		for (int i = 0; i < 40; i++)
+		{
+			String name = "v" + i;
+			varLibrary.assertVariableScope(global, name);
+			VariableID<Number> id = varLibrary.getVariableID(scope, name);
+			assertNull(store.put(id, Integer.valueOf(i)));
+		}
+		varLibrary.assertVariableScope(global, "a");
+		VariableID<Number> a = varLibrary.getVariableID(scope, "a");
+		assertEquals(Integer.valueOf(1), store.get(a));
+		for (int i = 0; i < 40; i++)
+		{
+			assertEquals(Integer.valueOf(i),
+				store.get(varLibrary.getVariableID(scope, "v" + i)));
+			assertEquals(Integer.valueOf(i),
+				store.get(new VariableID<Number>(scope, "v" + i)));
+		}
+		//A VariableID from another VariableLibrary does not collide by index
+		VariableLibrary other = new VariableLibrary(sndLibrary);
+		VariableScope<Number> otherScope = other.instantiateScope(null, global);
+		other.assertVariableScope(global, "v0");
+		VariableID<Number> otherID = other.getVariableID(otherScope, "v0");
+		assertEquals(0, otherID.getIndex());
+		assertFalse(store.containsKey(otherID));
+		assertNull(store.put(otherID, Integer.valueOf(99)));
+		assertEquals(Integer.valueOf(99), store.get(otherID));
+		assertEquals(Integer.valueOf(0),
+			store.get(varLibrary.getVariableID(scope, "v0")));
+	}
+
+	public void testScopes()
+	{
+		ScopedNamespaceDefinition<Number> local =
+				sndLibrary.getScopeDefinition(global, "LOCAL");
+		varLibrary.assertVariableScope(global, "g");
+		varLibrary.assertVariableScope(local, "x");
+		varLibrary.assertVariableScope(local, "y");
+		VariableScope<Number> globalScope =
+				varLibrary.instantiateScope(null, global);
+		VariableScope<Number> scope1 =
+				varLibrary.instantiateScope(globalScope, local);
+		VariableScope<Number> scope2 =
+				varLibrary.instantiateScope(globalScope, local);
+		store.put(varLibrary.getVariableID(scope1, "g"), Integer.valueOf(1));
+		store.put(varLibrary.getVariableID(scope1, "x"), Integer.valueOf(2));
+		store.put(varLibrary.getVariableID(scope2, "y"), Integer.valueOf(3));
+		int g = varLibrary.getVariableIndex(global, "g");
+		int x = varLibrary.getVariableIndex(local, "x");
+		int y = varLibrary.getVariableIndex(local, "y");
+		//g is defined in (and stored for) the global scope
+		assertEquals(Integer.valueOf(1), store.get(globalScope, g));
+		assertEquals(Integer.valueOf(1),
+			store.get(varLibrary.getVariableID(scope2, "g")));
+		assertEquals(Integer.valueOf(2), store.get(scope1, x));
+		assertNull(store.get(scope2, x));
+		assertNull(store.get(scope1, y));
+		assertEquals(Integer.valueOf(3), store.get(scope2, y));
+		assertEquals(Integer.valueOf(2), store.get(scope1, x));
+		assertNull(store.get(scope1, 99));
+		assertNull(store.get(varLibrary.instantiateScope(globalScope, local), x));
+		assertNull(store.get(null, x));
+	}
+}
@@ -610,4 +610,90 @@ public class VariableLibraryTest extends TestCase
 		assertFalse(vidf.equals(vidv));
 		
 	}
+
+	public void testVariableIDIndex()
+	{
+		NamespaceDefinition move =
+				new NamespaceDefinition(Number.class, "MOVE");
+		ScopedNamespaceDefinition gmDef = stDefLib.defineGlobalScopeDefinition(move);
+		ScopedNamespaceDefinition eqMove =
+				stDefLib.getScopeDefinition(gmDef, "EQUIPMENT");
+		VariableScope globalScope = library.instantiateScope(null, gmDef);
+		VariableScope eqScope = library.instantiateScope(globalScope, eqMove);
+		VariableScope eqScope2 = library.instantiateScope(globalScope, eqMove);
+		assertEquals(0, library.getVariableCount(gmDef));
+		assertEquals(-1, library.getVariableIndex(gmDef, "Walk"));
+		assertTrue(library.assertVariableScope(gmDef, "Walk"));
+		assertTrue(library.assertVariableScope(eqMove, "Fly"));
+		assertTrue(library.assertVariableScope(eqMove, "Swim"));
+		assertEquals(0, library.getVariableIndex(gmDef, "WALK"));
+		assertEquals(0, library.getVariableIndex(eqMove, "Fly"));
+		assertEquals(1, library.getVariableIndex(eqMove, "swim"));
+		//Defined in the parent, so not indexed in the child
+		assertEquals(-1, library.getVariableIndex(eqMove, "Walk"));
+		assertEquals(-1, library.getVariableIndex(gmDef, "Fly"));
+		VariableID walk = library.getVariableID(globalScope, "Walk");
+		assertEquals(0, walk.getIndex());
+		//Resolved in the parent scope
+		VariableID eqWalk = library.getVariableID(eqScope, "Walk");
+		assertEquals(walk, eqWalk);
+		assertEquals(0, eqWalk.getIndex());
+		VariableID fly = library.getVariableID(eqScope, "Fly");
+		VariableID fly2 = library.getVariableID(eqScope2, "Fly");
+		assertFalse(fly.equals(fly2));
+		assertEquals(0, fly.getIndex());
+		assertEquals(0, fly2.getIndex());
+		assertEquals(1, library.getVariableID(eqScope2, "SWIM").getIndex());
+		//Instantiating scopes does not add indexes
+		for (int i = 0; i < 100; i++)
+		{
+			VariableScope scope = library.instantiateScope(globalScope, eqMove);
+			assertEquals(0, library.getVariableID(scope, "fly").getIndex());
+		}
+		assertEquals(1, library.getVariableCount(gmDef));
+		assertEquals(2, library.getVariableCount(eqMove));
+	}
+
+	@Test
+	public void testConcurrentVariableIndex() throws InterruptedException
+	{
+		NamespaceDefinition move =
+				new NamespaceDefinition(Number.class, "MOVE");
+		final ScopedNamespaceDefinition gmDef =
+				stDefLib.defineGlobalScopeDefinition(move);
+		final int[][] found = new int[4][200];
+		Thread[] threads = new Thread[found.length];
+		for (int t = 0; t < threads.length; t++)
+		{
+			final int[] indexes = found[t];
+			threads[t] = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					for (int i = 0; i < indexes.length; i++)
+					{
+						indexes[i] = library.index(gmDef, "v" + i);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+		assertEquals(found[0].length, library.getVariableCount(gmDef));
+		boolean[] indexUsed = new boolean[found[0].length];
+		for (int i = 0; i < found[0].length; i++)
+		{
+			for (int t = 1; t < found.length; t++)
+			{
+				assertEquals(found[0][i], found[t][i]);
+			}
+			int index = found[0][i];
+			assertFalse(indexUsed[index]);
+			indexUsed[index] = true;
+		}
+	}
 }
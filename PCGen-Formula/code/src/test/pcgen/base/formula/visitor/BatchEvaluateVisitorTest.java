@@ -0,0 +1,208 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.visitor;
+
+import org.junit.Test;
+
+import pcgen.base.formula.ComplexNEPFormula;
+import pcgen.base.formula.function.AbsFunction;
+import pcgen.base.formula.function.AbstractUnaryFunction;
+import pcgen.base.formula.function.IfFunction;
+import pcgen.base.formula.function.MaxFunction;
+import pcgen.base.formula.operator.bool.BooleanAnd;
+import pcgen.base.formula.operator.bool.BooleanEquals;
+import pcgen.base.formula.operator.bool.BooleanOr;
+import pcgen.base.formula.operator.number.NumberAdd;
+import pcgen.base.formula.operator.number.NumberDivide;
+import pcgen.base.formula.operator.number.NumberEquals;
+import pcgen.base.formula.operator.number.NumberGreaterThan;
+import pcgen.base.formula.operator.number.NumberLessThan;
+import pcgen.base.formula.operator.number.NumberMultiply;
+import pcgen.base.formula.operator.number.NumberRemainder;
+import pcgen.base.formula.operator.number.NumberSubtract;
+import pcgen.base.formula.parse.SimpleNode;
+import pcgen.base.formula.testsupport.AbstractFormulaTestCase;
+import pcgen.base.formula.testsupport.TestUtilities;
+import pcgen.base.formula.variable.VariableID;
+import pcgen.base.formula.variable.VariableScope;
+
+public class BatchEvaluateVisitorTest extends AbstractFormulaTestCase
+{
+
+	private static final String[] FORMULAS = {"1", "-1.5", "a", "-a", "b",
+		"a+b", "a*b-c", "(a+b)*c", "a/c", "(a)%c", "-(-a)", "a^2", "a^b^c",
+		"b^0.5", "a<b", "a==3", "(a<b)&&(b<c)", "(a<b)||(b>c)",
+		"(a<b)==(b>c)", "abs(c)", "max(a,b,c)", "if(a>b,a,b)",
+		"if(a<b,a<c,b<c)", "abs(if(c<0,c,a))+max(a,2)*b", "z", "z+a"};
+
+	private VariableScope<?>[] scopes;
+
+	private int callCount;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		opLibrary.addAction(new NumberEquals());
+		opLibrary.addAction(new NumberAdd());
+		opLibrary.addAction(new NumberSubtract());
+		opLibrary.addAction(new NumberDivide());
+		opLibrary.addAction(new NumberMultiply());
+		opLibrary.addAction(new NumberGreaterThan());
+		opLibrary.addAction(new NumberLessThan());
+		opLibrary.addAction(new NumberRemainder());
+		opLibrary.addAction(new BooleanAnd());
+		opLibrary.addAction(new BooleanOr());
+		opLibrary.addAction(new BooleanEquals());
+		library.addFunction(new AbsFunction());
+		library.addFunction(new MaxFunction());
+		library.addFunction(new IfFunction());
+		library.addFunction(new AbstractUnaryFunction()
+		{
+			@Override
+			public String getFunctionName()
+			{
+				return "COUNT";
+			}
+
+			@Override
+			protected Number evaluate(Number n)
+			{
+				callCount++;
+				return n;
+			}
+		});
+		getVariable("a");
+		getVariable("b");
+		getVariable("c");
+		getVariable("z");
+		scopes = new VariableScope<?>[6];
+		for (int i = 0; i < scopes.length; i++)
+		{
+			VariableScope<?> scope = newScope(globalScope);
+			scopes[i] = scope;
+			put(scope, "a", Integer.valueOf(i - 2));
+			put(scope, "b", Double.valueOf(i * 1.5));
+			put(scope, "c", Integer.valueOf(3 - 2 * i));
+		}
+	}
+
+	private <T> VariableScope<T> newScope(VariableScope<T> scope)
+	{
+		return fm.getFactory().instantiateScope(null,
+			scope.getScopeDefinition());
+	}
+
+	@SuppressWarnings("unchecked")
+	private void put(VariableScope<?> scope, String name, Number value)
+	{
+		store.put((VariableID<Number>) fm.getFactory().getVariableID(scope,
+			name), value);
+	}
+
+	@Test
+	public void testNull()
+	{
+		try
+		{
+			new BatchEvaluateVisitor(null, scopes);
+			fail("null FormulaManager should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+		try
+		{
+			new BatchEvaluateVisitor(fm, null);
+			fail("null scopes should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+		try
+		{
+			new BatchEvaluateVisitor(fm, new VariableScope<?>[]{null});
+			fail("null scope should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+		BatchEvaluateVisitor visitor = new BatchEvaluateVisitor(fm, scopes);
+		try
+		{
+			visitor.evaluate(TestUtilities.doParse("1"), new Object[1]);
+			fail("short results should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+	}
+
+	@Test
+	public void testMatchesEvaluate()
+	{
+		BatchEvaluateVisitor visitor = new BatchEvaluateVisitor(fm, scopes);
+		for (String formula : FORMULAS)
+		{
+			SimpleNode node = TestUtilities.doParse(formula);
+			isValid(formula, node);
+			Object[] results = new Object[scopes.length];
+			visitor.evaluate(node, results);
+			for (int i = 0; i < scopes.length; i++)
+			{
+				Object expected =
+						new EvaluateVisitor(fm, scopes[i]).visit(node, null);
+				assertEquals(formula + " in scope " + i, expected, results[i]);
+				assertEquals(formula + " in scope " + i, expected.getClass(),
+					results[i].getClass());
+			}
+		}
+	}
+
+	@Test
+	public void testShortCircuit()
+	{
+		//a<0 for the first two scopes only
+		String formula = "(a<0)||(count(a)>0)";
+		SimpleNode node = TestUtilities.doParse(formula);
+		isValid(formula, node);
+		Object[] results = new Object[scopes.length];
+		new BatchEvaluateVisitor(fm, scopes).evaluate(node, results);
+		assertEquals(4, callCount);
+		assertEquals(Boolean.TRUE, results[0]);
+		assertEquals(Boolean.TRUE, results[1]);
+		assertEquals(Boolean.FALSE, results[2]);
+		assertEquals(Boolean.TRUE, results[3]);
+	}
+
+	@Test
+	public void testFormula()
+	{
+		ComplexNEPFormula<Number> formula =
+				new ComplexNEPFormula<Number>("a*2+b");
+		Object[] results = new Object[scopes.length + 1];
+		formula.resolve(fm, scopes, results);
+		assertEquals(Double.valueOf(-4.0), results[0]);
+		assertEquals(Double.valueOf(13.5), results[5]);
+		assertNull(results[6]);
+	}
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.visitor;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import pcgen.base.formula.parse.Node;
+import pcgen.base.formula.parse.SimpleNode;
+import pcgen.base.formula.testsupport.TestUtilities;
+
+public class SubtreeInternerTest extends TestCase
+{
+
+	private static final String[] FORMULAS = {"1", "-1.5", "a", "a+b*c",
+		"(a+b)*c", "a^b^c", "(a<b)&&(b<c)", "if(a>b,a,b)",
+		"max(a,2)*abs(-b)", "floor(\"x\")", "a[b]", "a+a", "(a+b)*(a+b)"};
+
+	@Test
+	public void testNull()
+	{
+		try
+		{
+			new SubtreeInterner().intern(null);
+			fail("null root should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+	}
+
+	@Test
+	public void testReconstruction()
+	{
+		SubtreeInterner interner = new SubtreeInterner();
+		for (String formula : FORMULAS)
+		{
+			SimpleNode node = TestUtilities.doParse(formula);
+			SimpleNode interned = interner.intern(node);
+			assertNotSame(node, interned);
+			assertEquals(formula, reconstruct(node), reconstruct(interned));
+		}
+		//Reconstruct again, once all of the subtrees are shared
+		for (String formula : FORMULAS)
+		{
+			SimpleNode node = TestUtilities.doParse(formula);
+			assertEquals(formula, reconstruct(node),
+				reconstruct(interner.intern(node)));
+		}
+	}
+
+	@Test
+	public void testSharedSubtree()
+	{
+		SubtreeInterner interner = new SubtreeInterner();
+		SimpleNode first =
+				interner.intern(TestUtilities.doParse("floor(LEVEL/2)+1"));
+		assertEquals(0, interner.getSavedNodeCount());
+		int distinct = interner.getNodeCount();
+		assertEquals(count(first), distinct);
+		SimpleNode second =
+				interner.intern(TestUtilities.doParse("floor(LEVEL/2)*3"));
+		//Root -> Arithmetic -> Lookup; Root -> Geometric -> Lookup
+		Node firstFloor = first.jjtGetChild(0).jjtGetChild(0);
+		Node secondFloor = second.jjtGetChild(0).jjtGetChild(0);
+		assertSame(firstFloor, secondFloor);
+		assertNotSame(first.jjtGetChild(0), second.jjtGetChild(0));
+		int floorSize = count(firstFloor);
+		assertEquals(floorSize, interner.getSavedNodeCount());
+		assertEquals(distinct + count(second) - floorSize,
+			interner.getNodeCount());
+	}
+
+	@Test
+	public void testSharedWithinFormula()
+	{
+		SubtreeInterner interner = new SubtreeInterner();
+		SimpleNode root = interner.intern(TestUtilities.doParse("(a+b)*(a+b)"));
+		Node geometric = root.jjtGetChild(0);
+		assertSame(geometric.jjtGetChild(0), geometric.jjtGetChild(1));
+		//Paren -> Arithmetic -> SingleWord (x2)
+		assertEquals(4, interner.getSavedNodeCount());
+	}
+
+	@Test
+	public void testIdenticalFormula()
+	{
+		SubtreeInterner interner = new SubtreeInterner();
+		SimpleNode first = interner.intern(TestUtilities.doParse("a+b*c"));
+		int distinct = interner.getNodeCount();
+		SimpleNode second = interner.intern(TestUtilities.doParse("a+b*c"));
+		assertSame(first, second);
+		assertEquals(distinct, interner.getNodeCount());
+		assertEquals(count(first), interner.getSavedNodeCount());
+	}
+
+	@Test
+	public void testDistinctStructure()
+	{
+		SubtreeInterner interner = new SubtreeInterner();
+		SimpleNode plus = interner.intern(TestUtilities.doParse("a+b"));
+		SimpleNode minus = interner.intern(TestUtilities.doParse("a-b"));
+		SimpleNode paren = interner.intern(TestUtilities.doParse("(a+b)"));
+		SimpleNode number = interner.intern(TestUtilities.doParse("1.0"));
+		SimpleNode integer = interner.intern(TestUtilities.doParse("1"));
+		assertNotSame(plus.jjtGetChild(0), minus.jjtGetChild(0));
+		//Variables are shared even if the operation is not
+		assertSame(plus.jjtGetChild(0).jjtGetChild(0), minus.jjtGetChild(0)
+			.jjtGetChild(0));
+		//Parenthesis are not ignored
+		assertNotSame(plus, paren);
+		assertSame(plus.jjtGetChild(0), paren.jjtGetChild(0).jjtGetChild(0));
+		assertNotSame(number.jjtGetChild(0), integer.jjtGetChild(0));
+	}
+
+	private int count(Node node)
+	{
+		int count = 1;
+		for (int i = 0; i < node.jjtGetNumChildren(); i++)
+		{
+			count += count(node.jjtGetChild(i));
+		}
+		return count;
+	}
+
+	private String reconstruct(SimpleNode node)
+	{
+		StringBuilder sb = new StringBuilder();
+		new ReconstructionVisitor().visit(node, sb);
+		return sb.toString();
+	}
+}
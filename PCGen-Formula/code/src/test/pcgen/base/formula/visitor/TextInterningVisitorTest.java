@@ -0,0 +1,114 @@
+/*
+ * Copyright 2015 (C) Tom Parker <thpr@users.sourceforge.net>
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package pcgen.base.formula.visitor;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import pcgen.base.formula.parse.ASTNum;
+import pcgen.base.formula.parse.Node;
+import pcgen.base.formula.parse.SimpleNode;
+import pcgen.base.formula.testsupport.TestUtilities;
+
+public class TextInterningVisitorTest extends TestCase
+{
+
+	private static final String[] FORMULAS = {"1", "-1.5", "a", "a+b*c",
+		"(a+b)*c", "a^b^c", "(a<b)&&(b<c)", "if(a>b,a,b)",
+		"max(a,2)*abs(-b)", "floor(\"x\")", "a[b]"};
+
+	@Test
+	public void testNull()
+	{
+		try
+		{
+			new TextInterningVisitor().internText(null);
+			fail("null root should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//ok
+		}
+	}
+
+	@Test
+	public void testStructure()
+	{
+		for (String formula : FORMULAS)
+		{
+			SimpleNode original = TestUtilities.doParse(formula);
+			SimpleNode node = TestUtilities.doParse(formula);
+			SimpleNode interned = new TextInterningVisitor().internText(node);
+			//Interned in place
+			assertSame(node, interned);
+			assertSameStructure(formula, original, interned);
+			assertEquals(formula, reconstruct(original), reconstruct(interned));
+		}
+	}
+
+	@Test
+	public void testTextShared()
+	{
+		TextInterningVisitor visitor = new TextInterningVisitor();
+		SimpleNode first = visitor.internText(TestUtilities.doParse("Strength+1"));
+		SimpleNode second =
+				visitor.internText(TestUtilities.doParse("2*Strength"));
+		//Root -> Arithmetic -> SingleWord; Root -> Geometric -> SingleWord
+		SimpleNode firstVar =
+				(SimpleNode) first.jjtGetChild(0).jjtGetChild(0);
+		SimpleNode secondVar =
+				(SimpleNode) second.jjtGetChild(0).jjtGetChild(1);
+		assertEquals("Strength", firstVar.getText());
+		assertSame(firstVar.getText(), secondVar.getText());
+	}
+
+	private void assertSameStructure(String formula, Node expected,
+		Node actual)
+	{
+		assertEquals(formula, expected.getClass(), actual.getClass());
+		assertEquals(formula, expected.getId(), actual.getId());
+		if (expected instanceof SimpleNode)
+		{
+			SimpleNode e = (SimpleNode) expected;
+			SimpleNode a = (SimpleNode) actual;
+			assertEquals(formula, e.getOperator(), a.getOperator());
+			assertEquals(formula, e.getText(), a.getText());
+		}
+		if (expected instanceof ASTNum)
+		{
+			assertEquals(formula, ((ASTNum) expected).getValue(),
+				((ASTNum) actual).getValue());
+		}
+		assertEquals(formula, expected.jjtGetNumChildren(),
+			actual.jjtGetNumChildren());
+		for (int i = 0; i < expected.jjtGetNumChildren(); i++)
+		{
+			assertSame(formula, actual, actual.jjtGetChild(i).jjtGetParent());
+			assertSameStructure(formula, expected.jjtGetChild(i),
+				actual.jjtGetChild(i));
+		}
+	}
+
+	private String reconstruct(SimpleNode node)
+	{
+		StringBuilder sb = new StringBuilder();
+		new ReconstructionVisitor().visit(node, sb);
+		return sb.toString();
+	}
+}